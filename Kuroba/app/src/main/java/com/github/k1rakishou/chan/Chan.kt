@@ -74,6 +74,7 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.manager.base_directory.DirectoryManager
 import com.github.k1rakishou.model.ModelModuleInjector
 import com.github.k1rakishou.model.di.NetworkModule
+import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
 import com.github.k1rakishou.persist_state.PersistableChanState
 import dagger.Lazy
 import io.reactivex.exceptions.UndeliverableException
@@ -86,6 +87,7 @@ import kotlinx.coroutines.DEBUG_PROPERTY_VALUE_OFF
 import kotlinx.coroutines.DEBUG_PROPERTY_VALUE_ON
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import okhttp3.HttpUrl.Companion.toHttpUrl
 import okhttp3.OkHttpClient
 import okhttp3.Protocol
@@ -121,6 +123,8 @@ class Chan : Application(), ActivityLifecycleCallbacks {
   lateinit var applicationVisibilityManager: Lazy<ApplicationVisibilityManager>
   @Inject
   lateinit var reportManager: ReportManager
+  @Inject
+  lateinit var chanThreadsCache: Lazy<ChanThreadsCache>
 
   private val normalDnsCreatorFactory: NormalDnsSelectorFactory = object : NormalDnsSelectorFactory {
     override fun createDnsSelector(okHttpClient: OkHttpClient): NormalDnsSelector {
@@ -551,6 +555,20 @@ class Chan : Application(), ActivityLifecycleCallbacks {
     return ImageLoaderFileManagerWrapper(fileManager)
   }
 
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+
+    if (!::chanThreadsCache.isInitialized || !::applicationScope.isInitialized) {
+      return
+    }
+
+    Logger.d(TAG, "onTrimMemory(${level})")
+
+    applicationScope.launch(Dispatchers.Default) {
+      chanThreadsCache.get().onTrimMemory(level)
+    }
+  }
+
   override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {}
   override fun onActivityStarted(activity: Activity) {
     activityEnteredForeground()
@@ -2,14 +2,19 @@ package com.github.k1rakishou.chan.core.cache
 
 enum class CacheFileType(
   val id: Int,
-  val diskSizePercent: Float
+  val diskSizePercent: Float,
+  // Downloaded files are hashed and files with the same content are only stored once (the same
+  // media is often posted multiple times or is available under multiple urls)
+  val contentAddressable: Boolean = false,
+  // Small downloaded files are stored in packed segment files instead of separate files
+  val packSmallFiles: Boolean = false
 ) {
   ThreadDownloaderThumbnail(0, 0.05f),
-  BookmarkThumbnail(1, 0.05f),
-  NavHistoryThumbnail(2, 0.05f),
-  SiteIcon(3, 0.05f),
-  PostMediaThumbnail(4, 0.05f),
-  PostMediaFull(5, 0.65f),
+  BookmarkThumbnail(1, 0.05f, packSmallFiles = true),
+  NavHistoryThumbnail(2, 0.05f, packSmallFiles = true),
+  SiteIcon(3, 0.05f, packSmallFiles = true),
+  PostMediaThumbnail(4, 0.05f, packSmallFiles = true),
+  PostMediaFull(5, 0.65f, contentAddressable = true),
   Other(6, 0.1f);
 
   fun calculateDiskSize(totalDiskCacheSize: Long): Long {
@@ -29,6 +34,10 @@ enum class CacheFileType(
       check(values().size == values().distinctBy { it.id }.size) {
         "All ids must be unique!"
       }
+
+      check(values().none { it.contentAddressable && it.packSmallFiles }) {
+        "Packed files can't be content addressable!"
+      }
     }
 
   }
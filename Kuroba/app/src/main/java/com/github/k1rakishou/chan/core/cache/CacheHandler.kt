@@ -35,17 +35,23 @@ import kotlin.time.measureTime
 /**
  * CacheHandler has been re-worked a little bit because old implementation was relying on the
  * lastModified file flag which doesn't work on some Android versions/different phones. It was decided
- * to instead use a meta file for every cache file which will contain the following information:
+ * to instead keep a journal (see [CacheJournal]) per every [CacheFileType] which contains the
+ * following information for every cache file:
  * 1. Time of creation of the cache file (in millis).
  * 2. A flag that indicates whether a download has been completed or not.
+ * 3. Size of the file (once it's downloaded).
+ * 4. Md5 of the file (for [CacheFileType.contentAddressable] caches) so that the same content
+ * cached under different urls is stored on the disk only once.
+ * 5. Segment and offset of the file for small files that are packed into segment files (see
+ * [PackedSegments]).
  *
  * We need creation time to not delete cache file for active downloads or for downloads that has
  * just been completed (otherwise the user may see a black screen instead of an image/webm). The
- * minimum cache file life time is 5 minutes. That means we won't delete any cache files (and their
- * meta files) for at least 5 minutes.
+ * minimum cache file life time is 5 minutes. That means we won't delete any cache files for at
+ * least 5 minutes.
  *
- * CacheHandler now also caches file chunks that are used by [ConcurrentChunkedFileDownloader] as well
- * as all media files retrieved via [ImageLoaderV2]
+ * CacheHandler also caches all media files retrieved via [ImageLoaderV2]. Files downloaded by
+ * [ConcurrentChunkedFileDownloader] are written (chunk by chunk) straight into their cache files.
  */
 @OptIn(ExperimentalTime::class)
 class CacheHandler(
@@ -97,6 +103,8 @@ class CacheHandler(
       val innerCache = InnerCache(
         cacheDirFile = innerCacheDirFile,
         chunksCacheDirFile = innerCacheChunksDirFile,
+        segmentsDirFile = File(File(diskCacheDir, cacheFileType.id.toString()), "segments"),
+        journalFile = File(File(diskCacheDir, cacheFileType.id.toString()), "journal"),
         fileCacheDiskSizeBytes = cacheFileType.calculateDiskSize(totalFileCacheDiskSizeBytes),
         cacheFileType = cacheFileType,
         isDevBuild = ENABLE_LOGGING
@@ -111,6 +119,10 @@ class CacheHandler(
     val innerCache = getInnerCacheByFileType(cacheFileType)
     val file = innerCache.getCacheFileOrNull(url)
 
+    if (file != null) {
+      innerCache.onCacheFileAccessed(file.name)
+    }
+
     if (ENABLE_LOGGING) {
       Logger.d(TAG, "getCacheFileOrNull($cacheFileType, $url) -> ${file?.name}")
     }
@@ -119,41 +131,39 @@ class CacheHandler(
   }
 
   /**
-   * Either returns already downloaded file or creates an empty new one on the disk (also creates
-   * cache file meta with default parameters)
+   * Small files of [CacheFileType]s with [CacheFileType.packSmallFiles] are stored in packed segment
+   * files after they are downloaded so they can't be accessed via [getCacheFileOrNull].
    * */
-  fun getOrCreateCacheFile(cacheFileType: CacheFileType, url: String): File? {
+  fun getPackedCacheFileOrNull(cacheFileType: CacheFileType, url: String): PackedCacheFile? {
     BackgroundUtils.ensureBackgroundThread()
     val innerCache = getInnerCacheByFileType(cacheFileType)
-    val file = innerCache.getOrCreateCacheFile(url)
+    val packedCacheFile = innerCache.getPackedCacheFileOrNull(url)
 
-    if (ENABLE_LOGGING) {
-      Logger.d(TAG, "getOrCreateCacheFile($cacheFileType, $url) -> ${file?.name}")
+    if (packedCacheFile != null) {
+      innerCache.onCacheFileAccessed(innerCache.getCacheFileByUrl(url).name)
     }
 
-    return file
-  }
-
-  fun getChunkCacheFileOrNull(cacheFileType: CacheFileType, chunkStart: Long, chunkEnd: Long, url: String): File? {
     if (ENABLE_LOGGING) {
-      Logger.d(TAG, "getChunkCacheFileOrNull($cacheFileType, $chunkStart..$chunkEnd, $url)")
+      Logger.d(TAG, "getPackedCacheFileOrNull($cacheFileType, $url) -> ${packedCacheFile}")
     }
 
+    return packedCacheFile
+  }
+
+  /**
+   * Either returns already downloaded file or creates an empty new one on the disk (also creates
+   * cache file meta with default parameters)
+   * */
+  fun getOrCreateCacheFile(cacheFileType: CacheFileType, url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
     val innerCache = getInnerCacheByFileType(cacheFileType)
+    val file = innerCache.getOrCreateCacheFile(url)
 
-    return innerCache.getChunkCacheFileOrNull(chunkStart, chunkEnd, url)
-  }
-
-  fun getOrCreateChunkCacheFile(cacheFileType: CacheFileType, chunkStart: Long, chunkEnd: Long, url: String): File? {
     if (ENABLE_LOGGING) {
-      Logger.d(TAG, "getOrCreateChunkCacheFile($cacheFileType, $chunkStart..$chunkEnd, $url)")
+      Logger.d(TAG, "getOrCreateCacheFile($cacheFileType, $url) -> ${file?.name}")
     }
 
-    BackgroundUtils.ensureBackgroundThread()
-    val innerCache = getInnerCacheByFileType(cacheFileType)
-
-    return innerCache.getOrCreateChunkCacheFile(chunkStart, chunkEnd, url)
+    return file
   }
 
   fun cacheFileExists(cacheFileType: CacheFileType, fileUrl: String): Boolean {
@@ -204,16 +214,21 @@ class CacheHandler(
   }
 
   /**
-   * Checks whether this file is already downloaded by reading it's meta info. If a file has no
-   * meta info or it cannot be read - deletes the file so it can be re-downloaded again with all
-   * necessary information
+   * Checks whether this file is already downloaded by looking it up in the cache journal. Files
+   * that are not in the journal are considered not downloaded so they will be re-downloaded again
+   * with all necessary information
    *
    * [cacheFile] must be the cache file, not cache file meta!
    * */
   fun isAlreadyDownloaded(cacheFileType: CacheFileType, cacheFile: File): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
-    val alreadyDownloaded = getInnerCacheByFileType(cacheFileType).isAlreadyDownloaded(cacheFile)
+    val innerCache = getInnerCacheByFileType(cacheFileType)
+    val alreadyDownloaded = innerCache.isAlreadyDownloaded(cacheFile)
+
+    if (alreadyDownloaded) {
+      innerCache.onCacheFileAccessed(cacheFile.name)
+    }
 
     if (ENABLE_LOGGING) {
       Logger.d(TAG, "isAlreadyDownloaded($cacheFileType, ${cacheFile.absolutePath}) -> $alreadyDownloaded")
@@ -234,6 +249,23 @@ class CacheHandler(
     return markedAsDownloaded
   }
 
+  /**
+   * Checks whether a file with the same content is already in the cache (for [CacheFileType]s that
+   * are content addressable) and if it is then [cacheFile] becomes a link to it and is marked as
+   * downloaded. [contentHash] is the md5 (hex) of the file that the site provides.
+   * */
+  fun tryLinkByContentHash(cacheFileType: CacheFileType, cacheFile: File, contentHash: String): Boolean {
+    BackgroundUtils.ensureBackgroundThread()
+
+    val linked = getInnerCacheByFileType(cacheFileType).tryLinkByContentHash(cacheFile, contentHash)
+
+    if (ENABLE_LOGGING) {
+      Logger.d(TAG, "tryLinkByContentHash($cacheFileType, ${cacheFile.absolutePath}, $contentHash) -> $linked")
+    }
+
+    return linked
+  }
+
   fun getSize(cacheFileType: CacheFileType): Long {
     if (ENABLE_LOGGING) {
       Logger.d(TAG, "getSize($cacheFileType)")
@@ -242,6 +274,23 @@ class CacheHandler(
     return getInnerCacheByFileType(cacheFileType).getSize()
   }
 
+  /**
+   * Counts a hit or a miss for [getCacheStats]. The lookup methods of this class don't count anything
+   * themselves because one load of a file checks the cache several times (e.g. a thumbnail that is
+   * not cached is looked up in the packed segments and as a separate file, then checked again right
+   * before and after being downloaded), so it's up to the caller to call this once per load.
+   * */
+  fun onCacheLookup(cacheFileType: CacheFileType, hit: Boolean) {
+    getInnerCacheByFileType(cacheFileType).onCacheLookup(hit)
+  }
+
+  /**
+   * Hits/misses of cache file lookups (see [onCacheLookup]) since the app start.
+   * */
+  fun getCacheStats(cacheFileType: CacheFileType): CacheStats {
+    return getInnerCacheByFileType(cacheFileType).getCacheStats()
+  }
+
   fun getMaxSize(cacheFileType: CacheFileType): Long {
     if (ENABLE_LOGGING) {
       Logger.d(TAG, "getMaxSize($cacheFileType)")
@@ -251,12 +300,12 @@ class CacheHandler(
   }
 
   /**
-   * When a file is downloaded we add it's size to the total cache directory size variable and
-   * check whether it exceeds the maximum cache size or not. If it does then the trim() operation
-   * is executed in a background thread.
+   * When a file is downloaded (and marked as downloaded, which adds it's size to the total cache
+   * size) we check whether the cache exceeds the maximum cache size or not. If it does then the
+   * trim() operation is executed in a background thread.
    * */
   fun fileWasAdded(cacheFileType: CacheFileType, fileLen: Long) {
-    val totalSize = getInnerCacheByFileType(cacheFileType).fileWasAdded(fileLen)
+    val totalSize = getInnerCacheByFileType(cacheFileType).fileWasAdded()
 
     if (ENABLE_LOGGING) {
       val maxSizeFormatted = ChanPostUtils.getReadableFileSize(getInnerCacheByFileType(cacheFileType).getMaxSize())
@@ -278,8 +327,26 @@ class CacheHandler(
     getInnerCacheByFileType(cacheFileType).clearCache()
   }
 
+  fun getResumeStateFile(cacheFileType: CacheFileType, cacheFile: File): File {
+    return getInnerCacheByFileType(cacheFileType).getResumeStateFile(cacheFile)
+  }
+
   /**
-   * Deletes a cache file with it's meta. Also decreases the total cache size variable by the size
+   * Must be called when a file that is not completely downloaded is kept on the disk so that its
+   * actual size is counted in the cache size.
+   * */
+  fun onPartialFileKept(cacheFileType: CacheFileType, cacheFile: File) {
+    BackgroundUtils.ensureBackgroundThread()
+
+    if (ENABLE_LOGGING) {
+      Logger.d(TAG, "onPartialFileKept($cacheFileType, ${cacheFile.absolutePath})")
+    }
+
+    getInnerCacheByFileType(cacheFileType).onPartialFileKept(cacheFile)
+  }
+
+  /**
+   * Deletes a cache file with it's journal entry. Also decreases the total cache size variable by the size
    * of the file.
    * */
   fun deleteCacheFile(cacheFileType: CacheFileType, cacheFile: File): Boolean {
@@ -294,6 +361,26 @@ class CacheHandler(
     return innerCaches[cacheFileType]!!
   }
 
+  class CacheStats(
+    val hits: Long,
+    val misses: Long
+  ) {
+
+    val hitRatio: Float
+      get() {
+        val total = hits + misses
+        if (total <= 0) {
+          return 0f
+        }
+
+        return hits.toFloat() / total.toFloat()
+      }
+
+    override fun toString(): String {
+      return "CacheStats(hits=$hits, misses=$misses, hitRatio=$hitRatio)"
+    }
+  }
+
   companion object {
     private const val TAG = "CacheHandler"
     private const val ENABLE_LOGGING = false
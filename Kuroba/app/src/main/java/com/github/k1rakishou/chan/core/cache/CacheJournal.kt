@@ -0,0 +1,548 @@
+package com.github.k1rakishou.chan.core.cache
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.core_logger.Logger
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+/**
+ * An append-only index of all the files of one [InnerCache] (one per [CacheFileType]). Replaces
+ * the old per-file meta sidecars so that neither startup, nor size accounting, nor trim have to list
+ * the cache directory and read every file's meta.
+ *
+ * Every change to an entry is appended to the journal as a full record (name, size, creation time,
+ * last access time, whether the file is fully downloaded) and the last record of an entry wins.
+ * Removed entries are appended as tombstones. Every record has a CRC32 so that a record that was
+ * torn by the process getting killed mid-write is detected when loading, the journal is then
+ * truncated to the last valid record. Once there are too many outdated records the journal is
+ * rewritten (compacted) into a temp file which then atomically replaces the journal.
+ *
+ * Files which records were lost (dropped together with a broken record) are not in the index, the
+ * owner has to find them on the disk after loading if [hasLostRecords] returns true. When a record
+ * can't be appended the whole journal is rewritten from the index instead so that nothing is lost.
+ *
+ * Cache hits only update the last access time in memory (see [touch]), the updated entries are
+ * written into the journal in batches by [flushAccessTimes] so that a hit doesn't cost a disk write.
+ *
+ * Entries may have a content hash (md5 of the file). All the entries with the same content hash are
+ * hard links to the same file (see [InnerCache.markFileDownloaded]) so their size is only counted
+ * once in [totalSize].
+ *
+ * Small files of some caches are not stored as separate files but in packed segment files (see
+ * [PackedSegments]), their entries contain the segment and the offset of the file in it.
+ * */
+internal class CacheJournal(
+  private val journalFile: File
+) {
+  private val tempJournalFile = File(journalFile.parentFile, journalFile.name + TEMP_EXTENSION)
+  private val crc32 = CRC32()
+  private val recordBuffer = ByteArrayOutputStream(128)
+  private val recordOutput = DataOutputStream(recordBuffer)
+
+  @GuardedBy("this")
+  private val entries = LinkedHashMap<String, Entry>(128)
+  @GuardedBy("this")
+  private var journalWriter: DataOutputStream? = null
+  @GuardedBy("this")
+  private var totalSize = 0L
+  // Sizes of the packed entries, every one of them has its own copy of the bytes in a segment
+  @GuardedBy("this")
+  private var packedSize = 0L
+  // Records in the journal that were overwritten by newer records of the same entry
+  @GuardedBy("this")
+  private var redundantRecords = 0
+  // Entries which last access time was updated in memory but is not in the journal yet
+  @GuardedBy("this")
+  private val entriesWithUnsavedAccessTime = LinkedHashSet<String>()
+  // Names of the files that share the same content (hard links to the same file)
+  @GuardedBy("this")
+  private val fileNamesByContentHash = HashMap<String, MutableSet<String>>(32)
+  // Whether valid records were dropped when loading the journal (everything after a broken record)
+  @GuardedBy("this")
+  private var lostRecords = false
+
+  fun exists(): Boolean = journalFile.exists()
+
+  /**
+   * Reads the journal into memory. Returns false if there was no journal to read (or its header is
+   * broken) in which case the index is empty and must be rebuilt by the caller.
+   * */
+  @Synchronized
+  fun load(): Boolean {
+    closeWriter()
+    resetIndex()
+
+    if (!journalFile.exists()) {
+      return false
+    }
+
+    var validLength = 0L
+    var recordsCount = 0
+    var version = VERSION
+
+    try {
+      DataInputStream(BufferedInputStream(journalFile.inputStream())).use { input ->
+        val magic = input.readInt()
+        version = input.readInt()
+
+        if (magic != MAGIC || version !in MIN_SUPPORTED_VERSION..VERSION) {
+          Logger.e(TAG, "load() bad journal header, journalFile=${journalFile.absolutePath}, version=${version}")
+          return false
+        }
+
+        validLength = HEADER_SIZE
+
+        while (true) {
+          val recordLength = readRecord(input, version)
+            ?: break
+
+          validLength += recordLength
+          ++recordsCount
+        }
+      }
+    } catch (error: IOException) {
+      // Either EOF in the middle of a record or a garbage record
+      if (validLength == 0L) {
+        Logger.e(TAG, "load() couldn't read journal header, journalFile=${journalFile.absolutePath}", error)
+        return false
+      }
+    }
+
+    redundantRecords = recordsCount - entries.size
+    // A torn last record only loses the file that was being added but a broken record in the middle
+    // loses all the records after it
+    lostRecords = validLength < journalFile.length()
+
+    if (version != VERSION) {
+      // New records can't be appended to a journal of the older version
+      Logger.d(TAG, "load() upgrading journal from version ${version} to ${VERSION}")
+      redundantRecords = 0
+      rewriteJournal()
+    } else if (validLength < journalFile.length()) {
+      // The process was killed while a record was being written, drop everything after the last
+      // valid record otherwise new records would be appended after garbage
+      Logger.e(TAG, "load() journal is corrupted, truncating it from ${journalFile.length()} to ${validLength} bytes")
+      RandomAccessFile(journalFile, "rw").use { raf -> raf.setLength(validLength) }
+    }
+
+    Logger.d(TAG, "load() done, entries=${entries.size}, records=${recordsCount}, totalSize=${totalSize}")
+    return true
+  }
+
+  /**
+   * Replaces the whole index with [newEntries] and rewrites the journal.
+   * */
+  @Synchronized
+  fun rebuild(newEntries: Collection<Entry>) {
+    resetIndex()
+
+    newEntries.forEach { entry -> putInMemory(entry) }
+    redundantRecords = 0
+
+    rewriteJournal()
+  }
+
+  @Synchronized
+  fun clear() {
+    rebuild(emptyList())
+  }
+
+  @Synchronized
+  fun hasLostRecords(): Boolean = lostRecords
+
+  @Synchronized
+  fun get(fileName: String): Entry? = entries[fileName]
+
+  @Synchronized
+  fun contains(fileName: String): Boolean = entries.containsKey(fileName)
+
+  @Synchronized
+  fun size(): Int = entries.size
+
+  @Synchronized
+  fun totalSize(): Long = totalSize
+
+  @Synchronized
+  fun packedSize(): Long = packedSize
+
+  @Synchronized
+  fun entriesSnapshot(): List<Entry> = entries.values.toList()
+
+  /**
+   * Returns any fully downloaded entry with the [contentHash] or null if there is none.
+   * */
+  @Synchronized
+  fun findDownloadedByContentHash(contentHash: String): Entry? {
+    val fileNames = fileNamesByContentHash[contentHash]
+      ?: return null
+
+    for (fileName in fileNames) {
+      val entry = entries[fileName]
+      if (entry != null && entry.downloaded) {
+        return entry
+      }
+    }
+
+    return null
+  }
+
+  @Synchronized
+  fun put(entry: Entry) {
+    // The index is updated first so that the entry is not lost if the journal has to be rewritten
+    // because the record couldn't be appended
+    putInMemory(entry)
+    entriesWithUnsavedAccessTime.remove(entry.fileName)
+    appendRecord(RECORD_PUT, entry)
+  }
+
+  /**
+   * Updates the last access time of the entry in memory only. Access times are stored with
+   * [ACCESS_TIME_RESOLUTION_MS] resolution so that repeated hits of the same file do not produce
+   * a journal record every time. Returns false if there is no such entry.
+   * */
+  @Synchronized
+  fun touch(fileName: String, accessedOn: Long): Boolean {
+    val entry = entries[fileName]
+      ?: return false
+
+    if (accessedOn - entry.lastAccessedOn < ACCESS_TIME_RESOLUTION_MS) {
+      return true
+    }
+
+    entries[fileName] = entry.copy(lastAccessedOn = accessedOn)
+    entriesWithUnsavedAccessTime.add(fileName)
+
+    return true
+  }
+
+  @Synchronized
+  fun unsavedAccessTimesCount(): Int = entriesWithUnsavedAccessTime.size
+
+  @Synchronized
+  fun flushAccessTimes() {
+    if (entriesWithUnsavedAccessTime.isEmpty()) {
+      return
+    }
+
+    // Copied because a failed append rewrites the journal which clears the set
+    val fileNames = entriesWithUnsavedAccessTime.toList()
+    entriesWithUnsavedAccessTime.clear()
+
+    for (fileName in fileNames) {
+      val entry = entries[fileName]
+        ?: continue
+
+      appendRecord(RECORD_PUT, entry)
+      ++redundantRecords
+    }
+  }
+
+  @Synchronized
+  fun remove(fileName: String): Entry? {
+    val prevEntry = entries.remove(fileName)
+      ?: return null
+
+    unaccountEntry(prevEntry)
+    entriesWithUnsavedAccessTime.remove(fileName)
+    // The tombstone itself becomes redundant after compaction as well as the last record of the entry
+    redundantRecords += 2
+
+    appendRecord(RECORD_REMOVE, prevEntry)
+    return prevEntry
+  }
+
+  @Synchronized
+  fun needsCompaction(): Boolean {
+    return redundantRecords >= MIN_REDUNDANT_RECORDS_TO_COMPACT && redundantRecords >= entries.size
+  }
+
+  @Synchronized
+  fun compact() {
+    val prevRedundantRecords = redundantRecords
+    redundantRecords = 0
+    rewriteJournal()
+
+    Logger.d(TAG, "compact() done, entries=${entries.size}, dropped ${prevRedundantRecords} records")
+  }
+
+  @Synchronized
+  fun close() {
+    closeWriter()
+  }
+
+  @GuardedBy("this")
+  private fun putInMemory(entry: Entry) {
+    val prevEntry = entries.put(entry.fileName, entry)
+    if (prevEntry != null) {
+      unaccountEntry(prevEntry)
+      ++redundantRecords
+    }
+
+    accountEntry(entry)
+  }
+
+  @GuardedBy("this")
+  private fun accountEntry(entry: Entry) {
+    if (entry.isPacked) {
+      packedSize += entry.size
+    }
+
+    if (entry.contentHash == null) {
+      totalSize += entry.size
+      return
+    }
+
+    val fileNames = fileNamesByContentHash.getOrPut(entry.contentHash) { HashSet(2) }
+    if (fileNames.isEmpty()) {
+      // Only the first link of the file takes space on the disk
+      totalSize += entry.size
+    }
+
+    fileNames.add(entry.fileName)
+  }
+
+  @GuardedBy("this")
+  private fun unaccountEntry(entry: Entry) {
+    if (entry.isPacked) {
+      packedSize -= entry.size
+    }
+
+    if (entry.contentHash == null) {
+      totalSize -= entry.size
+      return
+    }
+
+    val fileNames = fileNamesByContentHash[entry.contentHash]
+      ?: return
+
+    if (fileNames.remove(entry.fileName) && fileNames.isEmpty()) {
+      // The last link of the file is gone
+      fileNamesByContentHash.remove(entry.contentHash)
+      totalSize -= entry.size
+    }
+  }
+
+  @GuardedBy("this")
+  private fun resetIndex() {
+    entries.clear()
+    entriesWithUnsavedAccessTime.clear()
+    fileNamesByContentHash.clear()
+    totalSize = 0L
+    packedSize = 0L
+    redundantRecords = 0
+    lostRecords = false
+  }
+
+  /**
+   * Returns the length of the record in bytes or null if the record is invalid.
+   * */
+  @GuardedBy("this")
+  private fun readRecord(input: DataInputStream, version: Int): Int? {
+    val type = try {
+      input.readByte()
+    } catch (error: EOFException) {
+      // Reached the end of the journal
+      return null
+    }
+
+    val fileName = input.readUTF()
+    val size = input.readLong()
+    val createdOn = input.readLong()
+    val lastAccessedOn = input.readLong()
+    val downloaded = input.readBoolean()
+    val contentHash = if (version >= 2 && input.readBoolean()) input.readUTF() else null
+    val segmentId = if (version >= 3) input.readInt() else NO_SEGMENT
+    val segmentOffset = if (segmentId != NO_SEGMENT) input.readLong() else 0L
+    val checksum = input.readInt()
+
+    val entry = Entry(fileName, size, createdOn, lastAccessedOn, downloaded, contentHash, segmentId, segmentOffset)
+    val recordBytes = serializeRecord(type.toInt(), entry, version)
+
+    crc32.reset()
+    crc32.update(recordBytes, 0, recordBytes.size)
+
+    if (crc32.value.toInt() != checksum) {
+      Logger.e(TAG, "readRecord() checksum mismatch for record of '${fileName}'")
+      return null
+    }
+
+    when (type.toInt()) {
+      RECORD_PUT -> putInMemory(entry)
+      RECORD_REMOVE -> {
+        val prevEntry = entries.remove(fileName)
+        if (prevEntry != null) {
+          unaccountEntry(prevEntry)
+        }
+      }
+      else -> {
+        Logger.e(TAG, "readRecord() unknown record type ${type}")
+        return null
+      }
+    }
+
+    return recordBytes.size + CHECKSUM_SIZE
+  }
+
+  @GuardedBy("this")
+  private fun appendRecord(type: Int, entry: Entry) {
+    try {
+      val writer = journalWriter ?: openWriter()
+      writeRecord(writer, type, entry)
+
+      // Not synced, only flushed to the OS so that records survive the process getting killed
+      writer.flush()
+    } catch (error: IOException) {
+      Logger.e(TAG, "appendRecord() failed to write record of '${entry.fileName}', rewriting the journal", error)
+
+      // The record may have been partially written. Dropping it would leave the file out of the
+      // journal on the next start (and out of the cache size) forever so the whole journal is
+      // rewritten from the index. If that fails too the journal is deleted and rebuilt from the
+      // disk on the next start.
+      redundantRecords = 0
+      rewriteJournal()
+    }
+  }
+
+  @GuardedBy("this")
+  private fun writeRecord(output: DataOutputStream, type: Int, entry: Entry) {
+    val recordBytes = serializeRecord(type, entry)
+
+    crc32.reset()
+    crc32.update(recordBytes, 0, recordBytes.size)
+
+    output.write(recordBytes)
+    output.writeInt(crc32.value.toInt())
+  }
+
+  @GuardedBy("this")
+  private fun serializeRecord(type: Int, entry: Entry, version: Int = VERSION): ByteArray {
+    recordBuffer.reset()
+
+    recordOutput.writeByte(type)
+    recordOutput.writeUTF(entry.fileName)
+    recordOutput.writeLong(entry.size)
+    recordOutput.writeLong(entry.createdOn)
+    recordOutput.writeLong(entry.lastAccessedOn)
+    recordOutput.writeBoolean(entry.downloaded)
+
+    if (version >= 2) {
+      recordOutput.writeBoolean(entry.contentHash != null)
+      if (entry.contentHash != null) {
+        recordOutput.writeUTF(entry.contentHash)
+      }
+    }
+
+    if (version >= 3) {
+      recordOutput.writeInt(entry.segmentId)
+      if (entry.segmentId != NO_SEGMENT) {
+        recordOutput.writeLong(entry.segmentOffset)
+      }
+    }
+
+    recordOutput.flush()
+
+    return recordBuffer.toByteArray()
+  }
+
+  @GuardedBy("this")
+  private fun rewriteJournal() {
+    closeWriter()
+    // All the entries are written with their current access times
+    entriesWithUnsavedAccessTime.clear()
+
+    try {
+      journalFile.parentFile?.mkdirs()
+
+      FileOutputStream(tempJournalFile).use { fileOutputStream ->
+        val output = DataOutputStream(BufferedOutputStream(fileOutputStream))
+
+        output.writeInt(MAGIC)
+        output.writeInt(VERSION)
+        entries.values.forEach { entry -> writeRecord(output, RECORD_PUT, entry) }
+
+        output.flush()
+        fileOutputStream.fd.sync()
+      }
+
+      if (!tempJournalFile.renameTo(journalFile)) {
+        throw IOException("Failed to rename ${tempJournalFile.absolutePath} into ${journalFile.absolutePath}")
+      }
+    } catch (error: IOException) {
+      Logger.e(TAG, "rewriteJournal() error", error)
+
+      // The index will be rebuilt from the files on the disk next time
+      tempJournalFile.delete()
+      journalFile.delete()
+    }
+  }
+
+  @GuardedBy("this")
+  private fun openWriter(): DataOutputStream {
+    if (!journalFile.exists()) {
+      // Someone has deleted the journal (e.g. the system cleared app's cache directory)
+      rewriteJournal()
+    }
+
+    val writer = DataOutputStream(BufferedOutputStream(FileOutputStream(journalFile, true)))
+    journalWriter = writer
+
+    return writer
+  }
+
+  @GuardedBy("this")
+  private fun closeWriter() {
+    try {
+      journalWriter?.close()
+    } catch (ignored: IOException) {
+    }
+
+    journalWriter = null
+  }
+
+  data class Entry(
+    val fileName: String,
+    val size: Long,
+    val createdOn: Long,
+    val lastAccessedOn: Long,
+    val downloaded: Boolean,
+    // md5 of the file (hex), only known for fully downloaded files of content addressable caches
+    val contentHash: String? = null,
+    // The segment file where the file is stored or NO_SEGMENT if it's stored as a separate file
+    val segmentId: Int = NO_SEGMENT,
+    val segmentOffset: Long = 0L
+  ) {
+    val isPacked: Boolean
+      get() = segmentId != NO_SEGMENT
+  }
+
+  companion object {
+    private const val TAG = "CacheJournal"
+
+    const val NO_SEGMENT = -1
+
+    private const val MAGIC = 0x4B434A4E // KCJN
+    // Version 2 added content hashes, version 3 added packed segments
+    private const val VERSION = 3
+    private const val MIN_SUPPORTED_VERSION = 1
+    private const val HEADER_SIZE = 8L
+    private const val CHECKSUM_SIZE = 4
+
+    private const val RECORD_PUT = 1
+    private const val RECORD_REMOVE = 2
+
+    private const val MIN_REDUNDANT_RECORDS_TO_COMPACT = 2000
+    private val ACCESS_TIME_RESOLUTION_MS = TimeUnit.MINUTES.toMillis(1)
+    private const val TEMP_EXTENSION = ".tmp"
+  }
+
+}
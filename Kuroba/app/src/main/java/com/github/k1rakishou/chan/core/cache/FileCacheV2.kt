@@ -2,16 +2,21 @@ package com.github.k1rakishou.chan.core.cache
 
 import android.annotation.SuppressLint
 import android.net.ConnectivityManager
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
 import com.github.k1rakishou.chan.core.cache.downloader.ActiveDownloads
 import com.github.k1rakishou.chan.core.cache.downloader.CancelableDownload
 import com.github.k1rakishou.chan.core.cache.downloader.ChunkDownloader
-import com.github.k1rakishou.chan.core.cache.downloader.ChunkMerger
 import com.github.k1rakishou.chan.core.cache.downloader.ChunkPersister
+import com.github.k1rakishou.chan.core.cache.downloader.ChunkThroughputEstimator
 import com.github.k1rakishou.chan.core.cache.downloader.ConcurrentChunkedFileDownloader
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadFinalizer
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadPriority
 import com.github.k1rakishou.chan.core.cache.downloader.DownloadRequestExtraInfo
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadScheduler
 import com.github.k1rakishou.chan.core.cache.downloader.DownloadState
+import com.github.k1rakishou.chan.core.cache.downloader.DownloaderUtils
 import com.github.k1rakishou.chan.core.cache.downloader.FileCacheException
 import com.github.k1rakishou.chan.core.cache.downloader.FileDownloadRequest
 import com.github.k1rakishou.chan.core.cache.downloader.FileDownloadResult
@@ -31,8 +36,14 @@ import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.model.util.ChanPostUtils
 import dagger.Lazy
 import io.reactivex.Flowable
-import io.reactivex.processors.PublishProcessor
+import io.reactivex.Scheduler
 import io.reactivex.schedulers.Schedulers
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
 import okhttp3.HttpUrl
 import java.io.File
 import java.io.IOException
@@ -40,7 +51,16 @@ import java.util.*
 import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
-
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Every download of a file into the cache goes through here (including the ones that are made by
+ * [com.github.k1rakishou.chan.core.image.ImageLoaderV2], see [awaitDownload]) so that the same url
+ * is only ever downloaded once at a time. Everyone who requests a url that is already being
+ * downloaded subscribes to that download and gets notified about its result, the download is only
+ * canceled once every subscriber cancels its subscription (see [CancelableDownload.subscribe]).
+ * */
 class FileCacheV2(
   private val fileManager: FileManager,
   private val cacheHandler: Lazy<CacheHandler>,
@@ -50,11 +70,15 @@ class FileCacheV2(
   private val appConstants: AppConstants
 ) {
   private val activeDownloads = ActiveDownloads()
+  // New downloads of the urls whose previous download was canceled (or stopped) but hasn't finished
+  // yet. They take its place in the activeDownloads one by one once it's finished
+  @GuardedBy("activeDownloads")
+  private val waitingDownloads = mutableMapOf<String, MutableList<WaitingDownload>>()
 
-  private val normalRequestQueue = PublishProcessor.create<String>().toSerialized()
   private val threadsCount = (Runtime.getRuntime().availableProcessors() / 2).coerceAtLeast(4)
   private val requestCancellationThread = Executors.newSingleThreadExecutor()
   private val verboseLogs = ChanSettings.verboseLogs.get()
+  private val externalDownloadsScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
 
   private val normalThreadIndex = AtomicInteger(0)
   private val workerScheduler = Schedulers.from(
@@ -70,6 +94,22 @@ class FileCacheV2(
     }
   )
 
+  // Background downloads block their threads while they are paused so they don't share them with the
+  // foreground downloads (which are the reason they are paused)
+  private val backgroundThreadIndex = AtomicInteger(0)
+  private val backgroundWorkerScheduler = Schedulers.from(
+    Executors.newFixedThreadPool(BACKGROUND_THREADS_COUNT) { runnable ->
+      return@newFixedThreadPool Thread(
+        runnable,
+        String.format(
+          Locale.ENGLISH,
+          BACKGROUND_THREAD_NAME_FORMAT,
+          backgroundThreadIndex.getAndIncrement()
+        )
+      )
+    }
+  )
+
   private val partialContentSupportChecker = PartialContentSupportChecker(
     downloaderOkHttpClient,
     activeDownloads,
@@ -86,13 +126,19 @@ class FileCacheV2(
     appConstants
   )
 
-  private val chunkReader = ChunkPersister(
-    cacheHandler,
+  private val downloadScheduler = DownloadScheduler(
+    MAX_BACKGROUND_DOWNLOADS
+  ) { cancelableDownload -> startDownload(cancelableDownload) }
+
+  private val chunkPersister = ChunkPersister(
     activeDownloads,
+    downloadScheduler,
     verboseLogs
   )
 
-  private val chunkPersister = ChunkMerger(
+  private val chunkThroughputEstimator = ChunkThroughputEstimator()
+
+  private val downloadFinalizer = DownloadFinalizer(
     fileManager,
     cacheHandler,
     activeDownloads,
@@ -102,46 +148,39 @@ class FileCacheV2(
   private val concurrentChunkedFileDownloader = ConcurrentChunkedFileDownloader(
     siteResolver,
     chunkDownloader,
-    chunkReader,
     chunkPersister,
+    downloadFinalizer,
+    chunkThroughputEstimator,
     workerScheduler,
+    backgroundWorkerScheduler,
     verboseLogs,
     activeDownloads,
     cacheHandler
   )
 
-  init {
-    initNormalRxWorkerQueue()
-  }
-
   /**
-   * This is a singleton class so we don't care about the disposable since we will never should
-   * dispose of this stream
+   * Called by the [downloadScheduler] once it's this download's turn. We don't care about the
+   * disposable since downloads are canceled via [CancelableDownload].
    * */
   @SuppressLint("CheckResult")
-  private fun initNormalRxWorkerQueue() {
-    normalRequestQueue
-      .onBackpressureBuffer()
-      .observeOn(workerScheduler)
-      .flatMap { url ->
-        return@flatMap Flowable.defer { handleFileDownload(url) }
-          .subscribeOn(workerScheduler)
-          .onErrorReturn { throwable ->
-            ErrorMapper.mapError(url, throwable, activeDownloads)
-          }
-          .map { result -> Pair(url, result) }
-          .doOnNext { (url, result) -> handleResults(url, result) }
+  private fun startDownload(cancelableDownload: CancelableDownload) {
+    if (deferUntilPreviousDownloadFinishes(cancelableDownload) { startDownload(cancelableDownload) }) {
+      return
+    }
+
+    val url = cancelableDownload.url
+
+    Flowable.defer { handleFileDownload(url) }
+      .subscribeOn(workerSchedulerFor(cancelableDownload))
+      .onErrorReturn { throwable ->
+        ErrorMapper.mapError(url, throwable, activeDownloads)
       }
+      .doOnNext { result -> handleResults(url, result) }
+      .doFinally { downloadScheduler.onDownloadFinished(cancelableDownload) }
       .subscribe({
         // Do nothing
       }, { error ->
-        throw RuntimeException("$TAG Uncaught exception!!! " +
-          "workerQueue is in error state now!!! " +
-          "This should not happen!!!, original error = " + error.message)
-      }, {
-        throw RuntimeException(
-          "$TAG workerQueue stream has completed!!! This should not happen!!!"
-        )
+        logError(TAG, "Uncaught exception while downloading url=$url", error)
       })
   }
 
@@ -153,7 +192,34 @@ class FileCacheV2(
 
   fun isRunning(url: String): Boolean {
     return synchronized(activeDownloads) {
-      activeDownloads.getState(url) == DownloadState.Running
+      activeDownloads.getState(DownloaderUtils.normalizeUrl(url)) == DownloadState.Running
+    }
+  }
+
+  /**
+   * Changes the priority of an already enqueued download (e.g. when a media viewer page becomes
+   * visible or stops being visible).
+   * */
+  fun updateDownloadPriority(url: String, priority: DownloadPriority) {
+    val normalizedUrl = DownloaderUtils.normalizeUrl(url)
+    val cancelableDownload = synchronized(activeDownloads) { findRunningRequest(normalizedUrl) }
+      ?.cancelableDownload
+      ?: return
+
+    downloadScheduler.updatePriority(cancelableDownload, priority)
+  }
+
+  /**
+   * For transfers that are not made by [FileCacheV2] (thumbnails) but that still have to be
+   * prioritized over the background downloads.
+   * */
+  suspend fun <T> withTransferPriority(priority: DownloadPriority, func: suspend () -> T): T {
+    downloadScheduler.onTransferStarted(priority)
+
+    try {
+      return func()
+    } finally {
+      downloadScheduler.onTransferFinished(priority)
     }
   }
 
@@ -168,24 +234,26 @@ class FileCacheV2(
       throw IllegalAccessException("Cannot prefetch inlined files! url = $imageUrl")
     }
 
-    val url = imageUrl.toString()
+    val url = DownloaderUtils.normalizeUrl(imageUrl.toString())
 
-    val (alreadyActive, cancelableDownload) = getOrCreateCancelableDownload(
+    val (alreadyActive, cancelableDownload, subscription) = getOrCreateCancelableDownload(
       url = url,
       callback = null,
       isGalleryBatchDownload = true,
       isPrefetchDownload = true,
       // Prefetch downloads always have default extra info (no file size, no file hash)
       extraInfo = DownloadRequestExtraInfo(),
-      cacheFileType = cacheFileType
+      cacheFileType = cacheFileType,
+      // Someone else is already downloading it so there is nothing to prefetch
+      subscribeToActive = false
     )
 
-    if (alreadyActive) {
+    if (alreadyActive || subscription == null) {
       return null
     }
 
-    normalRequestQueue.onNext(url)
-    return cancelableDownload
+    downloadScheduler.enqueue(cancelableDownload, DownloadPriority.Prefetch)
+    return subscription
   }
 
   @SuppressLint("CheckResult")
@@ -194,12 +262,14 @@ class FileCacheV2(
     cacheFileType: CacheFileType,
     extraInfo: DownloadRequestExtraInfo,
     callback: FileCacheListener?,
+    priority: DownloadPriority = DownloadPriority.Visible
   ): CancelableDownload {
     return enqueueDownloadFileRequest(
       url = url.toString(),
       extraInfo = extraInfo,
       cacheFileType = cacheFileType,
-      callback = callback
+      callback = callback,
+      priority = priority
     )
   }
 
@@ -207,10 +277,13 @@ class FileCacheV2(
     url: String,
     cacheFileType: CacheFileType,
     callback: FileCacheListener?,
-    extraInfo: DownloadRequestExtraInfo = DownloadRequestExtraInfo()
+    extraInfo: DownloadRequestExtraInfo = DownloadRequestExtraInfo(),
+    priority: DownloadPriority = DownloadPriority.Visible
   ): CancelableDownload {
-    val (alreadyActive, cancelableDownload) = getOrCreateCancelableDownload(
-      url = url,
+    val normalizedUrl = DownloaderUtils.normalizeUrl(url)
+
+    val (alreadyActive, cancelableDownload, subscription) = getOrCreateCancelableDownload(
+      url = normalizedUrl,
       callback = callback,
       isGalleryBatchDownload = false,
       isPrefetchDownload = false,
@@ -219,13 +292,118 @@ class FileCacheV2(
     )
 
     if (alreadyActive) {
-      return cancelableDownload
+      // E.g. a file that is being prefetched is opened in the media viewer
+      downloadScheduler.raisePriority(cancelableDownload, priority)
+      return checkNotNull(subscription)
+    }
+
+    log(TAG, "Downloading a file, url=$normalizedUrl, priority=$priority")
+    downloadScheduler.enqueue(cancelableDownload, priority)
+
+    return checkNotNull(subscription)
+  }
+
+  /**
+   * Downloads [url] into the [cacheFileType] cache with [transfer] (for downloads that make their own
+   * requests, like [com.github.k1rakishou.chan.core.image.ImageLoaderV2]) or waits for the download
+   * of the same url that is already running. [transfer] must write the file and mark it as
+   * downloaded or throw. Returns the cache file or null if the download was canceled or stopped.
+   * Canceling the coroutine only cancels the download when nobody else is waiting for it.
+   * */
+  suspend fun awaitDownload(
+    url: String,
+    cacheFileType: CacheFileType,
+    transfer: suspend (cacheFile: File) -> Unit
+  ): File? {
+    return suspendCancellableCoroutine { continuation ->
+      val callback = object : FileCacheListener() {
+        override fun onSuccess(file: File) {
+          continuation.resume(file)
+        }
+
+        override fun onNotFound() {
+          continuation.resumeWithException(FileCacheException.FileNotFoundOnTheServerException())
+        }
+
+        override fun onFail(exception: Exception) {
+          continuation.resumeWithException(exception)
+        }
+
+        override fun onStop(file: File?) {
+          continuation.resume(null)
+        }
+
+        override fun onCancel() {
+          continuation.resume(null)
+        }
+      }
+
+      val subscription = enqueueExternalDownloadRequest(url, cacheFileType, callback, transfer)
+      continuation.invokeOnCancellation { subscription.cancel() }
+    }
+  }
+
+  private fun enqueueExternalDownloadRequest(
+    url: String,
+    cacheFileType: CacheFileType,
+    callback: FileCacheListener,
+    transfer: suspend (cacheFile: File) -> Unit
+  ): CancelableDownload {
+    val normalizedUrl = DownloaderUtils.normalizeUrl(url)
+
+    val (alreadyActive, cancelableDownload, subscription) = getOrCreateCancelableDownload(
+      url = normalizedUrl,
+      callback = callback,
+      isGalleryBatchDownload = false,
+      isPrefetchDownload = false,
+      extraInfo = DownloadRequestExtraInfo(),
+      cacheFileType = cacheFileType
+    )
+
+    if (alreadyActive) {
+      // A thumbnail that is being prefetched shouldn't wait behind the other prefetches
+      downloadScheduler.raisePriority(cancelableDownload, DownloadPriority.Thumbnail)
+      return checkNotNull(subscription)
+    }
+
+    startExternalDownload(cancelableDownload, transfer)
+    return checkNotNull(subscription)
+  }
+
+  /**
+   * External downloads are not scheduled by the [downloadScheduler] (they are prioritized with
+   * [withTransferPriority] by whoever makes them) and run on the IO dispatcher instead of the
+   * [workerScheduler] since there may be lots of them at the same time.
+   * */
+  private fun startExternalDownload(
+    cancelableDownload: CancelableDownload,
+    transfer: suspend (cacheFile: File) -> Unit
+  ) {
+    if (deferUntilPreviousDownloadFinishes(cancelableDownload) { startExternalDownload(cancelableDownload, transfer) }) {
+      return
     }
 
-    log(TAG, "Downloading a file, url=$url")
-    normalRequestQueue.onNext(url)
+    val url = cancelableDownload.url
+
+    val job = externalDownloadsScope.launch {
+      val result = try {
+        handleExternalDownload(url, transfer)
+      } catch (error: Throwable) {
+        val mappedError = if (error is CancellationException) {
+          FileCacheException.CancellationException(activeDownloads.getState(url), url)
+        } else {
+          error
+        }
+
+        ErrorMapper.mapError(url, mappedError, activeDownloads)
+      }
 
-    return cancelableDownload
+      if (result != null) {
+        handleResults(url, result)
+      }
+    }
+
+    activeDownloads.addDisposeFunc(url) { job.cancel() }
   }
 
   private fun getOrCreateCancelableDownload(
@@ -234,22 +412,27 @@ class FileCacheV2(
     isGalleryBatchDownload: Boolean,
     isPrefetchDownload: Boolean,
     extraInfo: DownloadRequestExtraInfo,
-    cacheFileType: CacheFileType
-  ): Pair<Boolean, CancelableDownload> {
+    cacheFileType: CacheFileType,
+    subscribeToActive: Boolean = true
+  ): Triple<Boolean, CancelableDownload, CancelableDownload?> {
     return synchronized(activeDownloads) {
       val prevRequest = activeDownloads.get(url)
-      if (prevRequest != null) {
-        log(TAG, "Request $url is already active, re-subscribing to it, " +
-          "state=${prevRequest.cancelableDownload.getState()}")
+      if (prevRequest != null && !subscribeToActive) {
+        return@synchronized Triple(true, prevRequest.cancelableDownload, null)
+      }
 
-        val prevCancelableDownload = prevRequest.cancelableDownload
-        if (callback != null) {
-          prevCancelableDownload.addCallback(callback)
-        }
+      val runningRequest = findRunningRequest(url)
+      if (runningRequest != null) {
+        val prevCancelableDownload = runningRequest.cancelableDownload
+
+        log(TAG, "Request $url is already active, re-subscribing to it, " +
+          "subscribers=${prevCancelableDownload.subscribersCount()}")
 
         // true means that this request has already been started before and hasn't yet
-        // completed so we can just resubscribe to it instead of creating a new one
-        return@synchronized true to prevCancelableDownload
+        // completed so we can just resubscribe to it instead of creating a new one. Must be
+        // subscribed to while holding the lock so that it can't be canceled by its last
+        // subscriber in the meantime
+        return@synchronized Triple(true, prevCancelableDownload, prevCancelableDownload.subscribe(callback))
       }
 
       val cancelableDownload = CancelableDownload(
@@ -261,9 +444,7 @@ class FileCacheV2(
         )
       )
 
-      if (callback != null) {
-        cancelableDownload.addCallback(callback)
-      }
+      val subscription = cancelableDownload.subscribe(callback)
 
       val request = FileDownloadRequest(
         url = url,
@@ -274,9 +455,80 @@ class FileCacheV2(
         cacheFileType = cacheFileType
       )
 
-      activeDownloads.put(url, request)
-      return@synchronized false to cancelableDownload
+      if (prevRequest != null) {
+        // The previous download of this url was canceled (or stopped) and it doesn't notify anyone
+        // but its own subscribers anymore. It is still finishing (with the same cache file) so this
+        // one is only started once it's finished
+        log(TAG, "Request $url is still finishing, state=${prevRequest.cancelableDownload.getState()}, " +
+          "the new one will wait for it")
+
+        waitingDownloads.getOrPut(url) { mutableListOf() } += WaitingDownload(request)
+      } else {
+        activeDownloads.put(url, request)
+      }
+
+      return@synchronized Triple(false, cancelableDownload, subscription)
+    }
+  }
+
+  /**
+   * The download of [url] that new subscribers may subscribe to. Canceled and stopped downloads
+   * don't notify new subscribers about anything.
+   * */
+  @GuardedBy("activeDownloads")
+  private fun findRunningRequest(url: String): FileDownloadRequest? {
+    val activeRequest = activeDownloads.get(url)
+      ?: return null
+
+    if (activeRequest.cancelableDownload.isRunning()) {
+      return activeRequest
+    }
+
+    return waitingDownloads[url]
+      ?.firstOrNull { waitingDownload -> waitingDownload.request.cancelableDownload.isRunning() }
+      ?.request
+  }
+
+  /**
+   * Returns true when [cancelableDownload] is waiting for the previous download of the same url to
+   * finish, then [start] is called once it has finished.
+   * */
+  private fun deferUntilPreviousDownloadFinishes(
+    cancelableDownload: CancelableDownload,
+    start: () -> Unit
+  ): Boolean {
+    synchronized(activeDownloads) {
+      val waitingDownload = waitingDownloads[cancelableDownload.url]
+        ?.firstOrNull { waitingDownload -> waitingDownload.request.cancelableDownload === cancelableDownload }
+        ?: return false
+
+      waitingDownload.start = start
+      return true
+    }
+  }
+
+  /**
+   * Removes the finished download of [url] and puts the next download of the same url (if there is
+   * one waiting for it) in its place.
+   * */
+  private fun removeFinishedDownload(url: String) {
+    val start = synchronized(activeDownloads) {
+      activeDownloads.remove(url)
+
+      val waiting = waitingDownloads[url]
+        ?: return
+
+      val nextDownload = waiting.removeAt(0)
+      if (waiting.isEmpty()) {
+        waitingDownloads.remove(url)
+      }
+
+      activeDownloads.put(url, nextDownload.request)
+      return@synchronized nextDownload.start
     }
+
+    // Null when it's not its turn yet (the downloadScheduler starts it as usual then)
+    start?.invoke()
   }
 
   private fun handleResults(url: String, result: FileDownloadResult) {
@@ -292,7 +544,7 @@ class FileCacheV2(
           activeDownloads.get(url)?.cancelableDownload?.cancel()
         }
 
-        purgeOutput(request.url, request.getOutputFile())
+        purgeOutput(request.url, request.getOutputFile(), result)
       }
 
       val networkClass = getNetworkClassOrDefaultText(result)
@@ -445,7 +697,7 @@ class FileCacheV2(
               is FileCacheException.NoResponseBodyException,
               is FileCacheException.CouldNotCreateOutputCacheFile,
               is FileCacheException.OutputFileDoesNotExist,
-              is FileCacheException.ChunkFileDoesNotExist,
+              is FileCacheException.OutputFileIsIncomplete,
               is FileCacheException.HttpCodeException,
               is FileCacheException.BadOutputFileException -> {
                 if (result.fileCacheException is FileCacheException.HttpCodeException
@@ -507,11 +759,19 @@ class FileCacheV2(
     } finally {
       if (isTerminalEvent) {
         request.cancelableDownload.clearCallbacks()
-        activeDownloads.remove(url)
+        removeFinishedDownload(url)
       }
     }
   }
 
+  private fun workerSchedulerFor(cancelableDownload: CancelableDownload): Scheduler {
+    if (cancelableDownload.downloadType.isAnyKindOfMultiFileDownload()) {
+      return backgroundWorkerScheduler
+    }
+
+    return workerScheduler
+  }
+
   private fun handleFileDownload(url: String): Flowable<FileDownloadResult> {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -530,7 +790,16 @@ class FileCacheV2(
       url = url
     ) ?: return Flowable.error(FileCacheException.CouldNotCreateOutputCacheFile(url))
 
-    if (cacheHandler.get().isAlreadyDownloaded(cacheFileType, outputFile)) {
+    val alreadyDownloaded = cacheHandler.get().isAlreadyDownloaded(cacheFileType, outputFile)
+    cacheHandler.get().onCacheLookup(cacheFileType, alreadyDownloaded)
+
+    if (alreadyDownloaded) {
+      return Flowable.just(FileDownloadResult.Success(outputFile, 0L))
+    }
+
+    val fileHash = request.extraInfo.fileHash
+    if (fileHash != null && cacheHandler.get().tryLinkByContentHash(cacheFileType, outputFile, fileHash)) {
+      // The same file is already cached under a different url
       return Flowable.just(FileDownloadResult.Success(outputFile, 0L))
     }
 
@@ -548,7 +817,7 @@ class FileCacheV2(
     request.setOutputFile(outputFile)
 
     return partialContentSupportChecker.check(url)
-      .observeOn(workerScheduler)
+      .observeOn(workerSchedulerFor(request.cancelableDownload))
       .toFlowable()
       .flatMap { result ->
         if (result.notFoundOnServer) {
@@ -563,19 +832,61 @@ class FileCacheV2(
       }
   }
 
-  private fun purgeOutput(url: String, output: File?) {
+  private suspend fun handleExternalDownload(
+    url: String,
+    transfer: suspend (cacheFile: File) -> Unit
+  ): FileDownloadResult {
+    val startTime = System.currentTimeMillis()
+
+    val request = activeDownloads.get(url)
+    if (request == null || !request.cancelableDownload.isRunning()) {
+      val state = request?.cancelableDownload?.getState()
+        ?: DownloadState.Canceled
+
+      throw FileCacheException.CancellationException(state, url)
+    }
+
+    val cacheFileType = request.cacheFileType
+
+    val outputFile = cacheHandler.get().getOrCreateCacheFile(
+      cacheFileType = cacheFileType,
+      url = url
+    ) ?: throw FileCacheException.CouldNotCreateOutputCacheFile(url)
+
+    if (cacheHandler.get().isAlreadyDownloaded(cacheFileType, outputFile)) {
+      return FileDownloadResult.Success(outputFile, 0L)
+    }
+
+    request.setOutputFile(outputFile)
+    transfer(outputFile)
+
+    return FileDownloadResult.Success(outputFile, System.currentTimeMillis() - startTime)
+  }
+
+  private fun purgeOutput(url: String, output: File?, result: FileDownloadResult) {
     BackgroundUtils.ensureBackgroundThread()
 
     val request = activeDownloads.get(url)
       ?: return
 
+    if (output == null) {
+      return
+    }
+
     if (request.cancelableDownload.getState() != DownloadState.Canceled) {
       // Not canceled, only purge output when canceled. Do not purge the output file when
       // the state stopped too, because we are gonna use the file for the webm streaming cache.
+      cacheHandler.get().onPartialFileKept(request.cacheFileType, output)
       return
     }
 
-    if (output == null) {
+    // The resume state only exists when at least one byte was downloaded
+    if (result !is FileDownloadResult.Canceled
+      && cacheHandler.get().getResumeStateFile(request.cacheFileType, output).exists()) {
+      // Failed (most likely a network error), what is already downloaded is kept so that the
+      // next download of this file only downloads the missing ranges
+      log(TAG, "Keeping partially downloaded url=${url}, file=${output.absolutePath}")
+      cacheHandler.get().onPartialFileKept(request.cacheFileType, output)
       return
     }
 
@@ -586,9 +897,19 @@ class FileCacheV2(
     }
   }
 
+  private class WaitingDownload(val request: FileDownloadRequest) {
+    // Set once the download was started while the previous one was still finishing
+    var start: (() -> Unit)? = null
+  }
+
   companion object {
     private const val TAG = "FileCacheV2"
     private const val NORMAL_THREAD_NAME_FORMAT = "NormalFileCacheV2Thread-%d"
+    private const val BACKGROUND_THREAD_NAME_FORMAT = "BackgroundFileCacheV2Thread-%d"
+    private const val MAX_BACKGROUND_DOWNLOADS = 2
+    // Prefetches use a single connection each, the extra thread runs the short tasks (HEAD requests,
+    // finalizing) while the rest of them are reading their responses
+    private const val BACKGROUND_THREADS_COUNT = MAX_BACKGROUND_DOWNLOADS + 1
     private const val MAX_TIMEOUT_MS = 1000L
 
     const val MIN_CHUNK_SIZE = 1024L * 8L // 8 KB
@@ -1,15 +1,16 @@
 package com.github.k1rakishou.chan.core.cache
 
 import android.os.Environment
-import androidx.annotation.GuardedBy
+import android.system.ErrnoException
+import android.system.Os
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.core.cache.downloader.DownloaderUtils
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.chan.utils.ConversionUtils
 import com.github.k1rakishou.chan.utils.HashingUtil
 import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.StringUtils
-import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.util.ChanPostUtils
@@ -17,8 +18,8 @@ import org.joda.time.format.DateTimeFormatterBuilder
 import org.joda.time.format.ISODateTimeFormat
 import java.io.File
 import java.io.IOException
-import java.io.PrintWriter
 import java.util.*
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
@@ -29,6 +30,8 @@ import kotlin.time.measureTime
 internal class InnerCache(
   cacheDirFile: File,
   chunksCacheDirFile: File,
+  segmentsDirFile: File,
+  journalFile: File,
   private val fileCacheDiskSizeBytes: Long,
   private val cacheFileType: CacheFileType,
   private val isDevBuild: Boolean
@@ -39,20 +42,26 @@ internal class InnerCache(
   private val cacheHandlerSynchronizer = CacheHandlerSynchronizer()
 
   /**
-   * An estimation of the current size of the directory. Used to check if trim must be run
-   * because the folder exceeds the maximum size.
-   */
-  private val size = AtomicLong()
+   * Index of all the cache files with their sizes, creation times and download states. The total
+   * size of the files in the index is used to check if trim must be run because the folder exceeds
+   * the maximum size.
+   * */
+  private val journal = CacheJournal(journalFile)
+  private val journalLoaded = CountDownLatch(1)
+  private val packedSegments = PackedSegments(segmentsDirFile)
+
   private val lastTrimTime = AtomicLong(0)
   private val trimRunning = AtomicBoolean(false)
-  private val recalculationRunning = AtomicBoolean(false)
+  private val compactionRunning = AtomicBoolean(false)
+  private val segmentsCompactionScheduled = AtomicBoolean(false)
+  // Dead bytes left in the segments that were not worth compacting during the last compaction
+  private val deadSegmentBytesAfterCompaction = AtomicLong(0)
+  private val accessTimesFlushRunning = AtomicBoolean(false)
   private val trimChunksRunning = AtomicBoolean(false)
   private val directoriesChecked = AtomicBoolean(false)
 
-  @GuardedBy("itself")
-  private val filesOnDiskCache = hashSetWithCap<String>(128)
-  @GuardedBy("itself")
-  private val fullyDownloadedFiles = hashSetWithCap<String>(128)
+  private val cacheHits = AtomicLong(0)
+  private val cacheMisses = AtomicLong(0)
 
   private val _cacheDirFile: File = cacheDirFile
   private val cacheDirFile: File
@@ -60,8 +69,11 @@ internal class InnerCache(
       if (!_cacheDirFile.exists()) {
         _cacheDirFile.mkdirs()
 
-        synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
-        synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.clear() }
+        if (journalLoaded.count == 0L) {
+          // Someone deleted the cache directory, all the files are gone
+          journal.clear()
+          packedSegments.clear()
+        }
       }
 
       return _cacheDirFile
@@ -81,60 +93,100 @@ internal class InnerCache(
     Logger.d(TAG, "cacheFileType=$cacheFileType, " +
       "fileCacheDiskSize=${ChanPostUtils.getReadableFileSize(fileCacheDiskSizeBytes)}")
 
-    backgroundRecalculateSize()
+    backgroundLoadJournal()
+    // Chunks are written straight into the cache files now, this only removes the chunk files left
+    // over by the older versions of the app
     backgroundClearChunksCacheDir()
   }
 
+  /**
+   * Size of the cache on the disk. Files deleted from packed segments keep taking space until the
+   * segments are compacted, so their bytes are counted too.
+   * */
   fun getSize(): Long {
-    return size.get()
+    return journal.totalSize() + deadSegmentBytes()
+  }
+
+  private fun deadSegmentBytes(): Long {
+    if (!cacheFileType.packSmallFiles) {
+      return 0L
+    }
+
+    return (packedSegments.totalLength() - journal.packedSize()).coerceAtLeast(0L)
   }
 
   fun getMaxSize(): Long {
     return fileCacheDiskSizeBytes
   }
 
-  fun containsFile(fileName: String): Boolean {
-    return synchronized(filesOnDiskCache) { filesOnDiskCache.contains(fileName) }
+  fun getCacheStats(): CacheHandler.CacheStats {
+    return CacheHandler.CacheStats(hits = cacheHits.get(), misses = cacheMisses.get())
   }
 
-  fun getChunkCacheFileOrNull(chunkStart: Long, chunkEnd: Long, url: String): File? {
-    BackgroundUtils.ensureBackgroundThread()
-    val chunkCacheFile = getChunkCacheFileInternal(chunkStart, chunkEnd, url)
+  /**
+   * Only counts the lookup for [getCacheStats], called once per lookup made on behalf of the user
+   * (see [CacheHandler.onCacheLookup]) and not for every internal check of a cache file.
+   * */
+  fun onCacheLookup(hit: Boolean) {
+    if (hit) {
+      cacheHits.incrementAndGet()
+    } else {
+      cacheMisses.incrementAndGet()
+    }
+  }
 
-    return cacheHandlerSynchronizer.withLocalLock(chunkCacheFile.name) {
-      try {
-        if (chunkCacheFile.exists()) {
-          return@withLocalLock chunkCacheFile
-        }
+  /**
+   * Called by [CacheHandler] every time a cached file is found. Updates the last access time of the
+   * file which is what trim() uses to decide which files to evict first.
+   * */
+  fun onCacheFileAccessed(cacheFileName: String) {
+    if (!journal.touch(cacheFileName, System.currentTimeMillis())) {
+      return
+    }
 
-        return@withLocalLock null
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Error while trying to get chunk cache file (deleting)", error)
+    val canFlushAccessTimes = journal.unsavedAccessTimesCount() >= ACCESS_TIMES_FLUSH_THRESHOLD
+      && accessTimesFlushRunning.compareAndSet(false, true)
 
-        createDirectories(forced = true)
-        deleteCacheFile(chunkCacheFile)
-        return@withLocalLock null
+    if (canFlushAccessTimes) {
+      executor.execute {
+        try {
+          journal.flushAccessTimes()
+          onJournalUpdated()
+        } catch (error: Throwable) {
+          Logger.e(TAG, "journal.flushAccessTimes() error", error)
+        } finally {
+          accessTimesFlushRunning.set(false)
+        }
       }
     }
   }
 
+  fun containsFile(fileName: String): Boolean {
+    // Does not wait for the journal to get loaded, the same as if the file was not cached yet
+    return journal.contains(fileName)
+  }
+
   fun getCacheFileOrNull(url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
 
     createDirectories()
+    awaitJournalLoaded()
     val cacheFile = getCacheFileByUrl(url)
 
     return cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
       try {
-        if (!cacheFile.exists()) {
+        if (journal.get(cacheFile.name)?.isPacked == true) {
+          // Stored in a packed segment, see getPackedCacheFileOrNull()
           return@withLocalLock null
         }
 
-        if (!getCacheFileMetaInternal(url).exists()) {
+        if (!isAlreadyDownloaded(cacheFile)) {
           return@withLocalLock null
         }
 
-        if (!isAlreadyDownloaded(cacheFile)) {
+        if (!cacheFile.exists()) {
+          Logger.e(TAG, "Cache file is in the journal but not on the disk (deleting). file: ${cacheFile.absolutePath}")
+          deleteCacheFile(cacheFile)
           return@withLocalLock null
         }
 
@@ -149,38 +201,92 @@ internal class InnerCache(
     }
   }
 
+  /**
+   * Returns the content of the cache file if it's fully downloaded and stored in a packed segment,
+   * otherwise null (the file may still be cached as a separate file, see [getCacheFileOrNull]).
+   * */
+  fun getPackedCacheFileOrNull(url: String): PackedCacheFile? {
+    if (!cacheFileType.packSmallFiles) {
+      return null
+    }
+
+    BackgroundUtils.ensureBackgroundThread()
+    awaitJournalLoaded()
+
+    val cacheFileName = getCacheFileByUrl(url).name
+
+    // Not locked, the entry may get moved into another segment by compaction concurrently in which
+    // case reading from the old segment fails and we retry with the new location
+    for (attempt in 0 until 2) {
+      val entry = journal.get(cacheFileName)
+      if (entry == null || !entry.isPacked || !entry.downloaded) {
+        return null
+      }
+
+      val bytes = packedSegments.read(entry.segmentId, entry.segmentOffset, entry.size.toInt())
+      if (bytes != null) {
+        return PackedCacheFile(
+          key = "${cacheFileName}@${entry.segmentId}:${entry.segmentOffset}",
+          bytes = bytes
+        )
+      }
+
+      if (journal.get(cacheFileName) == entry) {
+        break
+      }
+    }
+
+    Logger.e(TAG, "Failed to read packed cache file (deleting). fileName: ${cacheFileName}")
+    deleteCacheFile(cacheFileName)
+    return null
+  }
+
   fun getOrCreateCacheFile(url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
 
     createDirectories()
+    awaitJournalLoaded()
     val cacheFile = getCacheFileByUrl(url)
 
     return cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
       try {
-        if (!cacheFile.exists() && !cacheFile.createNewFile()) {
-          throw IOException("Couldn't create cache file, path = ${cacheFile.absolutePath}")
-        }
+        val cacheFileName = cacheFile.name
 
-        val cacheFileMeta = getCacheFileMetaInternal(url)
-        if (!cacheFileMeta.exists()) {
-          if (!cacheFileMeta.createNewFile()) {
-            throw IOException("Couldn't create cache file meta, path = ${cacheFileMeta.absolutePath}")
-          }
+        val entry = journal.get(cacheFileName)
+
+        // Journal record goes first so that we never end up with a file on the disk that is not in
+        // the journal (it would never get trimmed)
+        if (entry == null) {
+          val now = System.currentTimeMillis()
 
-          val result = updateCacheFileMeta(
-            file = cacheFileMeta,
-            overwrite = true,
-            createdOn = System.currentTimeMillis(),
-            fileDownloaded = false
+          journal.put(
+            CacheJournal.Entry(
+              fileName = cacheFileName,
+              size = 0L,
+              createdOn = now,
+              lastAccessedOn = now,
+              downloaded = false
+            )
           )
 
-          if (!result) {
-            throw IOException("Cache file meta update failed")
+          onJournalUpdated()
+        } else if (entry.isPacked) {
+          // The packed copy is going to be replaced with whatever is downloaded into the new file
+          val now = System.currentTimeMillis()
+          journal.put(entry.copy(size = 0L, lastAccessedOn = now, downloaded = false, segmentId = CacheJournal.NO_SEGMENT))
+          onJournalUpdated()
+        } else if (!entry.downloaded && isHardLinked(cacheFile)) {
+          // The process was killed after the file was linked to another cache file with the same
+          // content but before the journal was updated. Downloading into it would overwrite the
+          // other file so start with a new one.
+          if (!cacheFile.delete()) {
+            throw IOException("Couldn't delete linked cache file, path = ${cacheFile.absolutePath}")
           }
         }
 
-        val cacheFileName = cacheFile.name
-        synchronized(filesOnDiskCache) { filesOnDiskCache.add(cacheFileName) }
+        if (!cacheFile.exists() && !cacheFile.createNewFile()) {
+          throw IOException("Couldn't create cache file, path = ${cacheFile.absolutePath}")
+        }
 
         return@withLocalLock cacheFile
       } catch (error: IOException) {
@@ -193,91 +299,24 @@ internal class InnerCache(
     }
   }
 
-  fun getOrCreateChunkCacheFile(chunkStart: Long, chunkEnd: Long, url: String): File? {
-    BackgroundUtils.ensureBackgroundThread()
-    val chunkCacheFile = getChunkCacheFileInternal(chunkStart, chunkEnd, url)
-
-    return cacheHandlerSynchronizer.withLocalLock(chunkCacheFile.name) {
-      try {
-        if (chunkCacheFile.exists()) {
-          if (!chunkCacheFile.delete()) {
-            throw IOException("Couldn't delete old chunk cache file")
-          }
-        }
-
-        if (!chunkCacheFile.createNewFile()) {
-          throw IOException("Couldn't create new chunk cache file")
-        }
-
-        return@withLocalLock chunkCacheFile
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Error while trying to get or create chunk cache file (deleting)", error)
-
-        createDirectories(forced = true)
-        deleteCacheFile(chunkCacheFile)
-        return@withLocalLock null
-      }
-    }
-  }
-
   fun isAlreadyDownloaded(cacheFile: File): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
     createDirectories()
+    awaitJournalLoaded()
     val cacheFileName = cacheFile.name
 
     return cacheHandlerSynchronizer.withLocalLock(cacheFileName) {
       try {
-        val containsInCache = synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.contains(cacheFileName) }
-        if (containsInCache) {
-          return@withLocalLock true
-        }
-
-        if (!cacheFile.exists()) {
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
         if (!cacheFileName.endsWith(CACHE_EXTENSION)) {
           Logger.e(TAG, "Not a cache file (deleting). file: ${cacheFile.absolutePath}")
           deleteCacheFile(cacheFile)
           return@withLocalLock false
         }
 
-        val cacheFileMetaFile = getCacheFileMetaByCacheFile(cacheFile)
-        if (cacheFileMetaFile == null) {
-          Logger.e(TAG, "Couldn't get cache file meta by cache file (deleting). cacheFile: ${cacheFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        if (!cacheFileMetaFile.exists()) {
-          Logger.e(TAG, "Cache file meta does not exist (deleting). cacheFileMetaFile: ${cacheFileMetaFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        if (cacheFileMetaFile.length() <= 0) {
-          Logger.e(TAG, "Cache file meta is empty (deleting). cacheFileMetaFile: ${cacheFileMetaFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        val cacheFileMeta = readCacheFileMeta(cacheFileMetaFile)
-        if (cacheFileMeta == null) {
-          Logger.e(TAG, "Failed to read cache file meta (deleting). cacheFileMetaFile: ${cacheFileMetaFile.absolutePath}")
-          deleteCacheFile(cacheFile)
-          return@withLocalLock false
-        }
-
-        val isDownloaded = cacheFileMeta.isDownloaded
-        if (isDownloaded) {
-          synchronized(fullyDownloadedFiles) { fullyDownloadedFiles += cacheFileName }
-        } else {
-          synchronized(fullyDownloadedFiles) { fullyDownloadedFiles -= cacheFileName }
-        }
-
-        return@withLocalLock isDownloaded
+        // Files that are not in the journal are either not downloaded yet or were left behind by a
+        // lost journal, they will be re-downloaded and put into the journal in getOrCreateCacheFile()
+        return@withLocalLock journal.get(cacheFileName)?.downloaded ?: false
       } catch (error: Throwable) {
         Logger.e(TAG, "Error while trying to check whether the file is already downloaded", error)
         deleteCacheFile(cacheFile)
@@ -286,9 +325,9 @@ internal class InnerCache(
     }
   }
 
-
   fun markFileDownloaded(output: File): Boolean {
     BackgroundUtils.ensureBackgroundThread()
+    awaitJournalLoaded()
 
     return cacheHandlerSynchronizer.withLocalLock(output.name) {
       try {
@@ -300,31 +339,74 @@ internal class InnerCache(
           return@withLocalLock false
         }
 
-        val cacheFileMeta = getCacheFileMetaByCacheFile(output)
-        if (cacheFileMeta == null) {
-          Logger.e(TAG, "Couldn't get cache file meta by cache file (deleting). output: ${output.absolutePath}")
+        val outputFileName = output.name
+        if (!outputFileName.endsWith(CACHE_EXTENSION)) {
+          Logger.e(TAG, "Not a cache file (deleting). output: ${output.absolutePath}")
           deleteCacheFile(output)
           return@withLocalLock false
         }
 
-        val updateResult = updateCacheFileMeta(
-          file = cacheFileMeta,
-          overwrite = false,
-          createdOn = null,
-          fileDownloaded = true
+        val size = output.length().coerceAtLeast(0L)
+        var contentHash = if (cacheFileType.contentAddressable) {
+          HashingUtil.fileHash(output)
+        } else {
+          null
+        }
+
+        if (contentHash != null) {
+          val duplicateEntry = journal.findDownloadedByContentHash(contentHash)
+
+          if (duplicateEntry != null && duplicateEntry.fileName != outputFileName) {
+            val linked = duplicateEntry.size == size
+              && linkFile(File(cacheDirFile, duplicateEntry.fileName), output)
+
+            if (linked) {
+              Logger.d(TAG, "markFileDownloaded() ${outputFileName} is a duplicate of ${duplicateEntry.fileName}, " +
+                "freed ${ChanPostUtils.getReadableFileSize(size)}")
+            } else {
+              // Stays a separate copy which must be accounted for separately
+              contentHash = null
+            }
+          }
+        }
+
+        var segmentLocation: PackedSegments.Location? = null
+        if (cacheFileType.packSmallFiles && size in 1..MAX_PACKED_FILE_SIZE) {
+          segmentLocation = try {
+            packedSegments.append(output)
+          } catch (error: IOException) {
+            // Stays a separate file
+            Logger.e(TAG, "markFileDownloaded() failed to pack ${outputFileName}, error=${error.message}")
+            null
+          }
+        }
+
+        val now = System.currentTimeMillis()
+        val prevEntry = journal.get(outputFileName)
+
+        journal.put(
+          CacheJournal.Entry(
+            fileName = outputFileName,
+            size = size,
+            createdOn = prevEntry?.createdOn ?: now,
+            lastAccessedOn = now,
+            downloaded = true,
+            contentHash = contentHash,
+            segmentId = segmentLocation?.segmentId ?: CacheJournal.NO_SEGMENT,
+            segmentOffset = segmentLocation?.offset ?: 0L
+          )
         )
 
-        if (!updateResult) {
-          Logger.e(
-            TAG, "Failed to update cache file meta (deleting). " +
-            "cacheFileMeta: ${cacheFileMeta.absolutePath}, output: ${output.absolutePath}")
-          deleteCacheFile(output)
-        } else {
-          val outputFileName = output.name
-          synchronized(fullyDownloadedFiles) { fullyDownloadedFiles += outputFileName }
+        // The file is deleted after the journal is updated so that it's never missing from both
+        // places. If the process is killed in between the file will just be left on the disk.
+        if (segmentLocation != null && !output.delete()) {
+          Logger.e(TAG, "markFileDownloaded() failed to delete packed file ${output.absolutePath}")
         }
 
-        return@withLocalLock updateResult
+        deleteResumeStateFile(outputFileName)
+
+        onJournalUpdated()
+        return@withLocalLock true
       } catch (error: Throwable) {
         Logger.e(TAG, "Error while trying to mark file as downloaded (deleting)", error)
         deleteCacheFile(output)
@@ -333,8 +415,111 @@ internal class InnerCache(
     }
   }
 
-  fun fileWasAdded(fileLen: Long): Long {
-    val totalSize = size.addAndGet(fileLen.coerceAtLeast(0))
+  /**
+   * Makes [cacheFile] a hard link to an already downloaded file with the same content (when the site
+   * provides the md5 of the file, e.g. the same image posted in multiple threads) so that it doesn't
+   * need to be downloaded. Returns true if [cacheFile] is fully downloaded after that.
+   * */
+  fun tryLinkByContentHash(cacheFile: File, contentHash: String): Boolean {
+    if (!cacheFileType.contentAddressable) {
+      return false
+    }
+
+    BackgroundUtils.ensureBackgroundThread()
+    awaitJournalLoaded()
+
+    // The journal stores md5 hex strings (the way HashingUtil.fileHash() returns them) while most
+    // sites provide base64 encoded md5s
+    val normalizedContentHash = HashingUtil.md5ToHex(contentHash)
+      ?: return false
+
+    val cacheFileName = cacheFile.name
+
+    return cacheHandlerSynchronizer.withLocalLock(cacheFileName) {
+      val sourceEntry = journal.findDownloadedByContentHash(normalizedContentHash)
+        ?: return@withLocalLock false
+
+      if (sourceEntry.fileName == cacheFileName) {
+        return@withLocalLock true
+      }
+
+      // The source file may get deleted by trim() concurrently in which case linking just fails
+      if (!linkFile(File(cacheDirFile, sourceEntry.fileName), cacheFile)) {
+        return@withLocalLock false
+      }
+
+      val now = System.currentTimeMillis()
+      val prevEntry = journal.get(cacheFileName)
+
+      journal.put(
+        CacheJournal.Entry(
+          fileName = cacheFileName,
+          size = sourceEntry.size,
+          createdOn = prevEntry?.createdOn ?: now,
+          lastAccessedOn = now,
+          downloaded = true,
+          contentHash = normalizedContentHash
+        )
+      )
+
+      onJournalUpdated()
+
+      if (isDevBuild) {
+        Logger.d(TAG, "tryLinkByContentHash() linked ${cacheFileName} to ${sourceEntry.fileName}")
+      }
+
+      return@withLocalLock true
+    }
+  }
+
+  /**
+   * Atomically replaces [targetFile] with a hard link to [sourceFile]. Returns false if the
+   * filesystem doesn't support hard links or [sourceFile] does not exist anymore.
+   * */
+  private fun linkFile(sourceFile: File, targetFile: File): Boolean {
+    val tempFile = File(targetFile.parentFile, targetFile.name + LINK_TEMP_SUFFIX)
+
+    try {
+      if (tempFile.exists()) {
+        tempFile.delete()
+      }
+
+      Os.link(sourceFile.absolutePath, tempFile.absolutePath)
+
+      if (!tempFile.renameTo(targetFile)) {
+        Logger.e(TAG, "linkFile() couldn't rename ${tempFile.absolutePath} into ${targetFile.absolutePath}")
+        tempFile.delete()
+        return false
+      }
+
+      return true
+    } catch (error: ErrnoException) {
+      Logger.e(TAG, "linkFile() couldn't link ${sourceFile.name} to ${targetFile.name}, " +
+        "error=${error.errorMessage}")
+
+      tempFile.delete()
+      return false
+    }
+  }
+
+  private fun isHardLinked(file: File): Boolean {
+    if (!cacheFileType.contentAddressable || !file.exists()) {
+      return false
+    }
+
+    return try {
+      Os.stat(file.absolutePath).st_nlink > 1
+    } catch (error: ErrnoException) {
+      false
+    }
+  }
+
+  /**
+   * The size of the file is already accounted for by [markFileDownloaded], here we only check whether
+   * the cache exceeds the maximum size.
+   * */
+  fun fileWasAdded(): Long {
+    val totalSize = getSize()
     val trimTime = lastTrimTime.get()
     val now = System.currentTimeMillis()
 
@@ -369,6 +554,39 @@ internal class InnerCache(
     return totalSize
   }
 
+  /**
+   * A file that is not completely downloaded is added to the journal with zero size (see
+   * [getOrCreateCacheFile]) but when it's kept on the disk after the download is stopped or fails
+   * (to be resumed later) it takes as much space as was preallocated for it, so its journal entry
+   * must have its actual size otherwise it's not counted in the cache size.
+   * */
+  fun onPartialFileKept(cacheFile: File) {
+    BackgroundUtils.ensureBackgroundThread()
+    awaitJournalLoaded()
+
+    val cacheFileName = cacheFile.name
+
+    val updated = cacheHandlerSynchronizer.withLocalLock(cacheFileName) {
+      val entry = journal.get(cacheFileName)
+      if (entry == null || entry.downloaded || entry.isPacked) {
+        return@withLocalLock false
+      }
+
+      val size = cacheFile.length()
+      if (entry.size == size) {
+        return@withLocalLock false
+      }
+
+      journal.put(entry.copy(size = size))
+      onJournalUpdated()
+      return@withLocalLock true
+    }
+
+    if (updated) {
+      fileWasAdded()
+    }
+  }
+
   private fun deleteCacheFile(cacheFile: File): Boolean {
     return deleteCacheFile(cacheFile.name)
   }
@@ -382,50 +600,39 @@ internal class InnerCache(
       }
 
       val cacheFileName = formatCacheFileName(originalFileName)
-      val cacheMetaFileName = formatCacheFileMetaName(originalFileName)
-
       val cacheFile = File(cacheDirFile, cacheFileName)
-      val cacheMetaFile = File(cacheDirFile, cacheMetaFileName)
-      val cacheFileSize = cacheFile.length()
 
       val deleteCacheFileResult = !cacheFile.exists() || cacheFile.delete()
       if (!deleteCacheFileResult) {
         Logger.e(TAG, "Failed to delete cache file, fileName = ${cacheFile.absolutePath}")
+        return@withLocalLock false
       }
 
-      val deleteCacheFileMetaResult = !cacheMetaFile.exists() || cacheMetaFile.delete()
-      if (!deleteCacheFileMetaResult) {
-        Logger.e(TAG, "Failed to delete cache file meta = ${cacheMetaFile.absolutePath}")
-      }
+      // The file is deleted first so that when the process gets killed in between the journal
+      // entry points to a missing file (which is handled) instead of the file not being in the journal
+      val removedEntry = journal.remove(cacheFileName)
+      deleteResumeStateFile(cacheFileName)
 
-      synchronized(filesOnDiskCache) { filesOnDiskCache.remove(cacheFileName) }
-      synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.remove(cacheFileName) }
+      if (removedEntry != null) {
+        onJournalUpdated()
 
-      if (deleteCacheFileResult && deleteCacheFileMetaResult) {
-        val fileSize = if (cacheFileSize < 0) {
-          0
-        } else {
-          cacheFileSize
+        if (isDevBuild && removedEntry.size > 0) {
+          Logger.d(TAG, "Deleted $cacheFileName, " +
+            "fileSize = ${ChanPostUtils.getReadableFileSize(removedEntry.size)}, " +
+            "cache size = ${ChanPostUtils.getReadableFileSize(getSize())}")
         }
+      }
 
-        if (fileSize > 0) {
-          size.getAndAdd(-fileSize)
-          if (size.get() < 0L) {
-            size.set(0L)
-          }
+      return@withLocalLock true
+    }
+  }
 
-          if (isDevBuild) {
-            Logger.d(TAG, "Deleted $cacheFileName and it's meta $cacheMetaFileName, " +
-              "fileSize = ${ChanPostUtils.getReadableFileSize(fileSize)}, " +
-              "cache size = ${ChanPostUtils.getReadableFileSize(size.get())}")
-          }
-        }
+  private fun deleteResumeStateFile(cacheFileName: String) {
+    val originalFileName = StringUtils.removeExtensionFromFileName(cacheFileName)
+    val resumeStateFile = File(chunksCacheDirFile, formatResumeStateFileName(originalFileName))
 
-        return@withLocalLock true
-      }
-
-      // Only one of the files could be deleted
-      return@withLocalLock false
+    if (resumeStateFile.exists() && !resumeStateFile.delete()) {
+      Logger.e(TAG, "Failed to delete resume state file, fileName = ${resumeStateFile.absolutePath}")
     }
   }
 
@@ -449,99 +656,17 @@ internal class InnerCache(
         }
       }
 
-      synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
-      synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.clear() }
-
-      recalculateSize()
-    }
-  }
-
-  private fun getCacheFileMetaByCacheFile(cacheFile: File): File? {
-    val fileNameWithExtension = cacheFile.name
-    if (!fileNameWithExtension.endsWith(CACHE_EXTENSION)) {
-      Logger.e(TAG, "Bad file (not a cache file), file = ${cacheFile.absolutePath}")
-      return null
-    }
-
-    val originalFileName = StringUtils.removeExtensionFromFileName(fileNameWithExtension)
-    if (originalFileName.isEmpty()) {
-      Logger.e(TAG, "Bad fileNameWithExtension, fileNameWithExtension = $fileNameWithExtension")
-      return null
-    }
-
-    return File(cacheDirFile, formatCacheFileMetaName(originalFileName))
-  }
-
-  @Throws(IOException::class)
-  private fun updateCacheFileMeta(
-    file: File,
-    overwrite: Boolean,
-    createdOn: Long?,
-    fileDownloaded: Boolean?
-  ): Boolean {
-    return cacheHandlerSynchronizer.withLocalLock(file.name) {
-      if (!file.exists()) {
-        Logger.e(TAG, "Cache file meta does not exist!")
-        return@withLocalLock false
-      }
-
-      if (!file.name.endsWith(CACHE_META_EXTENSION)) {
-        Logger.e(TAG, "Not a cache file meta! file = ${file.absolutePath}")
-        return@withLocalLock false
-      }
-
-      val prevCacheFileMeta = readCacheFileMeta(file).let { cacheFileMeta ->
-        when {
-          !overwrite && cacheFileMeta != null -> {
-            require(!(createdOn == null && fileDownloaded == null)) {
-              "Only one parameter may be null when updating!"
-            }
-
-            val updatedCreatedOn = createdOn ?: cacheFileMeta.createdOn
-            val updatedFileDownloaded = fileDownloaded ?: cacheFileMeta.isDownloaded
-
-            return@let CacheFileMeta(
-              CURRENT_META_FILE_VERSION,
-              updatedCreatedOn,
-              updatedFileDownloaded
-            )
-          }
-          else -> {
-            if (createdOn == null || fileDownloaded == null) {
-              throw IOException(
-                "Both parameters must not be null when writing! " +
-                  "(Probably prevCacheFileMeta couldn't be read, check the logs)"
-              )
-            }
-
-            return@let CacheFileMeta(CURRENT_META_FILE_VERSION, createdOn, fileDownloaded)
-          }
-        }
-      }
-
-      return@withLocalLock file.outputStream().use { stream ->
-        return@use PrintWriter(stream).use { pw ->
-          val toWrite = String.format(
-            Locale.ENGLISH,
-            CACHE_FILE_META_CONTENT_FORMAT,
-            CURRENT_META_FILE_VERSION,
-            prevCacheFileMeta.createdOn,
-            prevCacheFileMeta.isDownloaded
-          )
-
-          val lengthChars = ConversionUtils.intToCharArray(toWrite.length)
-          pw.write(lengthChars)
-          pw.write(toWrite)
-          pw.flush()
-
-          return@use true
-        }
-      }
+      journal.clear()
+      packedSegments.clear()
     }
   }
 
+  /**
+   * Reads the meta sidecar file that was used for every cache file before [CacheJournal]. Only used
+   * to migrate the old cache files into the journal.
+   * */
   @Throws(IOException::class)
-  private fun readCacheFileMeta(cacheFileMeta: File): CacheFileMeta? {
+  private fun readLegacyCacheFileMeta(cacheFileMeta: File): CacheFileMeta? {
     return cacheHandlerSynchronizer.withLocalLock(cacheFileMeta.name) {
       if (!cacheFileMeta.exists()) {
         throw IOException("Cache file meta does not exist, path = ${cacheFileMeta.absolutePath}")
@@ -608,50 +733,32 @@ internal class InnerCache(
     }
   }
 
-  fun getCacheFileByUrl(url: String): File {
+  /**
+   * What is already downloaded into [cacheFile] while it's not completely downloaded yet (see
+   * [com.github.k1rakishou.chan.core.cache.downloader.DownloadResumeState]). Lives in the chunks
+   * directory and is deleted together with the cache file or once it's downloaded.
+   * */
+  fun getResumeStateFile(cacheFile: File): File {
     createDirectories()
 
-    val fileName = formatCacheFileName(hashUrl(url))
-    return File(cacheDirFile, fileName)
+    val originalFileName = StringUtils.removeExtensionFromFileName(cacheFile.name)
+    return File(chunksCacheDirFile, formatResumeStateFileName(originalFileName))
   }
 
-  private fun getChunkCacheFileInternal(
-    chunkStart: Long,
-    chunkEnd: Long,
-    url: String
-  ): File {
-    createDirectories()
-
-    val fileName = formatChunkCacheFileName(chunkStart, chunkEnd, hashUrl(url))
-    return File(chunksCacheDirFile, fileName)
+  private fun formatResumeStateFileName(originalFileName: String): String {
+    return String.format(Locale.ENGLISH, CACHE_FILE_NAME_FORMAT, originalFileName, RESUME_STATE_EXTENSION)
   }
 
-  internal fun getCacheFileMetaInternal(url: String): File {
+  fun getCacheFileByUrl(url: String): File {
     createDirectories()
 
-    // AbstractFile expects all file names to have extensions
-    val fileName = formatCacheFileMetaName(hashUrl(url))
+    val fileName = formatCacheFileName(hashUrl(url))
     return File(cacheDirFile, fileName)
   }
 
   internal fun hashUrl(url: String): String {
-    return HashingUtil.stringHash(url)
-  }
-
-  private fun formatChunkCacheFileName(
-    chunkStart: Long,
-    chunkEnd: Long,
-    originalFileName: String
-  ): String {
-    return String.format(
-      Locale.ENGLISH,
-      CHUNK_CACHE_FILE_NAME_FORMAT,
-      originalFileName,
-      chunkStart,
-      chunkEnd,
-      // AbstractFile expects all file names to have extensions
-      CHUNK_CACHE_EXTENSION
-    )
+    // Must match the url downloads are keyed by (see FileCacheV2)
+    return HashingUtil.stringHash(DownloaderUtils.normalizeUrl(url))
   }
 
   fun formatCacheFileName(originalFileName: String): String {
@@ -664,17 +771,6 @@ internal class InnerCache(
     )
   }
 
-  private fun formatCacheFileMetaName(originalFileName: String): String {
-    return String.format(
-      Locale.ENGLISH,
-      CACHE_FILE_NAME_FORMAT,
-      originalFileName,
-      // AbstractFile expects all file names to have extensions
-      CACHE_META_EXTENSION
-    )
-  }
-
-
   private fun createDirectories(forced: Boolean = false) {
     if (!forced && !directoriesChecked.compareAndSet(false, true)) {
       return
@@ -707,9 +803,14 @@ internal class InnerCache(
     try {
       Logger.d(TAG, "clearChunksCacheDirInternal() start")
 
+      // Runs on the same executor as the journal loading so the journal is already loaded here
       cacheHandlerSynchronizer.withGlobalLock {
         if (chunksCacheDirFile.exists()) {
-          chunksCacheDirFile.listFiles()?.forEach { file -> file.delete() }
+          chunksCacheDirFile.listFiles()?.forEach { file ->
+            if (!isResumableDownloadState(file)) {
+              file.delete()
+            }
+          }
         }
       }
 
@@ -719,117 +820,265 @@ internal class InnerCache(
     }
   }
 
-  private fun backgroundRecalculateSize() {
-    if (recalculationRunning.get()) {
-      return
+  /**
+   * Resume states of the cache files that are still not completely downloaded are kept so that
+   * their downloads can be continued, everything else in the chunks directory is garbage.
+   * */
+  private fun isResumableDownloadState(file: File): Boolean {
+    if (file.extension != RESUME_STATE_EXTENSION) {
+      return false
     }
 
+    val cacheFileName = formatCacheFileName(file.nameWithoutExtension)
+    val entry = journal.get(cacheFileName)
+      ?: return false
+
+    return !entry.downloaded && !entry.isPacked && File(cacheDirFile, cacheFileName).exists()
+  }
+
+  private fun backgroundLoadJournal() {
     executor.execute {
-      recalculateSize()
+      try {
+        loadJournal()
+      } catch (error: Throwable) {
+        Logger.e(TAG, "loadJournal() error", error)
+      } finally {
+        journalLoaded.countDown()
+      }
     }
   }
 
-  @OptIn(ExperimentalTime::class)
-  private fun recalculateSize() {
-    var calculatedSize: Long = 0
-
-    if (!recalculationRunning.compareAndSet(false, true)) {
+  private fun awaitJournalLoaded() {
+    if (journalLoaded.count == 0L) {
       return
     }
 
-    Logger.d(TAG, "recalculateSize() start")
+    journalLoaded.await()
+  }
+
+  @OptIn(ExperimentalTime::class)
+  private fun loadJournal() {
+    Logger.d(TAG, "loadJournal() start")
 
     val time = measureTime {
-      synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
+      cacheHandlerSynchronizer.withGlobalLock {
+        packedSegments.load()
 
-      try {
-        cacheHandlerSynchronizer.withGlobalLock {
-          val files = cacheDirFile.listFiles() ?: emptyArray()
-          for (file in files) {
-            if (file.name.endsWith(CACHE_META_EXTENSION)) {
-              continue
-            }
+        if (!journal.load()) {
+          // First start after the update (the cache files still have the meta sidecars) or the
+          // journal was lost.
+          rebuildJournalFromDisk()
+
+          // Nothing in the segments can be found without the journal
+          packedSegments.clear()
+        } else if (journal.hasLostRecords()) {
+          deleteFilesMissingFromJournal()
+        }
+      }
+    }
 
-            calculatedSize += file.length()
-            val cacheFileName = file.name
+    Logger.d(
+      TAG, "loadJournal() end took $time, " +
+      "filesCount=${journal.size()}, " +
+      "size=${ChanPostUtils.getReadableFileSize(getSize())}")
+  }
 
-            synchronized(filesOnDiskCache) { filesOnDiskCache.add(cacheFileName) }
-          }
+  /**
+   * The only place where the whole cache directory is listed. Converts the files with valid
+   * meta sidecars into journal entries, everything else (including the sidecars) is deleted.
+   * */
+  private fun rebuildJournalFromDisk() {
+    BackgroundUtils.ensureBackgroundThread()
+
+    val directoryFiles = cacheDirFile.listFiles() ?: emptyArray()
+    val entries = mutableListWithCap<CacheJournal.Entry>(directoryFiles.size / 2)
+
+    for (file in directoryFiles) {
+      val fileName = file.name
+      if (!fileName.endsWith(CACHE_EXTENSION)) {
+        continue
+      }
+
+      val legacyCacheFileMeta = try {
+        val legacyCacheFileMetaFile = File(
+          cacheDirFile,
+          String.format(Locale.ENGLISH, CACHE_FILE_NAME_FORMAT, StringUtils.removeExtensionFromFileName(fileName), CACHE_META_EXTENSION)
+        )
+
+        if (legacyCacheFileMetaFile.exists()) {
+          readLegacyCacheFileMeta(legacyCacheFileMetaFile)
+        } else {
+          null
+        }
+      } catch (error: IOException) {
+        null
+      }
+
+      if (legacyCacheFileMeta == null || !legacyCacheFileMeta.isDownloaded) {
+        // We don't know whether the file is complete or when it was created
+        if (!file.delete()) {
+          Logger.e(TAG, "rebuildJournalFromDisk() couldn't delete cache file ${file.absolutePath}")
         }
 
-        size.set(calculatedSize)
+        continue
+      }
+
+      entries += CacheJournal.Entry(
+        fileName = fileName,
+        size = file.length(),
+        createdOn = legacyCacheFileMeta.createdOn,
+        lastAccessedOn = legacyCacheFileMeta.createdOn,
+        downloaded = true
+      )
+    }
+
+    // Sidecars and other garbage
+    for (file in directoryFiles) {
+      if (!file.name.endsWith(CACHE_EXTENSION) && !file.delete()) {
+        Logger.e(TAG, "rebuildJournalFromDisk() couldn't delete file ${file.absolutePath}")
+      }
+    }
+
+    journal.rebuild(entries)
+    Logger.d(TAG, "rebuildJournalFromDisk() migrated ${entries.size} out of ${directoryFiles.size} files")
+  }
+
+  /**
+   * Deletes the files in the cache directory which records were dropped from the corrupted journal.
+   * They would never get trimmed and their sizes would never be counted otherwise. It's unknown
+   * whether they were completely downloaded so they are deleted the same way as in
+   * [rebuildJournalFromDisk].
+   * */
+  private fun deleteFilesMissingFromJournal() {
+    BackgroundUtils.ensureBackgroundThread()
+
+    val directoryFiles = cacheDirFile.listFiles() ?: emptyArray()
+    var deletedFiles = 0
+
+    for (file in directoryFiles) {
+      if (journal.contains(file.name)) {
+        continue
+      }
+
+      if (file.delete()) {
+        ++deletedFiles
+      } else {
+        Logger.e(TAG, "deleteFilesMissingFromJournal() couldn't delete file ${file.absolutePath}")
+      }
+    }
+
+    Logger.d(TAG, "deleteFilesMissingFromJournal() deleted ${deletedFiles} out of ${directoryFiles.size} files")
+  }
+
+  private fun onJournalUpdated() {
+    scheduleSegmentsCompactionIfNeeded()
+
+    if (!journal.needsCompaction() || !compactionRunning.compareAndSet(false, true)) {
+      return
+    }
+
+    executor.execute {
+      try {
+        journal.compact()
+      } catch (error: Throwable) {
+        Logger.e(TAG, "journal.compact() error", error)
       } finally {
-        recalculationRunning.set(false)
+        compactionRunning.set(false)
       }
     }
+  }
 
-    Logger.d(
-      TAG, "recalculateSize() end took $time, " +
-      "filesOnDiskCount=${filesOnDiskCache.size}, " +
-      "fullyDownloadedFilesCount=${fullyDownloadedFiles.size}")
+  /**
+   * Files deleted or re-downloaded outside of trim() (e.g. when a thread is deleted or a file turns
+   * out to be broken) leave holes in the segments too, so segments are also compacted once there are
+   * enough dead bytes in them, not only after trim().
+   * */
+  private fun scheduleSegmentsCompactionIfNeeded() {
+    if (!cacheFileType.packSmallFiles) {
+      return
+    }
+
+    val deadBytes = deadSegmentBytes()
+
+    val canCompact = deadBytes - deadSegmentBytesAfterCompaction.get() >= MIN_DEAD_SEGMENT_BYTES_TO_COMPACT
+      && deadBytes >= packedSegments.totalLength() * MIN_DEAD_SEGMENT_BYTES_RATIO_TO_COMPACT
+      && segmentsCompactionScheduled.compareAndSet(false, true)
+
+    if (!canCompact) {
+      return
+    }
+
+    executor.execute {
+      try {
+        compactSegments()
+      } catch (error: Throwable) {
+        Logger.e(TAG, "compactSegments() error", error)
+      } finally {
+        segmentsCompactionScheduled.set(false)
+      }
+    }
   }
 
   private fun trim() {
     BackgroundUtils.ensureBackgroundThread()
     createDirectories()
+    awaitJournalLoaded()
 
-    val directoryFiles = cacheHandlerSynchronizer.withGlobalLock { cacheDirFile.listFiles() ?: emptyArray() }
-    // Don't try to trim empty directories or just two files in it.
-    // Two (not one) because for every cache file we now have a cache file meta with some
-    // additional info.
-    if (directoryFiles.size <= 2) {
+    // So that the access times survive the process getting killed while trimming
+    journal.flushAccessTimes()
+
+    val cacheEntries = journal.entriesSnapshot()
+    // Don't try to trim empty directories or just one file in it.
+    if (cacheEntries.size <= 1) {
       return
     }
 
     val start = System.currentTimeMillis()
 
-    // LastModified doesn't work on some platforms/phones
+    // LastModified/lastAccessed don't work on some platforms/phones
     // (https://issuetracker.google.com/issues/36930892)
-    // so we have to use a workaround. When creating a cache file for a download we also create a
-    // meta file where we will put some info about this download: the main file creation time and
-    // a flag that will tell us whether the download is complete or not. So now we need to parse
-    // the creation time from the meta file to sort cache files in ascending order (from the
-    // oldest cache file to the newest).
+    // so we have to use a workaround. Every cache file has a journal entry with the last time the
+    // file was accessed (created, downloaded or a cache hit). We sort the journal entries by the
+    // last access time in ascending order (from the least recently used cache file to the most
+    // recently used) so that files that are used often are evicted last.
 
     var totalDeleted = 0L
     var filesDeleted = 0
 
-    val sortedFiles = groupFilterAndSortFiles(directoryFiles)
+    val sortedEntries = cacheEntries.sortedWith(CACHE_ENTRY_COMPARATOR)
     val now = System.currentTimeMillis()
+    val currentSize = getSize()
 
-    val currentCacheSizeToUse = if (size.get() > fileCacheDiskSizeBytes) {
-      size.get()
+    val currentCacheSizeToUse = if (currentSize > fileCacheDiskSizeBytes) {
+      currentSize
     } else {
       fileCacheDiskSizeBytes
     }
 
-    val sizeDiff = (size.get() - fileCacheDiskSizeBytes).coerceAtLeast(0)
+    val sizeDiff = (currentSize - fileCacheDiskSizeBytes).coerceAtLeast(0)
     val calculatedSizeToFree = (currentCacheSizeToUse / (100f / ChanSettings.diskCacheCleanupRemovePercent.get().toFloat())).toLong()
     val sizeToFree = sizeDiff + calculatedSizeToFree
 
     Logger.d(
       TAG, "trim() started, " +
       "cacheFileType=${cacheFileType}, " +
-      "currentCacheSize=${ChanPostUtils.getReadableFileSize(size.get())}, " +
+      "currentCacheSize=${ChanPostUtils.getReadableFileSize(currentSize)}, " +
       "fileCacheDiskSizeBytes=${ChanPostUtils.getReadableFileSize(fileCacheDiskSizeBytes)}, " +
-      "sizeToFree=${ChanPostUtils.getReadableFileSize(sizeToFree)}")
+      "sizeToFree=${ChanPostUtils.getReadableFileSize(sizeToFree)}, " +
+      "cacheStats=${getCacheStats()}")
 
     // We either delete all files we can in the cache directory or at most half of the cache
-    for (cacheFile in sortedFiles) {
-      val file = cacheFile.file
-      val createdOn = cacheFile.createdOn
-
+    for (cacheEntry in sortedEntries) {
       val minCacheFileLifeTime = if (AppModuleAndroidUtils.isDevBuild()) {
         0
       } else {
-        // Do not delete fresh files because it may happen right at the time user switched
+        // Do not delete recently used files because it may happen right at the time user switched
         // to it. Since the list is sorted there is no point to iterate it anymore since all
-        // the following files will be "too young" to be deleted so we just break out of
-        // the loop.
+        // the following files were used even more recently so we just break out of the loop.
         MIN_CACHE_FILE_LIFE_TIME
       }
 
-      if (now - createdOn < minCacheFileLifeTime) {
+      if (now - cacheEntry.lastAccessedOn < minCacheFileLifeTime) {
         break
       }
 
@@ -837,10 +1086,12 @@ internal class InnerCache(
         break
       }
 
-      val fileSize = file.length()
+      val sizeBeforeDelete = journal.totalSize()
 
-      if (deleteCacheFile(file)) {
-        totalDeleted += fileSize
+      if (deleteCacheFile(cacheEntry.fileName)) {
+        // Deleting one of the links of a deduplicated file doesn't free anything until all of its
+        // links are deleted
+        totalDeleted += (sizeBeforeDelete - journal.totalSize()).coerceAtLeast(0L)
         ++filesDeleted
       }
 
@@ -851,100 +1102,87 @@ internal class InnerCache(
     }
 
     val timeDiff = System.currentTimeMillis() - start
-    recalculateSize()
 
     Logger.d(TAG, "trim() ended (took ${timeDiff} ms), " +
       "cacheFileType=$cacheFileType, filesDeleted=$filesDeleted, " +
-      "total space freed=${ChanPostUtils.getReadableFileSize(totalDeleted)}") }
+      "total space freed=${ChanPostUtils.getReadableFileSize(totalDeleted)}")
+
+    if (cacheFileType.packSmallFiles) {
+      compactSegments()
+    }
+  }
 
-  private fun groupFilterAndSortFiles(directoryFiles: Array<File>): List<CacheFile> {
+  /**
+   * Deleted files leave holes in the segments. Segments that are mostly holes are compacted by
+   * moving the files that are still alive into the active segment and then deleting the old
+   * segment. Must only be called on the [executor].
+   * */
+  private fun compactSegments() {
     BackgroundUtils.ensureBackgroundThread()
 
-    val groupedCacheFiles = filterAndGroupCacheFilesWithMeta(directoryFiles)
-    val cacheFiles = ArrayList<CacheFile>(groupedCacheFiles.size)
+    val start = System.currentTimeMillis()
+    // Must be taken before the journal snapshot so that no new files can appear in these segments
+    val sealedSegmentIds = packedSegments.sealedSegmentIds()
+    val packedEntriesBySegment = journal.entriesSnapshot()
+      .filter { entry -> entry.isPacked }
+      .groupBy { entry -> entry.segmentId }
 
-    for ((abstractFile, abstractFileMeta) in groupedCacheFiles) {
-      val cacheFileMeta = try {
-        readCacheFileMeta(abstractFileMeta)
-      } catch (error: IOException) {
-        null
-      }
+    var segmentsCompacted = 0
+    var filesMoved = 0
 
-      if (cacheFileMeta == null) {
-        Logger.e(TAG, "Couldn't read cache meta for file = ${abstractFile.absolutePath}")
+    for (segmentId in sealedSegmentIds) {
+      val segmentEntries = packedEntriesBySegment[segmentId] ?: emptyList()
+      val liveBytes = segmentEntries.sumOf { entry -> entry.size }
+      val segmentLength = packedSegments.segmentLength(segmentId)
 
-        if (!deleteCacheFile(abstractFile)) {
-          Logger.e(TAG, "Couldn't delete cache file with meta for file = ${abstractFile.absolutePath}")
-        }
+      if (liveBytes > segmentLength * MAX_COMPACTED_SEGMENT_LIVE_RATIO) {
         continue
       }
 
-      cacheFiles.add(CacheFile(abstractFile, cacheFileMeta))
-    }
-
-    // Sort in ascending order, the oldest files are in the beginning of the list
-    Collections.sort(cacheFiles, CACHE_FILE_COMPARATOR)
-    return cacheFiles
-  }
-
-  private fun filterAndGroupCacheFilesWithMeta(
-    directoryFiles: Array<File>
-  ): List<GroupedCacheFile> {
-    BackgroundUtils.ensureBackgroundThread()
+      for (segmentEntry in segmentEntries) {
+        val moved = cacheHandlerSynchronizer.withLocalLock(segmentEntry.fileName) {
+          // May have been deleted or re-downloaded since the snapshot was taken
+          val entry = journal.get(segmentEntry.fileName)
+          if (entry == null || entry.segmentId != segmentId) {
+            return@withLocalLock false
+          }
 
-    val grouped = directoryFiles
-      .map { file -> Pair(file, file.name) }
-      .filter { (_, fileName) ->
-        // Either cache file or cache meta
-        fileName.endsWith(CACHE_EXTENSION) || fileName.endsWith(CACHE_META_EXTENSION)
-      }
-      .groupBy { (_, fileName) ->
-        StringUtils.removeExtensionFromFileName(fileName)
-      }
+          val bytes = packedSegments.read(entry.segmentId, entry.segmentOffset, entry.size.toInt())
+          if (bytes == null) {
+            journal.remove(entry.fileName)
+            return@withLocalLock false
+          }
 
-    val groupedCacheFileList = mutableListWithCap<GroupedCacheFile>(grouped.size / 2)
+          val location = try {
+            packedSegments.append(bytes)
+          } catch (error: IOException) {
+            Logger.e(TAG, "compactSegments() failed to move ${entry.fileName}, error=${error.message}")
+            journal.remove(entry.fileName)
+            return@withLocalLock false
+          }
 
-    for ((fileName, groupOfFiles) in grouped) {
-      // We have already filtered all non-cache related files so it's safe to delete them here.
-      // We delete files without where either the cache file or cache file meta (or both) are
-      // missing.
-      if (groupOfFiles.isEmpty()) {
-        deleteCacheFile(fileName)
-        continue
-      }
+          journal.put(entry.copy(segmentId = location.segmentId, segmentOffset = location.offset))
+          return@withLocalLock true
+        }
 
-      // We also handle a hypothetical case where there are more than one cache file/meta with
-      // the same name
-      if (groupOfFiles.size != 2) {
-        groupOfFiles.forEach { (file, _) -> deleteCacheFile(file) }
-        continue
+        if (moved) {
+          ++filesMoved
+        }
       }
 
-      val (file1, fileName1) = groupOfFiles[0]
-      val (file2, fileName2) = groupOfFiles[1]
+      packedSegments.deleteSegment(segmentId)
+      ++segmentsCompacted
+    }
 
-      val cacheFile = when {
-        fileName1.endsWith(CACHE_EXTENSION) -> file1
-        fileName2.endsWith(CACHE_EXTENSION) -> file2
-        else -> throw IllegalStateException(
-          "Neither of grouped files is a cache file! " +
-            "fileName1 = $fileName1, fileName2 = $fileName2"
-        )
-      }
+    // The rest is in the active segment or in segments that are still mostly alive
+    deadSegmentBytesAfterCompaction.set(deadSegmentBytes())
 
-      val cacheFileMeta = when {
-        fileName1.endsWith(CACHE_META_EXTENSION) -> file1
-        fileName2.endsWith(CACHE_META_EXTENSION) -> file2
-        else -> throw IllegalStateException(
-          "Neither of grouped files is a cache file meta! " +
-            "fileName1 = $fileName1, fileName2 = $fileName2"
-        )
-      }
+    if (segmentsCompacted > 0) {
+      onJournalUpdated()
 
-      groupedCacheFileList += GroupedCacheFile(cacheFile, cacheFileMeta)
+      Logger.d(TAG, "compactSegments() took ${System.currentTimeMillis() - start} ms, " +
+        "segmentsCompacted=${segmentsCompacted}, filesMoved=${filesMoved}")
     }
-
-    return groupedCacheFileList
   }
 
   private fun getAdditionalDebugInfo(file: File): String {
@@ -964,23 +1202,6 @@ internal class InnerCache(
       "internalCacheDir = ${internalCacheDir})"
   }
 
-  private class CacheFile(
-    val file: File,
-    private val cacheFileMeta: CacheFileMeta
-  ) {
-
-    val createdOn: Long
-      get() = cacheFileMeta.createdOn
-
-    override fun toString(): String {
-      return "CacheFile{" +
-        "file=${file.absolutePath}" +
-        ", cacheFileMeta=${cacheFileMeta}" +
-        "}"
-    }
-
-  }
-
   internal class CacheFileMeta(
     val version: Int = CURRENT_META_FILE_VERSION,
     val createdOn: Long,
@@ -1006,32 +1227,34 @@ internal class InnerCache(
     }
   }
 
-  private data class GroupedCacheFile(
-    val cacheFile: File,
-    val cacheFileMeta: File
-  )
-
   companion object {
     private const val CURRENT_META_FILE_VERSION = 1
     private const val CACHE_FILE_META_HEADER_SIZE = 4
     private const val MAX_TRIM_TIME_MS = 3000L
+    private const val ACCESS_TIMES_FLUSH_THRESHOLD = 64
+    private const val MAX_PACKED_FILE_SIZE = 128L * 1024 // 128 KB
+    // Segments with less live bytes than this are compacted
+    private const val MAX_COMPACTED_SEGMENT_LIVE_RATIO = 0.5f
+    // Segments are compacted outside of trim() once this many new dead bytes accumulated since the
+    // last compaction and they are at least this part of all the segments
+    private const val MIN_DEAD_SEGMENT_BYTES_TO_COMPACT = 4L * 1024 * 1024 // 4 MB
+    private const val MIN_DEAD_SEGMENT_BYTES_RATIO_TO_COMPACT = 0.25f
 
     // I don't think it will ever get this big but just in case don't forget to update it if it
     // ever gets
     private const val MAX_CACHE_META_SIZE = 1024L
 
     private const val CACHE_FILE_NAME_FORMAT = "%s.%s"
-    private const val CHUNK_CACHE_FILE_NAME_FORMAT = "%s_%d_%d.%s"
-    private const val CACHE_FILE_META_CONTENT_FORMAT = "%d,%d,%b"
     internal const val CACHE_EXTENSION = "cache"
     internal const val CACHE_META_EXTENSION = "cache_meta"
-    internal const val CHUNK_CACHE_EXTENSION = "chunk"
+    private const val RESUME_STATE_EXTENSION = "resume"
+    private const val LINK_TEMP_SUFFIX = ".link_tmp"
 
     private val MIN_CACHE_FILE_LIFE_TIME = TimeUnit.MINUTES.toMillis(1)
     private val MIN_TRIM_INTERVAL = TimeUnit.SECONDS.toMillis(5)
 
-    private val CACHE_FILE_COMPARATOR = Comparator<CacheFile> { cacheFile1, cacheFile2 ->
-      cacheFile1.createdOn.compareTo(cacheFile2.createdOn)
+    private val CACHE_ENTRY_COMPARATOR = Comparator<CacheJournal.Entry> { cacheEntry1, cacheEntry2 ->
+      cacheEntry1.lastAccessedOn.compareTo(cacheEntry2.lastAccessedOn)
     }
   }
 
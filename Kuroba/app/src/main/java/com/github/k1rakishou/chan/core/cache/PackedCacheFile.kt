@@ -0,0 +1,17 @@
+package com.github.k1rakishou.chan.core.cache
+
+/**
+ * Content of a small cache file that is stored in a packed segment (see
+ * [CacheFileType.packSmallFiles]) instead of a separate file on the disk. [key] changes every time
+ * the file is re-downloaded or moved so it can be used as a memory cache key.
+ * */
+class PackedCacheFile(
+  val key: String,
+  val bytes: ByteArray
+) {
+
+  override fun toString(): String {
+    return "PackedCacheFile(key='$key', size=${bytes.size})"
+  }
+
+}
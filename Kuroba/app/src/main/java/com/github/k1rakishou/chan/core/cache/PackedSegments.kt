@@ -0,0 +1,269 @@
+package com.github.k1rakishou.chan.core.cache
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Append-only segment files that small cache files (thumbnails, site icons) are packed into so that
+ * there is no need to create a separate file (with all the filesystem overhead) for every one of
+ * them. Which files are stored where is tracked by [CacheJournal] entries (segment id and offset),
+ * this class only stores the bytes.
+ *
+ * Files are only appended to the active segment, once it's full a new one is started. Reading a
+ * file is a single positioned read from the segment so readers don't block each other or writers.
+ * Space of the deleted files is reclaimed by [InnerCache] compacting segments once there is too much
+ * of it (moving the files that are still alive into the active segment and deleting the old segment).
+ * */
+internal class PackedSegments(
+  private val segmentsDir: File,
+  private val maxSegmentSize: Long = DEFAULT_MAX_SEGMENT_SIZE
+) {
+  private val openedSegments = ConcurrentHashMap<Int, RandomAccessFile>()
+
+  @GuardedBy("this")
+  private var activeSegmentId = NO_ACTIVE_SEGMENT
+  @GuardedBy("this")
+  private var activeSegmentLength = 0L
+  @GuardedBy("this")
+  private var lastSegmentId = NO_ACTIVE_SEGMENT
+  // Length of all the segments together (including the space of the deleted files)
+  @GuardedBy("this")
+  private var totalLength = 0L
+
+  /**
+   * Finds the existing segments, the last one is continued if it's not full.
+   * */
+  @Synchronized
+  fun load() {
+    val segmentIds = listSegmentIds()
+    lastSegmentId = segmentIds.maxOrNull() ?: NO_ACTIVE_SEGMENT
+    totalLength = segmentIds.sumOf { segmentId -> segmentFile(segmentId).length() }
+
+    if (lastSegmentId != NO_ACTIVE_SEGMENT) {
+      val lastSegmentLength = segmentFile(lastSegmentId).length()
+      if (lastSegmentLength < maxSegmentSize) {
+        activeSegmentId = lastSegmentId
+        activeSegmentLength = lastSegmentLength
+      }
+    }
+
+    Logger.d(TAG, "load() segments=${segmentIds.size}, activeSegmentId=${activeSegmentId}")
+  }
+
+  /**
+   * Segments that nothing will ever be appended to anymore (all but the active one).
+   * */
+  @Synchronized
+  fun sealedSegmentIds(): List<Int> = listSegmentIds().filter { segmentId -> segmentId != activeSegmentId }
+
+  @Synchronized
+  fun totalLength(): Long = totalLength
+
+  @Synchronized
+  fun segmentLength(segmentId: Int): Long {
+    if (segmentId == activeSegmentId) {
+      return activeSegmentLength
+    }
+
+    return segmentFile(segmentId).length()
+  }
+
+  /**
+   * Copies the whole [inputFile] to the end of the active segment.
+   * */
+  @Synchronized
+  @Throws(IOException::class)
+  fun append(inputFile: File): Location {
+    val length = inputFile.length()
+
+    return appendInternal(length) { segment, position ->
+      FileInputStream(inputFile).use { inputStream ->
+        val inputChannel = inputStream.channel
+        var transferred = 0L
+
+        while (transferred < length) {
+          val count = segment.channel.transferFrom(inputChannel, position + transferred, length - transferred)
+          if (count <= 0) {
+            throw IOException("Failed to copy ${inputFile.absolutePath} into segment, " +
+              "transferred ${transferred} out of ${length} bytes")
+          }
+
+          transferred += count
+        }
+      }
+    }
+  }
+
+  @Synchronized
+  @Throws(IOException::class)
+  fun append(bytes: ByteArray): Location {
+    return appendInternal(bytes.size.toLong()) { segment, position ->
+      val buffer = ByteBuffer.wrap(bytes)
+
+      while (buffer.hasRemaining()) {
+        segment.channel.write(buffer, position + buffer.position())
+      }
+    }
+  }
+
+  /**
+   * Reads [length] bytes of a file stored at [offset] of the segment. Returns null if the segment
+   * does not exist anymore (e.g. it was deleted by compaction concurrently) or is too short.
+   * */
+  fun read(segmentId: Int, offset: Long, length: Int): ByteArray? {
+    val segment = getOrOpenSegment(segmentId)
+      ?: return null
+
+    val buffer = ByteBuffer.allocate(length)
+
+    try {
+      while (buffer.hasRemaining()) {
+        val read = segment.channel.read(buffer, offset + buffer.position())
+        if (read < 0) {
+          Logger.e(TAG, "read() segment ${segmentId} is too short, offset=${offset}, length=${length}")
+          return null
+        }
+      }
+    } catch (error: IOException) {
+      Logger.e(TAG, "read() failed to read from segment ${segmentId}, error=${error.message}")
+      return null
+    }
+
+    return buffer.array()
+  }
+
+  @Synchronized
+  fun deleteSegment(segmentId: Int) {
+    closeSegment(segmentId)
+
+    val segmentLength = segmentLength(segmentId)
+
+    if (segmentId == activeSegmentId) {
+      activeSegmentId = NO_ACTIVE_SEGMENT
+      activeSegmentLength = 0L
+    }
+
+    val segmentFile = segmentFile(segmentId)
+    if (segmentFile.exists() && !segmentFile.delete()) {
+      Logger.e(TAG, "deleteSegment() failed to delete ${segmentFile.absolutePath}")
+      return
+    }
+
+    totalLength = (totalLength - segmentLength).coerceAtLeast(0L)
+  }
+
+  @Synchronized
+  fun clear() {
+    listSegmentIds().forEach { segmentId -> deleteSegment(segmentId) }
+
+    activeSegmentId = NO_ACTIVE_SEGMENT
+    activeSegmentLength = 0L
+    totalLength = 0L
+  }
+
+  @GuardedBy("this")
+  private inline fun appendInternal(length: Long, write: (RandomAccessFile, Long) -> Unit): Location {
+    if (activeSegmentId == NO_ACTIVE_SEGMENT || activeSegmentLength + length > maxSegmentSize) {
+      startNewSegment()
+    }
+
+    val segmentId = activeSegmentId
+    val offset = activeSegmentLength
+    val segment = getOrOpenSegment(segmentId)
+      ?: throw IOException("Failed to open segment ${segmentId}")
+
+    try {
+      write(segment, offset)
+    } catch (error: IOException) {
+      // Whatever was partially written will be overwritten by the next append
+      segment.setLength(offset)
+      throw error
+    }
+
+    activeSegmentLength += length
+    totalLength += length
+    return Location(segmentId, offset)
+  }
+
+  @GuardedBy("this")
+  private fun startNewSegment() {
+    if (!segmentsDir.exists() && !segmentsDir.mkdirs()) {
+      throw IOException("Failed to create segments directory ${segmentsDir.absolutePath}")
+    }
+
+    activeSegmentId = ++lastSegmentId
+    activeSegmentLength = 0L
+
+    Logger.d(TAG, "startNewSegment() activeSegmentId=${activeSegmentId}")
+  }
+
+  private fun getOrOpenSegment(segmentId: Int): RandomAccessFile? {
+    val segment = openedSegments[segmentId]
+    if (segment != null) {
+      return segment
+    }
+
+    return synchronized(this) {
+      openedSegments[segmentId]?.let { openedSegment -> return@synchronized openedSegment }
+
+      val segmentFile = segmentFile(segmentId)
+      if (segmentId != activeSegmentId && !segmentFile.exists()) {
+        return@synchronized null
+      }
+
+      try {
+        val openedSegment = RandomAccessFile(segmentFile, "rw")
+        openedSegments[segmentId] = openedSegment
+        return@synchronized openedSegment
+      } catch (error: IOException) {
+        Logger.e(TAG, "Failed to open segment ${segmentFile.absolutePath}", error)
+        return@synchronized null
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private fun closeSegment(segmentId: Int) {
+    try {
+      openedSegments.remove(segmentId)?.close()
+    } catch (ignored: IOException) {
+    }
+  }
+
+  private fun listSegmentIds(): List<Int> {
+    val files = segmentsDir.listFiles()
+      ?: return emptyList()
+
+    return files.mapNotNull { file ->
+      if (!file.name.endsWith(SEGMENT_EXTENSION)) {
+        return@mapNotNull null
+      }
+
+      return@mapNotNull file.name.removeSuffix(SEGMENT_EXTENSION).toIntOrNull()
+    }
+  }
+
+  private fun segmentFile(segmentId: Int): File {
+    return File(segmentsDir, "${segmentId}${SEGMENT_EXTENSION}")
+  }
+
+  data class Location(
+    val segmentId: Int,
+    val offset: Long
+  )
+
+  companion object {
+    private const val TAG = "PackedSegments"
+    private const val NO_ACTIVE_SEGMENT = -1
+    private const val SEGMENT_EXTENSION = ".segment"
+
+    private const val DEFAULT_MAX_SEGMENT_SIZE = 4L * 1024 * 1024 // 4 MB
+  }
+
+}
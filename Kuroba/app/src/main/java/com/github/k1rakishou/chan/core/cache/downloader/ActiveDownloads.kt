@@ -96,20 +96,6 @@ internal open class ActiveDownloads {
     }
   }
 
-  fun getChunks(url: String): Set<Chunk> {
-    return synchronized(activeDownloads) { activeDownloads[url]?.chunks?.toSet() ?: emptySet() }
-  }
-
-  fun clearChunks(url: String) {
-    synchronized(activeDownloads) { activeDownloads[url]?.chunks?.clear() }
-  }
-
-  fun addChunks(url: String, chunks: List<Chunk>) {
-    synchronized(activeDownloads) {
-      activeDownloads[url]?.chunks?.addAll(chunks)
-    }
-  }
-
   /**
    * Marks current CancelableDownload as canceled and throws CancellationException to terminate
    * the reactive stream
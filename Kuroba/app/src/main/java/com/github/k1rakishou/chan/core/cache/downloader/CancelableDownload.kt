@@ -1,14 +1,22 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.cache.FileCacheListener
+import com.github.k1rakishou.chan.utils.BackgroundUtils.runOnMainThread
 import com.github.k1rakishou.core_logger.Logger
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
 
 /**
  * ThreadSafe
+ *
+ * There is only one download per url no matter how many callers want it. Every caller gets its own
+ * subscription (see [subscribe]) which is a [CancelableDownload] too, canceling a subscription only
+ * notifies its own callbacks and the download itself is only canceled once every subscriber has
+ * canceled its subscription.
  * */
 class CancelableDownload(
   val url: String,
@@ -16,7 +24,14 @@ class CancelableDownload(
   private val requestCancellationThread: ExecutorService
 ) {
   private val state: AtomicReference<DownloadState> = AtomicReference(DownloadState.Running)
-  private val callbacks: MutableMap<Class<*>, FileCacheListener> = mutableMapOf()
+  @GuardedBy("this")
+  private val callbacks: MutableList<SubscriberCallback> = mutableListOf()
+  @GuardedBy("this")
+  private val subscribers: MutableList<CancelableDownload> = mutableListOf()
+
+  // Only set for subscriptions
+  private var download: CancelableDownload? = null
+  private val unsubscribed = AtomicBoolean(false)
 
   /**
    * These callbacks are used to cancel a lot of things, like the HEAD request, the get response
@@ -24,26 +39,65 @@ class CancelableDownload(
    * */
   private val disposeFuncList: MutableList<() -> Unit> = mutableListOf()
 
-  fun isRunning(): Boolean = state.get() == DownloadState.Running
-  fun getState(): DownloadState = state.get()
+  private constructor(download: CancelableDownload) : this(
+    download.url,
+    download.downloadType,
+    download.requestCancellationThread
+  ) {
+    this.download = download
+  }
+
+  fun isRunning(): Boolean = getState() == DownloadState.Running
+
+  fun getState(): DownloadState {
+    val download = download
+      ?: return state.get()
+
+    if (unsubscribed.get()) {
+      return DownloadState.Canceled
+    }
+
+    return download.getState()
+  }
 
-  @Synchronized
   fun addCallback(callback: FileCacheListener) {
-    if (state.get() != DownloadState.Running) {
+    val download = download
+    if (download != null) {
+      if (!unsubscribed.get()) {
+        download.addCallback(this, callback)
+      }
+
       return
     }
 
-    if (callbacks.containsKey(callback::class.java)) {
-      return
+    addCallback(this, callback)
+  }
+
+  /**
+   * Creates a new subscription to this download, [callback] is only notified until the
+   * subscription is canceled.
+   * */
+  @Synchronized
+  fun subscribe(callback: FileCacheListener?): CancelableDownload {
+    check(download == null) { "Can't subscribe to a subscription" }
+
+    val subscription = CancelableDownload(this)
+    subscribers += subscription
+
+    if (callback != null) {
+      addCallback(subscription, callback)
     }
 
-    callbacks[callback::class.java] = callback
+    return subscription
   }
 
+  @Synchronized
+  fun subscribersCount(): Int = subscribers.size
+
   @Synchronized
   fun forEachCallback(func: FileCacheListener.() -> Unit) {
-    callbacks.values.forEach { callback ->
-      func(callback)
+    callbacks.forEach { subscriberCallback ->
+      func(subscriberCallback.callback)
     }
   }
 
@@ -64,6 +118,12 @@ class CancelableDownload(
    * to use a regular [cancel] for that.
    * */
   fun cancelPrefetch() {
+    val download = download
+    if (download != null) {
+      download.unsubscribe(this, true)
+      return
+    }
+
     cancel(true)
   }
 
@@ -71,6 +131,12 @@ class CancelableDownload(
    * A regular [cancel] method that cancels active downloads but not prefetch downloads.
    * */
   fun cancel() {
+    val download = download
+    if (download != null) {
+      download.unsubscribe(this, false)
+      return
+    }
+
     cancel(false)
   }
 
@@ -79,6 +145,12 @@ class CancelableDownload(
    * WebmStreamingSource, but we actually want to stop it when stopping a gallery download.
    * */
   fun stop() {
+    val download = download
+    if (download != null) {
+      download.stop()
+      return
+    }
+
     if (!state.compareAndSet(DownloadState.Running, DownloadState.Stopped)) {
       // Already canceled or stopped
       return
@@ -93,6 +165,61 @@ class CancelableDownload(
     dispose()
   }
 
+  @Synchronized
+  private fun addCallback(subscriber: CancelableDownload, callback: FileCacheListener) {
+    if (state.get() != DownloadState.Running) {
+      return
+    }
+
+    if (callbacks.any { subscriberCallback -> subscriberCallback.callback === callback }) {
+      return
+    }
+
+    callbacks += SubscriberCallback(subscriber, callback)
+  }
+
+  private fun unsubscribe(subscriber: CancelableDownload, canCancelBatchDownloads: Boolean) {
+    if (!subscriber.unsubscribed.compareAndSet(false, true)) {
+      // Already canceled
+      return
+    }
+
+    val removedCallbacks = synchronized(this) {
+      subscribers.remove(subscriber)
+
+      if (subscribers.isEmpty()) {
+        // The last subscriber cancels the download itself and gets notified the usual way
+        return@synchronized null
+      }
+
+      if (state.get() != DownloadState.Running) {
+        // Already completed, the callbacks are (or about to be) notified about the result
+        return@synchronized emptyList()
+      }
+
+      val removedCallbacks = callbacks.filter { subscriberCallback ->
+        subscriberCallback.subscriber === subscriber
+      }
+
+      callbacks.removeAll(removedCallbacks)
+      return@synchronized removedCallbacks
+    }
+
+    if (removedCallbacks == null) {
+      cancel(canCancelBatchDownloads)
+      return
+    }
+
+    Logger.d(TAG, "Unsubscribed from file download request (subscribersCount=${subscribersCount()}), url=$url")
+
+    removedCallbacks.forEach { subscriberCallback ->
+      runOnMainThread {
+        subscriberCallback.callback.onCancel()
+        subscriberCallback.callback.onEnd()
+      }
+    }
+  }
+
   private fun cancel(canCancelBatchDownloads: Boolean) {
     if (!state.compareAndSet(DownloadState.Running, DownloadState.Canceled)) {
       // Already canceled or stopped
@@ -163,6 +290,11 @@ class CancelableDownload(
     }
   }
 
+  private class SubscriberCallback(
+    val subscriber: CancelableDownload,
+    val callback: FileCacheListener
+  )
+
   data class DownloadType(
     val isPrefetchDownload: Boolean,
     val isGalleryBatchDownload: Boolean
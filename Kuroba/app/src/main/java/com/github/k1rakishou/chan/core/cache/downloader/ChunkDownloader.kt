@@ -25,7 +25,8 @@ internal class ChunkDownloader(
   fun downloadChunk(
     url: String,
     chunk: Chunk,
-    totalChunksCount: Int
+    totalChunksCount: Int,
+    ifRange: String? = null
   ): Flowable<Response> {
     val request = activeDownloads.get(url)
       ?: activeDownloads.throwCancellationException(url)
@@ -54,6 +55,12 @@ internal class ChunkDownloader(
       // (it was timed out) so we should download it normally.
       // In other words, if chunk.isWholeFile == true then we don't use the "Range" header.
       requestBuilder.header("Range", "bytes=" + chunk.start + "-" + chunk.end)
+
+      if (ifRange != null) {
+        // The server sends the whole file (200 instead of 206) if it has changed since the
+        // validator was received so that the range is never mixed with a different version of it
+        requestBuilder.header("If-Range", ifRange)
+      }
     }
 
     val httpRequest = requestBuilder.build()
@@ -1,32 +1,31 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
-import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.exhaustive
-import dagger.Lazy
 import io.reactivex.BackpressureStrategy
 import io.reactivex.Flowable
 import io.reactivex.FlowableEmitter
 import okhttp3.Response
 import okhttp3.ResponseBody
 import okhttp3.internal.closeQuietly
-import okio.Buffer
-import okio.BufferedSink
 import okio.BufferedSource
-import okio.buffer
-import okio.sink
-import java.io.File
 import java.io.IOException
+import java.nio.ByteBuffer
 import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * Reads the body of every chunk's response straight into the [ChunkedOutputFile] at the chunk's
+ * offset. Stops reading while the download is paused by the [DownloadScheduler].
+ * */
 internal class ChunkPersister(
-  private val cacheHandler: Lazy<CacheHandler>,
   private val activeDownloads: ActiveDownloads,
+  private val downloadScheduler: DownloadScheduler,
   private val verboseLogs: Boolean
 ) {
   fun storeChunkInFile(
     url: String,
     chunkResponse: ChunkResponse,
+    chunkedOutputFile: ChunkedOutputFile,
     totalDownloaded: AtomicLong,
     chunkIndex: Int,
     totalChunksCount: Int
@@ -34,8 +33,9 @@ internal class ChunkPersister(
     return Flowable.create({ emitter ->
       BackgroundUtils.ensureBackgroundThread()
 
-      val request = activeDownloads.get(url)
-        ?: activeDownloads.throwCancellationException(url)
+      if (!activeDownloads.containsKey(url)) {
+        activeDownloads.throwCancellationException(url)
+      }
 
       val serializedEmitter = emitter.serialize()
       val chunk = chunkResponse.chunk
@@ -59,54 +59,49 @@ internal class ChunkPersister(
           throw FileCacheException.HttpCodeException(response.code)
         }
 
-        val chunkCacheFile = cacheHandler.get().getOrCreateChunkCacheFile(
-          cacheFileType = request.cacheFileType,
-          chunkStart = chunk.start,
-          chunkEnd = chunk.end,
-          url = url
-        ) ?: throw IOException("Couldn't create chunk cache file")
-
-        try {
-          response.useAsResponseBody { responseBody ->
-            var chunkSize = responseBody.contentLength()
-
-            if (totalChunksCount == 1) {
-              if (chunkSize <= 0) {
-                chunkSize = activeDownloads.get(url)?.extraInfo?.fileSize ?: -1
-              }
-
-              // When downloading the whole file in a single chunk we can only know
-              // for sure the whole size of the file at this point since we probably
-              // didn't send the HEAD request
-              activeDownloads.updateTotalLength(url, chunkSize)
-            }
+        if (!chunk.isWholeFile() && response.code != 206) {
+          // Either the file has changed on the server since the already downloaded ranges were
+          // persisted (If-Range didn't match) or the server has ignored the Range header. Either
+          // way the body is not this chunk's range.
+          chunkedOutputFile.discardResumeState()
+          throw FileCacheException.HttpCodeException(response.code)
+        }
+
+        chunkedOutputFile.updateValidator(DownloaderUtils.extractValidator(response))
 
-            responseBody.source().use { bufferedSource ->
-              if (!bufferedSource.isOpen) {
-                activeDownloads.throwCancellationException(url)
-              }
-
-              chunkCacheFile.useAsBufferedSink { bufferedSink ->
-                readBodyLoop(
-                  chunkSize,
-                  url,
-                  bufferedSource,
-                  bufferedSink,
-                  totalDownloaded,
-                  serializedEmitter,
-                  chunkIndex,
-                  chunkCacheFile,
-                  chunk
-                )
-              }
+        response.useAsResponseBody { responseBody ->
+          var chunkSize = responseBody.contentLength()
+
+          if (chunk.isWholeFile()) {
+            if (chunkSize <= 0) {
+              chunkSize = activeDownloads.get(url)?.extraInfo?.fileSize ?: -1
             }
+
+            // When downloading the whole file in a single chunk we can only know
+            // for sure the whole size of the file at this point since we probably
+            // didn't send the HEAD request
+            activeDownloads.updateTotalLength(url, chunkSize)
           }
 
-          log(TAG, "storeChunkInFile(${chunkIndex}) success, url=$url, chunk ${chunk.start}..${chunk.end}")
-        } catch (error: Throwable) {
-          deleteChunkFile(chunkCacheFile)
-          throw error
+          responseBody.source().use { bufferedSource ->
+            if (!bufferedSource.isOpen) {
+              activeDownloads.throwCancellationException(url)
+            }
+
+            readBodyLoop(
+              chunkSize,
+              url,
+              bufferedSource,
+              chunkedOutputFile,
+              totalDownloaded,
+              serializedEmitter,
+              chunkIndex,
+              chunk
+            )
+          }
         }
+
+        log(TAG, "storeChunkInFile(${chunkIndex}) success, url=$url, chunk ${chunk.start}..${chunk.end}")
       } catch (error: Throwable) {
         handleErrors(
           url,
@@ -172,28 +167,22 @@ internal class ChunkPersister(
     }
   }
 
-  private fun File.useAsBufferedSink(func: (BufferedSink) -> Unit) {
-    outputStream().sink().use { sink ->
-      sink.buffer().use { bufferedSink ->
-        func(bufferedSink)
-      }
-    }
-  }
-
   private fun readBodyLoop(
     chunkSize: Long,
     url: String,
     bufferedSource: BufferedSource,
-    bufferedSink: BufferedSink,
+    chunkedOutputFile: ChunkedOutputFile,
     totalDownloaded: AtomicLong,
     serializedEmitter: FlowableEmitter<ChunkDownloadEvent>,
     chunkIndex: Int,
-    chunkCacheFile: File,
     chunk: Chunk
   ) {
     var downloaded = 0L
     var notifyTotal = 0L
-    val buffer = Buffer()
+    val buffer = ByteBuffer.allocate(FileDownloader.BUFFER_SIZE.toInt())
+    val startTime = System.currentTimeMillis()
+    val cancelableDownload = activeDownloads.get(url)?.cancelableDownload
+      ?: activeDownloads.throwCancellationException(url)
 
     val notifySize = if (chunkSize <= 0) {
       FileDownloader.BUFFER_SIZE
@@ -207,16 +196,21 @@ internal class ChunkPersister(
           activeDownloads.throwCancellationException(url)
         }
 
-        val read = bufferedSource.read(buffer, FileDownloader.BUFFER_SIZE)
-        if (read == -1L) {
+        awaitWhilePaused(url, cancelableDownload)
+        buffer.clear()
+
+        val read = bufferedSource.read(buffer)
+        if (read == -1) {
           break
         }
 
-        downloaded += read
-        bufferedSink.write(buffer, read)
+        buffer.flip()
+        val written = chunkedOutputFile.write(chunk, chunk.start + downloaded, buffer)
+        downloaded += written
 
-        val total = totalDownloaded.addAndGet(read)
+        val total = totalDownloaded.addAndGet(written.toLong())
         activeDownloads.updateDownloaded(url, chunkIndex, total)
+        chunkedOutputFile.maybeSaveResumeState()
 
         if (downloaded >= notifyTotal + notifySize) {
           notifyTotal = downloaded
@@ -225,39 +219,46 @@ internal class ChunkPersister(
             ChunkDownloadEvent.Progress(
               chunkIndex,
               downloaded,
-              chunkSize
+              currentChunkSize(chunkedOutputFile, chunk, chunkSize)
             )
           )
         }
+
+        if (written < read) {
+          // The rest of this chunk's range was split off and is being downloaded by another
+          // connection
+          break
+        }
       }
 
-      bufferedSink.flush()
+      if (chunk.isWholeFile() && chunkSize >= 0 && downloaded != chunkSize) {
+        logError(TAG, "downloaded (${downloaded}) != chunkSize (${chunkSize})")
+        activeDownloads.throwCancellationException(url)
+      }
+
+      chunkedOutputFile.markChunkCompleted(chunk, downloaded)
 
       // So that we have 100% progress for every chunk
-      if (chunkSize >= 0) {
+      if (!chunk.isWholeFile() || chunkSize >= 0) {
         serializedEmitter.onNext(
           ChunkDownloadEvent.Progress(
             chunkIndex,
-            chunkSize,
-            chunkSize
+            downloaded,
+            downloaded
           )
         )
-
-        if (downloaded != chunkSize) {
-          logError(TAG, "downloaded (${downloaded}) != chunkSize (${chunkSize})")
-          activeDownloads.throwCancellationException(url)
-        }
       }
 
       if (verboseLogs) {
-        log(TAG, "pipeChunk($chunkIndex) ($url) SUCCESS for chunk ${chunk.start}..${chunk.end}")
+        log(TAG, "pipeChunk($chunkIndex) ($url) SUCCESS for chunk ${chunk.start}..${chunk.start + downloaded - 1}")
       }
 
       serializedEmitter.onNext(
         ChunkDownloadEvent.ChunkSuccess(
           chunkIndex,
-          chunkCacheFile,
-          chunk
+          chunk,
+          downloaded,
+          System.currentTimeMillis() - startTime
         )
       )
       serializedEmitter.onComplete()
@@ -268,11 +269,39 @@ internal class ChunkPersister(
       } else {
         throw error
       }
-    } finally {
-      buffer.closeQuietly()
     }
   }
 
+  /**
+   * Background downloads don't read anything while higher priority ones are running (the server
+   * stops sending once the socket buffers are full) but a buffer is still read every
+   * [MAX_PAUSE_MS] so that the connection doesn't time out. The thread is blocked meanwhile so
+   * background downloads run on their own threads.
+   * */
+  private fun awaitWhilePaused(url: String, cancelableDownload: CancelableDownload) {
+    val pauseStartTime = System.currentTimeMillis()
+
+    while (downloadScheduler.isPaused(cancelableDownload)) {
+      if (isRequestStoppedOrCanceled(url)) {
+        activeDownloads.throwCancellationException(url)
+      }
+
+      if (System.currentTimeMillis() - pauseStartTime >= MAX_PAUSE_MS) {
+        return
+      }
+
+      downloadScheduler.awaitUnpaused(cancelableDownload, PAUSE_CHECK_INTERVAL_MS)
+    }
+  }
+
+  private fun currentChunkSize(chunkedOutputFile: ChunkedOutputFile, chunk: Chunk, chunkSize: Long): Long {
+    if (chunk.isWholeFile()) {
+      return chunkSize
+    }
+
+    return chunkedOutputFile.currentRange(chunk).chunkSize()
+  }
+
   private fun isRequestStoppedOrCanceled(url: String): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -282,13 +311,9 @@ internal class ChunkPersister(
     return !request.cancelableDownload.isRunning()
   }
 
-  private fun deleteChunkFile(chunkFile: File) {
-    if (!chunkFile.delete()) {
-      logError(TAG, "Couldn't delete chunk file: ${chunkFile.absolutePath}")
-    }
-  }
-
   companion object {
     private const val TAG = "ChunkReader"
+    private const val MAX_PAUSE_MS = 10_000L
+    private const val PAUSE_CHECK_INTERVAL_MS = 250L
   }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import androidx.annotation.GuardedBy
+
+/**
+ * Per host estimate of how fast a single connection downloads (bytes per second). It's an
+ * exponentially weighted moving average over the downloaded chunks so that it follows the current
+ * network conditions. Used to pick the amount of chunks for a file (see [adaptiveChunksCount]) and
+ * to decide how much of a slow chunk's range to hand to an idle connection.
+ * */
+internal class ChunkThroughputEstimator(
+  private val defaultBytesPerSecond: Long = DEFAULT_BYTES_PER_SECOND
+) {
+  @GuardedBy("this")
+  private val estimates = mutableMapOf<String, Double>()
+
+  @Synchronized
+  fun onChunkDownloaded(host: String, downloaded: Long, downloadTimeMs: Long) {
+    // Small chunks are mostly latency, not throughput
+    if (downloaded < MIN_SAMPLE_SIZE || downloadTimeMs <= 0L) {
+      return
+    }
+
+    val bytesPerSecond = downloaded * 1000.0 / downloadTimeMs
+    val prevEstimate = estimates[host]
+
+    estimates[host] = if (prevEstimate == null) {
+      bytesPerSecond
+    } else {
+      prevEstimate + SMOOTHING_FACTOR * (bytesPerSecond - prevEstimate)
+    }
+  }
+
+  @Synchronized
+  fun bytesPerSecond(host: String?): Long {
+    if (host == null) {
+      return defaultBytesPerSecond
+    }
+
+    return estimates[host]?.toLong() ?: defaultBytesPerSecond
+  }
+
+  companion object {
+    private const val DEFAULT_BYTES_PER_SECOND = 1024L * 1024L // 1 MB/s
+    private const val MIN_SAMPLE_SIZE = 64L * 1024L // 64 KB
+    private const val SMOOTHING_FACTOR = 0.3
+  }
+}
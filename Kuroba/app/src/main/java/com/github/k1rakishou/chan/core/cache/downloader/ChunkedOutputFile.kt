@@ -0,0 +1,409 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import androidx.annotation.GuardedBy
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The output (cache) file of a download that every chunk is written into directly at its own
+ * offset. Positional writes don't share the file position so chunks are written concurrently
+ * without any locking and there is no need to merge separate chunk files afterwards (which would
+ * mean writing the whole file twice).
+ *
+ * When the size of the file is known the output is preallocated (with [RandomAccessFile.setLength])
+ * so that every chunk only has to write its own range. Every chunk is marked as completed once all of
+ * its bytes are written, the download is only complete once all of the chunks are.
+ *
+ * The unfinished part of a chunk's range may be split off (see [splitSlowestChunk]) and handed to a
+ * connection that has already finished its own chunk. The end of the original chunk's range is moved
+ * closer (see [currentRange]) and [write] never writes past it so that the connection downloading
+ * it stops there.
+ *
+ * When [resumeStateFile] is set what is already downloaded is persisted into it as a
+ * [DownloadResumeState] (periodically and when the file is closed before it's finished) so that
+ * the download can be continued later. The ranges that were downloaded before are passed in as
+ * [downloadedRanges] and the file must already contain them.
+ * */
+internal class ChunkedOutputFile(
+  val output: File,
+  chunks: List<Chunk>,
+  // -1 if unknown, then there must be only one chunk (the whole file)
+  private val expectedLength: Long,
+  downloadedRanges: List<Chunk> = emptyList(),
+  resumeStateFile: File? = null,
+  validator: String? = null,
+  // Only replaced in tests, the download speed of every chunk is measured with it
+  private val currentTimeMillis: () -> Long = System::currentTimeMillis
+) : Closeable {
+  private val randomAccessFile = RandomAccessFile(output, "rw")
+  private val channel = randomAccessFile.channel
+  private val lastResumeStateSaveTime = AtomicLong(currentTimeMillis())
+
+  // Chunks are only ever added to it (when the unfinished range of a chunk is split off)
+  @GuardedBy("this")
+  private val ranges = LinkedHashMap<Chunk, RangeState>()
+  @GuardedBy("this")
+  private var resumeStateFile: File? = resumeStateFile
+  @GuardedBy("this")
+  private var validator: String? = validator
+  @GuardedBy("this")
+  private var finished = false
+
+  init {
+    require(expectedLength >= 0 || chunks.size == 1) {
+      "Unknown expected length with multiple chunks (${chunks.size})"
+    }
+
+    require(downloadedRanges.isEmpty() || expectedLength >= 0) {
+      "Unknown expected length with already downloaded ranges"
+    }
+
+    chunks.forEach { chunk -> ranges[chunk] = RangeState(chunk.realEnd) }
+
+    downloadedRanges.forEach { range ->
+      ranges[range] = RangeState(range.realEnd).apply {
+        written = range.chunkSize()
+        completed = true
+      }
+    }
+
+    try {
+      // Also drops whatever was left in the file after a previous (failed) download (unless it's
+      // being resumed, then the file already has the expected length)
+      randomAccessFile.setLength(expectedLength.coerceAtLeast(0L))
+    } catch (error: IOException) {
+      randomAccessFile.close()
+      throw error
+    }
+  }
+
+  /**
+   * The range the [chunk] has to download right now, its end is moved closer every time the rest
+   * of it is split off.
+   * */
+  fun currentRange(chunk: Chunk): Chunk {
+    val range = rangeState(chunk)
+    return synchronized(range) { Chunk(chunk.start, range.end) }
+  }
+
+  /**
+   * Writes [buffer] (from its position to its limit) at [position] of the output file but never
+   * past the current end of the [chunk]'s range. Returns the amount of written bytes, when it's
+   * less than what was in the buffer the rest of the range is being downloaded by someone else and
+   * the caller must stop.
+   * */
+  @Throws(IOException::class)
+  fun write(chunk: Chunk, position: Long, buffer: ByteBuffer): Int {
+    val range = rangeState(chunk)
+
+    synchronized(range) {
+      check(position >= chunk.start && position <= range.end) {
+        "Write at ${position} is outside of ${chunk.start}..${range.end - 1}"
+      }
+
+      val available = range.end - position
+      if (buffer.remaining() > available) {
+        buffer.limit(buffer.position() + available.toInt())
+      }
+
+      val toWrite = buffer.remaining()
+      var currentPosition = position
+
+      while (buffer.hasRemaining()) {
+        currentPosition += channel.write(buffer, currentPosition)
+      }
+
+      if (range.firstWriteTime == 0L) {
+        range.firstWriteTime = currentTimeMillis()
+      }
+
+      range.written = currentPosition - chunk.start
+      return toWrite
+    }
+  }
+
+  @Synchronized
+  @Throws(IOException::class)
+  fun markChunkCompleted(chunk: Chunk, downloaded: Long) {
+    val range = rangeState(chunk)
+
+    synchronized(range) {
+      if (!chunk.isWholeFile() && downloaded != range.end - chunk.start) {
+        throw IOException("Chunk ${chunk.start}..${range.end - 1} is incomplete, " +
+          "downloaded=${downloaded}, chunkSize=${range.end - chunk.start}")
+      }
+
+      range.written = downloaded
+      range.completed = true
+    }
+
+    saveResumeState()
+  }
+
+  @Synchronized
+  fun validator(): String? = validator
+
+  /**
+   * Every response is expected to have the same validator (which is also sent with the following
+   * requests in the If-Range header), when they differ it's not safe to resume this download.
+   * */
+  @Synchronized
+  fun updateValidator(newValidator: String?) {
+    if (newValidator == null || newValidator == validator) {
+      return
+    }
+
+    if (validator == null) {
+      validator = newValidator
+      return
+    }
+
+    logError(TAG, "updateValidator() validators differ (${validator} != ${newValidator}), output=${output.absolutePath}")
+    discardResumeState()
+  }
+
+  /**
+   * Called after every write, persists the resume state at most once per
+   * [RESUME_STATE_SAVE_INTERVAL_MS].
+   * */
+  fun maybeSaveResumeState() {
+    val now = currentTimeMillis()
+    val lastSaveTime = lastResumeStateSaveTime.get()
+
+    if (now - lastSaveTime < RESUME_STATE_SAVE_INTERVAL_MS) {
+      return
+    }
+
+    if (!lastResumeStateSaveTime.compareAndSet(lastSaveTime, now)) {
+      // Someone else is saving it right now
+      return
+    }
+
+    saveResumeState()
+  }
+
+  /**
+   * The file has changed on the server (or can't be resumed for some other reason), what is
+   * already downloaded is useless.
+   * */
+  @Synchronized
+  fun discardResumeState() {
+    val file = resumeStateFile
+      ?: return
+
+    resumeStateFile = null
+
+    if (file.exists() && !file.delete()) {
+      logError(TAG, "discardResumeState() couldn't delete ${file.absolutePath}")
+    }
+  }
+
+  /**
+   * All the downloaded ranges (including the parts of the chunks that are still being downloaded).
+   * */
+  @Synchronized
+  fun downloadedRanges(): List<Chunk> {
+    val downloadedRanges = ranges.map { (chunk, range) ->
+      synchronized(range) { Chunk(chunk.start, chunk.start + range.written) }
+    }
+
+    return DownloadResumeState.mergeRanges(downloadedRanges)
+  }
+
+  @Synchronized
+  private fun saveResumeState() {
+    val file = resumeStateFile
+      ?: return
+    val currentValidator = validator
+      ?: return
+
+    if (finished || expectedLength <= 0) {
+      return
+    }
+
+    val downloadedRanges = downloadedRanges()
+    if (downloadedRanges.isEmpty()) {
+      // Nothing was persisted yet (e.g. the server responded with an error right away), there is
+      // nothing to resume and the preallocated file must not be kept
+      return
+    }
+
+    try {
+      DownloadResumeState(expectedLength, currentValidator, downloadedRanges).write(file)
+    } catch (error: IOException) {
+      logError(TAG, "saveResumeState() error, file=${file.absolutePath}", error)
+    }
+  }
+
+  /**
+   * Splits off the end of the unfinished range of the chunk that is expected to finish last (judging
+   * by how fast it has been downloading so far) so that it can be downloaded by an idle connection
+   * that downloads at [idleBytesPerSecond]. The range is split so that both parts are expected to
+   * finish at the same time but neither of them is less than [minChunkSize] (otherwise a new
+   * connection costs more than it saves). Chunks that haven't received their first byte yet or
+   * received it less than [SPLIT_GRACE_PERIOD_MS] ago are not split, their speed is unknown (they
+   * may still be waiting for the server to respond). Returns null when there is nothing worth
+   * splitting.
+   * */
+  @Synchronized
+  fun splitSlowestChunk(idleBytesPerSecond: Long, minChunkSize: Long): Chunk? {
+    val now = currentTimeMillis()
+
+    var slowestChunk: Chunk? = null
+    var slowestTimeLeft = -1.0
+
+    for ((chunk, range) in ranges) {
+      if (chunk.isWholeFile()) {
+        continue
+      }
+
+      val timeLeft = synchronized(range) {
+        if (range.completed || range.remaining(chunk) < minChunkSize * 2) {
+          return@synchronized -1.0
+        }
+
+        if (range.firstWriteTime == 0L || now - range.firstWriteTime < SPLIT_GRACE_PERIOD_MS) {
+          return@synchronized -1.0
+        }
+
+        val bytesPerSecond = range.bytesPerSecond(now)
+        if (bytesPerSecond <= 0.0) {
+          return@synchronized -1.0
+        }
+
+        return@synchronized range.remaining(chunk) / bytesPerSecond
+      }
+
+      if (timeLeft >= 0.0 && timeLeft > slowestTimeLeft) {
+        slowestChunk = chunk
+        slowestTimeLeft = timeLeft
+      }
+    }
+
+    if (slowestChunk == null) {
+      return null
+    }
+
+    val range = ranges.getValue(slowestChunk)
+
+    return synchronized(range) {
+      val remaining = range.remaining(slowestChunk)
+      if (range.completed || remaining < minChunkSize * 2) {
+        return@synchronized null
+      }
+
+      val bytesPerSecond = range.bytesPerSecond(now)
+      val keep = (remaining * (bytesPerSecond / (bytesPerSecond + idleBytesPerSecond.coerceAtLeast(1L))))
+        .toLong()
+        .coerceIn(minChunkSize, remaining - minChunkSize)
+
+      val splitPosition = slowestChunk.start + range.written + keep
+      val splitChunk = Chunk(splitPosition, range.end)
+
+      range.end = splitPosition
+      ranges[splitChunk] = RangeState(splitChunk.realEnd)
+
+      return@synchronized splitChunk
+    }
+  }
+
+  /**
+   * Current ranges of all the completed chunks.
+   * */
+  @Synchronized
+  fun completedChunks(): Set<Chunk> {
+    return ranges.entries
+      .filter { (_, range) -> synchronized(range) { range.completed } }
+      .map { (chunk, _) -> currentRange(chunk) }
+      .toSet()
+  }
+
+  /**
+   * Current ranges of all the chunks that are not completed yet.
+   * */
+  @Synchronized
+  fun missingChunks(): List<Chunk> {
+    return ranges.entries
+      .filter { (_, range) -> synchronized(range) { !range.completed } }
+      .map { (chunk, _) -> currentRange(chunk) }
+  }
+
+  /**
+   * Must only be called once all the chunks are completed. When the whole file was downloaded as
+   * a single chunk the file is trimmed to the actual amount of downloaded bytes (the server is
+   * free to send something else than what the HEAD request said). Closes the file.
+   * */
+  @Synchronized
+  @Throws(IOException::class)
+  fun finish() {
+    check(missingChunks().isEmpty()) { "Not all chunks are completed, missing=${missingChunks()}" }
+
+    try {
+      val wholeFileChunk = ranges.keys.singleOrNull()?.takeIf { chunk -> chunk.isWholeFile() }
+      if (wholeFileChunk != null) {
+        val range = ranges.getValue(wholeFileChunk)
+        channel.truncate(synchronized(range) { range.written })
+      }
+
+      finished = true
+    } finally {
+      close()
+    }
+  }
+
+  /**
+   * Persists what is downloaded so far when the download is not finished (stopped or failed). The
+   * resume state of a canceled download must be discarded (see [discardResumeState]) before that.
+   * */
+  @Synchronized
+  override fun close() {
+    if (!channel.isOpen) {
+      return
+    }
+
+    saveResumeState()
+
+    try {
+      randomAccessFile.close()
+    } catch (ignored: IOException) {
+    }
+  }
+
+  @Synchronized
+  private fun rangeState(chunk: Chunk): RangeState {
+    return checkNotNull(ranges[chunk]) { "Unknown chunk $chunk" }
+  }
+
+  companion object {
+    private const val TAG = "ChunkedOutputFile"
+    private const val RESUME_STATE_SAVE_INTERVAL_MS = 1000L
+    private const val SPLIT_GRACE_PERIOD_MS = 500L
+  }
+
+  private class RangeState(
+    @GuardedBy("this")
+    var end: Long
+  ) {
+    @GuardedBy("this")
+    var written = 0L
+    @GuardedBy("this")
+    var firstWriteTime = 0L
+    @GuardedBy("this")
+    var completed = false
+
+    fun remaining(chunk: Chunk): Long = end - (chunk.start + written)
+
+    fun bytesPerSecond(now: Long): Double {
+      if (firstWriteTime == 0L || written <= 0L) {
+        return 0.0
+      }
+
+      return written * 1000.0 / (now - firstWriteTime).coerceAtLeast(1L)
+    }
+  }
+
+}
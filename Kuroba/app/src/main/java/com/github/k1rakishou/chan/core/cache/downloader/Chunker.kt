@@ -28,6 +28,60 @@ fun chunkLong(value: Long, chunksCount: Int, minChunkSize: Long): List<Chunk> {
   return chunks
 }
 
+/**
+ * The smallest chunk that is worth a separate connection: one that takes at least
+ * [MIN_CHUNK_DOWNLOAD_TIME_MS] to download at the per connection throughput ([bytesPerSecond]),
+ * otherwise the overhead of opening a connection (TLS handshake, time to first byte) costs more
+ * than downloading the same bytes over an already opened one.
+ * */
+fun adaptiveMinChunkSize(bytesPerSecond: Long, minChunkSize: Long): Long {
+  return (bytesPerSecond * MIN_CHUNK_DOWNLOAD_TIME_MS / 1000L).coerceAtLeast(minChunkSize)
+}
+
+/**
+ * Picks how many chunks (connections) a file of [fileLength] bytes is downloaded with. Small files
+ * are downloaded over a single connection, bigger ones are split into chunks of at least
+ * [adaptiveMinChunkSize] but no more than [maxChunksCount] of them. Huge files don't get chunks
+ * that are too big to rebalance because the unfinished ranges of the slow chunks are split off and
+ * handed to the idle connections while downloading (see [ChunkedOutputFile.splitSlowestChunk]).
+ * */
+fun adaptiveChunksCount(fileLength: Long, maxChunksCount: Int, bytesPerSecond: Long, minChunkSize: Long): Int {
+  require(maxChunksCount > 0) { "MaxChunksCount ($maxChunksCount) must be greater than zero!" }
+
+  val chunkSize = adaptiveMinChunkSize(bytesPerSecond, minChunkSize)
+  return (fileLength / chunkSize).coerceIn(1L, maxChunksCount.toLong()).toInt()
+}
+
+/**
+ * Splits the missing [ranges] of a partially downloaded file into [chunksCount] chunks (or less
+ * when they are too small to split) by splitting the biggest range in half until there are enough
+ * of them. Ranges are never merged, even the small ones are downloaded with their own connection.
+ * */
+fun chunkRanges(ranges: List<Chunk>, chunksCount: Int, minChunkSize: Long): List<Chunk> {
+  require(chunksCount > 0) { "ChunksCount ($chunksCount) must be greater than zero!" }
+
+  val chunks = ranges.toMutableList()
+
+  while (chunks.size < chunksCount) {
+    val biggestChunk = chunks.maxByOrNull { chunk -> chunk.chunkSize() }
+      ?: break
+
+    if (biggestChunk.chunkSize() < minChunkSize * 2) {
+      break
+    }
+
+    val middle = biggestChunk.start + biggestChunk.chunkSize() / 2
+
+    chunks.remove(biggestChunk)
+    chunks += Chunk(biggestChunk.start, middle)
+    chunks += Chunk(middle, biggestChunk.realEnd)
+  }
+
+  return chunks.sortedBy { chunk -> chunk.start }
+}
+
+private const val MIN_CHUNK_DOWNLOAD_TIME_MS = 1000L
+
 /**
  * [realEnd] is only being used in tests.
  * */
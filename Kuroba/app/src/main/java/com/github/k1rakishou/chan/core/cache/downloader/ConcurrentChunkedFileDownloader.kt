@@ -1,6 +1,8 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
+import androidx.annotation.VisibleForTesting
 import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.ErrorMapper
 import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.site.SiteBase
 import com.github.k1rakishou.chan.core.site.SiteResolver
@@ -19,8 +21,12 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
   private val siteResolver: SiteResolver,
   private val chunkDownloader: ChunkDownloader,
   private val chunkPersister: ChunkPersister,
-  private val chunkMerger: ChunkMerger,
+  private val downloadFinalizer: DownloadFinalizer,
+  private val throughputEstimator: ChunkThroughputEstimator,
   private val workerScheduler: Scheduler,
+  // Background downloads are paused (while blocking their threads) for the foreground ones so they
+  // never use the foreground downloads' threads
+  private val backgroundWorkerScheduler: Scheduler,
   private val verboseLogs: Boolean,
   activeDownloads: ActiveDownloads,
   cacheHandler: Lazy<CacheHandler>
@@ -33,20 +39,38 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
   ): Flowable<FileDownloadResult> {
     BackgroundUtils.ensureBackgroundThread()
 
-    val output = activeDownloads.get(url)
-      ?.getOutputFile()
+    val request = activeDownloads.get(url)
+      ?: activeDownloads.throwCancellationException(url)
+    val output = request.getOutputFile()
       ?: activeDownloads.throwCancellationException(url)
 
     if (!output.exists()) {
       return Flowable.error(IOException("Output file does not exist!"))
     }
 
+    // Only the downloads that use Partial Content (and thus know the file size) can be resumed
+    val canBeResumed = supportsPartialContentDownload && partialContentCheckResult.couldDetermineFileSize()
+    val resumeStateFile = cacheHandler.get().getResumeStateFile(request.cacheFileType, output)
+    val resumeState = loadResumeState(url, output, resumeStateFile, partialContentCheckResult, canBeResumed)
+
+    val fileLength = if (resumeState != null) {
+      resumeState.length - resumeState.downloadedBytes()
+    } else {
+      partialContentCheckResult.length
+    }
+
     // We can't use Partial Content if we don't know the file size
-    val chunksCount = getChunksCount(supportsPartialContentDownload, partialContentCheckResult, url)
+    val chunksCount = getChunksCount(supportsPartialContentDownload, partialContentCheckResult, url, fileLength)
     check(chunksCount >= 1) { "Chunks count is less than 1 = $chunksCount" }
 
-    // Split the whole file size into chunks
-    val chunks = if (chunksCount > 1) {
+    // Split the whole file size (or only its missing ranges when resuming) into chunks
+    val chunks = if (resumeState != null) {
+      chunkRanges(
+        resumeState.missingRanges(),
+        chunksCount,
+        FileCacheV2.MIN_CHUNK_SIZE
+      )
+    } else if (chunksCount > 1) {
       chunkLong(
         partialContentCheckResult.length,
         chunksCount,
@@ -58,26 +82,72 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
       listOf(Chunk.wholeFile())
     }
 
+    if (resumeState != null) {
+      // The missing ranges are never merged so there may be more (or less) of them
+      request.chunksCount(chunks.size)
+    }
+
     return Flowable.concat(
-      Flowable.just(FileDownloadResult.Start(chunksCount)),
-      Flowable.defer { downloadInternal(url, chunks, partialContentCheckResult, output) }
+      Flowable.just(FileDownloadResult.Start(chunks.size.coerceAtLeast(1))),
+      Flowable.defer {
+        downloadInternal(
+          url,
+          chunks,
+          partialContentCheckResult,
+          output,
+          resumeState,
+          resumeStateFile.takeIf { canBeResumed }
+        )
+      }
         .doOnSubscribe { log(TAG, "Starting downloading ($url)") }
-        .doOnComplete {
-          log(TAG, "Completed downloading ($url)")
-          removeChunksFromDisk(url)
-        }
-        .doOnError { error ->
-          logErrorsAndExtractErrorMessage(TAG, "Error while trying to download", error)
-          removeChunksFromDisk(url)
-        }
-        .subscribeOn(workerScheduler)
+        .doOnComplete { log(TAG, "Completed downloading ($url)") }
+        .doOnError { error -> logErrorsAndExtractErrorMessage(TAG, "Error while trying to download", error) }
+        .subscribeOn(workerSchedulerFor(url))
     )
   }
 
+  /**
+   * Returns null (and deletes the state) when there is no state or the file has changed on the
+   * server since it was persisted (or the cache file itself has changed).
+   * */
+  private fun loadResumeState(
+    url: String,
+    output: File,
+    resumeStateFile: File,
+    partialContentCheckResult: PartialContentCheckResult,
+    canBeResumed: Boolean
+  ): DownloadResumeState? {
+    val resumeState = DownloadResumeState.read(resumeStateFile)
+    if (resumeState == null) {
+      resumeStateFile.delete()
+      return null
+    }
+
+    // When the validator is unknown (the HEAD request was skipped) it's checked by the server with
+    // the If-Range header instead
+    val isSameFile = resumeState.length == partialContentCheckResult.length
+      && output.length() == resumeState.length
+      && (partialContentCheckResult.validator == null || partialContentCheckResult.validator == resumeState.validator)
+
+    if (!canBeResumed || !isSameFile) {
+      log(TAG, "Can't resume ($url), canBeResumed=${canBeResumed}, resumeState=${resumeState}, " +
+        "length=${partialContentCheckResult.length}, validator=${partialContentCheckResult.validator}")
+
+      resumeStateFile.delete()
+      return null
+    }
+
+    log(TAG, "Resuming ($url), already downloaded ${resumeState.downloadedBytes()} " +
+      "out of ${resumeState.length} bytes")
+
+    return resumeState
+  }
+
   private fun getChunksCount(
     supportsPartialContentDownload: Boolean,
     partialContentCheckResult: PartialContentCheckResult,
-    url: String
+    url: String,
+    fileLength: Long
   ): Int {
     val activeDownload = activeDownloads.get(url)
       ?: activeDownloads.throwCancellationException(url)
@@ -105,44 +175,28 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
       return 1
     }
 
-    val chunksCount = (site as SiteBase).concurrentFileDownloadingChunks.get().chunksCount()
+    // The setting is the maximum amount of connections, small files (compared to how fast the site
+    // has been downloading lately) are downloaded with less of them
+    val maxChunksCount = (site as SiteBase).concurrentFileDownloadingChunks.get().chunksCount()
+    val chunksCount = adaptiveChunksCount(
+      fileLength = fileLength,
+      maxChunksCount = maxChunksCount,
+      bytesPerSecond = throughputEstimator.bytesPerSecond(host),
+      minChunkSize = FileCacheV2.MIN_CHUNK_SIZE
+    )
 
     activeDownload.chunksCount(chunksCount)
     return chunksCount
   }
 
-  private fun removeChunksFromDisk(url: String) {
-    val chunks = activeDownloads.getChunks(url)
-    if (chunks.isEmpty()) {
-      return
-    }
-
-    val request = activeDownloads.get(url)
-      ?: activeDownloads.throwCancellationException(url)
-
-    for (chunk in chunks) {
-      val chunkFile = cacheHandler.get().getChunkCacheFileOrNull(
-        cacheFileType = request.cacheFileType,
-        chunkStart = chunk.start,
-        chunkEnd = chunk.end,
-        url = url
-      ) ?: continue
-
-      if (chunkFile.delete()) {
-        log(TAG, "Deleted chunk file ${chunkFile.absolutePath}")
-      } else {
-        logError(TAG, "Couldn't delete chunk file ${chunkFile.absolutePath}")
-      }
-    }
-
-    activeDownloads.clearChunks(url)
-  }
-
-  private fun downloadInternal(
+  @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+  fun downloadInternal(
     url: String,
     chunks: List<Chunk>,
     partialContentCheckResult: PartialContentCheckResult,
-    output: File
+    output: File,
+    resumeState: DownloadResumeState?,
+    resumeStateFile: File?
   ): Flowable<FileDownloadResult> {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -164,21 +218,43 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     }
 
     val startTime = System.currentTimeMillis()
-    val totalDownloaded = AtomicLong(0L)
+    val totalDownloaded = AtomicLong(resumeState?.downloadedBytes() ?: 0L)
     val chunkIndex = AtomicInteger(0)
 
-    activeDownloads.addChunks(url, chunks)
+    val expectedLength = if (partialContentCheckResult.couldDetermineFileSize()) {
+      partialContentCheckResult.length
+    } else {
+      -1L
+    }
+
+    // Every chunk is written straight into the output file at its own offset
+    val chunkedOutputFile = ChunkedOutputFile(
+      output = output,
+      chunks = chunks,
+      expectedLength = expectedLength,
+      downloadedRanges = resumeState?.downloadedRanges ?: emptyList(),
+      resumeStateFile = resumeStateFile,
+      validator = resumeState?.validator ?: partialContentCheckResult.validator
+    )
+    val minChunkSize = adaptiveMinChunkSize(
+      throughputEstimator.bytesPerSecond(url.toHttpUrlOrNull()?.host),
+      FileCacheV2.MIN_CHUNK_SIZE
+    )
+
+    val chunksWorkerScheduler = workerSchedulerFor(url)
 
     val downloadedChunks = Flowable.fromIterable(chunks)
-      .subscribeOn(workerScheduler)
-      .observeOn(workerScheduler)
+      .subscribeOn(chunksWorkerScheduler)
+      .observeOn(chunksWorkerScheduler)
       .flatMap { chunk ->
         return@flatMap processChunks(
           url,
           totalDownloaded,
           chunkIndex.getAndIncrement(),
           chunk,
-          chunks.size
+          chunks.size,
+          chunkedOutputFile,
+          minChunkSize
         )
       }
       .onErrorReturn { error -> ChunkDownloadEvent.ChunkError(error) }
@@ -216,7 +292,9 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
       .toList()
       .toFlowable()
       .flatMap { chunkEvents ->
-        if (chunkEvents.isEmpty()) {
+        // There may be nothing to download when the process was killed after the last chunk of a
+        // resumed download was downloaded
+        if (chunkEvents.isEmpty() && chunks.isNotEmpty()) {
           activeDownloads.throwCancellationException(url)
         }
 
@@ -238,14 +316,22 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
           }
         }
 
-        @Suppress("UNCHECKED_CAST")
-        return@flatMap chunkMerger.mergeChunksIntoCacheFile(
+        return@flatMap downloadFinalizer.finalizeDownload(
           url = url,
-          chunkSuccessEvents = chunkEvents as List<ChunkDownloadEvent.ChunkSuccess>,
-          output = output,
+          chunkedOutputFile = chunkedOutputFile,
           requestStartTime = startTime
         )
       }
+      .doOnError { error ->
+        // Must be done before the error reaches FileCacheV2.handleResults() which deletes the output
+        // of a canceled download but keeps the output of a failed one when it has the resume state
+        if (ErrorMapper.mapError(url, error, activeDownloads) is FileDownloadResult.Canceled) {
+          chunkedOutputFile.discardResumeState()
+        }
+
+        chunkedOutputFile.close()
+      }
+      .doFinally { chunkedOutputFile.close() }
 
     // So why are we splitting a reactive stream in two? Because we need to do some
     // additional handling of ChunkSuccess events but we don't want to do that
@@ -282,7 +368,9 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     totalDownloaded: AtomicLong,
     chunkIndex: Int,
     chunk: Chunk,
-    totalChunksCount: Int
+    totalChunksCount: Int,
+    chunkedOutputFile: ChunkedOutputFile,
+    minChunkSize: Long
   ): Flowable<ChunkDownloadEvent> {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -291,22 +379,31 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     }
 
     val isGalleryBatchDownload = activeDownloads.isGalleryBatchDownload(url)
-
-    // Download each chunk separately in parallel
-    return chunkDownloader.downloadChunk(url, chunk, totalChunksCount)
-      .subscribeOn(workerScheduler)
-      .observeOn(workerScheduler)
+    val isBackgroundDownload = activeDownloads.isBatchDownload(url)
+    val chunkWorkerScheduler = workerSchedulerFor(url)
+
+    // Download each chunk separately in parallel. The range is only taken when the request is
+    // being sent because it may get shorter when the chunk is retried after its rest was split off
+    return Flowable.defer {
+      chunkDownloader.downloadChunk(
+        url,
+        chunkedOutputFile.currentRange(chunk),
+        totalChunksCount,
+        chunkedOutputFile.validator()
+      )
+    }
+      .subscribeOn(chunkWorkerScheduler)
+      .observeOn(chunkWorkerScheduler)
       .map { response -> ChunkResponse(chunk, response) }
       .flatMap { chunkResponse ->
-        // Here is where the most fun is happening. At this point we have sent multiple
-        // requests to the server and got responses. Now we need to read the bodies of
-        // those responses each into it's own chunk file. Then, after we have read
-        // them all, we need to sort them and write all chunks into the resulting
-        // file - cache file. After that we need to do clean up: delete chunk files
-        // (we also need to delete them in case of an error)
+        // At this point we have sent multiple requests to the server and got responses.
+        // Now we need to read the bodies of those responses each straight into the
+        // resulting file (the cache file) at the chunk's offset. There is nothing to
+        // merge afterwards, once every chunk's range is completed the file is done.
         return@flatMap chunkPersister.storeChunkInFile(
           url = url,
           chunkResponse = chunkResponse,
+          chunkedOutputFile = chunkedOutputFile,
           totalDownloaded = totalDownloaded,
           chunkIndex = chunkIndex,
           totalChunksCount = totalChunksCount
@@ -327,6 +424,58 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
 
         retry
       }
+      .doOnNext { event ->
+        // Background downloads are paused for the foreground ones (and the paused time is a part of
+        // their download time) so they say nothing about how fast a connection is
+        if (event is ChunkDownloadEvent.ChunkSuccess && !isBackgroundDownload) {
+          val host = url.toHttpUrlOrNull()?.host ?: return@doOnNext
+          throughputEstimator.onChunkDownloaded(host, event.downloaded, event.downloadTimeMs)
+        }
+      }
+      // This connection is idle now, help the slowest chunk with the rest of its range
+      .concatWith(Flowable.defer {
+        splitSlowestChunk(url, totalDownloaded, chunkIndex, totalChunksCount, chunkedOutputFile, minChunkSize)
+      })
+  }
+
+  @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+  fun splitSlowestChunk(
+    url: String,
+    totalDownloaded: AtomicLong,
+    chunkIndex: Int,
+    totalChunksCount: Int,
+    chunkedOutputFile: ChunkedOutputFile,
+    minChunkSize: Long
+  ): Flowable<ChunkDownloadEvent> {
+    if (isRequestStoppedOrCanceled(url)) {
+      return Flowable.empty()
+    }
+
+    val idleBytesPerSecond = throughputEstimator.bytesPerSecond(url.toHttpUrlOrNull()?.host)
+    val splitChunk = chunkedOutputFile.splitSlowestChunk(idleBytesPerSecond, minChunkSize)
+      ?: return Flowable.empty()
+
+    if (verboseLogs) {
+      log(TAG, "Chunk ${chunkIndex} took over ${splitChunk} of a slower chunk ($url)")
+    }
+
+    return processChunks(
+      url,
+      totalDownloaded,
+      chunkIndex,
+      splitChunk,
+      totalChunksCount,
+      chunkedOutputFile,
+      minChunkSize
+    )
+  }
+
+  private fun workerSchedulerFor(url: String): Scheduler {
+    if (activeDownloads.isBatchDownload(url)) {
+      return backgroundWorkerScheduler
+    }
+
+    return workerScheduler
   }
 
   companion object {
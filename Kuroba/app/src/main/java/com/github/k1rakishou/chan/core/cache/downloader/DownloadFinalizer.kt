@@ -7,26 +7,31 @@ import dagger.Lazy
 import io.reactivex.Flowable
 import java.io.File
 
-
-internal class ChunkMerger(
+/**
+ * Chunks are written straight into the output file by [ChunkPersister] so all that is left to do
+ * once all of them are downloaded is to make sure that every chunk's range is completed and mark
+ * the output file as downloaded.
+ * */
+internal class DownloadFinalizer(
   private val fileManager: FileManager,
   private val cacheHandler: Lazy<CacheHandler>,
   private val activeDownloads: ActiveDownloads,
   private val verboseLogs: Boolean
 ) {
 
-  fun mergeChunksIntoCacheFile(
+  fun finalizeDownload(
     url: String,
-    chunkSuccessEvents: List<ChunkDownloadEvent.ChunkSuccess>,
-    output: File,
+    chunkedOutputFile: ChunkedOutputFile,
     requestStartTime: Long
   ): Flowable<ChunkDownloadEvent> {
     BackgroundUtils.ensureBackgroundThread()
 
     return Flowable.fromCallable {
+      val output = chunkedOutputFile.output
+
       if (verboseLogs) {
-        log(TAG, "mergeChunksIntoCacheFile called ($url), " +
-          "chunks count = ${chunkSuccessEvents.size}")
+        log(TAG, "finalizeDownload called ($url), " +
+          "completed chunks = ${chunkedOutputFile.completedChunks()}")
       }
 
       val isRunning = activeDownloads.get(url)?.cancelableDownload?.isRunning() ?: false
@@ -34,37 +39,15 @@ internal class ChunkMerger(
         activeDownloads.throwCancellationException(url)
       }
 
-      try {
-        // Must be sorted in ascending order!!!
-        val sortedChunkEvents = chunkSuccessEvents.sortedBy { event -> event.chunk.start }
-
-        if (!output.exists()) {
-          throw FileCacheException.OutputFileDoesNotExist(output.absolutePath)
-        }
-
-        output.outputStream().use { outputStream ->
-          // Iterate each chunk and write it to the output file
-          for (chunkEvent in sortedChunkEvents) {
-            val chunkFile = chunkEvent.chunkCacheFile
-
-            if (!chunkFile.exists()) {
-              throw FileCacheException.ChunkFileDoesNotExist(chunkFile.absolutePath)
-            }
-
-            chunkFile.inputStream().use { inputStream ->
-              inputStream.copyTo(outputStream)
-            }
-          }
-
-          outputStream.flush()
-        }
-      } finally {
-        // In case of success or an error we want delete all chunk files
-        chunkSuccessEvents.forEach { event ->
-          if (!event.chunkCacheFile.delete()) {
-            logError(TAG, "Couldn't delete chunk file: ${event.chunkCacheFile.absolutePath}")
-          }
-        }
+      val missingChunks = chunkedOutputFile.missingChunks()
+      if (missingChunks.isNotEmpty()) {
+        throw FileCacheException.OutputFileIsIncomplete(output.absolutePath, missingChunks)
+      }
+
+      chunkedOutputFile.finish()
+
+      if (!output.exists()) {
+        throw FileCacheException.OutputFileDoesNotExist(output.absolutePath)
       }
 
       // Mark file as downloaded
@@ -83,7 +66,7 @@ internal class ChunkMerger(
     }
 
     val requestOutputFile = checkNotNull(request.getOutputFile()) {
-      "Output file is null at the final stage of merging"
+      "Output file is null at the final stage of downloading"
     }
 
     check(actualOutput.absolutePath == requestOutputFile.absolutePath) {
@@ -103,6 +86,6 @@ internal class ChunkMerger(
   }
 
   companion object {
-    private const val TAG = "ChunkPersister"
+    private const val TAG = "DownloadFinalizer"
   }
-}
\ No newline at end of file
+}
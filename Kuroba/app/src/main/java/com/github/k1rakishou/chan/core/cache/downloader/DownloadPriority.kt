@@ -0,0 +1,19 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+/**
+ * Priority classes of media transfers, from the highest to the lowest. See [DownloadScheduler].
+ * */
+enum class DownloadPriority(
+  // Background transfers are only allowed to use the bandwidth that nobody else needs
+  val isBackground: Boolean
+) {
+  // The media the user is looking at right now
+  Visible(false),
+  // Media viewer pages next to the visible one
+  Adjacent(false),
+  Thumbnail(false),
+  // Media prefetching and gallery batch downloads
+  Prefetch(true);
+
+  fun isHigherThan(other: DownloadPriority): Boolean = ordinal < other.ordinal
+}
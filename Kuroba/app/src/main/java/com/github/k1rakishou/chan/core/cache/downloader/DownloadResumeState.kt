@@ -0,0 +1,150 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * What is already downloaded into a cache file that is not completely downloaded yet, persisted (by
+ * [ChunkedOutputFile]) so that the download can be continued after the process is restarted instead
+ * of starting from the first byte. The [validator] (strong ETag or Last-Modified) is sent with the
+ * Range requests for the missing ranges in the If-Range header so that the server sends the whole
+ * file (200 instead of 206) if it has changed since.
+ * */
+internal class DownloadResumeState(
+  val length: Long,
+  val validator: String,
+  // Sorted and non overlapping
+  val downloadedRanges: List<Chunk>
+) {
+
+  fun downloadedBytes(): Long = downloadedRanges.sumOf { range -> range.chunkSize() }
+
+  fun missingRanges(): List<Chunk> {
+    val missingRanges = mutableListOf<Chunk>()
+    var position = 0L
+
+    for (range in downloadedRanges) {
+      if (range.start > position) {
+        missingRanges += Chunk(position, range.start)
+      }
+
+      position = range.realEnd
+    }
+
+    if (position < length) {
+      missingRanges += Chunk(position, length)
+    }
+
+    return missingRanges
+  }
+
+  /**
+   * The state is written into a temporary file first which then replaces the old one so that a
+   * state file is never partially written.
+   * */
+  @Throws(IOException::class)
+  fun write(file: File) {
+    val tmpFile = File(file.parentFile, file.name + TMP_SUFFIX)
+
+    DataOutputStream(tmpFile.outputStream().buffered()).use { output ->
+      output.writeInt(VERSION)
+      output.writeLong(length)
+      output.writeUTF(validator)
+      output.writeInt(downloadedRanges.size)
+
+      downloadedRanges.forEach { range ->
+        output.writeLong(range.start)
+        output.writeLong(range.realEnd)
+      }
+    }
+
+    if (!tmpFile.renameTo(file)) {
+      tmpFile.delete()
+      throw IOException("Couldn't rename ${tmpFile.absolutePath} into ${file.absolutePath}")
+    }
+  }
+
+  override fun toString(): String {
+    return "DownloadResumeState(length=$length, validator=$validator, downloadedRanges=$downloadedRanges)"
+  }
+
+  companion object {
+    private const val TAG = "DownloadResumeState"
+    private const val VERSION = 1
+    private const val TMP_SUFFIX = ".tmp"
+    private const val MAX_RANGES_COUNT = 4096
+
+    /**
+     * Returns null if there is no state or it can't be used (unknown version, bad ranges).
+     * */
+    fun read(file: File): DownloadResumeState? {
+      if (!file.exists()) {
+        return null
+      }
+
+      try {
+        DataInputStream(file.inputStream().buffered()).use { input ->
+          val version = input.readInt()
+          if (version != VERSION) {
+            logError(TAG, "read() unsupported version ${version}, file=${file.absolutePath}")
+            return null
+          }
+
+          val length = input.readLong()
+          val validator = input.readUTF()
+          val rangesCount = input.readInt()
+
+          if (length <= 0 || validator.isEmpty() || rangesCount < 0 || rangesCount > MAX_RANGES_COUNT) {
+            logError(TAG, "read() bad state, length=${length}, rangesCount=${rangesCount}, file=${file.absolutePath}")
+            return null
+          }
+
+          val downloadedRanges = mutableListOf<Chunk>()
+          var prevEnd = 0L
+
+          repeat(rangesCount) {
+            val range = Chunk(input.readLong(), input.readLong())
+
+            if (range.start < prevEnd || range.realEnd <= range.start || range.realEnd > length) {
+              logError(TAG, "read() bad range ${range}, file=${file.absolutePath}")
+              return null
+            }
+
+            downloadedRanges += range
+            prevEnd = range.realEnd
+          }
+
+          return DownloadResumeState(length, validator, downloadedRanges)
+        }
+      } catch (error: IOException) {
+        logError(TAG, "read() error, file=${file.absolutePath}", error)
+        return null
+      }
+    }
+
+    /**
+     * Sorts and merges overlapping and adjacent [ranges].
+     * */
+    fun mergeRanges(ranges: List<Chunk>): List<Chunk> {
+      val mergedRanges = mutableListOf<Chunk>()
+
+      ranges
+        .filter { range -> range.realEnd > range.start }
+        .sortedBy { range -> range.start }
+        .forEach { range ->
+          val lastRange = mergedRanges.lastOrNull()
+
+          if (lastRange != null && range.start <= lastRange.realEnd) {
+            mergedRanges[mergedRanges.lastIndex] = Chunk(lastRange.start, maxOf(lastRange.realEnd, range.realEnd))
+          } else {
+            mergedRanges += range
+          }
+        }
+
+      return mergedRanges
+    }
+  }
+
+}
@@ -0,0 +1,238 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import androidx.annotation.GuardedBy
+import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Decides when the downloads start and which of the running ones have to give way, by their
+ * [DownloadPriority]:
+ *
+ * - [DownloadPriority.Visible] downloads start right away.
+ * - Other foreground downloads wait while there is a running download with a higher priority
+ * (adjacent pages are downloaded after the visible one).
+ * - At most [maxBackgroundDownloads] background downloads run at the same time and they are paused
+ * (see [isPaused]) while there is any foreground transfer. That includes the transfers that are
+ * not downloads of this scheduler (thumbnails, see [onTransferStarted]).
+ *
+ * Pending downloads are started in the order of their priority (and then in the order they were
+ * enqueued in). A download's priority may change while it's pending or running (when the media
+ * viewer page becomes visible or when a prefetched file is opened).
+ * */
+internal class DownloadScheduler(
+  private val maxBackgroundDownloads: Int,
+  private val startDownload: (CancelableDownload) -> Unit
+) {
+  private val lock = ReentrantLock()
+  private val priorityChanged = lock.newCondition()
+
+  @GuardedBy("lock")
+  private val pendingDownloads = PriorityQueue<PendingDownload>(PENDING_DOWNLOAD_COMPARATOR)
+  @GuardedBy("lock")
+  private val runningDownloads = IdentityHashMap<CancelableDownload, DownloadPriority>()
+  // Running downloads and other transfers by priority
+  @GuardedBy("lock")
+  private val activeTransfers = IntArray(DownloadPriority.values().size)
+  @GuardedBy("lock")
+  private var enqueuedCount = 0L
+
+  fun enqueue(cancelableDownload: CancelableDownload, priority: DownloadPriority) {
+    // A canceled pending download must not wait for its turn (which may take as long as a whole
+    // video download), it's started right away so that it finishes and its subscribers are notified
+    cancelableDownload.addDisposeFuncList { onDownloadCanceled(cancelableDownload) }
+
+    val toStart = lock.withLock {
+      pendingDownloads += PendingDownload(cancelableDownload, priority, enqueuedCount++)
+      return@withLock dispatch()
+    }
+
+    toStart.forEach { download -> startDownload(download) }
+  }
+
+  fun updatePriority(cancelableDownload: CancelableDownload, priority: DownloadPriority) {
+    updatePriority(cancelableDownload) { priority }
+  }
+
+  /**
+   * Only ever makes the priority higher (when a download that is already running is requested
+   * again with a different priority).
+   * */
+  fun raisePriority(cancelableDownload: CancelableDownload, priority: DownloadPriority) {
+    updatePriority(cancelableDownload) { currentPriority ->
+      if (priority.isHigherThan(currentPriority)) {
+        priority
+      } else {
+        currentPriority
+      }
+    }
+  }
+
+  fun onDownloadFinished(cancelableDownload: CancelableDownload) {
+    val toStart = lock.withLock {
+      val priority = runningDownloads.remove(cancelableDownload)
+        ?: return@withLock emptyList()
+
+      activeTransfers[priority.ordinal]--
+      priorityChanged.signalAll()
+
+      return@withLock dispatch()
+    }
+
+    toStart.forEach { download -> startDownload(download) }
+  }
+
+  /**
+   * Starts [cancelableDownload] right away if it's still pending (it finishes immediately since
+   * it's canceled or stopped).
+   * */
+  fun onDownloadCanceled(cancelableDownload: CancelableDownload) {
+    val toStart = lock.withLock {
+      if (pendingDownloads.none { pending -> pending.download === cancelableDownload }) {
+        return@withLock emptyList()
+      }
+
+      return@withLock dispatch()
+    }
+
+    toStart.forEach { download -> startDownload(download) }
+  }
+
+  /**
+   * A transfer that is not started by this scheduler but that the background downloads still
+   * have to give way to.
+   * */
+  fun onTransferStarted(priority: DownloadPriority) {
+    lock.withLock { activeTransfers[priority.ordinal]++ }
+  }
+
+  fun onTransferFinished(priority: DownloadPriority) {
+    val toStart = lock.withLock {
+      activeTransfers[priority.ordinal]--
+      priorityChanged.signalAll()
+
+      return@withLock dispatch()
+    }
+
+    toStart.forEach { download -> startDownload(download) }
+  }
+
+  fun isPaused(cancelableDownload: CancelableDownload): Boolean {
+    return lock.withLock { isPausedLocked(cancelableDownload) }
+  }
+
+  /**
+   * Blocks until the [cancelableDownload] is not paused anymore but not longer than [timeoutMs].
+   * */
+  fun awaitUnpaused(cancelableDownload: CancelableDownload, timeoutMs: Long) {
+    lock.withLock {
+      if (isPausedLocked(cancelableDownload)) {
+        priorityChanged.await(timeoutMs, TimeUnit.MILLISECONDS)
+      }
+    }
+  }
+
+  private fun updatePriority(
+    cancelableDownload: CancelableDownload,
+    newPriority: (DownloadPriority) -> DownloadPriority
+  ) {
+    val toStart = lock.withLock {
+      val runningPriority = runningDownloads[cancelableDownload]
+      if (runningPriority != null) {
+        val priority = newPriority(runningPriority)
+        if (priority == runningPriority) {
+          return@withLock emptyList()
+        }
+
+        runningDownloads[cancelableDownload] = priority
+        activeTransfers[runningPriority.ordinal]--
+        activeTransfers[priority.ordinal]++
+        priorityChanged.signalAll()
+
+        return@withLock dispatch()
+      }
+
+      val pendingDownload = pendingDownloads.firstOrNull { pending -> pending.download === cancelableDownload }
+        ?: return@withLock emptyList()
+
+      val priority = newPriority(pendingDownload.priority)
+      if (priority == pendingDownload.priority) {
+        return@withLock emptyList()
+      }
+
+      pendingDownloads.remove(pendingDownload)
+      pendingDownloads += pendingDownload.copy(priority = priority)
+
+      return@withLock dispatch()
+    }
+
+    toStart.forEach { download -> startDownload(download) }
+  }
+
+  @GuardedBy("lock")
+  private fun dispatch(): List<CancelableDownload> {
+    val toStart = mutableListOf<CancelableDownload>()
+
+    // Canceled downloads are started right away, they finish immediately
+    pendingDownloads.removeAll { pending ->
+      if (pending.download.isRunning()) {
+        return@removeAll false
+      }
+
+      toStart += pending.download
+      return@removeAll true
+    }
+
+    while (true) {
+      val pending = pendingDownloads.peek()
+        ?: break
+
+      if (!canStart(pending.priority)) {
+        // Everything else in the queue has the same or a lower priority
+        break
+      }
+
+      pendingDownloads.poll()
+      runningDownloads[pending.download] = pending.priority
+      activeTransfers[pending.priority.ordinal]++
+
+      toStart += pending.download
+    }
+
+    return toStart
+  }
+
+  @GuardedBy("lock")
+  private fun canStart(priority: DownloadPriority): Boolean {
+    if (priority.isBackground) {
+      return runningDownloads.values.count { runningPriority -> runningPriority.isBackground } < maxBackgroundDownloads
+    }
+
+    return runningDownloads.values.none { runningPriority -> runningPriority.isHigherThan(priority) }
+  }
+
+  @GuardedBy("lock")
+  private fun isPausedLocked(cancelableDownload: CancelableDownload): Boolean {
+    val priority = runningDownloads[cancelableDownload]
+      ?: return false
+
+    if (!priority.isBackground) {
+      return false
+    }
+
+    return DownloadPriority.values().any { otherPriority ->
+      otherPriority.isHigherThan(priority) && activeTransfers[otherPriority.ordinal] > 0
+    }
+  }
+
+  private data class PendingDownload(
+    val download: CancelableDownload,
+    val priority: DownloadPriority,
+    val order: Long
+  )
+
+  companion object {
+    private val PENDING_DOWNLOAD_COMPARATOR = compareBy<PendingDownload>({ it.priority.ordinal }, { it.order })
+  }
+}
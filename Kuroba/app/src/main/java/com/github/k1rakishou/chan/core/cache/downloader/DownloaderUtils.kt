@@ -1,5 +1,7 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.Response
 import okhttp3.internal.http2.StreamResetException
 import java.io.IOException
 
@@ -23,4 +25,32 @@ internal object DownloaderUtils {
     return false
   }
 
+  /**
+   * Downloads (and cache files) are keyed by the canonical form of the url so that the same file
+   * requested with e.g. a differently cased host or an explicit default port is only downloaded
+   * once.
+   * */
+  fun normalizeUrl(url: String): String {
+    return url.toHttpUrlOrNull()?.toString()
+      ?: url
+  }
+
+  /**
+   * A validator that can be sent in the If-Range header. Weak ETags can't be used there so
+   * Last-Modified is used instead when the ETag is weak.
+   * */
+  fun extractValidator(response: Response): String? {
+    val etag = response.header(ETAG_HEADER)
+    if (etag != null && etag.isNotBlank() && !etag.startsWith(WEAK_ETAG_PREFIX)) {
+      return etag
+    }
+
+    return response.header(LAST_MODIFIED_HEADER)
+      ?.takeIf { lastModified -> lastModified.isNotBlank() }
+  }
+
+  private const val ETAG_HEADER = "ETag"
+  private const val LAST_MODIFIED_HEADER = "Last-Modified"
+  private const val WEAK_ETAG_PREFIX = "W/"
+
 }
\ No newline at end of file
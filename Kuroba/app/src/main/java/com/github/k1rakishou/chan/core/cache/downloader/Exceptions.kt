@@ -26,8 +26,8 @@ internal sealed class FileCacheException(message: String) : Exception(message) {
   internal class OutputFileDoesNotExist(val path: String)
     : FileCacheException("OutputFileDoesNotExist path = $path")
 
-  internal class ChunkFileDoesNotExist(val path: String)
-    : FileCacheException("ChunkFileDoesNotExist path = $path")
+  internal class OutputFileIsIncomplete(val path: String, val missingChunks: List<Chunk>)
+    : FileCacheException("OutputFileIsIncomplete path = $path, missingChunks = $missingChunks")
 
   internal class HttpCodeException(val statusCode: Int)
     : FileCacheException("HttpCodeException statusCode = $statusCode")
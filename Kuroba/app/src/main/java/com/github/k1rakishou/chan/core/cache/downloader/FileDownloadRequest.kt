@@ -14,8 +14,6 @@ internal open class FileDownloadRequest(
   // A handle to cancel the current download
   val cancelableDownload: CancelableDownload,
   val extraInfo: DownloadRequestExtraInfo,
-  // Chunks to delete from the disk upon download success or error
-  val chunks: MutableSet<Chunk> = mutableSetOf(),
   val cacheFileType: CacheFileType
 ) {
   private var output: File? = null
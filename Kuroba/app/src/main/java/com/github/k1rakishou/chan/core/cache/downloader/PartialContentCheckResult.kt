@@ -3,7 +3,9 @@ package com.github.k1rakishou.chan.core.cache.downloader
 internal data class PartialContentCheckResult(
   val supportsPartialContentDownload: Boolean,
   val notFoundOnServer: Boolean = false,
-  val length: Long = -1L
+  val length: Long = -1L,
+  // Strong ETag or Last-Modified of the file, null if the server sent neither
+  val validator: String? = null
 ) {
   fun couldDetermineFileSize(): Boolean = length >= 0
 }
\ No newline at end of file
@@ -306,7 +306,8 @@ internal class PartialContentSupportChecker(
     val result = PartialContentCheckResult(
       supportsPartialContentDownload = true,
       notFoundOnServer = false,
-      length = length
+      length = length,
+      validator = DownloaderUtils.extractValidator(response)
     )
 
     emitter.onSuccess(cache(url, result))
@@ -26,6 +26,7 @@ import com.github.k1rakishou.chan.core.cache.CacheHandler;
 import com.github.k1rakishou.chan.core.cache.FileCacheV2;
 import com.github.k1rakishou.chan.core.helper.ImageLoaderFileManagerWrapper;
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2;
+import com.github.k1rakishou.chan.core.image.PackedCacheFileFetcher;
 import com.github.k1rakishou.chan.core.manager.ArchivesManager;
 import com.github.k1rakishou.chan.core.manager.BoardManager;
 import com.github.k1rakishou.chan.core.manager.BookmarksManager;
@@ -129,6 +130,7 @@ public class AppModule {
                 // caching system.
                 .diskCachePolicy(CachePolicy.DISABLED)
                 .callFactory(coilOkHttpClient.okHttpClient())
+                .componentRegistry(PackedCacheFileFetcher.componentRegistry())
                 .availableMemoryPercentage(availableMemoryPercentage)
                 .build();
     }
@@ -589,7 +589,8 @@ public class ManagerModule {
             Lazy<ChanPostRepository> chanPostRepository,
             Lazy<ChanFilterWatchRepository> chanFilterWatchRepository,
             Lazy<PostFilterManager> postFilterManager,
-            Lazy<PostFilterHighlightManager> postFilterHighlightManager
+            Lazy<PostFilterHighlightManager> postFilterHighlightManager,
+            Lazy<FilterEngine> filterEngine
     ) {
         Logger.deps("ChanFilterManager");
         return new ChanFilterManager(
@@ -599,7 +600,8 @@ public class ManagerModule {
                 chanPostRepository,
                 chanFilterWatchRepository,
                 postFilterHighlightManager,
-                postFilterManager
+                postFilterManager,
+                filterEngine
         );
     }
 
@@ -0,0 +1,301 @@
+package com.github.k1rakishou.chan.core.helper
+
+import androidx.annotation.AnyThread
+import com.github.k1rakishou.common.datastructure.AhoCorasickAutomaton
+import com.github.k1rakishou.common.mutableListWithCap
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import java.util.*
+import java.util.regex.Pattern
+import java.util.regex.PatternSyntaxException
+
+/**
+ * A set of filters compiled for matching all of them against a post at once. Instead of running
+ * every filter's regex against every post field we first find candidate filters:
+ *  - plain word and "exact sentence" filters are turned into keywords of one Aho-Corasick automaton
+ *  so that every field is scanned once no matter how many of these filters there are.
+ *  - /regex/ filters with the same flags are merged into one alternation so that a field that none
+ *  of them matches only costs one matcher.find() per flags combination.
+ * Only the candidates are then checked with their own pattern (in the filters order) which makes
+ * the result exactly the same as running [FilterEngine.matches] for every filter.
+ * */
+class CompiledFilterSet private constructor(
+  private val filterEngine: FilterEngine,
+  val filters: List<ChanFilter>,
+  private val patterns: Array<Pattern?>,
+  private val keywordAutomaton: AhoCorasickAutomaton?,
+  private val keywordOwners: Array<IntArray>,
+  private val mergedRegexes: List<MergedRegex>,
+  private val alwaysCandidates: BitSet,
+  private val emptyCommentCandidates: BitSet
+) {
+
+  fun isEmpty(): Boolean = filters.isEmpty()
+
+  /**
+   * Returns a set that shares everything that was compiled with this one but returns the
+   * [filters] instances, which must have the same contents and order as the filters of this set.
+   * */
+  internal fun withFilters(filters: List<ChanFilter>): CompiledFilterSet {
+    if (filters === this.filters) {
+      return this
+    }
+
+    require(filters.size == this.filters.size) {
+      "Filters count differs: ${filters.size} vs ${this.filters.size}"
+    }
+
+    return CompiledFilterSet(
+      filterEngine = filterEngine,
+      filters = filters,
+      patterns = patterns,
+      keywordAutomaton = keywordAutomaton,
+      keywordOwners = keywordOwners,
+      mergedRegexes = mergedRegexes,
+      alwaysCandidates = alwaysCandidates,
+      emptyCommentCandidates = emptyCommentCandidates
+    )
+  }
+
+  /**
+   * Returns the first filter (in the order of [filters]) that matches the [post] or null if none
+   * of them do.
+   * */
+  @AnyThread
+  fun firstMatchingFilter(post: ChanPostBuilder): ChanFilter? {
+    if (filters.isEmpty() || !filterEngine.canBeFiltered(post)) {
+      return null
+    }
+
+    val candidates = BitSet(filters.size)
+    candidates.or(alwaysCandidates)
+
+    val comment = post.postCommentBuilder.getComment()
+    if (comment.isEmpty()) {
+      candidates.or(emptyCommentCandidates)
+    } else {
+      collectCandidates(comment, FilterType.COMMENT, candidates)
+    }
+
+    collectCandidates(post.subject, FilterType.SUBJECT, candidates)
+    collectCandidates(post.name, FilterType.NAME, candidates)
+    collectCandidates(post.tripcode, FilterType.TRIPCODE, candidates)
+    collectCandidates(post.posterId, FilterType.ID, candidates)
+
+    if (post.postImages.size > 0) {
+      for (image in post.postImages) {
+        collectCandidates(image.fileHash, FilterType.IMAGE, candidates)
+      }
+
+      collectCandidates(filterEngine.joinFileNames(post), FilterType.FILENAME, candidates)
+    }
+
+    if (post.httpIcons.size > 0) {
+      collectCandidates(filterEngine.extractCountryCode(post), FilterType.COUNTRY_CODE, candidates)
+    }
+
+    var filterIndex = candidates.nextSetBit(0)
+    while (filterIndex >= 0) {
+      val filter = filters[filterIndex]
+      if (filterEngine.matches(filter, post, patterns[filterIndex])) {
+        return filter
+      }
+
+      filterIndex = candidates.nextSetBit(filterIndex + 1)
+    }
+
+    return null
+  }
+
+  private fun collectCandidates(text: CharSequence?, filterType: FilterType, candidates: BitSet) {
+    if (text.isNullOrEmpty()) {
+      return
+    }
+
+    keywordAutomaton?.findAll(text) { keywordIndex ->
+      for (filterIndex in keywordOwners[keywordIndex]) {
+        if (filterEngine.typeMatches(filters[filterIndex].type, filterType)) {
+          candidates.set(filterIndex)
+        }
+      }
+    }
+
+    for (mergedRegex in mergedRegexes) {
+      // No need to run the merged pattern when every filter it consists of is already a candidate
+      if (!hasNonCandidateFiltersOfType(mergedRegex.filterIndexes, filterType, candidates)) {
+        continue
+      }
+
+      if (filterEngine.find(mergedRegex.pattern, text)) {
+        for (filterIndex in mergedRegex.filterIndexes) {
+          if (filterEngine.typeMatches(filters[filterIndex].type, filterType)) {
+            candidates.set(filterIndex)
+          }
+        }
+      }
+    }
+  }
+
+  private fun hasNonCandidateFiltersOfType(
+    filterIndexes: IntArray,
+    filterType: FilterType,
+    candidates: BitSet
+  ): Boolean {
+    return filterIndexes.any { filterIndex ->
+      !candidates.get(filterIndex) && filterEngine.typeMatches(filters[filterIndex].type, filterType)
+    }
+  }
+
+  private class MergedRegex(
+    val pattern: Pattern,
+    val filterIndexes: IntArray
+  )
+
+  companion object {
+    private const val TAG = "CompiledFilterSet"
+
+    private val isRegexPattern = Pattern.compile("^/(.*)/(\\w+)?$")
+
+    // Constructs that change their meaning (or break) when a pattern is wrapped into a group and
+    // joined with other patterns: quotations, back references, named groups and comments mode.
+    private val unmergeablePattern = Pattern.compile("\\\\Q|\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]|\\(\\?[a-zA-Z]*x")
+
+    @AnyThread
+    fun compile(filterEngine: FilterEngine, filters: List<ChanFilter>): CompiledFilterSet {
+      val patterns = arrayOfNulls<Pattern>(filters.size)
+      val keywords = mutableListOf<String>()
+      val keywordOwners = mutableListOf<MutableList<Int>>()
+      val keywordIndexes = hashMapOf<String, Int>()
+      val regexesByFlags = linkedMapOf<Int, MutableList<Int>>()
+      val alwaysCandidates = BitSet(filters.size)
+      val emptyCommentCandidates = BitSet(filters.size)
+
+      fun addKeyword(keyword: String, filterIndex: Int) {
+        val normalized = keyword.lowercaseAscii()
+        val keywordIndex = keywordIndexes.getOrPut(normalized) {
+          keywords += normalized
+          keywordOwners.add(mutableListOf())
+          keywords.lastIndex
+        }
+
+        keywordOwners[keywordIndex] += filterIndex
+      }
+
+      filters.forEachIndexed { filterIndex, filter ->
+        if (filter.applyToEmptyComments) {
+          emptyCommentCandidates.set(filterIndex)
+        }
+
+        val pattern = filterEngine.compile(filter.pattern, filterEngine.extraPatternFlags(filter.type))
+          .patternOrNull
+          ?: return@forEachIndexed
+
+        patterns[filterIndex] = pattern
+
+        val rawPattern = filter.pattern!!
+        when {
+          isRegexPattern.matcher(rawPattern).matches() -> {
+            if (unmergeablePattern.matcher(pattern.pattern()).find()) {
+              alwaysCandidates.set(filterIndex)
+            } else {
+              regexesByFlags.getOrPut(pattern.flags()) { mutableListOf() } += filterIndex
+            }
+          }
+          rawPattern.length >= 2 && rawPattern[0] == '"' && rawPattern[rawPattern.length - 1] == '"' -> {
+            // "exact sentence" is matched literally (case insensitively)
+            addKeyword(rawPattern.substring(1, rawPattern.length - 1), filterIndex)
+          }
+          else -> {
+            val words = rawPattern
+              .split(" ")
+              .map { word -> word.trim() }
+              .filter { word -> word.isNotEmpty() }
+
+            // Every word may contain * wildcards, the longest part without wildcards must be
+            // present in the text for the word to match
+            val longestLiterals = words.map { word ->
+              word.split('*').maxByOrNull { part -> part.length } ?: ""
+            }
+
+            if (longestLiterals.any { literal -> literal.isEmpty() }) {
+              alwaysCandidates.set(filterIndex)
+            } else {
+              longestLiterals.forEach { literal -> addKeyword(literal, filterIndex) }
+            }
+          }
+        }
+      }
+
+      val mergedRegexes = mutableListWithCap<MergedRegex>(regexesByFlags.size)
+
+      for ((flags, filterIndexes) in regexesByFlags) {
+        val mergedPattern = mergePatterns(filterIndexes.map { filterIndex -> patterns[filterIndex]!! }, flags)
+        if (mergedPattern == null) {
+          filterIndexes.forEach { filterIndex -> alwaysCandidates.set(filterIndex) }
+          continue
+        }
+
+        mergedRegexes += MergedRegex(mergedPattern, filterIndexes.toIntArray())
+      }
+
+      val keywordAutomaton = if (keywords.isEmpty()) {
+        null
+      } else {
+        AhoCorasickAutomaton.build(keywords, ignoreAsciiCase = true)
+      }
+
+      Logger.d(TAG, "compile() filters=${filters.size}, keywords=${keywords.size}, " +
+        "mergedRegexes=${mergedRegexes.size}, alwaysCandidates=${alwaysCandidates.cardinality()}")
+
+      return CompiledFilterSet(
+        filterEngine = filterEngine,
+        filters = filters,
+        patterns = patterns,
+        keywordAutomaton = keywordAutomaton,
+        keywordOwners = keywordOwners.map { owners -> owners.distinct().toIntArray() }.toTypedArray(),
+        mergedRegexes = mergedRegexes,
+        alwaysCandidates = alwaysCandidates,
+        emptyCommentCandidates = emptyCommentCandidates
+      )
+    }
+
+    private fun mergePatterns(patterns: List<Pattern>, flags: Int): Pattern? {
+      if (patterns.size == 1) {
+        return patterns.first()
+      }
+
+      val merged = patterns.joinToString(separator = "|") { pattern -> "(?:${pattern.pattern()})" }
+
+      try {
+        val mergedPattern = Pattern.compile(merged, flags)
+
+        // Sanity check that none of the patterns has "leaked" out of its group
+        val expectedGroupCount = patterns.sumOf { pattern -> pattern.matcher("").groupCount() }
+        if (mergedPattern.matcher("").groupCount() != expectedGroupCount) {
+          return null
+        }
+
+        return mergedPattern
+      } catch (error: PatternSyntaxException) {
+        Logger.e(TAG, "mergePatterns() failed to merge ${patterns.size} patterns", error)
+        return null
+      } catch (error: StackOverflowError) {
+        return null
+      }
+    }
+
+    private fun String.lowercaseAscii(): String {
+      val chars = CharArray(length)
+
+      for (index in indices) {
+        val ch = this[index]
+        chars[index] = if (ch in 'A'..'Z') ch + ('a' - 'A') else ch
+      }
+
+      return String(chars)
+    }
+  }
+
+}
@@ -17,10 +17,12 @@
 package com.github.k1rakishou.chan.core.helper
 
 import androidx.annotation.AnyThread
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager
 import com.github.k1rakishou.common.RegexPatternCompiler
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.board.ChanBoard
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.filter.ChanFilter
 import com.github.k1rakishou.model.data.filter.ChanFilterMutable
 import com.github.k1rakishou.model.data.filter.FilterType
@@ -35,7 +37,17 @@ class FilterEngine @Inject constructor(
 ) {
   private val cacheHits = AtomicLong(0)
   private val cacheMisses = AtomicLong(0)
-  private val patternCache: MutableMap<String?, Pattern> = HashMap()
+  // The same raw pattern is compiled with different flags depending on the filter type
+  private val patternCache: MutableMap<PatternCacheKey, Pattern> = HashMap()
+
+  // Keyed by the contents of the filters (without their database ids which are assigned after a
+  // filter is created) so that the same filters always reuse the same compiled set
+  @GuardedBy("compiledFilterSetCache")
+  private val compiledFilterSetCache = object : LinkedHashMap<List<FilterContents>, CompiledFilterSet>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<List<FilterContents>, CompiledFilterSet>?): Boolean {
+      return size > MAX_COMPILED_FILTER_SETS
+    }
+  }
 
   fun currentCacheHits(): Long {
     return cacheHits.get()
@@ -64,7 +76,8 @@ class FilterEngine @Inject constructor(
       return emptySet()
     }
 
-    val pattern = synchronized(patternCache) { patternCache[chanFilter.pattern] }
+    val patternCacheKey = PatternCacheKey(chanFilter.pattern, extraPatternFlags(chanFilter.type))
+    val pattern = synchronized(patternCache) { patternCache[patternCacheKey] }
     if (pattern == null) {
       return emptySet()
     }
@@ -92,6 +105,30 @@ class FilterEngine @Inject constructor(
     return keywords
   }
 
+  /**
+   * Compiles [filters] into a [CompiledFilterSet] which can find the first matching filter for a
+   * post without running every filter against every post field. The compiled set is cached and
+   * only rebuilt when the filters change.
+   * */
+  @AnyThread
+  fun compileFilters(filters: List<ChanFilter>): CompiledFilterSet {
+    val key = filters.map { filter -> FilterContents.fromChanFilter(filter) }
+
+    synchronized(compiledFilterSetCache) {
+      val cached = compiledFilterSetCache[key]
+      if (cached != null) {
+        // The cached set may have been compiled out of other instances of the same filters, the
+        // caller must get back its own instances
+        return cached.withFilters(filters)
+      }
+    }
+
+    val compiledFilterSet = CompiledFilterSet.compile(this, filters)
+    synchronized(compiledFilterSetCache) { compiledFilterSetCache[key] = compiledFilterSet }
+
+    return compiledFilterSet
+  }
+
   /**
    * @param filter the filter to use
    * @param post   the post content to test against
@@ -99,10 +136,20 @@ class FilterEngine @Inject constructor(
    */
   @AnyThread
   fun matches(filter: ChanFilter, post: ChanPostBuilder): Boolean {
-    if (post.moderatorCapcode.isNotEmpty() || post.sticky) {
+    if (!canBeFiltered(post)) {
       return false
     }
 
+    return matches(filter, post, getOrCompilePattern(filter.pattern, filter.type, false))
+  }
+
+  @AnyThread
+  fun canBeFiltered(post: ChanPostBuilder): Boolean {
+    return post.moderatorCapcode.isEmpty() && !post.sticky
+  }
+
+  @AnyThread
+  internal fun matches(filter: ChanFilter, post: ChanPostBuilder, pattern: Pattern?): Boolean {
     if (filter.onlyOnOP && !post.op) {
       return false
     }
@@ -115,36 +162,40 @@ class FilterEngine @Inject constructor(
       return true
     }
 
+    if (pattern == null) {
+      return false
+    }
+
     if (typeMatches(filter, FilterType.COMMENT) && post.postCommentBuilder.getComment().isNotEmpty()) {
-      if (matches(filter, post.postCommentBuilder.getComment(), false)) {
+      if (find(pattern, post.postCommentBuilder.getComment())) {
         return true
       }
     }
 
-    if (typeMatches(filter, FilterType.SUBJECT) && matches(filter, post.subject, false)) {
+    if (typeMatches(filter, FilterType.SUBJECT) && find(pattern, post.subject)) {
       return true
     }
 
-    if (typeMatches(filter, FilterType.NAME) && matches(filter, post.name, false)) {
+    if (typeMatches(filter, FilterType.NAME) && find(pattern, post.name)) {
       return true
     }
 
-    if (typeMatches(filter, FilterType.TRIPCODE) && matches(filter, post.tripcode, false)) {
+    if (typeMatches(filter, FilterType.TRIPCODE) && find(pattern, post.tripcode)) {
       return true
     }
 
-    if (typeMatches(filter, FilterType.ID) && matches(filter, post.posterId, false)) {
+    if (typeMatches(filter, FilterType.ID) && find(pattern, post.posterId)) {
       return true
     }
 
     if (post.postImages.size > 0) {
-      if (tryMatchPostImagesWithFilter(filter, post)) {
+      if (tryMatchPostImagesWithFilter(filter, post, pattern)) {
         return true
       }
     }
 
     if (post.httpIcons.size > 0) {
-      if (tryMatchPostFlagsWithFilter(filter, post)) {
+      if (tryMatchPostFlagsWithFilter(filter, post, pattern)) {
         return true
       }
     }
@@ -152,41 +203,49 @@ class FilterEngine @Inject constructor(
     return false
   }
 
-  private fun tryMatchPostFlagsWithFilter(filter: ChanFilter, post: ChanPostBuilder): Boolean {
-    // figure out if the post has a country code, if so check the filter
-    var countryCode = ""
-
+  @AnyThread
+  internal fun extractCountryCode(post: ChanPostBuilder): String {
     for (icon in post.httpIcons) {
       val index = icon.iconName.indexOf('/')
       if (index != -1) {
-        countryCode = icon.iconName.substring(index + 1)
-        break
+        return icon.iconName.substring(index + 1)
       }
     }
 
+    return ""
+  }
+
+  @AnyThread
+  internal fun joinFileNames(post: ChanPostBuilder): String {
+    val files = StringBuilder()
+
+    for (image in post.postImages) {
+      files.append(image.filename).append(" ")
+    }
+
+    return files.toString()
+  }
+
+  private fun tryMatchPostFlagsWithFilter(filter: ChanFilter, post: ChanPostBuilder, pattern: Pattern): Boolean {
+    // figure out if the post has a country code, if so check the filter
+    val countryCode = extractCountryCode(post)
     if (countryCode.isEmpty()) {
       return false
     }
 
-    return typeMatches(filter, FilterType.COUNTRY_CODE) && matches(filter, countryCode, false)
+    return typeMatches(filter, FilterType.COUNTRY_CODE) && find(pattern, countryCode)
   }
 
-  private fun tryMatchPostImagesWithFilter(filter: ChanFilter, post: ChanPostBuilder): Boolean {
+  private fun tryMatchPostImagesWithFilter(filter: ChanFilter, post: ChanPostBuilder, pattern: Pattern): Boolean {
     for (image in post.postImages) {
-      if (typeMatches(filter, FilterType.IMAGE) && matches(filter, image.fileHash, false)) {
+      if (typeMatches(filter, FilterType.IMAGE) && find(pattern, image.fileHash)) {
         return true
       }
     }
 
-    val files = StringBuilder()
-
-    for (image in post.postImages) {
-      files.append(image.filename).append(" ")
-    }
-
-    val fnames = files.toString()
+    val fnames = joinFileNames(post)
     if (fnames.isNotEmpty()) {
-      if (typeMatches(filter, FilterType.FILENAME) && matches(filter, fnames, false)) {
+      if (typeMatches(filter, FilterType.FILENAME) && find(pattern, fnames)) {
         return true
       }
     }
@@ -205,7 +264,7 @@ class FilterEngine @Inject constructor(
   }
 
   @AnyThread
-  private fun typeMatches(filterType: Int, type: FilterType): Boolean {
+  internal fun typeMatches(filterType: Int, type: FilterType): Boolean {
     return filterType and type.flag != 0
   }
 
@@ -238,10 +297,25 @@ class FilterEngine @Inject constructor(
       return false
     }
 
+    val pattern = getOrCompilePattern(patternRaw, filterType, forceCompile)
+      ?: return false
+
+    return find(pattern, text)
+  }
+
+  @AnyThread
+  private fun getOrCompilePattern(
+    patternRaw: String?,
+    filterType: Int,
+    forceCompile: Boolean
+  ): Pattern? {
+    val extraPatternFlags = extraPatternFlags(filterType)
+    val patternCacheKey = PatternCacheKey(patternRaw, extraPatternFlags)
+
     var pattern: Pattern? = null
     if (!forceCompile) {
       synchronized(patternCache) {
-        pattern = patternCache[patternRaw]
+        pattern = patternCache[patternCacheKey]
         if (pattern == null) {
           cacheMisses.incrementAndGet()
         } else {
@@ -251,28 +325,36 @@ class FilterEngine @Inject constructor(
     }
 
     if (pattern == null) {
-      val extraFlags = if (typeMatches(filterType, FilterType.COUNTRY_CODE)) {
-        Pattern.CASE_INSENSITIVE
-      } else {
-        0
-      }
-
-      pattern = compile(patternRaw, extraFlags).patternOrNull
+      pattern = compile(patternRaw, extraPatternFlags).patternOrNull
       if (pattern != null) {
-        synchronized(patternCache) { patternCache.put(patternRaw, pattern!!) }
+        synchronized(patternCache) { patternCache.put(patternCacheKey, pattern!!) }
       }
     }
 
-    if (pattern == null) {
+    return pattern
+  }
+
+  @AnyThread
+  internal fun extraPatternFlags(filterType: Int): Int {
+    return if (typeMatches(filterType, FilterType.COUNTRY_CODE)) {
+      Pattern.CASE_INSENSITIVE
+    } else {
+      0
+    }
+  }
+
+  @AnyThread
+  internal fun find(pattern: Pattern, text: CharSequence?): Boolean {
+    if (text.isNullOrEmpty()) {
       return false
     }
 
-    val matcher = pattern!!.matcher(text)
+    val matcher = pattern.matcher(text)
 
     try {
       return matcher.find()
     } catch (e: IllegalArgumentException) {
-      Logger.e(TAG, "matcher.find() exception, pattern=" + pattern!!.pattern(), e)
+      Logger.e(TAG, "matcher.find() exception, pattern=" + pattern.pattern(), e)
       return false
     }
   }
@@ -284,6 +366,47 @@ class FilterEngine @Inject constructor(
 
   companion object {
     private const val TAG = "FilterEngine"
+    // Filters are compiled per board (since each board may have a different set of filters)
+    private const val MAX_COMPILED_FILTER_SETS = 16
 
   }
-}
\ No newline at end of file
+
+  private data class PatternCacheKey(
+    val patternRaw: String?,
+    val extraPatternFlags: Int
+  )
+
+  private data class FilterContents(
+    val enabled: Boolean,
+    val type: Int,
+    val pattern: String?,
+    val boards: Set<BoardDescriptor>,
+    val action: Int,
+    val color: Int,
+    val note: String?,
+    val applyToReplies: Boolean,
+    val onlyOnOP: Boolean,
+    val applyToSaved: Boolean,
+    val applyToEmptyComments: Boolean,
+    val filterWatchNotify: Boolean
+  ) {
+    companion object {
+      fun fromChanFilter(chanFilter: ChanFilter): FilterContents {
+        return FilterContents(
+          enabled = chanFilter.enabled,
+          type = chanFilter.type,
+          pattern = chanFilter.pattern,
+          boards = chanFilter.boards,
+          action = chanFilter.action,
+          color = chanFilter.color,
+          note = chanFilter.note,
+          applyToReplies = chanFilter.applyToReplies,
+          onlyOnOP = chanFilter.onlyOnOP,
+          applyToSaved = chanFilter.applyToSaved,
+          applyToEmptyComments = chanFilter.applyToEmptyComments,
+          filterWatchNotify = chanFilter.filterWatchNotify
+        )
+      }
+    }
+  }
+}
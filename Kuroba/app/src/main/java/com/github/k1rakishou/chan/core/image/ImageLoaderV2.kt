@@ -35,6 +35,9 @@ import com.github.k1rakishou.chan.core.base.okhttp.CoilOkHttpClient
 import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.cache.FileCacheV2
+import com.github.k1rakishou.chan.core.cache.PackedCacheFile
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadPriority
+import com.github.k1rakishou.chan.core.cache.downloader.FileCacheException
 import com.github.k1rakishou.chan.core.helper.ImageLoaderFileManagerWrapper
 import com.github.k1rakishou.chan.core.manager.ReplyManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
@@ -61,7 +64,6 @@ import com.github.k1rakishou.common.withLockNonCancellable
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.fsaf.FileManager
-import com.github.k1rakishou.fsaf.file.AbstractFile
 import com.github.k1rakishou.fsaf.file.ExternalFile
 import com.github.k1rakishou.fsaf.file.RawFile
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -339,20 +341,20 @@ class ImageLoaderV2(
         }
 
         // 2. Check whether we have this bitmap cached on the disk
-        var imageFile = tryLoadFromDiskCacheOrNull(url, cacheFileType, postDescriptor)
+        var imageData = tryLoadFromDiskCacheOrNull(url, cacheFileType, postDescriptor)
 
         // 3. Failed to find this bitmap in the disk cache. Load it from the network.
-        if (imageFile == null) {
+        if (imageData == null) {
           isFromCache = false
 
-          imageFile = loadFromNetworkInternal(
+          imageData = loadFromNetworkInternal(
             context = context,
             url = url,
             cacheFileType = cacheFileType,
             imageSize = imageSize
           )
 
-          if (imageFile == null) {
+          if (imageData == null) {
             val errorMessage = "Failed to load image '$url' from disk and network"
 
             Logger.e(TAG, errorMessage)
@@ -384,7 +386,7 @@ class ImageLoaderV2(
             val resultBitmapDrawable = applyTransformationsToDrawable(
               context = context,
               lifecycle = context.getLifecycleFromContext(),
-              imageFile = imageFile,
+              imageData = imageData,
               activeListener = activeListener,
               url = url,
               cacheFileType = cacheFileType
@@ -453,16 +455,18 @@ class ImageLoaderV2(
   private suspend fun applyTransformationsToDrawable(
     context: Context,
     lifecycle: Lifecycle?,
-    imageFile: AbstractFile?,
+    imageData: Any?,
     activeListener: ActiveListener,
     url: String,
     cacheFileType: CacheFileType
   ): BitmapDrawable? {
-    val fileLocation = when (imageFile) {
-      is RawFile -> File(imageFile.getFullPath())
-      is ExternalFile -> imageFile.getUri()
+    val fileLocation = when (imageData) {
+      is RawFile -> File(imageData.getFullPath())
+      is ExternalFile -> imageData.getUri()
+      // Decoded by PackedCacheFileFetcher
+      is PackedCacheFile -> imageData
       null -> return null
-      else -> error("Unknown file type: ${imageFile.javaClass.simpleName}")
+      else -> error("Unknown file type: ${imageData.javaClass.simpleName}")
     }
 
     // When using any transformations at all we won't be able to use HARDWARE bitmaps. We only really
@@ -528,7 +532,7 @@ class ImageLoaderV2(
     url: String,
     cacheFileType: CacheFileType,
     imageSize: ImageSize,
-  ): AbstractFile? {
+  ): Any? {
     BackgroundUtils.ensureBackgroundThread()
 
     try {
@@ -537,6 +541,13 @@ class ImageLoaderV2(
         return null
       }
 
+      // Small files may have been packed into a segment file once downloaded. Not counted as a
+      // cache lookup, the miss was already counted by tryLoadFromDiskCacheOrNull()
+      val packedCacheFile = cacheHandler.getPackedCacheFileOrNull(cacheFileType, url)
+      if (packedCacheFile != null) {
+        return packedCacheFile
+      }
+
       return fileManager.fromRawFile(resultFile)
     } catch (error: Throwable) {
       notifyListenersFailure(context, url, error)
@@ -621,47 +632,25 @@ class ImageLoaderV2(
     return getImageErrorLoadingDrawable(context)
   }
 
-  @Throws(HttpException::class)
   private suspend fun loadFromNetworkIntoFile(cacheFileType: CacheFileType, url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
 
-    val cacheFile = cacheHandler.getOrCreateCacheFile(cacheFileType, url)
-    if (cacheFile == null) {
-      Logger.e(TAG, "loadFromNetworkIntoFile() cacheHandler.getOrCreateCacheFile('$url') -> null")
-      return null
-    }
-
-    val success = try {
-      loadFromNetworkIntoFileInternal(url, cacheFileType, cacheFile)
-    } catch (error: Throwable) {
-      if (!fileCacheV2.isRunning(url)) {
-        cacheHandler.deleteCacheFile(cacheFileType, cacheFile)
-      }
-
-      if (error.isCoroutineCancellationException()) {
-        Logger.e(TAG, "loadFromNetworkIntoFile() canceled '$url'")
-        return null
+    // When the same file is already being downloaded (e.g. by the media viewer, a prefetch or
+    // another thumbnail) we wait for that download instead of downloading it again. FileCacheV2
+    // also deletes the cache file when the download fails.
+    return fileCacheV2.awaitDownload(url, cacheFileType) { cacheFile ->
+      // Background downloads (prefetches) give way to the images that are on the screen
+      fileCacheV2.withTransferPriority(DownloadPriority.Thumbnail) {
+        loadFromNetworkIntoFileInternal(url, cacheFileType, cacheFile)
       }
-
-      throw error
-    }
-
-    if (!success) {
-      if (!fileCacheV2.isRunning(url)) {
-        cacheHandler.deleteCacheFile(cacheFileType, cacheFile)
-      }
-
-      return null
     }
-
-    return cacheFile
   }
 
   private suspend fun loadFromNetworkIntoFileInternal(
     url: String,
     cacheFileType: CacheFileType,
     cacheFile: File
-  ): Boolean {
+  ) {
     BackgroundUtils.ensureBackgroundThread()
 
     val site = siteResolver.findSiteForUrl(url)
@@ -680,10 +669,10 @@ class ImageLoaderV2(
       Logger.e(TAG, "loadFromNetworkInternalIntoFile() bad response code: ${response.code}")
 
       if (response.code == 404) {
-        throw HttpException(response)
+        throw FileCacheException.FileNotFoundOnTheServerException()
       }
 
-      return false
+      throw IOException("Bad response code: ${response.code}")
     }
 
     runInterruptible {
@@ -704,18 +693,18 @@ class ImageLoaderV2(
       }
     }
 
-    if (!cacheHandler.markFileDownloaded(cacheFileType, cacheFile)) {
-      throw IOException("Failed to mark file '${cacheFile.absolutePath}' as downloaded")
-    }
-
+    // Must be checked before the file is marked as downloaded since small files are moved into
+    // packed segment files at that point
     val fileLength = cacheFile.length()
     if (fileLength <= 0) {
-      return false
+      throw IOException("Downloaded file '${cacheFile.absolutePath}' is empty")
     }
 
-    cacheHandler.fileWasAdded(cacheFileType, fileLength)
+    if (!cacheHandler.markFileDownloaded(cacheFileType, cacheFile)) {
+      throw IOException("Failed to mark file '${cacheFile.absolutePath}' as downloaded")
+    }
 
-    return true
+    cacheHandler.fileWasAdded(cacheFileType, fileLength)
   }
 
   // Super hack.
@@ -727,11 +716,14 @@ class ImageLoaderV2(
       || url == "https://yeshoney.xyz/favicon.ico"
   }
 
+  /**
+   * Returns either an [com.github.k1rakishou.fsaf.file.AbstractFile] or a [PackedCacheFile].
+   * */
   private suspend fun tryLoadFromDiskCacheOrNull(
     url: String,
     cacheFileType: CacheFileType,
     postDescriptor: PostDescriptor?
-  ): AbstractFile? {
+  ): Any? {
     BackgroundUtils.ensureBackgroundThread()
 
     val httpUrl = url.toHttpUrlOrNull()
@@ -748,6 +740,18 @@ class ImageLoaderV2(
       // fallthrough
     }
 
+    val imageData = tryLoadFromCacheHandlerOrNull(url, cacheFileType)
+    cacheHandler.onCacheLookup(cacheFileType, imageData != null)
+
+    return imageData
+  }
+
+  private fun tryLoadFromCacheHandlerOrNull(url: String, cacheFileType: CacheFileType): Any? {
+    val packedCacheFile = cacheHandler.getPackedCacheFileOrNull(cacheFileType, url)
+    if (packedCacheFile != null) {
+      return packedCacheFile
+    }
+
     val cacheFile = cacheHandler.getCacheFileOrNull(cacheFileType, url)
     if (cacheFile == null) {
       return null
@@ -1280,7 +1284,8 @@ class ImageLoaderV2(
   }
 
   private fun Throwable.isNotFoundError(): Boolean {
-    return this is HttpException && this.response.code == 404
+    return (this is HttpException && this.response.code == 404)
+      || this is FileCacheException.FileNotFoundOnTheServerException
   }
 
   class ImageLoaderException(message: String) : Exception()
@@ -0,0 +1,44 @@
+package com.github.k1rakishou.chan.core.image
+
+import coil.ComponentRegistry
+import coil.bitmap.BitmapPool
+import coil.decode.DataSource
+import coil.decode.Options
+import coil.fetch.FetchResult
+import coil.fetch.Fetcher
+import coil.fetch.SourceResult
+import coil.size.Size
+import com.github.k1rakishou.chan.core.cache.PackedCacheFile
+import okio.Buffer
+
+/**
+ * Lets coil decode images that are stored in packed cache segments. The bytes are already read
+ * from the segment by the time the request is executed.
+ * */
+class PackedCacheFileFetcher : Fetcher<PackedCacheFile> {
+
+  override fun key(data: PackedCacheFile): String = data.key
+
+  override suspend fun fetch(
+    pool: BitmapPool,
+    data: PackedCacheFile,
+    size: Size,
+    options: Options
+  ): FetchResult {
+    return SourceResult(
+      source = Buffer().write(data.bytes),
+      mimeType = null,
+      dataSource = DataSource.DISK
+    )
+  }
+
+  companion object {
+    @JvmStatic
+    fun componentRegistry(): ComponentRegistry {
+      return ComponentRegistry.Builder()
+        .add(PackedCacheFileFetcher())
+        .build()
+    }
+  }
+
+}
@@ -30,7 +30,7 @@ import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
 @DoNotStrip
-class BoardManager(
+open class BoardManager(
   private val appScope: CoroutineScope,
   private val isDevFlavor: Boolean,
   private val _boardRepository: Lazy<BoardRepository>,
@@ -2,13 +2,18 @@ package com.github.k1rakishou.chan.core.manager
 
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
+import com.github.k1rakishou.chan.core.helper.FilterEngine
 import com.github.k1rakishou.chan.ui.compose.reorder.move
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.SuspendableInitializer
 import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.filter.ChanFilterWatchGroup
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.mapper.ChanPostMapper
 import com.github.k1rakishou.model.repository.ChanFilterRepository
 import com.github.k1rakishou.model.repository.ChanFilterWatchRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
@@ -20,6 +25,7 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -27,14 +33,15 @@ import kotlin.math.max
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
-class ChanFilterManager(
+open class ChanFilterManager(
   private val isDevBuild: Boolean,
   private val appScope: CoroutineScope,
   private val _chanFilterRepository: Lazy<ChanFilterRepository>,
   private val _chanPostRepository: Lazy<ChanPostRepository>,
   private val _chanFilterWatchRepository: Lazy<ChanFilterWatchRepository>,
   private val _postFilterHighlightManager: Lazy<PostFilterHighlightManager>,
-  private val _postFilterManager: Lazy<PostFilterManager>
+  private val _postFilterManager: Lazy<PostFilterManager>,
+  private val _filterEngine: Lazy<FilterEngine>
 ) {
   private val filterChangesFlow = MutableSharedFlow<FilterEvent>(
     extraBufferCapacity = 32,
@@ -63,6 +70,8 @@ class ChanFilterManager(
     get() = _postFilterManager.get()
   private val postFilterHighlightManager: PostFilterHighlightManager
     get() = _postFilterHighlightManager.get()
+  private val filterEngine: FilterEngine
+    get() = _filterEngine.get()
 
   @OptIn(ExperimentalTime::class)
   fun initialize() {
@@ -135,6 +144,7 @@ class ChanFilterManager(
     }
 
     serializedCoroutineExecutor.post {
+      val prevFilters = lock.read { filters.map { filter -> filter.copy() } }
       val toCreate = mutableMapOf<ChanFilter, Int>()
       val toUpdate = mutableMapOf<ChanFilter, Int>()
 
@@ -156,27 +166,29 @@ class ChanFilterManager(
         }
       }
 
-      var anySucceeded = false
+      val createdFilters = if (toCreate.isNotEmpty()) {
+        createNewFilterInternal(toCreate)
+      } else {
+        emptyList()
+      }
 
-      if (toCreate.isNotEmpty()) {
-        val createdFilters = createNewFilterInternal(toCreate)
-        if (createdFilters.isNotEmpty()) {
-          anySucceeded = true
+      val updatedFilters = if (toUpdate.isNotEmpty()) {
+        updateOldFilterInternal(toUpdate)
+      } else {
+        emptyList()
+      }
+
+      if (createdFilters.isNotEmpty() || updatedFilters.isNotEmpty()) {
+        val affectedPosts = invalidatePostFilters(prevFilters)
 
-          filterChangesFlow.emit(FilterEvent.Created(createdFilters))
+        if (createdFilters.isNotEmpty()) {
+          filterChangesFlow.emit(FilterEvent.Created(createdFilters, affectedPosts))
         }
-      }
 
-      if (toUpdate.isNotEmpty()) {
-        val updatedFilters = updateOldFilterInternal(toUpdate)
         if (updatedFilters.isNotEmpty()) {
-          anySucceeded = true
-          filterChangesFlow.emit(FilterEvent.Updated(updatedFilters))
+          filterChangesFlow.emit(FilterEvent.Updated(updatedFilters, affectedPosts))
         }
-      }
 
-      if (anySucceeded) {
-        clearFiltersAndPostHashes()
         clearFilterWatchGroups(chanFilters)
       }
 
@@ -217,6 +229,7 @@ class ChanFilterManager(
     }
 
     serializedCoroutineExecutor.post {
+      val prevFilters = lock.read { filters.map { filter -> filter.copy() } }
       var atLeastOneDeleted = false
       val filterWatchGroupResultMap = mutableMapOf<Long, ModularResult<List<ChanFilterWatchGroup>>>()
 
@@ -265,10 +278,10 @@ class ChanFilterManager(
         .peekError { error -> Logger.e(TAG, "Failed to update filters in database", error) }
         .ignore()
 
-      clearFiltersAndPostHashes()
+      val affectedPosts = invalidatePostFilters(prevFilters)
       clearFilterWatchGroups(chanFilters)
 
-      filterChangesFlow.emit(FilterEvent.Deleted(chanFilters))
+      filterChangesFlow.emit(FilterEvent.Deleted(chanFilters, affectedPosts))
 
       filterWatchGroupResultMap.entries.forEach { (databaseId, filterWatchGroupResult) ->
         if (filterWatchGroupResult is ModularResult.Error) {
@@ -317,6 +330,8 @@ class ChanFilterManager(
         return@post
       }
 
+      val prevFilters = lock.read { this.filters.map { filter -> filter.copy() } }
+
       val changed = lock.write {
         val filterIds = filters.map { chanFilter ->
           val databaseId = chanFilter.getDatabaseId()
@@ -348,9 +363,9 @@ class ChanFilterManager(
         .peekError { error -> Logger.e(TAG, "Failed to update filters in database", error) }
         .ignore()
 
-      clearFiltersAndPostHashes()
+      val affectedPosts = invalidatePostFilters(prevFilters)
 
-      filterChangesFlow.emit(FilterEvent.Updated(allFilters))
+      filterChangesFlow.emit(FilterEvent.Updated(allFilters, affectedPosts))
       onUpdated()
     }
   }
@@ -418,6 +433,122 @@ class ChanFilterManager(
     postFilterHighlightManager.clear()
   }
 
+  /**
+   * Same as [clearFiltersAndPostHashes] but only for the cached posts that the difference between
+   * [prevFilters] and the current filters may affect:
+   *  - posts that were matched by a filter that got deleted, disabled or edited.
+   *  - posts that a created, enabled or edited filter matches now, unless they are already matched
+   *  by a filter with higher priority (filters are applied in their order and the first match wins).
+   * Only the changed filters are evaluated against the cached posts. Post filters and post hashes of
+   * the affected posts are removed so that the next reload parses them and runs all the filters
+   * against them again, every other post keeps its current filter result.
+   *
+   * Returns the affected posts.
+   * */
+  @OptIn(ExperimentalTime::class)
+  private suspend fun invalidatePostFilters(prevFilters: List<ChanFilter>): Set<PostDescriptor> {
+    val currentFilters = lock.read { filters.map { filter -> filter.copy() } }
+
+    val prevFiltersById = prevFilters
+      .filter { chanFilter -> chanFilter.hasDatabaseId() }
+      .associateBy { chanFilter -> chanFilter.getDatabaseId() }
+    val currentFiltersById = currentFilters
+      .filter { chanFilter -> chanFilter.hasDatabaseId() }
+      .associateBy { chanFilter -> chanFilter.getDatabaseId() }
+
+    val changedFilterIds = (prevFiltersById.keys + currentFiltersById.keys)
+      .filter { databaseId -> prevFiltersById[databaseId] != currentFiltersById[databaseId] }
+      .toSet()
+
+    if (changedFilterIds.isEmpty()) {
+      return emptySet()
+    }
+
+    if (changedFilterIds.any { databaseId -> isHighlightFilter(prevFiltersById[databaseId], currentFiltersById[databaseId]) }) {
+      // Keyword highlights of a post are collected from all highlight filters, not only from the
+      // one that matched the post.
+      postFilterHighlightManager.clear()
+    }
+
+    val affectedPosts = mutableSetOf<PostDescriptor>()
+
+    val time = measureTime {
+      val filtersToUnapply = changedFilterIds
+        .filter { databaseId -> prevFiltersById[databaseId]?.let { chanFilter -> canCreatePostFilters(chanFilter) } == true }
+      affectedPosts += postFilterManager.removeAllMatchedBy(filtersToUnapply)
+
+      // Priority of a filter is its index among the filters that can create post filters
+      val filterPriorities = currentFilters
+        .filter { chanFilter -> chanFilter.hasDatabaseId() && canCreatePostFilters(chanFilter) }
+        .withIndex()
+        .associate { (index, chanFilter) -> chanFilter.getDatabaseId() to index }
+
+      val filtersToApply = currentFilters.filter { chanFilter ->
+        chanFilter.getDatabaseId() in changedFilterIds && chanFilter.getDatabaseId() in filterPriorities
+      }
+
+      if (filtersToApply.isNotEmpty()) {
+        withContext(Dispatchers.Default) {
+          chanPostRepository.iterateCachedThreadPosts { threadPosts ->
+            val boardDescriptor = threadPosts.firstOrNull()?.postDescriptor?.boardDescriptor()
+              ?: return@iterateCachedThreadPosts
+
+            val compiledFilterSet = filterEngine.compileFilters(
+              filtersToApply.filter { chanFilter -> chanFilter.matchesBoard(boardDescriptor) }
+            )
+
+            if (compiledFilterSet.isEmpty()) {
+              return@iterateCachedThreadPosts
+            }
+
+            for (chanPost in threadPosts) {
+              val postDescriptor = chanPost.postDescriptor
+              if (postDescriptor in affectedPosts || !canBeFiltered(chanPost)) {
+                continue
+              }
+
+              val matchedFilter = compiledFilterSet.firstMatchingFilter(ChanPostMapper.toFilterablePostBuilder(chanPost))
+                ?: continue
+
+              val ownerPriority = postFilterManager.getOwnerFilterId(postDescriptor)
+                ?.let { ownerFilterId -> filterPriorities[ownerFilterId] }
+                ?: Int.MAX_VALUE
+
+              if (filterPriorities[matchedFilter.getDatabaseId()]!! < ownerPriority) {
+                affectedPosts += postDescriptor
+              }
+            }
+          }
+        }
+      }
+
+      if (affectedPosts.isNotEmpty()) {
+        postFilterManager.removeMany(affectedPosts)
+        chanPostRepository.clearPostHashes(affectedPosts)
+        affectedPosts.forEach { postDescriptor -> postFilterHighlightManager.remove(postDescriptor) }
+      }
+    }
+
+    Logger.d(TAG, "invalidatePostFilters() changedFilters=${changedFilterIds.size}, " +
+      "affectedPosts=${affectedPosts.size}, took ${time}")
+
+    return affectedPosts
+  }
+
+  // Same as FilterEngine.canBeFiltered() but checked before a post builder is created
+  private fun canBeFiltered(chanPost: ChanPost): Boolean {
+    return chanPost.moderatorCapcode.isNullOrEmpty() && (chanPost as? ChanOriginalPost)?.sticky != true
+  }
+
+  // Watch filters never create post filters (see AbstractParsePostsUseCase.processFilters)
+  private fun canCreatePostFilters(chanFilter: ChanFilter): Boolean {
+    return chanFilter.enabled && !chanFilter.isWatchFilter()
+  }
+
+  private fun isHighlightFilter(prevChanFilter: ChanFilter?, currentChanFilter: ChanFilter?): Boolean {
+    return prevChanFilter?.isHighlightFilter() == true || currentChanFilter?.isHighlightFilter() == true
+  }
+
   // Whenever we create/update/or delete a filter with WATCH flag, we want to delete all filter
   // watch groups from the DB. The groups will be created anew on the next filter watch update cycle.
   // We do not do this when enabling/disabling filters.
@@ -564,23 +695,38 @@ class ChanFilterManager(
   )
 
   sealed class FilterEvent {
+    /**
+     * Posts which filter results were invalidated by this event. Null means that the filter results
+     * of all posts were invalidated.
+     * */
+    open val affectedPosts: Set<PostDescriptor>? = null
+
     abstract fun hasWatchFilter(): Boolean
 
     object Initialized : FilterEvent() {
       override fun hasWatchFilter(): Boolean = false
     }
 
-    class Created(val chanFilters: Collection<ChanFilter>) : FilterEvent() {
+    class Created(
+      val chanFilters: Collection<ChanFilter>,
+      override val affectedPosts: Set<PostDescriptor>? = null
+    ) : FilterEvent() {
       override fun hasWatchFilter(): Boolean = chanFilters.any { chanFilter -> chanFilter.isWatchFilter() }
     }
 
-    class Updated(val chanFilters: Collection<ChanFilter>) : FilterEvent() {
+    class Updated(
+      val chanFilters: Collection<ChanFilter>,
+      override val affectedPosts: Set<PostDescriptor>? = null
+    ) : FilterEvent() {
       override fun hasWatchFilter(): Boolean {
         return chanFilters.any { chanFilter -> chanFilter.isWatchFilter() }
       }
     }
 
-    class Deleted(val chanFilters: Collection<ChanFilter>) : FilterEvent() {
+    class Deleted(
+      val chanFilters: Collection<ChanFilter>,
+      override val affectedPosts: Set<PostDescriptor>? = null
+    ) : FilterEvent() {
       override fun hasWatchFilter(): Boolean {
         return chanFilters.any { chanFilter -> chanFilter.isWatchFilter() }
       }
@@ -15,15 +15,19 @@ import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
 
+/**
+ * Post filters are split into [STRIPES_COUNT] stripes by the hash of their thread descriptor, each
+ * stripe has its own lock, so parsing/rendering posts of one thread does not block other threads.
+ * Operations that touch posts of many threads lock the stripes one after another (never more than
+ * one at a time) so they can't deadlock.
+ * */
 @DoNotStrip
 open class PostFilterManager(
   private val verboseLogsEnabled: Boolean,
   private val appScope: CoroutineScope,
   private val chanThreadsCache: ChanThreadsCache
 ) : IPostFilterManager{
-  private val lock = ReentrantReadWriteLock()
-  @GuardedBy("lock")
-  private val filterStorage = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, PostFilter>>(16)
+  private val stripes = Array(STRIPES_COUNT) { Stripe() }
 
   init {
     chanThreadsCache.addChanThreadDeleteEventListener { threadDeleteEvent ->
@@ -37,126 +41,175 @@ open class PostFilterManager(
   }
 
   override fun countMatchedFilters(postDescriptors: List<PostDescriptor>): Int {
-    return lock.read {
-      var counter = 0
+    var counter = 0
 
-      postDescriptors.forEach { postDescriptor ->
-        val threadDescriptor = postDescriptor.threadDescriptor()
-        if (filterStorage[threadDescriptor]?.containsKey(postDescriptor) == true) {
-          ++counter
+    forEachStripe(postDescriptors) { stripe, stripePostDescriptors ->
+      stripe.lock.read {
+        stripePostDescriptors.forEach { postDescriptor ->
+          if (stripe.getPostFilter(postDescriptor) != null) {
+            ++counter
+          }
         }
       }
-
-      return@read counter
     }
+
+    return counter
   }
 
   fun countMatchedPosts(filterDatabaseId: Long): Int {
-    return lock.read {
-      var postsCount = 0
+    return stripes.sumOf { stripe ->
+      stripe.lock.read { stripe.postsByFilterId[filterDatabaseId]?.size ?: 0 }
+    }
+  }
+
+  fun getOwnerFilterId(postDescriptor: PostDescriptor): Long? {
+    val stripe = stripeFor(postDescriptor)
+    return stripe.lock.read { stripe.getPostFilter(postDescriptor)?.ownerFilterId }
+  }
 
-      for (postFilterMap in filterStorage.values) {
-        for ((_, postFilter) in postFilterMap) {
-          if (postFilter.ownerFilterId == filterDatabaseId) {
-            ++postsCount
+  /**
+   * Removes post filters of all posts that were matched by any of the filters with [filterDatabaseIds].
+   * Returns the posts which post filters were removed.
+   * */
+  fun removeAllMatchedBy(filterDatabaseIds: Collection<Long>): Set<PostDescriptor> {
+    if (filterDatabaseIds.isEmpty()) {
+      return emptySet()
+    }
+
+    val removedPosts = mutableSetOf<PostDescriptor>()
+
+    stripes.forEach { stripe ->
+      stripe.lock.write {
+        for (filterDatabaseId in filterDatabaseIds) {
+          val matchedPosts = stripe.postsByFilterId.remove(filterDatabaseId)
+            ?: continue
+
+          for (postDescriptor in matchedPosts) {
+            stripe.filterStorage[postDescriptor.threadDescriptor()]?.remove(postDescriptor)
           }
+
+          removedPosts.addAll(matchedPosts)
         }
       }
-
-      return@read postsCount
     }
+
+    return removedPosts
   }
 
   fun insert(postDescriptor: PostDescriptor, postFilter: PostFilter) {
-    lock.write {
-      val threadDescriptor = postDescriptor.threadDescriptor()
+    val stripe = stripeFor(postDescriptor)
+    stripe.lock.write { stripe.insert(postDescriptor, postFilter) }
+  }
 
-      filterStorage.putIfNotContains(threadDescriptor, mutableMapWithCap(128))
-      filterStorage[threadDescriptor]!![postDescriptor] = postFilter
+  /**
+   * Inserts the whole batch (usually all the post filters of one parsed thread/catalog) taking the
+   * lock of every affected stripe only once.
+   * */
+  fun insertMany(postFilters: Map<PostDescriptor, PostFilter>) {
+    if (postFilters.isEmpty()) {
+      return
+    }
+
+    forEachStripe(postFilters.keys) { stripe, stripePostDescriptors ->
+      stripe.lock.write {
+        stripePostDescriptors.forEach { postDescriptor ->
+          stripe.insert(postDescriptor, postFilters[postDescriptor]!!)
+        }
+      }
     }
   }
 
   fun contains(postDescriptor: PostDescriptor): Boolean {
-    return lock.read {
-      val threadDescriptor = postDescriptor.threadDescriptor()
-      return@read filterStorage[threadDescriptor]?.containsKey(postDescriptor) == true
-    }
+    val stripe = stripeFor(postDescriptor)
+    return stripe.lock.read { stripe.getPostFilter(postDescriptor) != null }
   }
 
   fun remove(postDescriptor: PostDescriptor) {
-    lock.write {
-      val threadDescriptor = postDescriptor.threadDescriptor()
-      filterStorage[threadDescriptor]?.remove(postDescriptor)
-    }
+    val stripe = stripeFor(postDescriptor)
+    stripe.lock.write { stripe.remove(postDescriptor) }
   }
 
   fun removeMany(postDescriptorList: Collection<PostDescriptor>) {
-    lock.write {
-      postDescriptorList.forEach { postDescriptor ->
-        val threadDescriptor = postDescriptor.threadDescriptor()
+    if (postDescriptorList.isEmpty()) {
+      return
+    }
 
-        filterStorage[threadDescriptor]?.remove(postDescriptor)
+    forEachStripe(postDescriptorList) { stripe, stripePostDescriptors ->
+      stripe.lock.write {
+        stripePostDescriptors.forEach { postDescriptor -> stripe.remove(postDescriptor) }
       }
     }
   }
 
   fun removeAllForDescriptor(chanDescriptor: ChanDescriptor) {
-    lock.write {
-      when (chanDescriptor) {
-        is ChanDescriptor.ICatalogDescriptor -> {
-          val boardDescriptors = when (chanDescriptor) {
-            is ChanDescriptor.CatalogDescriptor -> {
-              setOf(chanDescriptor.boardDescriptor)
-            }
-            is ChanDescriptor.CompositeCatalogDescriptor -> {
-              chanDescriptor.catalogDescriptors
-                .map { catalogDescriptor -> catalogDescriptor.boardDescriptor }
-                .toSet()
-            }
+    when (chanDescriptor) {
+      is ChanDescriptor.ICatalogDescriptor -> {
+        val boardDescriptors = when (chanDescriptor) {
+          is ChanDescriptor.CatalogDescriptor -> {
+            setOf(chanDescriptor.boardDescriptor)
+          }
+          is ChanDescriptor.CompositeCatalogDescriptor -> {
+            chanDescriptor.catalogDescriptors
+              .map { catalogDescriptor -> catalogDescriptor.boardDescriptor }
+              .toSet()
           }
+        }
 
-          filterStorage.mutableIteration { mutableIterator, entry ->
-            if (entry.key.boardDescriptor in boardDescriptors) {
-              mutableIterator.remove()
-            }
+        stripes.forEach { stripe ->
+          stripe.lock.write {
+            stripe.filterStorage.mutableIteration { mutableIterator, entry ->
+              if (entry.key.boardDescriptor in boardDescriptors) {
+                stripe.unindexPosts(entry.value)
+                mutableIterator.remove()
+              }
 
-            return@mutableIteration true
+              return@mutableIteration true
+            }
           }
         }
-        is ChanDescriptor.ThreadDescriptor -> filterStorage.remove(chanDescriptor)
+      }
+      is ChanDescriptor.ThreadDescriptor -> {
+        val stripe = stripeFor(chanDescriptor)
+        stripe.lock.write { stripe.unindexPosts(stripe.filterStorage.remove(chanDescriptor)) }
       }
     }
   }
 
   fun update(postDescriptor: PostDescriptor, ownerFilterId: Long?, updateFunc: (PostFilter) -> Unit) {
-    lock.write {
+    val stripe = stripeFor(postDescriptor)
+
+    stripe.lock.write {
       val threadDescriptor = postDescriptor.threadDescriptor()
-      filterStorage.putIfNotContains(threadDescriptor, mutableMapWithCap(128))
+      stripe.filterStorage.putIfNotContains(threadDescriptor, mutableMapWithCap(128))
 
-      val postFilter = filterStorage[threadDescriptor]!!.getOrPut(
+      val postFilter = stripe.filterStorage[threadDescriptor]!!.getOrPut(
         key = postDescriptor,
         defaultValue = { PostFilter(ownerFilterId = ownerFilterId) }
       )
 
       updateFunc(postFilter)
-      filterStorage[threadDescriptor]!![postDescriptor] = postFilter
+      stripe.filterStorage[threadDescriptor]!![postDescriptor] = postFilter
+      stripe.indexPost(postDescriptor, postFilter)
     }
   }
 
   fun clear() {
-    lock.write { filterStorage.clear() }
+    stripes.forEach { stripe ->
+      stripe.lock.write {
+        stripe.filterStorage.clear()
+        stripe.postsByFilterId.clear()
+      }
+    }
   }
 
   fun isEnabled(postDescriptor: PostDescriptor): Boolean {
-    return lock.read {
-      val threadDescriptor = postDescriptor.threadDescriptor()
-
-      return@read filterStorage[threadDescriptor]?.get(postDescriptor)?.enabled ?: false
-    }
+    val stripe = stripeFor(postDescriptor)
+    return stripe.lock.read { stripe.getPostFilter(postDescriptor)?.enabled ?: false }
   }
 
   fun getPostFilter(postDescriptor: PostDescriptor): PostFilter? {
-    return lock.read { filterStorage[postDescriptor.threadDescriptor()]?.get(postDescriptor) }
+    val stripe = stripeFor(postDescriptor)
+    return stripe.lock.read { stripe.getPostFilter(postDescriptor) }
   }
 
   override fun getManyPostFilters(postDescriptors: Collection<PostDescriptor>): Map<PostDescriptor, PostFilter> {
@@ -164,18 +217,20 @@ open class PostFilterManager(
       return emptyMap()
     }
 
-    return lock.read {
-      val postFilterMap = mutableMapWithCap<PostDescriptor, PostFilter>(postDescriptors.size)
+    val postFilterMap = mutableMapWithCap<PostDescriptor, PostFilter>(postDescriptors.size)
 
-      for (postDescriptor in postDescriptors) {
-        val postFilter = filterStorage[postDescriptor.threadDescriptor()]?.get(postDescriptor)
-        if (postFilter != null && postFilter.enabled) {
-          postFilterMap[postDescriptor] = postFilter
+    forEachStripe(postDescriptors) { stripe, stripePostDescriptors ->
+      stripe.lock.read {
+        for (postDescriptor in stripePostDescriptors) {
+          val postFilter = stripe.getPostFilter(postDescriptor)
+          if (postFilter != null && postFilter.enabled) {
+            postFilterMap[postDescriptor] = postFilter
+          }
         }
       }
-
-      return@read postFilterMap
     }
+
+    return postFilterMap
   }
 
   fun getManyFilterHashes(postDescriptors: Collection<PostDescriptor>): Map<PostDescriptor, Int> {
@@ -183,20 +238,17 @@ open class PostFilterManager(
       return emptyMap()
     }
 
-    return lock.read {
-      val resultMap = mutableMapWithCap<PostDescriptor, Int>(postDescriptors.size)
-
-      for (postDescriptor in postDescriptors) {
-        val filterHash = filterStorage[postDescriptor.threadDescriptor()]
-          ?.get(postDescriptor)
-          ?.hashCode()
-          ?: 0
+    val resultMap = mutableMapWithCap<PostDescriptor, Int>(postDescriptors.size)
 
-        resultMap[postDescriptor] = filterHash
+    forEachStripe(postDescriptors) { stripe, stripePostDescriptors ->
+      stripe.lock.read {
+        for (postDescriptor in stripePostDescriptors) {
+          resultMap[postDescriptor] = stripe.getPostFilter(postDescriptor)?.hashCode() ?: 0
+        }
       }
-
-      return@read resultMap
     }
+
+    return resultMap
   }
 
   fun getManyFilterHighlights(postDescriptors: Collection<PostDescriptor>): Map<PostDescriptor, PostFilter> {
@@ -204,61 +256,47 @@ open class PostFilterManager(
       return emptyMap()
     }
 
-    return lock.read {
-      val resultMap = mutableMapWithCap<PostDescriptor, PostFilter>(postDescriptors.size)
+    val resultMap = mutableMapWithCap<PostDescriptor, PostFilter>(postDescriptors.size)
 
-      for (postDescriptor in postDescriptors) {
-        val threadDescriptor = postDescriptor.threadDescriptor()
-        val enabled = filterStorage[threadDescriptor]?.get(postDescriptor)?.enabled ?: false
-
-        val postFilterHighlight = if (!enabled) {
-          null
-        } else {
-          filterStorage[threadDescriptor]?.get(postDescriptor)
-        }
+    forEachStripe(postDescriptors) { stripe, stripePostDescriptors ->
+      stripe.lock.read {
+        for (postDescriptor in stripePostDescriptors) {
+          val postFilter = stripe.getPostFilter(postDescriptor)
+          if (postFilter == null || !postFilter.enabled) {
+            continue
+          }
 
-        if (postFilterHighlight == null) {
-          continue
+          resultMap[postDescriptor] = postFilter
         }
-
-        resultMap[postDescriptor] = postFilterHighlight
       }
-
-      return@read resultMap
     }
+
+    return resultMap
   }
 
   fun getFilterStubOrRemove(postDescriptor: PostDescriptor): Boolean {
-    return lock.read {
-      val threadDescriptor = postDescriptor.threadDescriptor()
+    val stripe = stripeFor(postDescriptor)
 
-      val enabled = filterStorage[threadDescriptor]?.get(postDescriptor)?.enabled ?: false
-      if (!enabled) {
+    return stripe.lock.read {
+      val postFilter = stripe.getPostFilter(postDescriptor)
+      if (postFilter == null || !postFilter.enabled) {
         return@read false
       }
 
-      if (filterStorage[threadDescriptor]?.get(postDescriptor)?.stub == true) {
-        return@read true
-      }
-
-      if (filterStorage[threadDescriptor]?.get(postDescriptor)?.remove == true) {
-        return@read true
-      }
-
-      return@read false
+      return@read postFilter.stub || postFilter.remove
     }
   }
 
   fun getFilterStub(postDescriptor: PostDescriptor): Boolean {
-    return lock.read {
-      val threadDescriptor = postDescriptor.threadDescriptor()
+    val stripe = stripeFor(postDescriptor)
 
-      val enabled = filterStorage[threadDescriptor]?.get(postDescriptor)?.enabled ?: false
-      if (!enabled) {
+    return stripe.lock.read {
+      val postFilter = stripe.getPostFilter(postDescriptor)
+      if (postFilter == null || !postFilter.enabled) {
         return@read false
       }
 
-      return@read filterStorage[threadDescriptor]?.get(postDescriptor)?.stub ?: false
+      return@read postFilter.stub
     }
   }
 
@@ -267,64 +305,153 @@ open class PostFilterManager(
       return emptyMap()
     }
 
-    return lock.read {
-      val resultMap = mutableMapWithCap<PostDescriptor, Boolean>(postDescriptors.size)
-
-      for (postDescriptor in postDescriptors) {
-        val threadDescriptor = postDescriptor.threadDescriptor()
-        val enabled = filterStorage[threadDescriptor]?.get(postDescriptor)?.enabled ?: false
+    val resultMap = mutableMapWithCap<PostDescriptor, Boolean>(postDescriptors.size)
 
-        val filterStub = if (!enabled) {
-          false
-        } else {
-          filterStorage[threadDescriptor]?.get(postDescriptor)?.stub ?: false
+    forEachStripe(postDescriptors) { stripe, stripePostDescriptors ->
+      stripe.lock.read {
+        for (postDescriptor in stripePostDescriptors) {
+          val postFilter = stripe.getPostFilter(postDescriptor)
+          resultMap[postDescriptor] = postFilter != null && postFilter.enabled && postFilter.stub
         }
-
-        resultMap[postDescriptor] = filterStub
       }
-
-      return@read resultMap
     }
+
+    return resultMap
   }
 
   private fun onThreadDeleteEventReceived(threadDeleteEvent: ChanThreadsCache.ThreadDeleteEvent) {
-    lock.write {
-      when (threadDeleteEvent) {
-        is ChanThreadsCache.ThreadDeleteEvent.RemoveThreads -> {
-          var removedThreads = 0
+    when (threadDeleteEvent) {
+      is ChanThreadsCache.ThreadDeleteEvent.RemoveThreads -> {
+        var removedThreads = 0
 
-          threadDeleteEvent.threadDescriptors.forEach { threadDescriptor ->
+        threadDeleteEvent.threadDescriptors.forEach { threadDescriptor ->
+          val stripe = stripeFor(threadDescriptor)
+
+          stripe.lock.write {
             ++removedThreads
-            filterStorage.remove(threadDescriptor)
+            stripe.unindexPosts(stripe.filterStorage.remove(threadDescriptor))
           }
-
-          Logger.d(TAG, "onThreadDeleteEventReceived.RemoveThreads() removed ${removedThreads} threads")
         }
-        is ChanThreadsCache.ThreadDeleteEvent.RemoveThreadPostsExceptOP -> {
-          var removedPosts = 0
 
-          threadDeleteEvent.entries.forEach { (threadDescriptor, originalPostDescriptor) ->
-            val innerFilterMap = filterStorage[threadDescriptor]
-              ?: return@forEach
+        Logger.d(TAG, "onThreadDeleteEventReceived.RemoveThreads() removed ${removedThreads} threads")
+      }
+      is ChanThreadsCache.ThreadDeleteEvent.RemoveThreadPostsExceptOP -> {
+        var removedPosts = 0
+
+        threadDeleteEvent.entries.forEach { (threadDescriptor, originalPostDescriptor) ->
+          val stripe = stripeFor(threadDescriptor)
+
+          stripe.lock.write {
+            val innerFilterMap = stripe.filterStorage[threadDescriptor]
+              ?: return@write
 
             innerFilterMap.mutableIteration { mutableIterator, mapEntry ->
               if (mapEntry.key != originalPostDescriptor) {
                 ++removedPosts
+                stripe.unindexPost(mapEntry.key, mapEntry.value)
                 mutableIterator.remove()
               }
 
               return@mutableIteration true
             }
           }
-
-          Logger.d(TAG, "onThreadDeleteEventReceived.RemoveThreadPostsExceptOP() removed ${removedPosts} post filters")
         }
+
+        Logger.d(TAG, "onThreadDeleteEventReceived.RemoveThreadPostsExceptOP() removed ${removedPosts} post filters")
+      }
+    }
+  }
+
+  private fun stripeFor(postDescriptor: PostDescriptor): Stripe {
+    return stripeFor(postDescriptor.threadDescriptor())
+  }
+
+  private fun stripeFor(threadDescriptor: ChanDescriptor.ThreadDescriptor): Stripe {
+    val hash = threadDescriptor.hashCode()
+    return stripes[(hash xor (hash ushr 16)) and (STRIPES_COUNT - 1)]
+  }
+
+  /**
+   * Splits [postDescriptors] by stripe and calls [func] once per every stripe (without locking it).
+   * Posts of one thread always end up in the same stripe so for a single thread this is a single call.
+   * */
+  private inline fun forEachStripe(
+    postDescriptors: Collection<PostDescriptor>,
+    func: (Stripe, List<PostDescriptor>) -> Unit
+  ) {
+    if (postDescriptors.isEmpty()) {
+      return
+    }
+
+    val postsByStripe = postDescriptors.groupBy { postDescriptor -> stripeFor(postDescriptor) }
+    postsByStripe.forEach { (stripe, stripePostDescriptors) -> func(stripe, stripePostDescriptors) }
+  }
+
+  private class Stripe {
+    val lock = ReentrantReadWriteLock()
+    @GuardedBy("lock")
+    val filterStorage = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, PostFilter>>(16)
+    // Reverse index of filterStorage. For every filter (by its database id) stores the posts (of
+    // this stripe) that this filter was matched against so that when the filter gets changed or
+    // deleted we only need to re-evaluate the posts it used to match instead of all the cached posts.
+    @GuardedBy("lock")
+    val postsByFilterId = mutableMapWithCap<Long, MutableSet<PostDescriptor>>(16)
+
+    @GuardedBy("lock")
+    fun getPostFilter(postDescriptor: PostDescriptor): PostFilter? {
+      return filterStorage[postDescriptor.threadDescriptor()]?.get(postDescriptor)
+    }
+
+    @GuardedBy("lock")
+    fun insert(postDescriptor: PostDescriptor, postFilter: PostFilter) {
+      val threadDescriptor = postDescriptor.threadDescriptor()
+
+      filterStorage.putIfNotContains(threadDescriptor, mutableMapWithCap(128))
+      val prevPostFilter = filterStorage[threadDescriptor]!!.put(postDescriptor, postFilter)
+
+      unindexPost(postDescriptor, prevPostFilter)
+      indexPost(postDescriptor, postFilter)
+    }
+
+    @GuardedBy("lock")
+    fun remove(postDescriptor: PostDescriptor) {
+      val threadDescriptor = postDescriptor.threadDescriptor()
+      unindexPost(postDescriptor, filterStorage[threadDescriptor]?.remove(postDescriptor))
+    }
+
+    @GuardedBy("lock")
+    fun indexPost(postDescriptor: PostDescriptor, postFilter: PostFilter) {
+      val ownerFilterId = postFilter.ownerFilterId
+        ?: return
+
+      postsByFilterId.getOrPut(ownerFilterId, { mutableSetOf() }).add(postDescriptor)
+    }
+
+    @GuardedBy("lock")
+    fun unindexPost(postDescriptor: PostDescriptor, postFilter: PostFilter?) {
+      val ownerFilterId = postFilter?.ownerFilterId
+        ?: return
+
+      val matchedPosts = postsByFilterId[ownerFilterId]
+        ?: return
+
+      matchedPosts.remove(postDescriptor)
+
+      if (matchedPosts.isEmpty()) {
+        postsByFilterId.remove(ownerFilterId)
       }
     }
+
+    @GuardedBy("lock")
+    fun unindexPosts(postFilterMap: Map<PostDescriptor, PostFilter>?) {
+      postFilterMap?.forEach { (postDescriptor, postFilter) -> unindexPost(postDescriptor, postFilter) }
+    }
   }
 
   companion object {
     private const val TAG = "PostFilterManager"
+    // Must be a power of two
+    private const val STRIPES_COUNT = 16
   }
 
 }
\ No newline at end of file
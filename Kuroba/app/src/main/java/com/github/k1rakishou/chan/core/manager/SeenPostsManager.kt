@@ -5,15 +5,11 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.hashSetWithCap
-import com.github.k1rakishou.common.linkedMapWithCap
-import com.github.k1rakishou.common.mutableIteration
-import com.github.k1rakishou.common.mutableMapWithCap
-import com.github.k1rakishou.common.putIfNotContains
-import com.github.k1rakishou.common.toHashSetBy
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.SeenPost
+import com.github.k1rakishou.model.data.post.ThreadSeenPosts
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
@@ -23,6 +19,7 @@ import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
 import org.joda.time.DateTime
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -38,10 +35,14 @@ class SeenPostsManager(
   private val seenPostsRepository: SeenPostRepository
 ) {
   private val lock = ReentrantReadWriteLock()
-  @GuardedBy("lock")
-  private val seenPostsMap = linkedMapWithCap<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>(256)
-  @GuardedBy("lock")
-  private val seenPostsToPersist = mutableMapOf<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>()
+  // Only written to under the lock (values are immutable and are replaced with new ones) but read
+  // without locking because it's read on every post bind.
+  private val seenPostsMap = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, ThreadSeenPosts>(256)
+  // Posts that were seen but not persisted yet, they are persisted in batches. Same as seenPostsMap
+  // only written to under the lock and read without it, so binds of posts that are already queued
+  // don't lock either. These batches are small (they are drained every DEBOUNCE_TIMEOUT_MS) so
+  // copying them on every new seen post is cheap.
+  private val seenPostsToPersist = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, ThreadSeenPosts>()
   @GuardedBy("lock")
   private var lastLoadedCatalogDescriptor: ChanDescriptor.ICatalogDescriptor? = null
   @GuardedBy("lock")
@@ -70,10 +71,8 @@ class SeenPostsManager(
       return
     }
 
-    val alreadyPreloaded = lock.read {
-      // We consider data preloaded only if it contains more than one entry (for original post) per thread.
-      return@read (seenPostsMap[threadDescriptor]?.size ?: 0) > 1
-    }
+    // We consider data preloaded only if it contains more than one entry (for original post) per thread.
+    val alreadyPreloaded = (seenPostsMap[threadDescriptor]?.size ?: 0) > 1
 
     if (alreadyPreloaded) {
       return
@@ -92,14 +91,12 @@ class SeenPostsManager(
           return@measureTime
         }
 
-      lock.write {
-        val resultMap = mutableMapWithCap<PostDescriptor, SeenPost>(seenPosts.size)
-
-        for (seenPost in seenPosts) {
-          resultMap[seenPost.postDescriptor] = seenPost
-        }
+      val threadSeenPosts = ThreadSeenPosts.from(seenPosts)
 
-        seenPostsMap.put(threadDescriptor, resultMap)
+      lock.write {
+        seenPostsMap[threadDescriptor] = seenPostsMap[threadDescriptor]
+          ?.plus(threadSeenPosts)
+          ?: threadSeenPosts
       }
     }
 
@@ -140,10 +137,9 @@ class SeenPostsManager(
         "alreadyLoadedDescriptorsForUnlimitedCatalog=${alreadyLoadedDescriptorsForUnlimitedCatalog.size}")
 
       seenPostsGrouped.entries.forEach { (threadDescriptor, seenPosts) ->
-        seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(seenPosts.size))
-
-        val innerMap = seenPostsMap[threadDescriptor]!!
-        seenPosts.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
+        seenPostsMap[threadDescriptor] = seenPostsMap[threadDescriptor]
+          ?.plus(seenPosts)
+          ?: ThreadSeenPosts.from(seenPosts)
       }
     }
   }
@@ -153,6 +149,16 @@ class SeenPostsManager(
       return
     }
 
+    // Fast path, most of the binds are of the posts that are already seen
+    val threadDescriptor = postDescriptor.threadDescriptor()
+    if (seenPostsMap[threadDescriptor]?.contains(postDescriptor) == true) {
+      return
+    }
+
+    if (seenPostsToPersist[threadDescriptor]?.contains(postDescriptor) == true) {
+      return
+    }
+
     val seenPost = SeenPost(
       postDescriptor = postDescriptor,
       insertedAt = DateTime.now()
@@ -165,12 +171,15 @@ class SeenPostsManager(
     // No-op (maybe something will be added here in the future)
   }
 
-  fun getSeenPostOrNull(postDescriptor: PostDescriptor): SeenPost? {
-    return lock.read { seenPostsMap[postDescriptor.threadDescriptor()]?.get(postDescriptor) }
+  /**
+   * Returns the time (in millis) the post was seen at or -1 if it's not seen yet.
+   * */
+  fun getSeenPostInsertedAtMillis(postDescriptor: PostDescriptor): Long {
+    return seenPostsMap[postDescriptor.threadDescriptor()]?.insertedAtMillis(postDescriptor) ?: -1L
   }
 
   fun isThreadAlreadySeen(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
-    return lock.read { (seenPostsMap[threadDescriptor]?.size ?: 0) > 0 }
+    return (seenPostsMap[threadDescriptor]?.size ?: 0) > 0
   }
 
   private fun createNewSeenPosts(seenPosts: Collection<SeenPost>) {
@@ -178,24 +187,28 @@ class SeenPostsManager(
       return
     }
 
+    val seenPostsGrouped = seenPosts.groupBy { seenPost -> seenPost.postDescriptor.threadDescriptor() }
+
     val needPersist = lock.write {
       var needPersist = false
 
-      for (seenPost in seenPosts) {
-        val postDescriptor = seenPost.postDescriptor
-        val threadDescriptor = postDescriptor.threadDescriptor()
+      seenPostsGrouped.forEach { (threadDescriptor, threadSeenPosts) ->
+        val alreadySeen = seenPostsMap[threadDescriptor]
+        val alreadyQueued = seenPostsToPersist[threadDescriptor]
 
-        seenPostsToPersist.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
-
-        if (seenPostsMap[threadDescriptor]?.contains(postDescriptor) == true) {
-          continue
+        val newSeenPosts = threadSeenPosts.filter { seenPost ->
+          alreadySeen?.contains(seenPost.postDescriptor) != true
+            && alreadyQueued?.contains(seenPost.postDescriptor) != true
         }
 
-        if (seenPostsToPersist[threadDescriptor]?.contains(postDescriptor) == true) {
-          continue
+        if (newSeenPosts.isEmpty()) {
+          return@forEach
         }
 
-        seenPostsToPersist[threadDescriptor]!!.put(postDescriptor, seenPost)
+        seenPostsToPersist[threadDescriptor] = alreadyQueued
+          ?.plus(newSeenPosts)
+          ?: ThreadSeenPosts.from(newSeenPosts)
+
         needPersist = true
       }
 
@@ -206,51 +219,60 @@ class SeenPostsManager(
       return
     }
 
-    debouncingCoroutineExecutor.post(DEBOUNCE_TIMEOUT_MS) {
-      val threadDescriptors = seenPosts.toHashSetBy { seenPost -> seenPost.postDescriptor.threadDescriptor() }
-
-      val toPersistMap = lock.write {
-        val toPersistMap = mutableMapOf<ChanDescriptor.ThreadDescriptor, Set<SeenPost>>()
+    debouncingCoroutineExecutor.post(DEBOUNCE_TIMEOUT_MS) { persistSeenPosts() }
+  }
 
-        for (threadDescriptor in threadDescriptors) {
-          val seenPostsMap = seenPostsToPersist.remove(threadDescriptor)
-            ?.toMutableMap()
+  /**
+   * Persists all the seen posts accumulated since the last call (of all threads, not only the
+   * thread of the last bound post) in one go. Seen posts of a thread that failed to be persisted
+   * are put back into the queue so they are persisted together with the next batch.
+   * */
+  private suspend fun persistSeenPosts() {
+    val toPersistMap = lock.write {
+      val toPersistMap = seenPostsToPersist.toMap()
+      seenPostsToPersist.clear()
+
+      return@write toPersistMap
+    }
 
-          if (seenPostsMap == null || seenPostsMap.values.isEmpty()) {
-            continue
-          }
+    if (toPersistMap.isEmpty()) {
+      return
+    }
 
-          toPersistMap[threadDescriptor] = seenPostsMap.values.toSet()
-        }
+    toPersistMap.forEach { (threadDescriptor, threadSeenPosts) ->
+      val seenPosts = threadSeenPosts.toSeenPosts(threadDescriptor)
 
-        return@write toPersistMap
+      if (verboseLogsEnabled) {
+        Logger.d(TAG, "persistSeenPosts() persisting ${seenPosts.size} posts")
       }
 
-      if (toPersistMap.isEmpty()) {
-        return@post
-      }
+      seenPostsRepository.insertMany(threadDescriptor, seenPosts)
+        .safeUnwrap { error ->
+          Logger.e(TAG, "Error while trying to store ${seenPosts.size} new seen posts with threadDescriptor " +
+              "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
 
-      toPersistMap.forEach { (threadDescriptor, seenPostSet) ->
-        if (verboseLogsEnabled) {
-          Logger.d(TAG, "onPostBind() persisting ${seenPostSet.size} posts")
+          requeueSeenPosts(threadDescriptor, threadSeenPosts)
+          return@forEach
         }
 
-        seenPostsRepository.insertMany(threadDescriptor, seenPostSet)
-          .safeUnwrap { error ->
-            Logger.e(TAG, "Error while trying to store new seen post with threadDescriptor " +
-                "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
-            return@post
-          }
-
-        lock.write {
-          seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
+      lock.write {
+        seenPostsMap[threadDescriptor] = seenPostsMap[threadDescriptor]
+          ?.plus(threadSeenPosts)
+          ?: threadSeenPosts
+      }
 
-          val innerMap = seenPostsMap[threadDescriptor]!!
-          seenPostSet.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
-        }
+      _seenThreadUpdatesFlow.emit(threadDescriptor)
+    }
+  }
 
-        _seenThreadUpdatesFlow.emit(threadDescriptor)
-      }
+  private fun requeueSeenPosts(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    threadSeenPosts: ThreadSeenPosts
+  ) {
+    lock.write {
+      seenPostsToPersist[threadDescriptor] = seenPostsToPersist[threadDescriptor]
+        ?.plus(threadSeenPosts)
+        ?: threadSeenPosts
     }
   }
 
@@ -273,14 +295,13 @@ class SeenPostsManager(
           var removedPosts = 0
 
           threadDeleteEvent.entries.forEach { (threadDescriptor, originalPostDescriptor) ->
-            seenPostsMap[threadDescriptor]?.keys?.mutableIteration { mutableIterator, postDescriptor ->
-              if (postDescriptor != originalPostDescriptor) {
-                ++removedPosts
-                mutableIterator.remove()
-              }
-
-              return@mutableIteration true
-            }
+            val threadSeenPosts = seenPostsMap[threadDescriptor]
+              ?: return@forEach
+
+            val retainedSeenPosts = threadSeenPosts.retainOnly(originalPostDescriptor)
+            removedPosts += threadSeenPosts.size - retainedSeenPosts.size
+
+            seenPostsMap[threadDescriptor] = retainedSeenPosts
           }
 
           Logger.d(TAG, "onThreadDeleteEventReceived.RemoveThreadPostsExceptOP() removed ${removedPosts} posts")
@@ -30,7 +30,7 @@ import org.joda.time.DateTime
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
-class ThreadDownloadManager(
+open class ThreadDownloadManager(
   private val appCostants: AppConstants,
   private val appScope: CoroutineScope,
   private val _threadDownloaderFileManagerWrapper: Lazy<ThreadDownloaderFileManagerWrapper>,
@@ -78,7 +78,7 @@ class ThreadDownloadManager(
     return mutex.withLock { threadDownloadsMap[threadDescriptor]?.status }
   }
 
-  suspend fun isThreadFullyDownloaded(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
+  open suspend fun isThreadFullyDownloaded(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
     ensureInitialized()
 
     return getStatus(threadDescriptor) == ThreadDownload.Status.Completed
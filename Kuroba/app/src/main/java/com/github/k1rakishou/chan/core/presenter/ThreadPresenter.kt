@@ -19,6 +19,7 @@ package com.github.k1rakishou.chan.core.presenter
 import android.content.Context
 import android.text.TextUtils
 import android.widget.Toast
+import androidx.annotation.GuardedBy
 import androidx.annotation.StringRes
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
@@ -122,6 +123,7 @@ import kotlinx.coroutines.cancelChildren
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.debounce
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
@@ -235,6 +237,9 @@ class ThreadPresenter @Inject constructor(
   private val alreadyCreatedNavElement = AtomicBoolean(false)
   private var currentFocusedController = CurrentFocusedController.None
   private var currentNormalLoadThreadJob: Job? = null
+
+  // Filter events are debounced so the posts affected by every event have to be accumulated
+  private val postsAffectedByFilters = PostsAffectedByFilters()
   private var currentFullLoadThreadJob: Job? = null
 
   override val endOfCatalogReached: Boolean
@@ -382,6 +387,7 @@ class ThreadPresenter @Inject constructor(
   init {
     launch {
       chanFilterManager.listenForFiltersChanges()
+        .onEach { filterEvent -> postsAffectedByFilters.add(filterEvent) }
         .debounce(1000L)
         .collect { filterEvent -> onFiltersChanged(filterEvent) }
     }
@@ -1054,15 +1060,55 @@ class ThreadPresenter @Inject constructor(
       return
     }
 
+    // null means that every post is affected
+    val affectedPosts = postsAffectedByFilters.takeAll()
+
     chanPostRepository.awaitUntilInitialized()
-    Logger.d(TAG, "onFiltersChanged($currentChanDescriptor) force reloading posts from the cache")
 
+    val currentChanDescriptor = chanThreadTicker.currentChanDescriptor
+      ?: return
     val catalogDescriptor = currentOpenedDescriptorStateManager.currentCatalogDescriptor
     val threadDescriptor = currentOpenedDescriptorStateManager.currentThreadDescriptor
 
-    if (catalogDescriptor == currentChanDescriptor || threadDescriptor == currentChanDescriptor) {
+    if (catalogDescriptor != currentChanDescriptor && threadDescriptor != currentChanDescriptor) {
+      return
+    }
+
+    if (affectedPosts == null) {
+      Logger.d(TAG, "onFiltersChanged($currentChanDescriptor) force reloading all posts from the cache")
       quickReloadFromMemoryCache(chanLoadOptions = ChanLoadOptions.forceUpdateAllPosts())
+      return
+    }
+
+    if (currentChanDescriptor is ChanDescriptor.ICatalogDescriptor) {
+      val catalogThreads = chanThreadManager.getCatalogThreadDescriptors(currentChanDescriptor).toSet()
+      val catalogAffected = affectedPosts.any { postDescriptor ->
+        postDescriptor.threadDescriptor() in catalogThreads
+      }
+
+      if (!catalogAffected) {
+        Logger.d(TAG, "onFiltersChanged($currentChanDescriptor) no posts were affected")
+        return
+      }
+
+      Logger.d(TAG, "onFiltersChanged($currentChanDescriptor) force reloading posts from the cache")
+      quickReloadFromMemoryCache(chanLoadOptions = ChanLoadOptions.forceUpdateAllPosts())
+      return
     }
+
+    // Only the posts which filter results were invalidated need to be parsed again
+    val affectedThreadPosts = affectedPosts
+      .filter { postDescriptor -> postDescriptor.threadDescriptor() == currentChanDescriptor }
+      .toSet()
+
+    if (affectedThreadPosts.isEmpty()) {
+      Logger.d(TAG, "onFiltersChanged($currentChanDescriptor) no posts were affected")
+      return
+    }
+
+    Logger.d(TAG, "onFiltersChanged($currentChanDescriptor) force reloading " +
+      "${affectedThreadPosts.size} posts from the cache")
+    quickReloadFromMemoryCache(chanLoadOptions = ChanLoadOptions.forceUpdatePosts(affectedThreadPosts))
   }
 
   private fun onPostUpdatedWithNewContent(batchResult: LoaderBatchResult) {
@@ -2899,6 +2945,46 @@ class ThreadPresenter @Inject constructor(
     }
   }
 
+  /**
+   * Filter events are collected on the flow's dispatcher while [takeAll] is called from the
+   * debounced collector so every access is synchronized.
+   * */
+  private class PostsAffectedByFilters {
+    @GuardedBy("this")
+    private val affectedPosts = mutableSetOf<PostDescriptor>()
+    @GuardedBy("this")
+    private var allPostsAffected = false
+
+    @Synchronized
+    fun add(filterEvent: ChanFilterManager.FilterEvent) {
+      if (filterEvent is ChanFilterManager.FilterEvent.Initialized) {
+        return
+      }
+
+      val eventAffectedPosts = filterEvent.affectedPosts
+      if (eventAffectedPosts == null) {
+        allPostsAffected = true
+        return
+      }
+
+      affectedPosts.addAll(eventAffectedPosts)
+    }
+
+    /**
+     * Returns the posts accumulated since the previous call (or null if every post is affected)
+     * and starts accumulating anew.
+     * */
+    @Synchronized
+    fun takeAll(): Set<PostDescriptor>? {
+      val result = if (allPostsAffected) null else affectedPosts.toSet()
+
+      allPostsAffected = false
+      affectedPosts.clear()
+
+      return result
+    }
+  }
+
   enum class CurrentFocusedController {
     Catalog,
     Thread,
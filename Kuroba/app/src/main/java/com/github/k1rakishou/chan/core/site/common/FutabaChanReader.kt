@@ -7,6 +7,7 @@ import com.github.k1rakishou.chan.core.site.SiteEndpoints
 import com.github.k1rakishou.chan.core.site.parser.ChanReader
 import com.github.k1rakishou.chan.core.site.parser.CommentParser
 import com.github.k1rakishou.chan.core.site.parser.PostParser
+import com.github.k1rakishou.chan.core.site.parser.RawPostJsonHasher
 import com.github.k1rakishou.chan.core.site.parser.processor.AbstractChanReaderProcessor
 import com.github.k1rakishou.chan.core.site.parser.processor.ChanReaderProcessor
 import com.github.k1rakishou.common.ModularResult
@@ -129,52 +130,53 @@ class FutabaChanReader(
     // 4chan pass leaf
     var since4pass = 0
 
+    val hasher = RawPostJsonHasher()
     reader.beginObject()
 
     while (reader.hasNext()) {
-      when (reader.nextName()) {
-        "no" -> builder.id(reader.nextInt().toLong())
-        "sub" -> builder.subject(reader.nextString())
-        "name" -> builder.name(reader.nextString())
-        "com" -> builder.comment(reader.nextString())
-        "tim" -> fileId = reader.nextString()
-        "time" -> builder.setUnixTimestampSeconds(reader.nextLong())
-        "ext" -> fileExt = reader.nextString().replace(".", "")
-        "w" -> fileWidth = reader.nextInt()
-        "h" -> fileHeight = reader.nextInt()
-        "fsize" -> fileSize = reader.nextLong()
-        "filename" -> fileName = reader.nextString()
-        "trip" -> builder.tripcode(reader.nextString())
-        "country" -> countryCode = reader.nextString()
-        "country_name" -> countryName = reader.nextString()
-        "board_flag" -> boardFlagCode = reader.nextString()
-        "flag_name" -> boardFlagName = reader.nextString()
-        "spoiler" -> fileSpoiler = reader.nextInt() == 1
+      when (hasher.nextName(reader)) {
+        "no" -> builder.id(hasher.nextInt(reader).toLong())
+        "sub" -> builder.subject(hasher.nextString(reader))
+        "name" -> builder.name(hasher.nextString(reader))
+        "com" -> builder.comment(hasher.nextString(reader))
+        "tim" -> fileId = hasher.nextString(reader)
+        "time" -> builder.setUnixTimestampSeconds(hasher.nextLong(reader))
+        "ext" -> fileExt = hasher.nextString(reader).replace(".", "")
+        "w" -> fileWidth = hasher.nextInt(reader)
+        "h" -> fileHeight = hasher.nextInt(reader)
+        "fsize" -> fileSize = hasher.nextLong(reader)
+        "filename" -> fileName = hasher.nextString(reader)
+        "trip" -> builder.tripcode(hasher.nextString(reader))
+        "country" -> countryCode = hasher.nextString(reader)
+        "country_name" -> countryName = hasher.nextString(reader)
+        "board_flag" -> boardFlagCode = hasher.nextString(reader)
+        "flag_name" -> boardFlagName = hasher.nextString(reader)
+        "spoiler" -> fileSpoiler = hasher.nextInt(reader) == 1
         "resto" -> {
-          val opId = reader.nextInt()
+          val opId = hasher.nextInt(reader)
           builder.op(opId == 0)
           builder.opId(opId.toLong())
         }
-        "filedeleted" -> fileDeleted = reader.nextInt() == 1
-        "sticky" -> builder.sticky(reader.nextInt() == 1)
-        "closed" -> builder.closed(reader.nextInt() == 1)
-        "archived" -> builder.archived(reader.nextInt() == 1)
+        "filedeleted" -> fileDeleted = hasher.nextInt(reader) == 1
+        "sticky" -> builder.sticky(hasher.nextInt(reader) == 1)
+        "closed" -> builder.closed(hasher.nextInt(reader) == 1)
+        "archived" -> builder.archived(hasher.nextInt(reader) == 1)
         "sticky_cap" -> {
-          reader.nextInt()
+          hasher.nextInt(reader)
           builder.endless(true)
         }
-        "replies" -> builder.replies(reader.nextInt())
-        "images" -> builder.threadImagesCount(reader.nextInt())
-        "unique_ips" -> builder.uniqueIps(reader.nextInt())
-        "last_modified" -> builder.lastModified(reader.nextLong())
-        "id" -> builder.posterId(reader.nextString())
-        "capcode" -> builder.moderatorCapcode(reader.nextString())
-        "since4pass" -> since4pass = reader.nextInt()
+        "replies" -> builder.replies(hasher.nextInt(reader))
+        "images" -> builder.threadImagesCount(hasher.nextInt(reader))
+        "unique_ips" -> builder.uniqueIps(hasher.nextInt(reader))
+        "last_modified" -> builder.lastModified(hasher.nextLong(reader))
+        "id" -> builder.posterId(hasher.nextString(reader))
+        "capcode" -> builder.moderatorCapcode(hasher.nextString(reader))
+        "since4pass" -> since4pass = hasher.nextInt(reader)
         "extra_files" -> {
           reader.beginArray()
 
           while (reader.hasNext()) {
-            val postImage = readPostImage(reader, builder, board, endpoints)
+            val postImage = readPostImage(reader, hasher, builder, board, endpoints)
             if (postImage != null) {
               files.add(postImage)
             }
@@ -182,7 +184,7 @@ class FutabaChanReader(
 
           reader.endArray()
         }
-        "md5" -> fileHash = reader.nextString()
+        "md5" -> fileHash = hasher.nextString(reader)
         else -> {
           // Unknown/ignored key
           reader.skipValue()
@@ -197,6 +199,11 @@ class FutabaChanReader(
       return
     }
 
+    if (chanReaderProcessor.addPostIfUnchanged(builder.postDescriptor, hasher.value)) {
+      // Nothing has changed since the last update, no need to build this post again
+      return
+    }
+
     // The file from between the other values.
     if (fileId != null && fileName != null && fileExt != null && !fileDeleted) {
       val args = SiteEndpoints.makeArgument("tim", fileId, "ext", fileExt)
@@ -262,6 +269,7 @@ class FutabaChanReader(
   @Throws(IOException::class)
   private fun readPostImage(
     reader: JsonReader,
+    hasher: RawPostJsonHasher,
     builder: ChanPostBuilder,
     board: ChanBoard,
     endpoints: SiteEndpoints
@@ -278,15 +286,15 @@ class FutabaChanReader(
     reader.beginObject()
 
     while (reader.hasNext()) {
-      when (reader.nextName()) {
-        "tim" -> fileId = reader.nextString()
-        "fsize" -> fileSize = reader.nextLong()
-        "w" -> fileWidth = reader.nextInt()
-        "h" -> fileHeight = reader.nextInt()
-        "spoiler" -> fileSpoiler = reader.nextInt() == 1
-        "ext" -> fileExt = reader.nextString().replace(".", "")
-        "filename" -> fileName = reader.nextString()
-        "md5" -> fileHash = reader.nextString()
+      when (hasher.nextName(reader)) {
+        "tim" -> fileId = hasher.nextString(reader)
+        "fsize" -> fileSize = hasher.nextLong(reader)
+        "w" -> fileWidth = hasher.nextInt(reader)
+        "h" -> fileHeight = hasher.nextInt(reader)
+        "spoiler" -> fileSpoiler = hasher.nextInt(reader) == 1
+        "ext" -> fileExt = hasher.nextString(reader).replace(".", "")
+        "filename" -> fileName = hasher.nextString(reader)
+        "md5" -> fileHash = hasher.nextString(reader)
         else -> reader.skipValue()
       }
     }
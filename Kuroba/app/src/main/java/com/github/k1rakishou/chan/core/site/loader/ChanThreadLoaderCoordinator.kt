@@ -16,6 +16,7 @@
  */
 package com.github.k1rakishou.chan.core.site.loader
 
+import androidx.annotation.VisibleForTesting
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressEvent
@@ -26,6 +27,7 @@ import com.github.k1rakishou.chan.core.site.Site
 import com.github.k1rakishou.chan.core.site.SiteResolver
 import com.github.k1rakishou.chan.core.site.SiteSpecificError
 import com.github.k1rakishou.chan.core.site.loader.internal.ChanPostPersister
+import com.github.k1rakishou.chan.core.site.loader.internal.ConditionalRequestValidators
 import com.github.k1rakishou.chan.core.site.loader.internal.DatabasePostLoader
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ParsePostsV1UseCase
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ReloadPostsFromDatabaseUseCase
@@ -49,9 +51,11 @@ import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.options.ChanCacheOptions
 import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
+import com.github.k1rakishou.model.data.options.ChanLoadOption
 import com.github.k1rakishou.model.data.options.ChanLoadOptions
 import com.github.k1rakishou.model.data.options.ChanReadOptions
 import com.github.k1rakishou.model.data.options.PostsToReloadOptions
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
 import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
@@ -60,6 +64,9 @@ import kotlinx.coroutines.CoroutineName
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl
 import okhttp3.Request
@@ -98,6 +105,8 @@ class ChanThreadLoaderCoordinator(
     get() = Dispatchers.IO + job + CoroutineName("ChanThreadLoaderCoordinator")
 
   private val lastFullThreadUpdate = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, Long>(16)
+  @VisibleForTesting(otherwise = VisibleForTesting.PRIVATE)
+  internal val conditionalRequestValidators = ConditionalRequestValidators()
 
   private val reloadPostsFromDatabaseUseCase by lazy {
     ReloadPostsFromDatabaseUseCase(
@@ -188,6 +197,23 @@ class ChanThreadLoaderCoordinator(
           )
         }
 
+        val isCacheableLoad = isCacheableLoad(
+          page = page,
+          compositeCatalogDescriptor = compositeCatalogDescriptor,
+          chanDescriptor = chanDescriptor,
+          chanReadOptions = chanReadOptions,
+          postProcessFlags = postProcessFlags
+        )
+
+        val canUseConditionalRequest = canUseConditionalRequest(
+          isCacheableLoad = isCacheableLoad,
+          chanDescriptor = chanDescriptor,
+          chanLoadOptions = chanLoadOptions
+        )
+
+        val isConditionalRequest = canUseConditionalRequest
+          && conditionalRequestValidators.applyTo(chanLoadUrl.url, requestBuilder)
+
         chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Loading(chanDescriptor))
 
         val reloadFunc: suspend (error: Throwable) -> ThreadLoadResult = func@ { error: Throwable ->
@@ -214,82 +240,179 @@ class ChanThreadLoaderCoordinator(
             throw error
           }
 
+          conditionalRequestValidators.remove(chanLoadUrl.url)
           return@Try reloadFunc(error)
         }
 
+        if (isConditionalRequest && response.code == ConditionalRequestValidators.HTTP_NOT_MODIFIED) {
+          response.close()
+
+          Logger.d(TAG, "loadThreadOrCatalog(chanLoadUrl='${chanLoadUrl}') not modified, " +
+            "took ${requestDuration}, skipping reading/parsing/persisting posts")
+
+          return@Try ThreadLoadResult.Loaded(chanDescriptor)
+        }
+
         if (!response.isSuccessful) {
+          conditionalRequestValidators.remove(chanLoadUrl.url)
           return@Try reloadFunc(BadStatusResponseException(response.code))
         }
 
-        chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Reading(chanDescriptor))
-
-        val (chanReaderProcessor, readPostsDuration) = measureTimedValue {
-          val body = response.body
-            ?: throw EmptyBodyResponseException()
-
-          return@measureTimedValue body.byteStream().use { inputStream ->
-            return@use readPostsFromResponse(
-              page = page,
-              chanLoadUrl = chanLoadUrl,
-              responseBodyStream = inputStream,
-              chanDescriptor = chanDescriptor,
-              chanReadOptions = chanReadOptions,
-              chanLoadOptions = chanLoadOptions,
-              chanReaderProcessorOptions = chanReaderProcessorOptions,
-              chanReader = chanReader
-            ).unwrap()
-          }
+        val postParser = chanReader.getParser()
+          ?: throw NullPointerException("PostParser cannot be null!")
+
+        // Thread posts come sorted by post number so they can be parsed while the rest of the
+        // response is still being read. Catalogs and partial thread reads are parsed at once
+        // after the whole response has been read.
+        val postsToParseChannel = if (chanDescriptor is ChanDescriptor.ThreadDescriptor && chanReadOptions.isDefault()) {
+          Channel<ChanPostBuilder>(Channel.UNLIMITED)
+        } else {
+          null
         }
 
-        Logger.d(TAG, "loadThreadOrCatalog(chanLoadUrl='${chanLoadUrl}') chanReaderProcessor=${chanReaderProcessor}")
+        val streamingParsingResult = if (postsToParseChannel != null) {
+          this@ChanThreadLoaderCoordinator.async {
+            parsePostsV1UseCase.parseNewPostsPostsStreaming(
+              threadDescriptor = chanDescriptor as ChanDescriptor.ThreadDescriptor,
+              postParser = postParser,
+              postBuildersToParse = postsToParseChannel
+            )
+          }
+        } else {
+          null
+        }
 
-        if (chanReaderProcessor.error != null) {
-          val error = chanReaderProcessor.error!!
-          if (error.isNotFoundError()) {
-            return@Try reloadFunc(BadStatusResponseException.notFoundResponse())
+        try {
+          chanLoadProgressNotifier.sendProgressEvent(ChanLoadProgressEvent.Reading(chanDescriptor))
+
+          val (chanReaderProcessor, readPostsDuration) = measureTimedValue {
+            val body = response.body
+              ?: throw EmptyBodyResponseException()
+
+            return@measureTimedValue try {
+              body.byteStream().use { inputStream ->
+                return@use readPostsFromResponse(
+                  page = page,
+                  chanLoadUrl = chanLoadUrl,
+                  responseBodyStream = inputStream,
+                  chanDescriptor = chanDescriptor,
+                  chanReadOptions = chanReadOptions,
+                  chanLoadOptions = chanLoadOptions,
+                  chanReaderProcessorOptions = chanReaderProcessorOptions,
+                  chanReader = chanReader,
+                  postsToParseChannel = postsToParseChannel
+                ).unwrap()
+              }
+            } finally {
+              postsToParseChannel?.close()
+            }
           }
 
-          when (error) {
-            is SiteSpecificError.DvachError -> {
-              throw SiteError(error.errorCode, error.errorMessage)
+          Logger.d(TAG, "loadThreadOrCatalog(chanLoadUrl='${chanLoadUrl}') chanReaderProcessor=${chanReaderProcessor}")
+
+          if (chanReaderProcessor.error != null) {
+            conditionalRequestValidators.remove(chanLoadUrl.url)
+
+            val error = chanReaderProcessor.error!!
+            if (error.isNotFoundError()) {
+              return@Try reloadFunc(BadStatusResponseException.notFoundResponse())
+            }
+
+            when (error) {
+              is SiteSpecificError.DvachError -> {
+                throw SiteError(error.errorCode, error.errorMessage)
+              }
+              else -> error("Unknown error: ${error}")
             }
-            else -> error("Unknown error: ${error}")
           }
-        }
 
-        val postParser = chanReader.getParser()
-          ?: throw NullPointerException("PostParser cannot be null!")
+          val (threadLoadResult, loadTimeInfo) = chanPostPersister.persistPosts(
+            compositeCatalogDescriptor = compositeCatalogDescriptor,
+            chanDescriptor = chanDescriptor,
+            chanReaderProcessor = chanReaderProcessor,
+            cacheOptions = chanCacheOptions,
+            chanCacheUpdateOptions = chanCacheUpdateOptions,
+            postParser = postParser,
+            streamingParsingResult = streamingParsingResult
+          )
 
-        val (threadLoadResult, loadTimeInfo) = chanPostPersister.persistPosts(
-          compositeCatalogDescriptor = compositeCatalogDescriptor,
-          chanDescriptor = chanDescriptor,
-          chanReaderProcessor = chanReaderProcessor,
-          cacheOptions = chanCacheOptions,
-          chanCacheUpdateOptions = chanCacheUpdateOptions,
-          postParser = postParser,
-        )
+          // Every full response refreshes the validators (even the first, unconditional, one) so
+          // that the next load of this url can already be conditional. Partial reads leave the
+          // cache out of sync with the response so their validators must not be reused.
+          if (isCacheableLoad) {
+            conditionalRequestValidators.store(chanLoadUrl.url, response)
+          } else {
+            conditionalRequestValidators.remove(chanLoadUrl.url)
+          }
+
+          if (chanDescriptor is ChanDescriptor.ThreadDescriptor) {
+            chanPostRepository.updateThreadState(
+              threadDescriptor = chanDescriptor,
+              deleted = chanReaderProcessor.deleted && !isThreadDownloaded,
+              archived = chanReaderProcessor.archived || isThreadDownloaded,
+              closed = chanReaderProcessor.closed
+            )
+          }
 
-        if (chanDescriptor is ChanDescriptor.ThreadDescriptor) {
-          chanPostRepository.updateThreadState(
-            threadDescriptor = chanDescriptor,
-            deleted = chanReaderProcessor.deleted && !isThreadDownloaded,
-            archived = chanReaderProcessor.archived || isThreadDownloaded,
-            closed = chanReaderProcessor.closed
+          loadRequestStatistics(
+            url = chanLoadUrl.url,
+            chanDescriptor = chanDescriptor,
+            loadTimeInfo = loadTimeInfo,
+            requestDuration = requestDuration,
+            readPostsDuration = readPostsDuration
           )
+          return@Try threadLoadResult
+        } finally {
+          postsToParseChannel?.close()
+          streamingParsingResult?.cancel()
         }
-
-        loadRequestStatistics(
-          url = chanLoadUrl.url,
-          chanDescriptor = chanDescriptor,
-          loadTimeInfo = loadTimeInfo,
-          requestDuration = requestDuration,
-          readPostsDuration = readPostsDuration
-        )
-        return@Try threadLoadResult
       }.mapError { error -> ChanLoaderException(error) }
     }
   }
 
+  /**
+   * Whether the whole response ends up in the memory cache as is, so that a 304 to the next request
+   * to the same url means that the cache is still up to date. Partial reads and post-processing
+   * reloads only take a part of the response. Composite catalogs and paged catalogs rebuild their
+   * catalog snapshot out of every loaded page so they always require the full response.
+   * */
+  private fun isCacheableLoad(
+    page: Int?,
+    compositeCatalogDescriptor: ChanDescriptor.CompositeCatalogDescriptor?,
+    chanDescriptor: ChanDescriptor,
+    chanReadOptions: ChanReadOptions,
+    postProcessFlags: PostProcessFlags?
+  ): Boolean {
+    if (postProcessFlags != null || !chanReadOptions.isDefault()) {
+      return false
+    }
+
+    if (chanDescriptor is ChanDescriptor.ICatalogDescriptor) {
+      if (page != null || compositeCatalogDescriptor != null) {
+        return false
+      }
+    }
+
+    return true
+  }
+
+  /**
+   * A 304 response means that we can keep using whatever is in the memory cache so we only send
+   * a conditional request when the cache actually has something for this descriptor and when
+   * the caller is not asking for a custom read/reload of the posts.
+   * */
+  private fun canUseConditionalRequest(
+    isCacheableLoad: Boolean,
+    chanDescriptor: ChanDescriptor,
+    chanLoadOptions: ChanLoadOptions
+  ): Boolean {
+    if (!isCacheableLoad || chanLoadOptions.chanLoadOption !is ChanLoadOption.RetainAll) {
+      return false
+    }
+
+    return chanThreadsCache.contains(chanDescriptor)
+  }
+
   @OptIn(ExperimentalTime::class)
   private suspend fun loadRequestStatistics(
     url: HttpUrl,
@@ -584,7 +707,8 @@ class ChanThreadLoaderCoordinator(
     chanReadOptions: ChanReadOptions,
     chanLoadOptions: ChanLoadOptions,
     chanReaderProcessorOptions: ChanReaderProcessor.Options,
-    chanReader: ChanReader
+    chanReader: ChanReader,
+    postsToParseChannel: SendChannel<ChanPostBuilder>? = null
   ): ModularResult<ChanReaderProcessor> {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -595,7 +719,8 @@ class ChanThreadLoaderCoordinator(
         chanReadOptions = chanReadOptions,
         chanLoadOptions = chanLoadOptions,
         options = chanReaderProcessorOptions,
-        chanDescriptor = chanDescriptor
+        chanDescriptor = chanDescriptor,
+        postsToParseChannel = postsToParseChannel
       )
 
       when (chanDescriptor) {
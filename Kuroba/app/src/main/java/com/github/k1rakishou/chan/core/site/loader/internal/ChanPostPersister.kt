@@ -5,6 +5,7 @@ import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.site.loader.ChanLoaderException
 import com.github.k1rakishou.chan.core.site.loader.ThreadLoadResult
+import com.github.k1rakishou.chan.core.site.loader.internal.usecase.AbstractParsePostsUseCase
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ParsePostsV1UseCase
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.StorePostsInRepositoryUseCase
 import com.github.k1rakishou.chan.core.site.parser.PostParser
@@ -20,6 +21,7 @@ import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
 import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import kotlinx.coroutines.Deferred
 import kotlin.time.Duration
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTimedValue
@@ -42,6 +44,7 @@ internal class ChanPostPersister(
     cacheOptions: ChanCacheOptions,
     chanCacheUpdateOptions: ChanCacheUpdateOptions,
     postParser: PostParser,
+    streamingParsingResult: Deferred<AbstractParsePostsUseCase.ParsingResult>? = null
   ): ThreadResultWithTimeInfo {
     return Try {
       BackgroundUtils.ensureBackgroundThread()
@@ -79,11 +82,13 @@ internal class ChanPostPersister(
         }
       }
 
-      val parsingResult = parsePostsV1UseCase.parseNewPostsPosts(
-        chanDescriptor = chanDescriptor,
-        postParser = postParser,
-        postBuildersToParse = chanReaderProcessor.getToParse()
-      )
+      // Posts may have already been parsed while the response was being read
+      val parsingResult = streamingParsingResult?.await()
+        ?: parsePostsV1UseCase.parseNewPostsPosts(
+          chanDescriptor = chanDescriptor,
+          postParser = postParser,
+          postBuildersToParse = chanReaderProcessor.getToParse()
+        )
 
       chanLoadProgressNotifier.sendProgressEvent(
         ChanLoadProgressEvent.PersistingPosts(chanDescriptor, parsingResult.parsedPosts.size)
@@ -104,6 +109,10 @@ internal class ChanPostPersister(
         )
       }
 
+      if (chanDescriptor is ChanDescriptor.ThreadDescriptor) {
+        chanPostRepository.putRawPostJsonHashes(chanDescriptor, chanReaderProcessor.getRawPostJsonHashes())
+      }
+
       val loadTimeInfo = LoadTimeInfo(
         storeDuration = storeDuration,
         storedPostsCount = storedPostsCount,
@@ -0,0 +1,65 @@
+package com.github.k1rakishou.chan.core.site.loader.internal
+
+import okhttp3.HttpUrl
+import okhttp3.Request
+import okhttp3.Response
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers the ETag/Last-Modified validators of the last successful catalog/thread response per
+ * url so that the next request to the same url can be made conditional. When the server replies
+ * with 304 Not Modified there is no need to download, read, parse or persist anything because
+ * whatever we have in the memory cache is already up to date.
+ * */
+internal class ConditionalRequestValidators {
+  private val validatorsMap = ConcurrentHashMap<HttpUrl, Validators>(16)
+
+  /**
+   * Adds If-None-Match/If-Modified-Since headers to the [requestBuilder] if we have validators for
+   * the [url]. Returns true if any header was added.
+   * */
+  fun applyTo(url: HttpUrl, requestBuilder: Request.Builder): Boolean {
+    val validators = validatorsMap[url]
+      ?: return false
+
+    if (validators.etag != null) {
+      requestBuilder.header(IF_NONE_MATCH_HEADER, validators.etag)
+    }
+
+    if (validators.lastModified != null) {
+      requestBuilder.header(IF_MODIFIED_SINCE_HEADER, validators.lastModified)
+    }
+
+    return true
+  }
+
+  fun store(url: HttpUrl, response: Response) {
+    val etag = response.header(ETAG_HEADER)?.takeIf { it.isNotBlank() }
+    val lastModified = response.header(LAST_MODIFIED_HEADER)?.takeIf { it.isNotBlank() }
+
+    if (etag == null && lastModified == null) {
+      validatorsMap.remove(url)
+      return
+    }
+
+    validatorsMap[url] = Validators(etag = etag, lastModified = lastModified)
+  }
+
+  fun remove(url: HttpUrl) {
+    validatorsMap.remove(url)
+  }
+
+  private data class Validators(
+    val etag: String?,
+    val lastModified: String?
+  )
+
+  companion object {
+    const val HTTP_NOT_MODIFIED = 304
+
+    private const val ETAG_HEADER = "ETag"
+    private const val LAST_MODIFIED_HEADER = "Last-Modified"
+    private const val IF_NONE_MATCH_HEADER = "If-None-Match"
+    private const val IF_MODIFIED_SINCE_HEADER = "If-Modified-Since"
+  }
+}
@@ -1,6 +1,7 @@
 package com.github.k1rakishou.chan.core.site.loader.internal.usecase
 
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
+import com.github.k1rakishou.chan.core.helper.CompiledFilterSet
 import com.github.k1rakishou.chan.core.helper.FilterEngine
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.PostFilterManager
@@ -8,9 +9,12 @@ import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.core.site.parser.PostParser
 import com.github.k1rakishou.chan.utils.BackgroundUtils
+import com.github.k1rakishou.common.mutableListWithCap
+import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.common.processDataCollectionConcurrently
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.filter.ChanFilter
 import com.github.k1rakishou.model.data.filter.FilterAction
 import com.github.k1rakishou.model.data.post.ChanPost
@@ -58,20 +62,38 @@ abstract class AbstractParsePostsUseCase(
       return
     }
 
-    processDataCollectionConcurrently(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { postToParse ->
-      if (filters.isNotEmpty()) {
-        processFilters(postToParse, filters)
-      }
+    // Do not auto create watch filters, this may end up pretty bad
+    val compiledFilterSet = filterEngine.compileFilters(filters.filterNot { filter -> filter.isWatchFilter() })
+    if (compiledFilterSet.isEmpty()) {
+      return
+    }
 
-      return@processDataCollectionConcurrently
+    val filterResults = processDataCollectionConcurrently(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { postToParse ->
+      return@processDataCollectionConcurrently processFilters(postToParse, compiledFilterSet)
     }
 
+    // Publish the whole batch at once instead of locking PostFilterManager once per every post
+    val matchedPosts = mutableMapWithCap<PostDescriptor, PostFilter>(filterResults.size)
+    val notMatchedPosts = mutableListWithCap<PostDescriptor>(filterResults.size)
+
+    filterResults.forEach { filterResult ->
+      if (filterResult.postFilter != null) {
+        matchedPosts[filterResult.postDescriptor] = filterResult.postFilter
+      } else {
+        notMatchedPosts += filterResult.postDescriptor
+      }
+    }
+
+    postFilterManager.insertMany(matchedPosts)
+    postFilterManager.removeMany(notMatchedPosts)
+
     Logger.d(TAG, "postParsingProcessFiltersStage() " +
+      "matchedPosts=${matchedPosts.size}, " +
       "cacheHits=${filterEngine.currentCacheHits()}, " +
       "cacheMisses=${filterEngine.currentCacheMisses()}")
   }
 
-  private fun processFilters(postToParse: ChanPostBuilder, filters: List<ChanFilter>) {
+  private fun processFilters(postToParse: ChanPostBuilder, compiledFilterSet: CompiledFilterSet): FilterResult? {
     // Process the filters before finish, because parsing the html is dependent on filter matches
     val postDescriptor = postToParse.postDescriptor
 
@@ -85,22 +107,11 @@ abstract class AbstractParsePostsUseCase(
       // in the database and if they differ update the "last_modified" but it will make everything
       // slower. Maybe it's doable by calculating a post hash and store it in the memory cache and
       // in the database too.
-      return
+      return null
     }
 
-    for (filter in filters) {
-      if (filter.isWatchFilter()) {
-        // Do not auto create watch filters, this may end up pretty bad
-        continue
-      }
-
-      if (filterEngine.matches(filter, postToParse)) {
-        postFilterManager.insert(postDescriptor, createPostFilter(filter))
-        return
-      }
-
-      postFilterManager.remove(postDescriptor)
-    }
+    val matchedFilter = compiledFilterSet.firstMatchingFilter(postToParse)
+    return FilterResult(postDescriptor, matchedFilter?.let { filter -> createPostFilter(filter) })
   }
 
   @Suppress("WHEN_ENUM_CAN_BE_NULL_IN_JAVA")
@@ -164,6 +175,11 @@ abstract class AbstractParsePostsUseCase(
       .filter { filter -> filterEngine.matchesBoard(filter, board) }
   }
 
+  private class FilterResult(
+    val postDescriptor: PostDescriptor,
+    val postFilter: PostFilter?
+  )
+
   class ParsingResult @OptIn(ExperimentalTime::class) constructor(
     val parsedPosts: List<ChanPost>,
     val filterProcessionTime: Duration,
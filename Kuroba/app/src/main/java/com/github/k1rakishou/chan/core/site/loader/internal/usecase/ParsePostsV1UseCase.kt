@@ -10,19 +10,28 @@ import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.core.site.parser.PostParseWorker
 import com.github.k1rakishou.chan.core.site.parser.PostParser
 import com.github.k1rakishou.chan.utils.BackgroundUtils
+import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.common.processDataCollectionConcurrently
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.supervisorScope
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 import kotlin.time.measureTimedValue
 
-class ParsePostsV1UseCase(
+open class ParsePostsV1UseCase(
   verboseLogsEnabled: Boolean,
   chanPostRepository: ChanPostRepository,
   filterEngine: FilterEngine,
@@ -64,40 +73,8 @@ class ParsePostsV1UseCase(
       ChanLoadProgressEvent.ParsingPosts(chanDescriptor, postBuildersToParse.size)
     )
 
-    val savedPosts = when (chanDescriptor) {
-      is ChanDescriptor.ICatalogDescriptor -> {
-        emptySet<PostDescriptor>()
-      }
-      is ChanDescriptor.ThreadDescriptor -> {
-        savedReplyManager.getThreadSavedReplies(chanDescriptor)
-          .map { it.postDescriptor }
-          .toSet()
-      }
-    }
-
-    val hiddenOrRemovedPosts = when (chanDescriptor) {
-      is ChanDescriptor.ICatalogDescriptor -> {
-        emptyMap()
-      }
-      is ChanDescriptor.ThreadDescriptor -> {
-        val resultMap = mutableMapOf<PostDescriptor, Int>()
-        val hiddenOrRemovedPosts = postHideManager.getHiddenPostsForThread(chanDescriptor)
-
-        for (hiddenOrRemovedPost in hiddenOrRemovedPosts) {
-          if (hiddenOrRemovedPost.manuallyRestored) {
-            continue
-          }
-
-          resultMap[hiddenOrRemovedPost.postDescriptor] = if (hiddenOrRemovedPost.onlyHide) {
-            PostParser.HIDDEN_POST
-          } else {
-            PostParser.REMOVED_POST
-          }
-        }
-
-        resultMap
-      }
-    }
+    val savedPosts = getSavedPosts(chanDescriptor)
+    val hiddenOrRemovedPosts = getHiddenOrRemovedPosts(chanDescriptor)
 
     val (parsedPosts, parsingDuration) = measureTimedValue {
       return@measureTimedValue processDataCollectionConcurrently(
@@ -141,6 +118,149 @@ class ParsePostsV1UseCase(
     )
   }
 
+  /**
+   * Same as [parseNewPostsPosts] but posts are parsed as soon as the reader sends them into
+   * [postBuildersToParse] while the rest of the response is still being downloaded/read. Only
+   * usable for threads because thread posts come sorted by their post numbers so every post a
+   * post may quote is already known to be internal by the time it gets parsed (catalog threads
+   * are sorted by bump order and quotes between them may point forward).
+   * */
+  @OptIn(ExperimentalTime::class)
+  suspend fun parseNewPostsPostsStreaming(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    postParser: PostParser,
+    postBuildersToParse: ReceiveChannel<ChanPostBuilder>
+  ): ParsingResult {
+    BackgroundUtils.ensureBackgroundThread()
+
+    chanPostRepository.awaitUntilInitialized()
+    boardManager.awaitUntilInitialized()
+
+    val internalIds = ConcurrentHashMap.newKeySet<Long>()
+    internalIds.addAll(chanPostRepository.getCachedThreadPostsNos(threadDescriptor))
+
+    val savedPosts = getSavedPosts(threadDescriptor)
+    val hiddenOrRemovedPosts = getHiddenOrRemovedPosts(threadDescriptor)
+    val receivedPostBuilders = mutableListWithCap<ChanPostBuilder>(64)
+    var readEndTime = 0L
+
+    val parsedPosts = supervisorScope {
+      val workerChannel = Channel<IndexedValue<ChanPostBuilder>>(capacity = THREAD_COUNT * 2)
+
+      val workers = (0 until THREAD_COUNT).map {
+        async(Dispatchers.IO) {
+          val results = mutableListOf<IndexedValue<ChanPost>>()
+
+          for ((index, postBuilder) in workerChannel) {
+            val chanPost = PostParseWorker(
+              postBuilder = postBuilder,
+              postParser = postParser,
+              internalIds = internalIds,
+              savedPosts = savedPosts,
+              hiddenOrRemovedPosts = hiddenOrRemovedPosts,
+              isParsingCatalog = false
+            ).parse()
+
+            if (chanPost != null) {
+              results += IndexedValue(index, chanPost)
+            }
+          }
+
+          return@async results
+        }
+      }
+
+      try {
+        for (postBuilder in postBuildersToParse) {
+          internalIds.add(postBuilder.id)
+          // needed for "Apply to own posts" to work correctly
+          postBuilder.isSavedReply(savedReplyManager.isSaved(postBuilder.postDescriptor))
+
+          workerChannel.send(IndexedValue(receivedPostBuilders.size, postBuilder))
+          receivedPostBuilders += postBuilder
+        }
+      } finally {
+        workerChannel.close()
+        readEndTime = System.nanoTime()
+      }
+
+      chanLoadProgressNotifier.sendProgressEvent(
+        ChanLoadProgressEvent.ParsingPosts(threadDescriptor, receivedPostBuilders.size)
+      )
+
+      return@supervisorScope workers
+        .awaitAll()
+        .flatten()
+        .sortedBy { indexedPost -> indexedPost.index }
+        .map { indexedPost -> indexedPost.value }
+    }
+
+    // Only the part of the parsing that did not overlap with reading the response
+    val parsingDuration = (System.nanoTime() - readEndTime).nanoseconds
+
+    if (receivedPostBuilders.isEmpty()) {
+      return ParsingResult(emptyList(), Duration.ZERO, 0, Duration.ZERO)
+    }
+
+    Logger.d(TAG, "parseNewPostsPostsStreaming(threadDescriptor=$threadDescriptor) -> parsedPosts=${parsedPosts.size}")
+
+    val filters = loadFilters(threadDescriptor)
+
+    chanLoadProgressNotifier.sendProgressEvent(
+      ChanLoadProgressEvent.ProcessingFilters(threadDescriptor, filters.size)
+    )
+
+    val filterProcessingDuration = measureTime {
+      processFilters(receivedPostBuilders, filters)
+    }
+
+    return ParsingResult(
+      parsedPosts = parsedPosts,
+      filterProcessionTime = filterProcessingDuration,
+      filtersCount = filters.size,
+      parsingTime = parsingDuration
+    )
+  }
+
+  private fun getSavedPosts(chanDescriptor: ChanDescriptor): Set<PostDescriptor> {
+    return when (chanDescriptor) {
+      is ChanDescriptor.ICatalogDescriptor -> {
+        emptySet()
+      }
+      is ChanDescriptor.ThreadDescriptor -> {
+        savedReplyManager.getThreadSavedReplies(chanDescriptor)
+          .map { it.postDescriptor }
+          .toSet()
+      }
+    }
+  }
+
+  private fun getHiddenOrRemovedPosts(chanDescriptor: ChanDescriptor): Map<PostDescriptor, Int> {
+    return when (chanDescriptor) {
+      is ChanDescriptor.ICatalogDescriptor -> {
+        emptyMap()
+      }
+      is ChanDescriptor.ThreadDescriptor -> {
+        val resultMap = mutableMapOf<PostDescriptor, Int>()
+        val hiddenOrRemovedPosts = postHideManager.getHiddenPostsForThread(chanDescriptor)
+
+        for (hiddenOrRemovedPost in hiddenOrRemovedPosts) {
+          if (hiddenOrRemovedPost.manuallyRestored) {
+            continue
+          }
+
+          resultMap[hiddenOrRemovedPost.postDescriptor] = if (hiddenOrRemovedPost.onlyHide) {
+            PostParser.HIDDEN_POST
+          } else {
+            PostParser.REMOVED_POST
+          }
+        }
+
+        resultMap
+      }
+    }
+  }
+
   companion object {
     private const val TAG = "ParsePostsUseCase"
   }
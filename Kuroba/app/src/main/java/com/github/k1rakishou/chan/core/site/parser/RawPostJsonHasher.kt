@@ -0,0 +1,69 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+import com.google.gson.stream.JsonReader
+
+/**
+ * Incrementally hashes (64-bit FNV-1a) every json value of a post object that is read through it
+ * so that the hash is ready as soon as the post object is consumed. If the hash of a post is the
+ * same as it was during the previous thread update then none of the values we use to build a post
+ * have changed and we can skip building/parsing this post altogether.
+ * */
+class RawPostJsonHasher {
+  private var hash = FNV_OFFSET_BASIS
+
+  val value: Long
+    get() = hash
+
+  fun nextName(reader: JsonReader): String {
+    val name = reader.nextName()
+    putString(name)
+    return name
+  }
+
+  fun nextString(reader: JsonReader): String {
+    val value = reader.nextString()
+    putString(value)
+    return value
+  }
+
+  fun nextInt(reader: JsonReader): Int {
+    val value = reader.nextInt()
+    putLong(value.toLong())
+    return value
+  }
+
+  fun nextLong(reader: JsonReader): Long {
+    val value = reader.nextLong()
+    putLong(value)
+    return value
+  }
+
+  private fun putString(value: String) {
+    for (index in value.indices) {
+      val char = value[index].code
+      putByte(char and 0xFF)
+      putByte(char ushr 8)
+    }
+
+    // Separator so that ("ab", "c") and ("a", "bc") do not produce the same hash
+    putByte(0xFF)
+  }
+
+  private fun putLong(value: Long) {
+    var remaining = value
+
+    for (i in 0 until 8) {
+      putByte((remaining and 0xFF).toInt())
+      remaining = remaining ushr 8
+    }
+  }
+
+  private fun putByte(byte: Int) {
+    hash = (hash xor byte.toLong()) * FNV_PRIME
+  }
+
+  companion object {
+    private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+    private const val FNV_PRIME = 0x100000001b3L
+  }
+}
@@ -2,6 +2,7 @@ package com.github.k1rakishou.chan.core.site.parser.processor
 
 import com.github.k1rakishou.chan.core.site.SiteSpecificError
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
 
 abstract class AbstractChanReaderProcessor {
@@ -28,6 +29,14 @@ abstract class AbstractChanReaderProcessor {
   abstract suspend fun setOp(op: ChanPostBuilder?)
   abstract suspend fun addPost(postBuilder: ChanPostBuilder)
   abstract suspend fun addManyPosts(postBuilders: List<ChanPostBuilder>)
+
+  /**
+   * Called by readers that can hash raw post json objects before building a [ChanPostBuilder] out
+   * of them. Returns true when the post is already cached and its raw json did not change since
+   * the last update, in which case the post is added as is and the reader must not build it.
+   * */
+  open suspend fun addPostIfUnchanged(postDescriptor: PostDescriptor, rawPostJsonHash: Long): Boolean = false
+
   abstract suspend fun applyChanReadOptions()
   abstract suspend fun getToParse(): List<ChanPostBuilder>
   abstract suspend fun getThreadDescriptors(): List<ChanDescriptor.ThreadDescriptor>
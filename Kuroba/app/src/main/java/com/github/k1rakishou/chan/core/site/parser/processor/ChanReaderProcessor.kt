@@ -26,6 +26,7 @@ import com.github.k1rakishou.model.data.options.ChanReadOptions
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.util.ChanPostUtils
+import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 
@@ -35,10 +36,16 @@ class ChanReaderProcessor(
   private val chanReadOptions: ChanReadOptions,
   private val chanLoadOptions: ChanLoadOptions,
   private val options: Options,
-  override val chanDescriptor: ChanDescriptor
+  override val chanDescriptor: ChanDescriptor,
+  // When not null every post that needs to be parsed is also sent here right away so that it can
+  // be parsed while the rest of the response is still being read
+  private val postsToParseChannel: SendChannel<ChanPostBuilder>? = null
 ) : AbstractChanReaderProcessor() {
   private val toParse = mutableListWithCap<ChanPostBuilder>(64)
   private val postOrderedList = mutableListWithCap<PostDescriptor>(64)
+  // Raw json hashes of the posts that are going to be built during this load. They are only stored
+  // in the cache once the posts are persisted (see [getRawPostJsonHashes]).
+  private val rawPostJsonHashes = mutableMapOf<PostDescriptor, Long>()
 
   override val canUseEmptyBoardIfBoardDoesNotExist: Boolean
     get() = false
@@ -69,6 +76,7 @@ class ChanReaderProcessor(
     lock.withLock {
       if (differsFromCached(postBuilder)) {
         toParse.add(postBuilder)
+        postsToParseChannel?.send(postBuilder)
       }
 
       postOrderedList.add(postBuilder.postDescriptor)
@@ -80,6 +88,7 @@ class ChanReaderProcessor(
       postBuilders.forEach { postBuilder ->
         if (differsFromCached(postBuilder)) {
           toParse.add(postBuilder)
+          postsToParseChannel?.send(postBuilder)
         }
 
         postOrderedList.add(postBuilder.postDescriptor)
@@ -87,6 +96,17 @@ class ChanReaderProcessor(
     }
   }
 
+  override suspend fun addPostIfUnchanged(postDescriptor: PostDescriptor, rawPostJsonHash: Long): Boolean {
+    lock.withLock {
+      if (!rawPostJsonHashMatchesCached(postDescriptor, rawPostJsonHash)) {
+        return false
+      }
+
+      postOrderedList.add(postDescriptor)
+      return true
+    }
+  }
+
   override suspend fun applyChanReadOptions() {
     if (chanDescriptor !is ChanDescriptor.ThreadDescriptor) {
       return
@@ -121,6 +141,7 @@ class ChanReaderProcessor(
 
       postOrderedList.removeAll(postDescriptorsToDelete)
       toParse.removeIfKt { postToParse -> postToParse.postDescriptor in postDescriptorsToDelete }
+      postDescriptorsToDelete.forEach { postDescriptor -> rawPostJsonHashes.remove(postDescriptor) }
     }
   }
 
@@ -139,6 +160,41 @@ class ChanReaderProcessor(
     return lock.withLock { postOrderedList.size }
   }
 
+  /**
+   * Must only be stored in the cache after the posts of this load have been persisted. Otherwise
+   * when a load fails after a post was edited the old version of the post would stay cached next
+   * to the hash of the new version and the post would be skipped as unchanged from then on.
+   * */
+  suspend fun getRawPostJsonHashes(): Map<PostDescriptor, Long> {
+    return lock.withLock { rawPostJsonHashes.toMap() }
+  }
+
+  private fun rawPostJsonHashMatchesCached(postDescriptor: PostDescriptor, rawPostJsonHash: Long): Boolean {
+    if (chanDescriptor !is ChanDescriptor.ThreadDescriptor) {
+      return false
+    }
+
+    if (postDescriptor.isOP()) {
+      return false
+    }
+
+    if (options.isDownloadingThread) {
+      return false
+    }
+
+    if (chanLoadOptions.isForceUpdating(postDescriptor)) {
+      return false
+    }
+
+    val cachedRawPostJsonHash = chanPostRepository.getRawPostJsonHash(postDescriptor)
+    if (cachedRawPostJsonHash == rawPostJsonHash && chanPostRepository.getCachedPost(postDescriptor) != null) {
+      return true
+    }
+
+    rawPostJsonHashes[postDescriptor] = rawPostJsonHash
+    return false
+  }
+
   private fun differsFromCached(builder: ChanPostBuilder): Boolean {
     if (chanDescriptor is ChanDescriptor.ICatalogDescriptor) {
       // Always update catalog posts
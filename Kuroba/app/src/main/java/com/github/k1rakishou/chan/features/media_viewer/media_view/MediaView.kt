@@ -15,6 +15,7 @@ import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.cache.FileCacheListener
 import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.cache.downloader.CancelableDownload
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadPriority
 import com.github.k1rakishou.chan.core.cache.downloader.DownloadRequestExtraInfo
 import com.github.k1rakishou.chan.core.manager.GlobalWindowInsetsManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
@@ -180,6 +181,7 @@ abstract class MediaView<T : ViewableMedia, S : MediaViewState> constructor(
     this._mediaViewToolbar!!.attach(mediaViewContract.viewerChanDescriptor, viewableMedia, this)
 
     this.mediaViewerActionStrip?.attach(mediaViewContract.viewerChanDescriptor, viewableMedia, this)
+    updateFullMediaDownloadPriority(DownloadPriority.Visible)
 
     if (audioPlayerView != null && mediaViewState.audioPlayerViewState != null) {
       audioPlayerView?.show(isLifecycleChange)
@@ -196,6 +198,7 @@ abstract class MediaView<T : ViewableMedia, S : MediaViewState> constructor(
     this._mediaViewToolbar = null
 
     this.mediaViewerActionStrip?.detach()
+    updateFullMediaDownloadPriority(DownloadPriority.Adjacent)
 
     if (audioPlayerView != null && mediaViewState.audioPlayerViewState != null) {
       audioPlayerView?.hide(
@@ -391,6 +394,8 @@ abstract class MediaView<T : ViewableMedia, S : MediaViewState> constructor(
       url = mediaLocationRemote.url,
       cacheFileType = CacheFileType.PostMediaFull,
       extraInfo = extraInfo,
+      // Pages next to the visible one are preloaded too but the visible one goes first
+      priority = if (shown) DownloadPriority.Visible else DownloadPriority.Adjacent,
       callback = object : FileCacheListener() {
         override fun onStart(chunksCount: Int) {
           super.onStart(chunksCount)
@@ -436,6 +441,13 @@ abstract class MediaView<T : ViewableMedia, S : MediaViewState> constructor(
     )
   }
 
+  private fun updateFullMediaDownloadPriority(priority: DownloadPriority) {
+    val mediaLocationRemote = viewableMedia.mediaLocation as? MediaLocation.Remote
+      ?: return
+
+    fileCacheV2.updateDownloadPriority(mediaLocationRemote.url.toString(), priority)
+  }
+
   protected fun canAutoLoad(cacheFileType: CacheFileType): Boolean {
     val threadDescriptor = viewableMedia.viewableMediaMeta.ownerPostDescriptor?.threadDescriptor()
     if (threadDescriptor != null) {
@@ -59,12 +59,15 @@ class CachingSettingsScreen(
             bottomDescriptionStringFunc = {
               val internalCacheSizeBytes = cacheHandler.get().getSize(cacheFileType)
               val internalCacheMaxSizeBytes = cacheHandler.get().getMaxSize(cacheFileType)
+              val cacheStats = cacheHandler.get().getCacheStats(cacheFileType)
 
               context.getString(
                 R.string.settings_clear_file_cache_bottom_description,
                 cacheFileType.name,
                 ChanPostUtils.getReadableFileSize(internalCacheSizeBytes),
                 ChanPostUtils.getReadableFileSize(internalCacheMaxSizeBytes),
+                (cacheStats.hitRatio * 100f).toInt(),
+                cacheStats.hits + cacheStats.misses
               )
             },
             callback = {
@@ -666,11 +666,8 @@ class PostCell @JvmOverloads constructor(
 
     val now = DateTime.now()
 
-    val insertedAtMillis = seenPostsManager.get().getSeenPostOrNull(postCellData.postDescriptor)
-      ?.insertedAt
-      ?.millis
-
-    if (insertedAtMillis == null) {
+    val insertedAtMillis = seenPostsManager.get().getSeenPostInsertedAtMillis(postCellData.postDescriptor)
+    if (insertedAtMillis < 0L) {
       return PostUnseenIndicatorFadeAnimator.ANIMATION_DURATION.toInt()
     }
 
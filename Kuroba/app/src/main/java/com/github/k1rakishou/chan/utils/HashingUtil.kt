@@ -3,6 +3,7 @@ package com.github.k1rakishou.chan.utils
 import android.util.Base64
 import android.util.Base64InputStream
 import android.util.Base64OutputStream
+import okio.ByteString.Companion.decodeBase64
 import okio.ByteString.Companion.encodeUtf8
 import okio.ByteString.Companion.toByteString
 import okio.HashingSink
@@ -13,6 +14,7 @@ import okio.source
 import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.InputStream
+import java.util.*
 
 object HashingUtil {
 
@@ -61,6 +63,30 @@ object HashingUtil {
     }
   }
 
+  /**
+   * Sites provide file md5s either as hex strings or as base64 encoded bytes (4chan, vichan,
+   * FoolFuuka's md5Base64). Returns the md5 as a lowercase hex string (the same format
+   * [inputStreamHash] returns) or null if [md5] is neither.
+   * */
+  fun md5ToHex(md5: String): String? {
+    val trimmedMd5 = md5.trim()
+
+    if (trimmedMd5.length == MD5_HEX_LENGTH && trimmedMd5.all { char -> char.isHexDigit() }) {
+      return trimmedMd5.lowercase(Locale.ENGLISH)
+    }
+
+    val decodedMd5 = trimmedMd5.decodeBase64()
+    if (decodedMd5 == null || decodedMd5.size != MD5_SIZE_BYTES) {
+      return null
+    }
+
+    return decodedMd5.hex()
+  }
+
+  private fun Char.isHexDigit(): Boolean {
+    return this in '0'..'9' || this in 'a'..'f' || this in 'A'..'F'
+  }
+
   fun stringHash(inputString: String): String {
     return inputString.encodeUtf8().md5().hex()
   }
@@ -80,4 +106,7 @@ object HashingUtil {
     return byteArray.toByteString(0, byteArray.size).sha256().hex()
   }
 
+  private const val MD5_HEX_LENGTH = 32
+  private const val MD5_SIZE_BYTES = 16
+
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+package com.github.k1rakishou.chan.benchmark
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import java.io.ByteArrayInputStream
+import java.io.InputStreamReader
+import java.nio.charset.StandardCharsets
+
+/**
+ * Synthetic thread responses (see src/test/resources/benchmark) that are used as the input for the
+ * post loading benchmarks. They are NOT captured from the real sites: the posts, comments and files
+ * are generated to follow each site's json layout and a typical mix of quotes, links and markup, so
+ * the numbers they produce are only comparable with each other, not with real world threads.
+ * */
+enum class BenchmarkFixture(
+  val resourcePath: String,
+  val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+  private val commentKey: String,
+  private val subjectKey: String,
+  private val nameKey: String
+) {
+  Chan4Thread(
+    resourcePath = "/benchmark/synthetic_4chan_thread.json",
+    threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 90000000L),
+    commentKey = "com",
+    subjectKey = "sub",
+    nameKey = "name"
+  ),
+  DvachThread(
+    resourcePath = "/benchmark/synthetic_2ch_thread.json",
+    threadDescriptor = ChanDescriptor.ThreadDescriptor.create("2ch.hk", "b", 270000000L),
+    commentKey = "comment",
+    subjectKey = "subject",
+    nameKey = "name"
+  ),
+  FoolFuukaThread(
+    resourcePath = "/benchmark/synthetic_foolfuuka_thread.json",
+    threadDescriptor = ChanDescriptor.ThreadDescriptor.create("archived.moe", "g", 88000000L),
+    commentKey = "comment_processed",
+    subjectKey = "title_processed",
+    nameKey = "name_processed"
+  );
+
+  fun readBytes(): ByteArray {
+    val inputStream = BenchmarkFixture::class.java.getResourceAsStream(resourcePath)
+      ?: throw IllegalStateException("Fixture not found: $resourcePath")
+
+    return inputStream.use { stream -> stream.readBytes() }
+  }
+
+  /**
+   * Walks the whole json document and collects the raw (html) post fields regardless of how deep
+   * inside the site-specific json structure the posts are.
+   * */
+  fun readRawPosts(): List<RawPost> {
+    val rawPosts = mutableListOf<RawPost>()
+    val reader = JsonReader(InputStreamReader(ByteArrayInputStream(readBytes()), StandardCharsets.UTF_8))
+
+    reader.use { jsonReader -> collectRawPosts(jsonReader, rawPosts) }
+    return rawPosts
+  }
+
+  private fun collectRawPosts(reader: JsonReader, rawPosts: MutableList<RawPost>) {
+    when (reader.peek()) {
+      JsonToken.BEGIN_ARRAY -> {
+        reader.beginArray()
+
+        while (reader.hasNext()) {
+          collectRawPosts(reader, rawPosts)
+        }
+
+        reader.endArray()
+      }
+      JsonToken.BEGIN_OBJECT -> {
+        var comment: String? = null
+        var subject: String? = null
+        var name: String? = null
+
+        reader.beginObject()
+
+        while (reader.hasNext()) {
+          val key = reader.nextName()
+
+          if (reader.peek() == JsonToken.STRING) {
+            val value = reader.nextString()
+
+            when (key) {
+              commentKey -> comment = value
+              subjectKey -> subject = value
+              nameKey -> name = value
+            }
+
+            continue
+          }
+
+          collectRawPosts(reader, rawPosts)
+        }
+
+        reader.endObject()
+
+        if (comment != null) {
+          rawPosts += RawPost(comment = comment, subject = subject ?: "", name = name ?: "")
+        }
+      }
+      else -> reader.skipValue()
+    }
+  }
+
+  class RawPost(
+    val comment: String,
+    val subject: String,
+    val name: String
+  )
+
+}
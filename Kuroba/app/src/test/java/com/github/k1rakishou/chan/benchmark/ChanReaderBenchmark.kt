@@ -0,0 +1,120 @@
+package com.github.k1rakishou.chan.benchmark
+
+import com.github.k1rakishou.chan.core.site.parser.ChanReader
+import com.github.k1rakishou.chan.core.site.parser.PostParser
+import com.github.k1rakishou.chan.core.site.parser.processor.AbstractChanReaderProcessor
+import com.github.k1rakishou.chan.core.site.parser.processor.ChanReaderProcessor
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkInfoObject
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.filter.FilterWatchCatalogInfoObject
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+
+/**
+ * Measures the raw cost of streaming a whole thread response through [ChanReader.readBodyJson]
+ * (Gson's JsonReader) without building any posts.
+ * */
+@State(Scope.Benchmark)
+open class ChanReaderBenchmark {
+
+  @Param("Chan4Thread", "DvachThread", "FoolFuukaThread")
+  lateinit var fixture: String
+
+  private lateinit var responseBody: ByteArray
+  private val chanReader = FixtureChanReader()
+
+  @Setup
+  fun setup() {
+    responseBody = BenchmarkFixture.valueOf(fixture).readBytes()
+  }
+
+  @Benchmark
+  fun readBodyJson(blackhole: Blackhole) {
+    runBlocking { chanReader.readWholeBody(ByteArrayInputStream(responseBody), blackhole) }
+  }
+
+  /**
+   * [ChanReader.readBodyJson] is protected, this is the only way to call it from the outside.
+   * */
+  class FixtureChanReader : ChanReader() {
+
+    suspend fun readWholeBody(inputStream: InputStream, blackhole: Blackhole) {
+      readBodyJson(inputStream) { jsonReader -> consumeValue(jsonReader, blackhole) }
+    }
+
+    private fun consumeValue(reader: JsonReader, blackhole: Blackhole) {
+      when (reader.peek()) {
+        JsonToken.BEGIN_ARRAY -> {
+          reader.beginArray()
+
+          while (reader.hasNext()) {
+            consumeValue(reader, blackhole)
+          }
+
+          reader.endArray()
+        }
+        JsonToken.BEGIN_OBJECT -> {
+          reader.beginObject()
+
+          while (reader.hasNext()) {
+            blackhole.consume(reader.nextName())
+            consumeValue(reader, blackhole)
+          }
+
+          reader.endObject()
+        }
+        JsonToken.STRING,
+        JsonToken.NUMBER -> blackhole.consume(reader.nextString())
+        JsonToken.BOOLEAN -> blackhole.consume(reader.nextBoolean())
+        else -> reader.skipValue()
+      }
+    }
+
+    override suspend fun getParser(): PostParser? = null
+
+    override suspend fun loadThreadFresh(
+      requestUrl: String,
+      responseBodyStream: InputStream,
+      chanReaderProcessor: ChanReaderProcessor
+    ) {
+      throw NotImplementedError()
+    }
+
+    override suspend fun loadCatalog(
+      requestUrl: String,
+      responseBodyStream: InputStream,
+      chanReaderProcessor: AbstractChanReaderProcessor
+    ) {
+      throw NotImplementedError()
+    }
+
+    override suspend fun readThreadBookmarkInfoObject(
+      threadDescriptor: ChanDescriptor.ThreadDescriptor,
+      expectedCapacity: Int,
+      requestUrl: String,
+      responseBodyStream: InputStream
+    ): ModularResult<ThreadBookmarkInfoObject> {
+      throw NotImplementedError()
+    }
+
+    override suspend fun readFilterWatchCatalogInfoObject(
+      boardDescriptor: BoardDescriptor,
+      requestUrl: String,
+      responseBodyStream: InputStream
+    ): ModularResult<FilterWatchCatalogInfoObject> {
+      throw NotImplementedError()
+    }
+  }
+
+}
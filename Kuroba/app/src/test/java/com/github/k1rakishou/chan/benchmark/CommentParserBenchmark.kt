@@ -0,0 +1,89 @@
+package com.github.k1rakishou.chan.benchmark
+
+import com.github.k1rakishou.chan.core.site.parser.CommentParser
+import com.github.k1rakishou.chan.core.site.parser.PostParser
+import com.github.k1rakishou.core_parser.comment.HtmlNode
+import com.github.k1rakishou.core_parser.comment.HtmlParser
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Measures [HtmlParser] alone and [HtmlParser] + [CommentParser.handleTag] over every comment of a
+ * synthetic thread fixture (the same order of operations as in DefaultPostParser, without the rest
+ * of the post building).
+ * */
+@State(Scope.Benchmark)
+open class CommentParserBenchmark {
+
+  @Param("Chan4Thread", "DvachThread", "FoolFuukaThread")
+  lateinit var fixture: String
+
+  private lateinit var comments: List<String>
+  private lateinit var commentParser: CommentParser
+
+  private val htmlParser = HtmlParser()
+  private val postBuilder = ChanPostBuilder()
+
+  private val callback = object : PostParser.Callback {
+    override fun isSaved(threadNo: Long, postNo: Long, postSubNo: Long): Boolean = false
+    override fun isHiddenOrRemoved(threadNo: Long, postNo: Long, postSubNo: Long): Int = PostParser.NORMAL_POST
+    override fun isInternal(postNo: Long): Boolean = true
+    override fun isParsingCatalogPosts(): Boolean = false
+  }
+
+  @Setup
+  fun setup() {
+    val benchmarkFixture = BenchmarkFixture.valueOf(fixture)
+
+    comments = benchmarkFixture.readRawPosts().map { rawPost -> rawPost.comment }
+    commentParser = CommentParser().addDefaultRules()
+
+    postBuilder
+      .boardDescriptor(benchmarkFixture.threadDescriptor.boardDescriptor)
+      .id(benchmarkFixture.threadDescriptor.threadNo)
+      .opId(benchmarkFixture.threadDescriptor.threadNo)
+  }
+
+  @Benchmark
+  fun htmlParser(blackhole: Blackhole) {
+    for (comment in comments) {
+      blackhole.consume(htmlParser.parse(comment))
+    }
+  }
+
+  @Benchmark
+  fun handleTag(blackhole: Blackhole) {
+    for (comment in comments) {
+      val nodes = htmlParser.parse(comment).nodes
+
+      for (node in nodes) {
+        blackhole.consume(handleNode(node))
+      }
+    }
+  }
+
+  private fun handleNode(node: HtmlNode): CharSequence? {
+    when (node) {
+      is HtmlNode.Text -> return node.text
+      is HtmlNode.Tag -> {
+        val htmlTag = commentParser.preprocessTag(node)
+        val text = StringBuilder()
+
+        for (child in htmlTag.children) {
+          val childText = handleNode(child)
+          if (childText != null) {
+            text.append(childText)
+          }
+        }
+
+        return commentParser.handleTag(callback, postBuilder, htmlTag.tagName, text, htmlTag)
+      }
+    }
+  }
+
+}
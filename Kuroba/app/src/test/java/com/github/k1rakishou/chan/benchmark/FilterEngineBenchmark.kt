@@ -0,0 +1,75 @@
+package com.github.k1rakishou.chan.benchmark
+
+import com.github.k1rakishou.chan.core.helper.FilterEngine
+import com.github.k1rakishou.chan.core.manager.ChanFilterManager
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import org.mockito.Mockito
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Measures [FilterEngine.matches] of every filter against every post of a synthetic thread fixture.
+ * */
+@State(Scope.Benchmark)
+open class FilterEngineBenchmark {
+
+  @Param("Chan4Thread", "DvachThread", "FoolFuukaThread")
+  lateinit var fixture: String
+
+  @Param("10", "200")
+  var filtersCount: Int = 0
+
+  private lateinit var posts: List<ChanPostBuilder>
+  private lateinit var filters: List<ChanFilter>
+  private lateinit var filterEngine: FilterEngine
+
+  @Setup
+  fun setup() {
+    val benchmarkFixture = BenchmarkFixture.valueOf(fixture)
+    val threadDescriptor = benchmarkFixture.threadDescriptor
+
+    posts = benchmarkFixture.readRawPosts().mapIndexed { index, rawPost ->
+      ChanPostBuilder()
+        .boardDescriptor(threadDescriptor.boardDescriptor)
+        .id(threadDescriptor.threadNo + index)
+        .opId(threadDescriptor.threadNo)
+        .op(index == 0)
+        .subject(rawPost.subject)
+        .name(rawPost.name)
+        .comment(rawPost.comment)
+    }
+
+    filters = (0 until filtersCount).map { index ->
+      val pattern = if (index % 4 == 0) {
+        // Regex filter
+        "/(word${index}|phrase ${index})\\d*/i"
+      } else {
+        // Plain word filter
+        "word${index}"
+      }
+
+      ChanFilter(
+        type = FilterType.COMMENT.flag or FilterType.SUBJECT.flag or FilterType.NAME.flag,
+        pattern = pattern
+      )
+    }
+
+    filterEngine = FilterEngine(Mockito.mock(ChanFilterManager::class.java))
+  }
+
+  @Benchmark
+  fun matches(blackhole: Blackhole) {
+    for (post in posts) {
+      for (filter in filters) {
+        blackhole.consume(filterEngine.matches(filter, post))
+      }
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package com.github.k1rakishou.chan.benchmark
+
+import com.github.k1rakishou.chan.core.manager.ArchivesManager
+import com.github.k1rakishou.chan.core.manager.BoardManager
+import com.github.k1rakishou.chan.core.manager.SiteManager
+import com.github.k1rakishou.chan.core.site.Site
+import com.github.k1rakishou.chan.core.site.SiteEndpoints
+import com.github.k1rakishou.chan.core.site.common.FutabaChanReader
+import com.github.k1rakishou.chan.core.site.parser.processor.AbstractChanReaderProcessor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import com.google.gson.stream.JsonReader
+import kotlinx.coroutines.runBlocking
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import org.mockito.Mockito
+import org.mockito.stubbing.Answer
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.io.ByteArrayInputStream
+import java.io.InputStreamReader
+import java.nio.charset.StandardCharsets
+
+/**
+ * Measures [FutabaChanReader.readPostObject] (json -> [ChanPostBuilder]) for every post of a
+ * synthetic 4chan thread fixture.
+ * */
+@State(Scope.Benchmark)
+open class FutabaChanReaderBenchmark {
+  private val fixture = BenchmarkFixture.Chan4Thread
+
+  private lateinit var responseBody: ByteArray
+  private lateinit var futabaChanReader: FutabaChanReader
+
+  @Setup
+  fun setup() {
+    responseBody = fixture.readBytes()
+
+    val dummyUrl = "https://i.4cdn.org/g/1660000000000.jpg".toHttpUrl()
+    val siteEndpoints = Mockito.mock(SiteEndpoints::class.java, Answer { invocation ->
+      if (invocation.method.returnType == HttpUrl::class.java) {
+        return@Answer dummyUrl
+      }
+
+      return@Answer null
+    })
+
+    val site = Mockito.mock(Site::class.java)
+    Mockito.`when`(site.endpoints()).thenReturn(siteEndpoints)
+
+    val siteManager = Mockito.mock(SiteManager::class.java)
+    Mockito.`when`(siteManager.bySiteDescriptor(fixture.threadDescriptor.siteDescriptor())).thenReturn(site)
+
+    futabaChanReader = FutabaChanReader(
+      Mockito.mock(ArchivesManager::class.java),
+      siteManager,
+      Mockito.mock(BoardManager::class.java)
+    )
+  }
+
+  @Benchmark
+  fun readPostObject(blackhole: Blackhole) {
+    val chanReaderProcessor = CollectingChanReaderProcessor(fixture.threadDescriptor)
+    val reader = JsonReader(InputStreamReader(ByteArrayInputStream(responseBody), StandardCharsets.UTF_8))
+
+    runBlocking {
+      reader.use { jsonReader ->
+        jsonReader.beginObject()
+
+        while (jsonReader.hasNext()) {
+          if (jsonReader.nextName() != "posts") {
+            jsonReader.skipValue()
+            continue
+          }
+
+          jsonReader.beginArray()
+
+          while (jsonReader.hasNext()) {
+            futabaChanReader.readPostObject(jsonReader, chanReaderProcessor)
+          }
+
+          jsonReader.endArray()
+        }
+
+        jsonReader.endObject()
+      }
+    }
+
+    blackhole.consume(chanReaderProcessor.posts)
+  }
+
+  /**
+   * Unlike ChanReaderProcessor this one does not go to the posts cache so that only the reading
+   * part is measured.
+   * */
+  class CollectingChanReaderProcessor(
+    override val chanDescriptor: ChanDescriptor
+  ) : AbstractChanReaderProcessor() {
+    val posts = mutableListOf<ChanPostBuilder>()
+
+    override val page: Int?
+      get() = null
+    override val canUseEmptyBoardIfBoardDoesNotExist: Boolean
+      get() = true
+
+    override suspend fun setOp(op: ChanPostBuilder?) {
+      if (op != null) {
+        closed = op.closed
+        archived = op.archived
+      }
+    }
+
+    override suspend fun addPost(postBuilder: ChanPostBuilder) {
+      posts += postBuilder
+    }
+
+    override suspend fun addManyPosts(postBuilders: List<ChanPostBuilder>) {
+      posts += postBuilders
+    }
+
+    override suspend fun applyChanReadOptions() {
+      // no-op
+    }
+
+    override suspend fun getToParse(): List<ChanPostBuilder> = posts
+
+    override suspend fun getThreadDescriptors(): List<ChanDescriptor.ThreadDescriptor> {
+      return posts.map { postBuilder -> postBuilder.postDescriptor.threadDescriptor() }
+    }
+
+    override suspend fun getTotalPostsCount(): Int = posts.size
+  }
+
+}
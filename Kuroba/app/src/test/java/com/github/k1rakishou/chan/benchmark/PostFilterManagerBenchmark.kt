@@ -0,0 +1,93 @@
+package com.github.k1rakishou.chan.benchmark
+
+import com.github.k1rakishou.chan.core.manager.PostFilterManager
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.PostFilter
+import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.Group
+import org.openjdk.jmh.annotations.GroupThreads
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Writers publish whole parsed threads into [PostFilterManager] while readers query post filters of
+ * other threads at the same time (the way PostCells do when binding). Every benchmark thread works
+ * with its own thread descriptor so the only contention is the one caused by PostFilterManager's
+ * locking.
+ * */
+@State(Scope.Group)
+open class PostFilterManagerBenchmark {
+
+  private lateinit var postFilterManager: PostFilterManager
+
+  @Setup
+  fun setup() {
+    postFilterManager = PostFilterManager(
+      verboseLogsEnabled = false,
+      appScope = CoroutineScope(Dispatchers.Unconfined),
+      chanThreadsCache = ChanThreadsCache(
+        isDevBuild = false,
+        isLowRamDevice = false,
+        maxCacheSizeBytes = 1024 * 1024,
+        chanCatalogSnapshotCache = ChanCatalogSnapshotCache()
+      )
+    )
+  }
+
+  @Benchmark
+  @Group("contention")
+  @GroupThreads(2)
+  fun insertThread(threadState: ThreadState) {
+    postFilterManager.insertMany(threadState.postFilters)
+  }
+
+  @Benchmark
+  @Group("contention")
+  @GroupThreads(4)
+  fun readThread(threadState: ThreadState, blackhole: Blackhole) {
+    blackhole.consume(postFilterManager.getManyPostFilters(threadState.postDescriptors))
+
+    for (postDescriptor in threadState.postDescriptors) {
+      blackhole.consume(postFilterManager.getFilterStubOrRemove(postDescriptor))
+    }
+  }
+
+  @State(Scope.Thread)
+  open class ThreadState {
+    lateinit var postDescriptors: List<PostDescriptor>
+    lateinit var postFilters: Map<PostDescriptor, PostFilter>
+
+    @Setup
+    fun setup() {
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+        siteName = "test",
+        boardCode = "g",
+        threadNo = THREAD_NO_START + threadIndex.getAndIncrement()
+      )
+
+      postDescriptors = (0 until POSTS_PER_THREAD).map { index ->
+        PostDescriptor.create(threadDescriptor, threadDescriptor.threadNo + index)
+      }
+
+      postFilters = postDescriptors.associateWith { postDescriptor ->
+        PostFilter(ownerFilterId = postDescriptor.postNo % 10, filterEnabled = true, filterStub = true)
+      }
+    }
+  }
+
+  companion object {
+    private const val THREAD_NO_START = 1000L
+    private const val POSTS_PER_THREAD = 300
+
+    private val threadIndex = AtomicInteger(0)
+  }
+
+}
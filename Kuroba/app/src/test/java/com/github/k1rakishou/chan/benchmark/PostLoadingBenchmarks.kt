@@ -0,0 +1,87 @@
+package com.github.k1rakishou.chan.benchmark
+
+import android.app.Application
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
+import com.github.k1rakishou.prefs.BooleanSetting
+import com.github.k1rakishou.prefs.StringSetting
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.results.format.ResultFormatType
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.OptionsBuilder
+import org.openjdk.jmh.runner.options.TimeValue
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Entry point for the post loading pipeline JMH benchmarks. Runs on the host JVM, no device needed.
+ * Skipped during regular unit test runs, to run them use:
+ *
+ * ./gradlew :app:testDevDebugUnitTest --tests "*PostLoadingBenchmarks" -Pkuroba.benchmarks=true
+ *
+ * Results are printed into the test output and written to app/build/reports/benchmarks.
+ * The benchmarks are executed inside of this test's process (forks = 0) because CommentParser needs
+ * Robolectric's android.text implementation.
+ * */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class PostLoadingBenchmarks {
+
+  @Before
+  fun setUp() {
+    Assume.assumeTrue(
+      "Benchmarks are disabled, pass -P${RUN_BENCHMARKS_PROPERTY}=true to run them",
+      System.getProperty(RUN_BENCHMARKS_PROPERTY).toBoolean()
+    )
+
+    AppModuleAndroidUtils.init(RuntimeEnvironment.application)
+
+    ChanSettings.forceHttpsUrlScheme = Mockito.mock(BooleanSetting::class.java).also { setting ->
+      Mockito.`when`(setting.get()).thenReturn(true)
+    }
+    ChanSettings.fontSize = Mockito.mock(StringSetting::class.java).also { setting ->
+      Mockito.`when`(setting.get()).thenReturn("16")
+    }
+  }
+
+  @Test
+  fun runPostLoadingBenchmarks() {
+    val resultFile = File(System.getProperty(RESULTS_DIR_PROPERTY) ?: "build/reports/benchmarks", "post_loading.json")
+    resultFile.parentFile?.mkdirs()
+
+    val options = OptionsBuilder()
+      .include(ChanReaderBenchmark::class.java.name)
+      .include(FutabaChanReaderBenchmark::class.java.name)
+      .include(CommentParserBenchmark::class.java.name)
+      .include(FilterEngineBenchmark::class.java.name)
+      .include(PostFilterManagerBenchmark::class.java.name)
+      .forks(0)
+      .threads(1)
+      .mode(Mode.AverageTime)
+      .timeUnit(TimeUnit.MICROSECONDS)
+      .warmupIterations(3)
+      .warmupTime(TimeValue.seconds(1))
+      .measurementIterations(5)
+      .measurementTime(TimeValue.seconds(1))
+      .shouldFailOnError(true)
+      .resultFormat(ResultFormatType.JSON)
+      .result(resultFile.absolutePath)
+      .build()
+
+    Runner(options).run()
+  }
+
+  companion object {
+    const val RUN_BENCHMARKS_PROPERTY = "kuroba.benchmarks"
+    const val RESULTS_DIR_PROPERTY = "kuroba.benchmarks.results_dir"
+  }
+
+}
@@ -0,0 +1,219 @@
+package com.github.k1rakishou.chan.core.cache
+
+import android.app.Application
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class CacheJournalTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `entries survive reloading`() {
+    val journalFile = File(temporaryFolder.root, "journal")
+    val journal = CacheJournal(journalFile)
+
+    assertFalse(journal.load())
+    journal.rebuild(emptyList())
+
+    journal.put(entry("1.cache", size = 100L, downloaded = false))
+    journal.put(entry("2.cache", size = 200L, downloaded = true))
+    journal.put(entry("1.cache", size = 150L, downloaded = true))
+    journal.put(entry("3.cache", size = 300L, downloaded = true))
+    assertEquals(300L, journal.remove("3.cache")!!.size)
+    assertNull(journal.remove("3.cache"))
+
+    assertEquals(350L, journal.totalSize())
+    journal.close()
+
+    val reloadedJournal = CacheJournal(journalFile)
+    assertTrue(reloadedJournal.load())
+    assertFalse(reloadedJournal.hasLostRecords())
+
+    assertEquals(2, reloadedJournal.size())
+    assertEquals(350L, reloadedJournal.totalSize())
+    assertEquals(entry("1.cache", size = 150L, downloaded = true), reloadedJournal.get("1.cache"))
+    assertEquals(entry("2.cache", size = 200L, downloaded = true), reloadedJournal.get("2.cache"))
+    assertFalse(reloadedJournal.contains("3.cache"))
+  }
+
+  @Test
+  fun `torn record at the end of the journal is dropped`() {
+    val journalFile = File(temporaryFolder.root, "journal")
+    val journal = CacheJournal(journalFile)
+
+    journal.rebuild(emptyList())
+    journal.put(entry("1.cache", size = 100L, downloaded = true))
+    journal.put(entry("2.cache", size = 200L, downloaded = true))
+    journal.close()
+
+    // Simulate the process getting killed in the middle of writing the last record
+    val validLength = journalFile.length()
+    RandomAccessFile(journalFile, "rw").use { raf -> raf.setLength(validLength - 3) }
+
+    val recoveredJournal = CacheJournal(journalFile)
+    assertTrue(recoveredJournal.load())
+    assertTrue(recoveredJournal.hasLostRecords())
+    assertEquals(1, recoveredJournal.size())
+    assertEquals(100L, recoveredJournal.totalSize())
+
+    // New records must be appended right after the last valid record
+    recoveredJournal.put(entry("3.cache", size = 300L, downloaded = true))
+    recoveredJournal.close()
+
+    val reloadedJournal = CacheJournal(journalFile)
+    assertTrue(reloadedJournal.load())
+    assertEquals(setOf("1.cache", "3.cache"), reloadedJournal.entriesSnapshot().map { it.fileName }.toSet())
+    assertEquals(400L, reloadedJournal.totalSize())
+  }
+
+  @Test
+  fun `compaction drops outdated records`() {
+    val journalFile = File(temporaryFolder.root, "journal")
+    val journal = CacheJournal(journalFile)
+
+    journal.rebuild(emptyList())
+
+    repeat(3000) { index ->
+      journal.put(entry("${index % 10}.cache", size = index.toLong(), downloaded = true))
+    }
+
+    assertTrue(journal.needsCompaction())
+    val lengthBeforeCompaction = journalFile.length()
+    val entriesBeforeCompaction = journal.entriesSnapshot()
+
+    journal.compact()
+
+    assertFalse(journal.needsCompaction())
+    assertTrue(journalFile.length() < lengthBeforeCompaction / 100)
+
+    journal.put(entry("10.cache", size = 10L, downloaded = false))
+    journal.close()
+
+    val reloadedJournal = CacheJournal(journalFile)
+    assertTrue(reloadedJournal.load())
+    assertEquals(
+      entriesBeforeCompaction + entry("10.cache", size = 10L, downloaded = false),
+      reloadedJournal.entriesSnapshot()
+    )
+  }
+
+  @Test
+  fun `access times are only written into the journal when flushed`() {
+    val journalFile = File(temporaryFolder.root, "journal")
+    val journal = CacheJournal(journalFile)
+
+    journal.rebuild(emptyList())
+    journal.put(entry("1.cache", size = 100L, downloaded = true))
+    journal.put(entry("2.cache", size = 200L, downloaded = true))
+    val lengthBeforeTouch = journalFile.length()
+
+    val accessedOn = 2000L + TimeUnit.HOURS.toMillis(1)
+    assertTrue(journal.touch("1.cache", accessedOn))
+    // Within the access time resolution, ignored
+    assertTrue(journal.touch("1.cache", accessedOn + 1000L))
+    assertFalse(journal.touch("3.cache", accessedOn))
+
+    assertEquals(accessedOn, journal.get("1.cache")!!.lastAccessedOn)
+    assertEquals(1, journal.unsavedAccessTimesCount())
+    assertEquals(lengthBeforeTouch, journalFile.length())
+
+    journal.flushAccessTimes()
+    journal.close()
+
+    assertEquals(0, journal.unsavedAccessTimesCount())
+    assertTrue(journalFile.length() > lengthBeforeTouch)
+
+    val reloadedJournal = CacheJournal(journalFile)
+    assertTrue(reloadedJournal.load())
+    assertEquals(accessedOn, reloadedJournal.get("1.cache")!!.lastAccessedOn)
+    assertEquals(2000L, reloadedJournal.get("2.cache")!!.lastAccessedOn)
+  }
+
+  @Test
+  fun `entries with the same content hash are only counted once`() {
+    val journalFile = File(temporaryFolder.root, "journal")
+    val journal = CacheJournal(journalFile)
+    val contentHash = "0123456789abcdef0123456789abcdef"
+
+    journal.rebuild(emptyList())
+    journal.put(entry("1.cache", size = 100L, downloaded = true, contentHash = contentHash))
+    journal.put(entry("2.cache", size = 100L, downloaded = true, contentHash = contentHash))
+    journal.put(entry("3.cache", size = 300L, downloaded = true))
+    journal.put(entry("4.cache", size = 0L, downloaded = false))
+
+    assertEquals(400L, journal.totalSize())
+    assertEquals(contentHash, journal.findDownloadedByContentHash(contentHash)!!.contentHash)
+    assertNull(journal.findDownloadedByContentHash("ffffffffffffffffffffffffffffffff"))
+
+    // One link of the file is still left
+    journal.remove("1.cache")
+    assertEquals(400L, journal.totalSize())
+    assertEquals("2.cache", journal.findDownloadedByContentHash(contentHash)!!.fileName)
+    journal.close()
+
+    val reloadedJournal = CacheJournal(journalFile)
+    assertTrue(reloadedJournal.load())
+    assertEquals(400L, reloadedJournal.totalSize())
+    assertEquals(contentHash, reloadedJournal.get("2.cache")!!.contentHash)
+
+    reloadedJournal.remove("2.cache")
+    assertEquals(300L, reloadedJournal.totalSize())
+    assertNull(reloadedJournal.findDownloadedByContentHash(contentHash))
+  }
+
+  @Test
+  fun `packed entries keep their segment location`() {
+    val journalFile = File(temporaryFolder.root, "journal")
+    val journal = CacheJournal(journalFile)
+    val packedEntry = entry("1.cache", size = 100L, downloaded = true)
+      .copy(segmentId = 3, segmentOffset = 4096L)
+
+    journal.rebuild(emptyList())
+    journal.put(packedEntry)
+    journal.put(entry("2.cache", size = 200L, downloaded = true))
+    journal.close()
+
+    val reloadedJournal = CacheJournal(journalFile)
+    assertTrue(reloadedJournal.load())
+    assertEquals(packedEntry, reloadedJournal.get("1.cache"))
+    assertTrue(reloadedJournal.get("1.cache")!!.isPacked)
+    assertFalse(reloadedJournal.get("2.cache")!!.isPacked)
+    assertEquals(300L, reloadedJournal.totalSize())
+    assertEquals(100L, reloadedJournal.packedSize())
+
+    reloadedJournal.remove("1.cache")
+    assertEquals(0L, reloadedJournal.packedSize())
+  }
+
+  private fun entry(
+    fileName: String,
+    size: Long,
+    downloaded: Boolean,
+    contentHash: String? = null
+  ): CacheJournal.Entry {
+    return CacheJournal.Entry(
+      fileName = fileName,
+      size = size,
+      createdOn = 1000L,
+      lastAccessedOn = 2000L,
+      downloaded = downloaded,
+      contentHash = contentHash
+    )
+  }
+
+}
@@ -0,0 +1,101 @@
+package com.github.k1rakishou.chan.core.cache
+
+import android.app.Application
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class PackedSegmentsTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `files are appended to the active segment until it is full`() {
+    val segmentsDir = File(temporaryFolder.root, "segments")
+    val packedSegments = PackedSegments(segmentsDir, maxSegmentSize = 100L)
+    packedSegments.load()
+
+    val file1 = bytes(40, 1)
+    val file2 = bytes(50, 2)
+    val file3 = bytes(30, 3)
+
+    val location1 = packedSegments.append(writeFile("1.cache", file1))
+    val location2 = packedSegments.append(file2)
+    val location3 = packedSegments.append(writeFile("3.cache", file3))
+
+    assertEquals(PackedSegments.Location(segmentId = 0, offset = 0L), location1)
+    assertEquals(PackedSegments.Location(segmentId = 0, offset = 40L), location2)
+    // Doesn't fit into the first segment
+    assertEquals(PackedSegments.Location(segmentId = 1, offset = 0L), location3)
+
+    assertArrayEquals(file1, packedSegments.read(location1.segmentId, location1.offset, file1.size))
+    assertArrayEquals(file2, packedSegments.read(location2.segmentId, location2.offset, file2.size))
+    assertArrayEquals(file3, packedSegments.read(location3.segmentId, location3.offset, file3.size))
+
+    assertEquals(listOf(0), packedSegments.sealedSegmentIds())
+    assertEquals(120L, packedSegments.totalLength())
+  }
+
+  @Test
+  fun `last segment is continued after reloading`() {
+    val segmentsDir = File(temporaryFolder.root, "segments")
+    val packedSegments = PackedSegments(segmentsDir, maxSegmentSize = 100L)
+    packedSegments.load()
+
+    val file1 = bytes(40, 1)
+    val location1 = packedSegments.append(file1)
+
+    val reloadedPackedSegments = PackedSegments(segmentsDir, maxSegmentSize = 100L)
+    reloadedPackedSegments.load()
+
+    val file2 = bytes(20, 2)
+    val location2 = reloadedPackedSegments.append(file2)
+
+    assertEquals(PackedSegments.Location(segmentId = 0, offset = 40L), location2)
+    assertEquals(60L, reloadedPackedSegments.totalLength())
+    assertArrayEquals(file1, reloadedPackedSegments.read(location1.segmentId, location1.offset, file1.size))
+    assertArrayEquals(file2, reloadedPackedSegments.read(location2.segmentId, location2.offset, file2.size))
+  }
+
+  @Test
+  fun `reading from a deleted or too short segment returns null`() {
+    val segmentsDir = File(temporaryFolder.root, "segments")
+    val packedSegments = PackedSegments(segmentsDir, maxSegmentSize = 100L)
+    packedSegments.load()
+
+    val location1 = packedSegments.append(bytes(80, 1))
+    val location2 = packedSegments.append(bytes(80, 2))
+
+    assertNull(packedSegments.read(location2.segmentId, location2.offset, 81))
+
+    packedSegments.deleteSegment(location1.segmentId)
+    assertNull(packedSegments.read(location1.segmentId, location1.offset, 80))
+    assertEquals(emptyList<Int>(), packedSegments.sealedSegmentIds())
+    assertEquals(80L, packedSegments.totalLength())
+
+    packedSegments.clear()
+    assertNull(packedSegments.read(location2.segmentId, location2.offset, 80))
+  }
+
+  private fun writeFile(name: String, bytes: ByteArray): File {
+    val file = File(temporaryFolder.root, name)
+    file.writeBytes(bytes)
+
+    return file
+  }
+
+  private fun bytes(size: Int, value: Int): ByteArray {
+    return ByteArray(size) { index -> (value + index).toByte() }
+  }
+
+}
@@ -0,0 +1,87 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import android.app.Application
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class CancelableDownloadTest {
+  private val requestCancellationThread = Executors.newSingleThreadExecutor()
+
+  @After
+  fun tearDown() {
+    requestCancellationThread.shutdown()
+  }
+
+  @Test
+  fun `download is only canceled once every subscriber cancels`() {
+    val disposed = AtomicInteger(0)
+    val cancelableDownload = createDownload(isPrefetchDownload = false)
+    cancelableDownload.addDisposeFuncList { disposed.incrementAndGet() }
+
+    val first = cancelableDownload.subscribe(null)
+    val second = cancelableDownload.subscribe(null)
+
+    first.cancel()
+    assertEquals(DownloadState.Canceled, first.getState())
+    assertTrue(second.isRunning())
+    assertTrue(cancelableDownload.isRunning())
+    assertEquals(0, disposed.get())
+
+    // Canceling the same subscription again changes nothing
+    first.cancel()
+    assertTrue(cancelableDownload.isRunning())
+
+    second.cancel()
+    assertEquals(DownloadState.Canceled, cancelableDownload.getState())
+    assertEquals(1, disposed.get())
+  }
+
+  @Test
+  fun `prefetch is not canceled by the regular cancel of its last subscriber`() {
+    val disposed = AtomicInteger(0)
+    val cancelableDownload = createDownload(isPrefetchDownload = true)
+    cancelableDownload.addDisposeFuncList { disposed.incrementAndGet() }
+
+    cancelableDownload.subscribe(null).cancel()
+    assertEquals(0, disposed.get())
+
+    val prefetchDownload = createDownload(isPrefetchDownload = true)
+    prefetchDownload.addDisposeFuncList { disposed.incrementAndGet() }
+
+    prefetchDownload.subscribe(null).cancelPrefetch()
+    assertEquals(1, disposed.get())
+  }
+
+  @Test
+  fun `subscribers see the state of the download`() {
+    val cancelableDownload = createDownload(isPrefetchDownload = false)
+    val subscription = cancelableDownload.subscribe(null)
+
+    cancelableDownload.stop()
+    assertEquals(DownloadState.Stopped, subscription.getState())
+    assertFalse(subscription.isRunning())
+    assertEquals(1, cancelableDownload.subscribersCount())
+  }
+
+  private fun createDownload(isPrefetchDownload: Boolean): CancelableDownload {
+    return CancelableDownload(
+      url = "https://example.com/image.jpg",
+      downloadType = CancelableDownload.DownloadType(
+        isPrefetchDownload = isPrefetchDownload,
+        isGalleryBatchDownload = isPrefetchDownload
+      ),
+      requestCancellationThread = requestCancellationThread
+    )
+  }
+
+}
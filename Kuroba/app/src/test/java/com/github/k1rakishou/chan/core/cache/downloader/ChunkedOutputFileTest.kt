@@ -0,0 +1,108 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+
+class ChunkedOutputFileTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `chunks written out of order end up at their offsets`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    val data = ByteArray(1000) { index -> index.toByte() }
+    val chunks = chunkLong(data.size.toLong(), 3, 1)
+
+    val chunkedOutputFile = ChunkedOutputFile(output, chunks, data.size.toLong())
+    assertEquals(data.size.toLong(), output.length())
+
+    chunks.reversed().forEach { chunk ->
+      chunkedOutputFile.write(chunk, chunk.start, ByteBuffer.wrap(data, chunk.start.toInt(), chunk.chunkSize().toInt()))
+      chunkedOutputFile.markChunkCompleted(chunk, chunk.chunkSize())
+    }
+
+    assertTrue(chunkedOutputFile.missingChunks().isEmpty())
+    chunkedOutputFile.finish()
+
+    assertArrayEquals(data, output.readBytes())
+  }
+
+  @Test
+  fun `missing chunks are reported until every chunk is completed`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    val chunks = chunkLong(100, 2, 1)
+
+    val chunkedOutputFile = ChunkedOutputFile(output, chunks, 100)
+    chunkedOutputFile.write(chunks[0], chunks[0].start, ByteBuffer.wrap(ByteArray(50)))
+    chunkedOutputFile.markChunkCompleted(chunks[0], 50)
+
+    assertEquals(listOf(chunks[1]), chunkedOutputFile.missingChunks())
+    chunkedOutputFile.close()
+  }
+
+  @Test(expected = IOException::class)
+  fun `partially downloaded chunk can't be marked as completed`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    val chunks = chunkLong(100, 2, 1)
+
+    ChunkedOutputFile(output, chunks, 100).use { chunkedOutputFile ->
+      chunkedOutputFile.markChunkCompleted(chunks[1], 10)
+    }
+  }
+
+  @Test
+  fun `whole file chunk is trimmed to the downloaded size`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    output.writeBytes(ByteArray(500) { 1 })
+
+    val data = ByteArray(300) { index -> (index * 3).toByte() }
+    val chunk = Chunk.wholeFile()
+
+    // The expected size (from the HEAD request) turned out to be wrong
+    val chunkedOutputFile = ChunkedOutputFile(output, listOf(chunk), 400)
+    chunkedOutputFile.write(chunk, 0, ByteBuffer.wrap(data))
+    chunkedOutputFile.markChunkCompleted(chunk, data.size.toLong())
+    chunkedOutputFile.finish()
+
+    assertArrayEquals(data, output.readBytes())
+  }
+
+  @Test
+  fun `unfinished range is split off but never below the min chunk size`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    val chunks = chunkLong(100, 2, 1)
+    val clock = AtomicLong(0L)
+
+    val chunkedOutputFile = ChunkedOutputFile(output, chunks, 100, currentTimeMillis = clock::get)
+    chunkedOutputFile.write(chunks[0], 0, ByteBuffer.wrap(ByteArray(10)))
+
+    // The first chunk has only just started so its speed is unknown yet
+    assertNull(chunkedOutputFile.splitSlowestChunk(idleBytesPerSecond = 1000, minChunkSize = 10))
+
+    // Nothing has been written to the second chunk yet so only the first one can be split
+    clock.set(1000L)
+    val splitChunk = chunkedOutputFile.splitSlowestChunk(idleBytesPerSecond = 1000, minChunkSize = 10)
+    assertEquals(Chunk(20, 50), splitChunk)
+    assertEquals(Chunk(0, 20), chunkedOutputFile.currentRange(chunks[0]))
+
+    // The first chunk can't write past its new end anymore
+    assertEquals(10, chunkedOutputFile.write(chunks[0], 10, ByteBuffer.wrap(ByteArray(40))))
+
+    // Nothing is big enough to be split anymore
+    chunkedOutputFile.write(chunks[1], 50, ByteBuffer.wrap(ByteArray(5)))
+    clock.set(2000L)
+    assertNull(chunkedOutputFile.splitSlowestChunk(idleBytesPerSecond = 1000, minChunkSize = 25))
+    chunkedOutputFile.close()
+  }
+
+}
\ No newline at end of file
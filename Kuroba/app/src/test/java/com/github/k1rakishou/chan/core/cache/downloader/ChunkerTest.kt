@@ -0,0 +1,49 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class ChunkerTest {
+
+  @Test
+  fun `small files are downloaded over a single connection`() {
+    // 1 MB/s per connection, a 500 KB file takes less than a second to download
+    assertEquals(1, adaptiveChunksCount(500L * KB, 4, 1024L * KB, 8L * KB))
+  }
+
+  @Test
+  fun `chunks count depends on the observed throughput`() {
+    val fileLength = 3L * 1024L * KB
+
+    assertEquals(3, adaptiveChunksCount(fileLength, 4, 1024L * KB, 8L * KB))
+    // Fast connection, one is enough
+    assertEquals(1, adaptiveChunksCount(fileLength, 4, 8L * 1024L * KB, 8L * KB))
+    // Slow connection, as many as allowed
+    assertEquals(4, adaptiveChunksCount(fileLength, 4, 64L * KB, 8L * KB))
+  }
+
+  @Test
+  fun `chunks are never smaller than the min chunk size`() {
+    assertEquals(64L * KB, adaptiveMinChunkSize(1L, 64L * KB))
+    assertEquals(4, adaptiveChunksCount(1024L * KB, 4, 0L, 64L * KB))
+    assertEquals(2, adaptiveChunksCount(128L * KB, 4, 0L, 64L * KB))
+  }
+
+  @Test
+  fun `missing ranges are split in half until there are enough chunks`() {
+    val ranges = listOf(Chunk(0, 10L * KB), Chunk(100L * KB, 300L * KB))
+
+    assertEquals(
+      listOf(Chunk(0, 10L * KB), Chunk(100L * KB, 200L * KB), Chunk(200L * KB, 300L * KB)),
+      chunkRanges(ranges, 3, 8L * KB)
+    )
+
+    // Too small to be split
+    assertEquals(ranges, chunkRanges(ranges, 4, 128L * KB))
+  }
+
+  companion object {
+    private const val KB = 1024L
+  }
+
+}
@@ -0,0 +1,434 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import android.app.Application
+import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.fsaf.BadPathSymbolResolutionStrategy
+import com.github.k1rakishou.fsaf.FileManager
+import com.github.k1rakishou.fsaf.manager.base_directory.DirectoryManager
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import dagger.Lazy
+import io.reactivex.Flowable
+import io.reactivex.schedulers.Schedulers
+import io.reactivex.subscribers.TestSubscriber
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.ResponseBody.Companion.asResponseBody
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
+import okio.Source
+import okio.Timeout
+import okio.buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class ConcurrentChunkedFileDownloaderTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val executor = Executors.newFixedThreadPool(4)
+  private val workerScheduler = Schedulers.from(executor)
+  private val requestCancellationThread = Executors.newSingleThreadExecutor()
+  private val okHttpClient = OkHttpClient()
+  private lateinit var server: MockWebServer
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+    executor.shutdown()
+    requestCancellationThread.shutdown()
+  }
+
+  @Test
+  fun `unfinished range of the slowest chunk is downloaded by an idle connection`() {
+    val url = server.url("/image.jpg").toString()
+    val data = ByteArray(256 * 1024) { index -> (index * 7).toByte() }
+    val chunks = chunkLong(data.size.toLong(), 2, 1)
+    val minChunkSize = 16L * 1024L
+
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        val (start, end) = request.getHeader("Range")!!
+          .removePrefix("bytes=")
+          .split("-")
+          .map { value -> value.toInt() }
+
+        return MockResponse()
+          .setResponseCode(206)
+          .setBody(Buffer().write(data, start, end - start + 1))
+      }
+    }
+
+    val activeDownloads = ActiveDownloads()
+    activeDownloads.put(url, downloadRequest(url, data.size.toLong()))
+
+    val downloadScheduler = DownloadScheduler(maxBackgroundDownloads = 1) { }
+    val chunkPersister = ChunkPersister(activeDownloads, downloadScheduler, verboseLogs = false)
+    val downloader = createDownloader(activeDownloads, chunkPersister)
+
+    val clock = AtomicLong(0L)
+    val output = File(temporaryFolder.root, "output.cache")
+    val chunkedOutputFile = ChunkedOutputFile(
+      output = output,
+      chunks = chunks,
+      expectedLength = data.size.toLong(),
+      currentTimeMillis = clock::get
+    )
+    val totalDownloaded = AtomicLong(0L)
+
+    // The first chunk's connection stalls after 32 KB
+    val slowSource = StallingSource(data, chunks[0], stallAt = 32 * 1024)
+    val slowChunk = storeChunk(chunkPersister, url, chunks[0], slowSource, chunkedOutputFile, totalDownloaded, 0)
+    assertTrue(slowSource.stalled.await(10, TimeUnit.SECONDS))
+
+    // The second chunk is downloaded a second later at a much higher speed
+    clock.set(1000L)
+    val fastSource = StallingSource(data, chunks[1], stallAt = Int.MAX_VALUE)
+    storeChunk(chunkPersister, url, chunks[1], fastSource, chunkedOutputFile, totalDownloaded, 1)
+      .awaitSuccess()
+
+    // The first chunk keeps the least it's allowed to (the rest of its range would take it 3 seconds
+    // while the idle connection needs ~0.1 second), everything after that is downloaded by the idle
+    // connection
+    val idleConnection = Flowable.defer {
+      downloader.splitSlowestChunk(url, totalDownloaded, 1, chunks.size, chunkedOutputFile, minChunkSize)
+    }
+      .subscribeOn(workerScheduler)
+      .test()
+
+    idleConnection.awaitSuccess()
+    assertEquals(1, server.requestCount)
+    assertEquals("bytes=${48 * 1024}-${128 * 1024 - 1}", server.takeRequest().getHeader("Range"))
+    assertEquals(Chunk(0, 48L * 1024L), chunkedOutputFile.currentRange(chunks[0]))
+
+    // The first chunk stops once it reaches the new end of its range
+    slowSource.resume.countDown()
+    val slowChunkSuccess = slowChunk.awaitSuccess()
+    assertEquals(48L * 1024L, slowChunkSuccess.downloaded)
+
+    assertTrue(chunkedOutputFile.missingChunks().isEmpty())
+    assertEquals(data.size.toLong(), totalDownloaded.get())
+
+    chunkedOutputFile.finish()
+    assertArrayEquals(data, output.readBytes())
+  }
+
+  @Test
+  fun `resume state of a failed download is saved before the error is delivered`() {
+    val url = server.url("/image.jpg").toString()
+    val data = ByteArray(FILE_SIZE.toInt()) { index -> (index * 7).toByte() }
+
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        val (start, end) = request.getHeader("Range")!!
+          .removePrefix("bytes=")
+          .split("-")
+          .map { value -> value.toInt() }
+
+        // The connection breaks in the middle of the body
+        return MockResponse()
+          .setResponseCode(206)
+          .setBody(Buffer().write(data, start, end - start + 1))
+          .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY)
+      }
+    }
+
+    val activeDownloads = ActiveDownloads()
+    activeDownloads.put(url, downloadRequest(url, FILE_SIZE))
+
+    // The download fails long before the first periodic save of the resume state
+    val resumeStateFile = File(temporaryFolder.root, "output.resume")
+    val resumeStateExistedOnError = AtomicBoolean(false)
+
+    val download = downloadInternal(activeDownloads, url, resumeStateFile)
+      .doOnError { resumeStateExistedOnError.set(resumeStateFile.exists()) }
+      .test()
+
+    assertTrue(download.awaitTerminalEvent(10, TimeUnit.SECONDS))
+    assertEquals(1, download.errorCount())
+    awaitWorkers()
+
+    // FileCacheV2 only keeps the output of a failed download when its resume state exists
+    assertTrue(resumeStateExistedOnError.get())
+    val resumeState = DownloadResumeState.read(resumeStateFile)!!
+    assertEquals(FILE_SIZE, resumeState.length)
+    assertEquals(VALIDATOR, resumeState.validator)
+    assertTrue(resumeState.downloadedRanges.isNotEmpty())
+  }
+
+  @Test
+  fun `resume state is not saved when the download fails before the first byte`() {
+    val url = server.url("/image.jpg").toString()
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        return MockResponse().setResponseCode(500)
+      }
+    }
+
+    val activeDownloads = ActiveDownloads()
+    activeDownloads.put(url, downloadRequest(url, FILE_SIZE))
+
+    val resumeStateFile = File(temporaryFolder.root, "output.resume")
+
+    val download = downloadInternal(activeDownloads, url, resumeStateFile).test()
+
+    assertTrue(download.awaitTerminalEvent(10, TimeUnit.SECONDS))
+    download.assertError(FileCacheException.HttpCodeException::class.java)
+    awaitWorkers()
+
+    // Otherwise FileCacheV2 would keep the preallocated output file that has nothing in it
+    assertFalse(resumeStateFile.exists())
+  }
+
+  @Test
+  fun `resume state of a canceled download is deleted before the error is delivered`() {
+    val url = server.url("/image.jpg").toString()
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        return MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE)
+      }
+    }
+
+    val downloadRequest = downloadRequest(url, FILE_SIZE)
+    val activeDownloads = ActiveDownloads()
+    activeDownloads.put(url, downloadRequest)
+
+    // Saved by one of the periodic saves
+    val resumeStateFile = File(temporaryFolder.root, "output.resume")
+    DownloadResumeState(FILE_SIZE, VALIDATOR, emptyList()).write(resumeStateFile)
+    val resumeStateExistedOnError = AtomicBoolean(true)
+
+    val download = downloadInternal(activeDownloads, url, resumeStateFile)
+      .doOnError { resumeStateExistedOnError.set(resumeStateFile.exists()) }
+      .test()
+
+    // Both chunks are waiting for their responses
+    repeat(2) { assertNotNull(server.takeRequest(10, TimeUnit.SECONDS)) }
+    downloadRequest.cancelableDownload.cancel()
+
+    assertTrue(download.awaitTerminalEvent(10, TimeUnit.SECONDS))
+    download.assertError(FileCacheException.CancellationException::class.java)
+    awaitWorkers()
+
+    // FileCacheV2 deletes the output of a canceled download, nothing may be saved after that
+    assertFalse(resumeStateExistedOnError.get())
+    assertFalse(resumeStateFile.exists())
+  }
+
+  private fun downloadInternal(
+    activeDownloads: ActiveDownloads,
+    url: String,
+    resumeStateFile: File
+  ): Flowable<FileDownloadResult> {
+    val downloadScheduler = DownloadScheduler(maxBackgroundDownloads = 1) { }
+    val chunkPersister = ChunkPersister(activeDownloads, downloadScheduler, verboseLogs = false)
+    val downloader = createDownloader(activeDownloads, chunkPersister)
+
+    val output = File(temporaryFolder.root, "output.cache")
+    output.createNewFile()
+
+    val partialContentCheckResult = PartialContentCheckResult(
+      supportsPartialContentDownload = true,
+      length = FILE_SIZE,
+      validator = VALIDATOR
+    )
+
+    return Flowable.defer {
+      downloader.downloadInternal(
+        url = url,
+        chunks = chunkLong(FILE_SIZE, 2, 1),
+        partialContentCheckResult = partialContentCheckResult,
+        output = output,
+        resumeState = null,
+        resumeStateFile = resumeStateFile
+      )
+    }
+      .subscribeOn(workerScheduler)
+  }
+
+  /**
+   * The download's own cleanup runs on the worker threads after the terminal event is delivered.
+   * */
+  private fun awaitWorkers() {
+    executor.shutdown()
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+  }
+
+  private fun storeChunk(
+    chunkPersister: ChunkPersister,
+    url: String,
+    chunk: Chunk,
+    source: Source,
+    chunkedOutputFile: ChunkedOutputFile,
+    totalDownloaded: AtomicLong,
+    chunkIndex: Int
+  ): TestSubscriber<ChunkDownloadEvent> {
+    val response = Response.Builder()
+      .request(Request.Builder().url(url).build())
+      .protocol(Protocol.HTTP_1_1)
+      .code(206)
+      .message("Partial Content")
+      .body(source.buffer().asResponseBody(contentLength = chunk.chunkSize()))
+      .build()
+
+    return Flowable.defer {
+      chunkPersister.storeChunkInFile(
+        url = url,
+        chunkResponse = ChunkResponse(chunk, response),
+        chunkedOutputFile = chunkedOutputFile,
+        totalDownloaded = totalDownloaded,
+        chunkIndex = chunkIndex,
+        totalChunksCount = 2
+      )
+    }
+      .subscribeOn(workerScheduler)
+      .test()
+  }
+
+  private fun TestSubscriber<ChunkDownloadEvent>.awaitSuccess(): ChunkDownloadEvent.ChunkSuccess {
+    assertTrue(awaitTerminalEvent(10, TimeUnit.SECONDS))
+    assertNoErrors()
+    assertComplete()
+
+    return values().filterIsInstance<ChunkDownloadEvent.ChunkSuccess>().single()
+  }
+
+  private fun createDownloader(
+    activeDownloads: ActiveDownloads,
+    chunkPersister: ChunkPersister
+  ): ConcurrentChunkedFileDownloader {
+    val siteResolver = mock<SiteResolver>()
+    val cacheHandler = mock<Lazy<CacheHandler>>()
+    val realDownloaderOkHttpClient = mock<RealDownloaderOkHttpClient> {
+      on { okHttpClient() } doReturn okHttpClient
+    }
+
+    val fileManager = FileManager(
+      appContext = RuntimeEnvironment.application,
+      badPathSymbolResolutionStrategy = BadPathSymbolResolutionStrategy.ReplaceBadSymbols,
+      directoryManager = DirectoryManager(RuntimeEnvironment.application)
+    )
+
+    return ConcurrentChunkedFileDownloader(
+      siteResolver = siteResolver,
+      chunkDownloader = ChunkDownloader(
+        downloaderOkHttpClient = Lazy { realDownloaderOkHttpClient },
+        siteResolver = siteResolver,
+        activeDownloads = activeDownloads,
+        verboseLogs = false,
+        appConstants = mock<AppConstants>()
+      ),
+      chunkPersister = chunkPersister,
+      downloadFinalizer = DownloadFinalizer(fileManager, cacheHandler, activeDownloads, verboseLogs = false),
+      throughputEstimator = ChunkThroughputEstimator(),
+      workerScheduler = workerScheduler,
+      backgroundWorkerScheduler = workerScheduler,
+      verboseLogs = false,
+      activeDownloads = activeDownloads,
+      cacheHandler = cacheHandler
+    )
+  }
+
+  private fun downloadRequest(url: String, fileSize: Long): FileDownloadRequest {
+    val cancelableDownload = CancelableDownload(
+      url = url,
+      downloadType = CancelableDownload.DownloadType(
+        isPrefetchDownload = false,
+        isGalleryBatchDownload = false
+      ),
+      requestCancellationThread = requestCancellationThread
+    )
+
+    return FileDownloadRequest(
+      url = url,
+      downloaded = AtomicLong(0L),
+      total = AtomicLong(fileSize),
+      cancelableDownload = cancelableDownload,
+      extraInfo = DownloadRequestExtraInfo(fileSize = fileSize),
+      cacheFileType = CacheFileType.PostMediaFull
+    )
+  }
+
+  companion object {
+    private const val FILE_SIZE = 256L * 1024L
+    private const val VALIDATOR = "\"abc\""
+  }
+
+  /**
+   * The body of the [chunk]'s response that stops sending anything after [stallAt] bytes until
+   * [resume] is released.
+   * */
+  private class StallingSource(
+    private val data: ByteArray,
+    private val chunk: Chunk,
+    private val stallAt: Int
+  ) : Source {
+    val stalled = CountDownLatch(1)
+    val resume = CountDownLatch(1)
+
+    private var position = 0
+
+    override fun read(sink: Buffer, byteCount: Long): Long {
+      val chunkSize = chunk.chunkSize().toInt()
+      if (position >= chunkSize) {
+        return -1
+      }
+
+      if (position == stallAt) {
+        stalled.countDown()
+        check(resume.await(10, TimeUnit.SECONDS)) { "Never resumed" }
+      }
+
+      val end = if (position < stallAt) stallAt.coerceAtMost(chunkSize) else chunkSize
+      val toRead = minOf(byteCount, (end - position).toLong()).toInt()
+
+      sink.write(data, chunk.start.toInt() + position, toRead)
+      position += toRead
+
+      return toRead.toLong()
+    }
+
+    override fun timeout(): Timeout = Timeout.NONE
+
+    override fun close() {
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import android.app.Application
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.nio.ByteBuffer
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class DownloadResumeStateTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `state is read back the same as it was written`() {
+    val file = File(temporaryFolder.root, "1.resume")
+    val ranges = listOf(Chunk(0, 100), Chunk(300, 400))
+
+    DownloadResumeState(1000, "\"etag\"", ranges).write(file)
+    val state = DownloadResumeState.read(file)!!
+
+    assertEquals(1000L, state.length)
+    assertEquals("\"etag\"", state.validator)
+    assertEquals(ranges, state.downloadedRanges)
+    assertEquals(200L, state.downloadedBytes())
+    assertEquals(listOf(Chunk(100, 300), Chunk(400, 1000)), state.missingRanges())
+  }
+
+  @Test
+  fun `broken state is not used`() {
+    val file = File(temporaryFolder.root, "1.resume")
+
+    file.writeBytes(ByteArray(3))
+    assertNull(DownloadResumeState.read(file))
+
+    // The range is outside of the file
+    DownloadResumeState(100, "\"etag\"", listOf(Chunk(50, 200))).write(file)
+    assertNull(DownloadResumeState.read(file))
+
+    assertNull(DownloadResumeState.read(File(temporaryFolder.root, "2.resume")))
+  }
+
+  @Test
+  fun `overlapping and adjacent ranges are merged`() {
+    val ranges = listOf(Chunk(50, 60), Chunk(0, 10), Chunk(10, 20), Chunk(55, 70), Chunk(30, 30))
+    assertEquals(listOf(Chunk(0, 20), Chunk(50, 70)), DownloadResumeState.mergeRanges(ranges))
+  }
+
+  @Test
+  fun `unfinished download is resumed from the persisted ranges`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    val resumeStateFile = File(temporaryFolder.root, "output.resume")
+    val data = ByteArray(1000) { index -> (index * 5).toByte() }
+    val chunks = chunkLong(data.size.toLong(), 2, 1)
+
+    ChunkedOutputFile(output, chunks, data.size.toLong(), resumeStateFile = resumeStateFile, validator = "\"etag\"").use { chunkedOutputFile ->
+      chunkedOutputFile.write(chunks[0], 0, ByteBuffer.wrap(data, 0, 500))
+      chunkedOutputFile.markChunkCompleted(chunks[0], 500)
+      chunkedOutputFile.write(chunks[1], 500, ByteBuffer.wrap(data, 500, 200))
+    }
+
+    // The process got killed here
+    val state = DownloadResumeState.read(resumeStateFile)
+    assertNotNull(state)
+    assertEquals(listOf(Chunk(0, 700)), state!!.downloadedRanges)
+
+    val missingChunks = chunkRanges(state.missingRanges(), 2, 1)
+    assertEquals(listOf(Chunk(700, 850), Chunk(850, 1000)), missingChunks)
+
+    val chunkedOutputFile = ChunkedOutputFile(
+      output = output,
+      chunks = missingChunks,
+      expectedLength = state.length,
+      downloadedRanges = state.downloadedRanges,
+      resumeStateFile = resumeStateFile,
+      validator = state.validator
+    )
+
+    assertEquals(missingChunks, chunkedOutputFile.missingChunks())
+
+    missingChunks.forEach { chunk ->
+      chunkedOutputFile.write(chunk, chunk.start, ByteBuffer.wrap(data, chunk.start.toInt(), chunk.chunkSize().toInt()))
+      chunkedOutputFile.markChunkCompleted(chunk, chunk.chunkSize())
+    }
+
+    chunkedOutputFile.finish()
+    assertEquals(data.toList(), output.readBytes().toList())
+  }
+
+  @Test
+  fun `different validators disable resuming`() {
+    val output = File(temporaryFolder.root, "output.cache")
+    val resumeStateFile = File(temporaryFolder.root, "output.resume")
+    val chunks = chunkLong(100, 2, 1)
+
+    ChunkedOutputFile(output, chunks, 100, resumeStateFile = resumeStateFile).use { chunkedOutputFile ->
+      chunkedOutputFile.updateValidator("\"etag1\"")
+      chunkedOutputFile.write(chunks[0], 0, ByteBuffer.wrap(ByteArray(50)))
+      chunkedOutputFile.markChunkCompleted(chunks[0], 50)
+      assertNotNull(DownloadResumeState.read(resumeStateFile))
+
+      chunkedOutputFile.updateValidator("\"etag2\"")
+    }
+
+    assertNull(DownloadResumeState.read(resumeStateFile))
+  }
+
+}
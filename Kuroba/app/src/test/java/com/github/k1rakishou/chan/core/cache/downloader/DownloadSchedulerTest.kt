@@ -0,0 +1,132 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import android.app.Application
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.Executors
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class DownloadSchedulerTest {
+
+  private val requestCancellationThread = Executors.newSingleThreadExecutor()
+  private val started = mutableListOf<String>()
+  private val downloadScheduler = DownloadScheduler(maxBackgroundDownloads = 1) { cancelableDownload ->
+    started += cancelableDownload.url
+  }
+
+  @After
+  fun tearDown() {
+    requestCancellationThread.shutdown()
+  }
+
+  @Test
+  fun `background downloads wait for a free slot and visible ones start right away`() {
+    val prefetch1 = download("prefetch1", isPrefetch = true)
+    val prefetch2 = download("prefetch2", isPrefetch = true)
+    val visible = download("visible")
+
+    downloadScheduler.enqueue(prefetch1, DownloadPriority.Prefetch)
+    downloadScheduler.enqueue(prefetch2, DownloadPriority.Prefetch)
+    downloadScheduler.enqueue(visible, DownloadPriority.Visible)
+    assertEquals(listOf("prefetch1", "visible"), started)
+
+    downloadScheduler.onDownloadFinished(prefetch1)
+    assertEquals(listOf("prefetch1", "visible", "prefetch2"), started)
+  }
+
+  @Test
+  fun `adjacent downloads start after the visible one`() {
+    val visible = download("visible")
+    val adjacent = download("adjacent")
+
+    downloadScheduler.enqueue(visible, DownloadPriority.Visible)
+    downloadScheduler.enqueue(adjacent, DownloadPriority.Adjacent)
+    assertEquals(listOf("visible"), started)
+
+    // Swiped to the adjacent page
+    downloadScheduler.updatePriority(visible, DownloadPriority.Adjacent)
+    downloadScheduler.updatePriority(adjacent, DownloadPriority.Visible)
+    assertEquals(listOf("visible", "adjacent"), started)
+  }
+
+  @Test
+  fun `canceled pending download is started right away`() {
+    val visible = download("visible")
+    val adjacent = download("adjacent")
+
+    downloadScheduler.enqueue(visible, DownloadPriority.Visible)
+    downloadScheduler.enqueue(adjacent, DownloadPriority.Adjacent)
+    assertEquals(listOf("visible"), started)
+
+    // It finishes right away (and notifies its subscribers) instead of waiting for the visible one
+    adjacent.cancel()
+    assertEquals(listOf("visible", "adjacent"), started)
+
+    downloadScheduler.onDownloadFinished(adjacent)
+    downloadScheduler.onDownloadFinished(visible)
+    assertEquals(listOf("visible", "adjacent"), started)
+  }
+
+  @Test
+  fun `background downloads are paused while foreground transfers are running`() {
+    val prefetch = download("prefetch", isPrefetch = true)
+    val visible = download("visible")
+
+    downloadScheduler.enqueue(prefetch, DownloadPriority.Prefetch)
+    assertFalse(downloadScheduler.isPaused(prefetch))
+
+    downloadScheduler.onTransferStarted(DownloadPriority.Thumbnail)
+    assertTrue(downloadScheduler.isPaused(prefetch))
+    downloadScheduler.onTransferFinished(DownloadPriority.Thumbnail)
+    assertFalse(downloadScheduler.isPaused(prefetch))
+
+    downloadScheduler.enqueue(visible, DownloadPriority.Visible)
+    assertTrue(downloadScheduler.isPaused(prefetch))
+    assertFalse(downloadScheduler.isPaused(visible))
+
+    downloadScheduler.onDownloadFinished(visible)
+    assertFalse(downloadScheduler.isPaused(prefetch))
+  }
+
+  @Test
+  fun `prefetched file that is opened is not paused anymore`() {
+    val prefetch1 = download("prefetch1", isPrefetch = true)
+    val prefetch2 = download("prefetch2", isPrefetch = true)
+    val visible = download("visible")
+
+    downloadScheduler.enqueue(prefetch1, DownloadPriority.Prefetch)
+    downloadScheduler.enqueue(prefetch2, DownloadPriority.Prefetch)
+    downloadScheduler.enqueue(visible, DownloadPriority.Visible)
+    assertTrue(downloadScheduler.isPaused(prefetch1))
+
+    // Pending prefetch is started right away
+    downloadScheduler.raisePriority(prefetch2, DownloadPriority.Visible)
+    assertEquals(listOf("prefetch1", "visible", "prefetch2"), started)
+
+    downloadScheduler.raisePriority(prefetch1, DownloadPriority.Visible)
+    assertFalse(downloadScheduler.isPaused(prefetch1))
+
+    // Never lowered
+    downloadScheduler.raisePriority(prefetch1, DownloadPriority.Prefetch)
+    assertFalse(downloadScheduler.isPaused(prefetch1))
+  }
+
+  private fun download(url: String, isPrefetch: Boolean = false): CancelableDownload {
+    return CancelableDownload(
+      url = url,
+      downloadType = CancelableDownload.DownloadType(
+        isPrefetchDownload = isPrefetch,
+        isGalleryBatchDownload = false
+      ),
+      requestCancellationThread = requestCancellationThread
+    )
+  }
+
+}
@@ -0,0 +1,205 @@
+package com.github.k1rakishou.chan.core.helper
+
+import android.app.Application
+import com.github.k1rakishou.chan.core.manager.ChanFilterManager
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.ChanPostImageBuilder
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import kotlin.random.Random
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class CompiledFilterSetTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val filterEngine = FilterEngine(Mockito.mock(ChanFilterManager::class.java))
+
+  @Test
+  fun `compiled filter set matches the same filter as FilterEngine matches`() {
+    val random = Random(SEED)
+
+    repeat(FILTER_SETS_COUNT) { filterSetIndex ->
+      val filters = (0 until random.nextInt(1, 30)).map { randomFilter(random) }
+      val compiledFilterSet = CompiledFilterSet.compile(filterEngine, filters)
+
+      repeat(POSTS_PER_FILTER_SET) { postIndex ->
+        val post = randomPost(random, postNo = postIndex + 2L)
+
+        val expected = filters.firstOrNull { filter -> filterEngine.matches(filter, post) }
+        val actual = compiledFilterSet.firstMatchingFilter(post)
+
+        assertSame(
+          "filterSet=$filterSetIndex, filters=${filters.map { filter -> filter.pattern }}, " +
+            "post=${describe(post)}",
+          expected,
+          actual
+        )
+      }
+    }
+  }
+
+  @Test
+  fun `compiled filter sets are cached by the filter contents and return the caller's filters`() {
+    val filters = listOf(
+      ChanFilter(filterDatabaseId = 1L, pattern = "apple"),
+      ChanFilter(filterDatabaseId = 2L, pattern = "/ban+ana/i")
+    )
+    // Same filters that got new database ids (e.g. after being re-created)
+    val sameFilters = filters.mapIndexed { index, filter ->
+      filter.copy().also { copy -> copy.setDatabaseId(index + 100L) }
+    }
+
+    val compiledFilterSet = filterEngine.compileFilters(filters)
+    val sameCompiledFilterSet = filterEngine.compileFilters(sameFilters)
+
+    val post = postBuilder(postNo = 2L).comment("BANNANA")
+    assertSame(filters[1], compiledFilterSet.firstMatchingFilter(post))
+    assertSame(sameFilters[1], sameCompiledFilterSet.firstMatchingFilter(post))
+    assertEquals(sameFilters, sameCompiledFilterSet.filters)
+  }
+
+  private fun randomFilter(random: Random): ChanFilter {
+    val pattern = when (random.nextInt(10)) {
+      0 -> randomWord(random)
+      1 -> "${randomWord(random)} ${randomWord(random)}"
+      2 -> wildcard(random, randomWord(random))
+      3 -> "\"${randomWord(random)} ${randomWord(random)}\""
+      4 -> "/${randomWord(random)}|${randomWord(random)}/"
+      5 -> "/${randomWord(random).take(3)}\\w*/i"
+      6 -> "/^${randomWord(random)}/${if (random.nextBoolean()) "im" else "m"}"
+      // Patterns that can't be merged with the others
+      7 -> "/(${randomWord(random)}) \\1/"
+      8 -> "/(?<word>${randomWord(random)})/i"
+      // Broken/empty patterns never match
+      else -> listOf("/[/", "", "*", "\"\"", "/foo/q").random(random)
+    }
+
+    var type = 0
+    while (type == 0) {
+      FilterType.values().forEach { filterType ->
+        if (random.nextInt(3) == 0) {
+          type = type or filterType.flag
+        }
+      }
+    }
+
+    return ChanFilter(
+      type = type,
+      pattern = pattern,
+      onlyOnOP = random.nextInt(8) == 0,
+      applyToSaved = random.nextInt(8) == 0,
+      applyToEmptyComments = random.nextInt(8) == 0
+    )
+  }
+
+  private fun randomPost(random: Random, postNo: Long): ChanPostBuilder {
+    val postBuilder = postBuilder(postNo)
+      .op(random.nextInt(5) == 0)
+      .sticky(random.nextInt(20) == 0)
+      .comment(if (random.nextInt(6) == 0) "" else randomText(random, maxWords = 12))
+      .subject(randomText(random, maxWords = 3))
+      .name(randomText(random, maxWords = 2))
+      .tripcode(randomText(random, maxWords = 1))
+      .posterId(randomText(random, maxWords = 1))
+      .isSavedReply(random.nextInt(5) == 0)
+
+    if (random.nextInt(20) == 0) {
+      postBuilder.moderatorCapcode("mod")
+    }
+
+    val images = (0 until random.nextInt(3)).map { imageIndex ->
+      postImage(
+        serverFilename = "${postNo}${imageIndex}",
+        filename = randomText(random, maxWords = 2),
+        fileHash = randomWord(random)
+      )
+    }
+
+    if (images.isNotEmpty()) {
+      postBuilder.postImages(images, postBuilder.postDescriptor)
+    }
+
+    if (random.nextInt(3) == 0) {
+      val iconName = "flag/${randomWord(random)}"
+      postBuilder.addHttpIcon(ChanPostHttpIcon("https://example.com/flag.png".toHttpUrl(), iconName))
+    }
+
+    return postBuilder
+  }
+
+  private fun postBuilder(postNo: Long): ChanPostBuilder {
+    return ChanPostBuilder()
+      .boardDescriptor(threadDescriptor.boardDescriptor)
+      .id(postNo)
+      .opId(threadDescriptor.threadNo)
+  }
+
+  private fun postImage(serverFilename: String, filename: String, fileHash: String): ChanPostImage {
+    return ChanPostImageBuilder()
+      .serverFilename(serverFilename)
+      .filename(filename)
+      .extension("jpg")
+      .fileHash(fileHash, false)
+      .build()
+  }
+
+  private fun randomText(random: Random, maxWords: Int): String {
+    val separators = listOf(" ", " ", ", ", "\n", ".", "-")
+
+    return buildString {
+      repeat(random.nextInt(maxWords + 1)) { index ->
+        if (index > 0) {
+          append(separators.random(random))
+        }
+
+        append(randomWord(random))
+      }
+    }
+  }
+
+  private fun randomWord(random: Random): String {
+    val word = WORDS.random(random)
+
+    return when (random.nextInt(4)) {
+      0 -> word.uppercase()
+      1 -> word.replaceFirstChar { ch -> ch.uppercaseChar() }
+      else -> word
+    }
+  }
+
+  private fun wildcard(random: Random, word: String): String {
+    val position = random.nextInt(word.length + 1)
+    return word.substring(0, position) + "*" + word.substring(position)
+  }
+
+  private fun describe(post: ChanPostBuilder): String {
+    return "(op=${post.op}, sticky=${post.sticky}, saved=${post.isSavedReply}, " +
+      "capcode=${post.moderatorCapcode}, comment='${post.postCommentBuilder.getComment()}', " +
+      "subject='${post.subject}', name='${post.name}', tripcode='${post.tripcode}', " +
+      "posterId='${post.posterId}', files=${post.postImages.map { image -> image.filename to image.fileHash }}, " +
+      "icons=${post.httpIcons.map { icon -> icon.iconName }})"
+  }
+
+  companion object {
+    private const val SEED = 1337
+    private const val FILTER_SETS_COUNT = 200
+    private const val POSTS_PER_FILTER_SET = 50
+
+    private val WORDS = listOf(
+      "apple", "banana", "bananas", "cherry", "dog", "dogs", "hotdog", "egg", "foo", "foobar",
+      "bar", "baz", "hello", "world", "kotlin", "java", "us", "gb", "abc123", "x"
+    )
+  }
+
+}
@@ -0,0 +1,163 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.PostFilter
+import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class PostFilterManagerTest {
+  private val catalogDescriptor = ChanDescriptor.CatalogDescriptor.create("test", "test")
+  private val threadDescriptor1 = ChanDescriptor.ThreadDescriptor.create(catalogDescriptor, 1L)
+  private val threadDescriptor2 = ChanDescriptor.ThreadDescriptor.create(catalogDescriptor, 100L)
+
+  private val postFilterManager = PostFilterManager(
+    verboseLogsEnabled = false,
+    appScope = CoroutineScope(Dispatchers.Unconfined),
+    chanThreadsCache = ChanThreadsCache(
+      isDevBuild = false,
+      isLowRamDevice = false,
+      maxCacheSizeBytes = 1024 * 1024,
+      chanCatalogSnapshotCache = ChanCatalogSnapshotCache()
+    )
+  )
+
+  @Test
+  fun `posts are tracked per owner filter`() {
+    postFilterManager.insert(post(threadDescriptor1, 1), PostFilter(ownerFilterId = 1L))
+    postFilterManager.insert(post(threadDescriptor1, 2), PostFilter(ownerFilterId = 1L))
+    postFilterManager.insert(post(threadDescriptor2, 101), PostFilter(ownerFilterId = 1L))
+    postFilterManager.insert(post(threadDescriptor2, 102), PostFilter(ownerFilterId = 2L))
+
+    assertEquals(3, postFilterManager.countMatchedPosts(1L))
+    assertEquals(1, postFilterManager.countMatchedPosts(2L))
+
+    // Post is now matched by a different filter
+    postFilterManager.insert(post(threadDescriptor1, 2), PostFilter(ownerFilterId = 2L))
+    assertEquals(2, postFilterManager.countMatchedPosts(1L))
+    assertEquals(2, postFilterManager.countMatchedPosts(2L))
+    assertEquals(2L, postFilterManager.getOwnerFilterId(post(threadDescriptor1, 2)))
+
+    postFilterManager.remove(post(threadDescriptor2, 101))
+    assertEquals(1, postFilterManager.countMatchedPosts(1L))
+
+    postFilterManager.removeAllForDescriptor(threadDescriptor2)
+    assertEquals(1, postFilterManager.countMatchedPosts(2L))
+  }
+
+  @Test
+  fun `removeAllMatchedBy only removes posts of the given filters`() {
+    postFilterManager.insert(post(threadDescriptor1, 1), PostFilter(ownerFilterId = 1L))
+    postFilterManager.insert(post(threadDescriptor1, 2), PostFilter(ownerFilterId = 2L))
+    postFilterManager.insert(post(threadDescriptor2, 101), PostFilter(ownerFilterId = 1L))
+    postFilterManager.insert(post(threadDescriptor2, 102), PostFilter(ownerFilterId = 3L))
+
+    val removedPosts = postFilterManager.removeAllMatchedBy(listOf(1L, 3L))
+
+    assertEquals(
+      setOf(post(threadDescriptor1, 1), post(threadDescriptor2, 101), post(threadDescriptor2, 102)),
+      removedPosts
+    )
+
+    assertFalse(postFilterManager.contains(post(threadDescriptor1, 1)))
+    assertTrue(postFilterManager.contains(post(threadDescriptor1, 2)))
+    assertFalse(postFilterManager.contains(post(threadDescriptor2, 101)))
+    assertFalse(postFilterManager.contains(post(threadDescriptor2, 102)))
+
+    assertEquals(0, postFilterManager.countMatchedPosts(1L))
+    assertEquals(1, postFilterManager.countMatchedPosts(2L))
+    assertTrue(postFilterManager.removeAllMatchedBy(listOf(1L)).isEmpty())
+  }
+
+  @Test
+  fun `clear removes the index as well`() {
+    postFilterManager.insert(post(threadDescriptor1, 1), PostFilter(ownerFilterId = 1L))
+    postFilterManager.clear()
+
+    assertEquals(0, postFilterManager.countMatchedPosts(1L))
+    assertTrue(postFilterManager.removeAllMatchedBy(listOf(1L)).isEmpty())
+  }
+
+  @Test
+  fun `concurrent writers and readers of different threads do not lose updates`() {
+    val writersCount = 4
+    val readersCount = 4
+    val threadsPerWriter = 20
+    val postsPerThread = 50
+
+    val startLatch = CountDownLatch(1)
+    val errors = ConcurrentLinkedQueue<Throwable>()
+
+    val writers = (0 until writersCount).map { writerIndex ->
+      thread {
+        startLatch.await()
+
+        try {
+          repeat(threadsPerWriter) { threadIndex ->
+            val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+              catalogDescriptor,
+              1000L + (writerIndex * threadsPerWriter) + threadIndex
+            )
+
+            val postFilters = (0 until postsPerThread).associate { postIndex ->
+              post(threadDescriptor, threadDescriptor.threadNo * 1000 + postIndex) to
+                PostFilter(ownerFilterId = writerIndex.toLong(), filterEnabled = true)
+            }
+
+            postFilterManager.insertMany(postFilters)
+          }
+        } catch (error: Throwable) {
+          errors += error
+        }
+      }
+    }
+
+    val readers = (0 until readersCount).map {
+      thread {
+        startLatch.await()
+
+        try {
+          repeat(1000) { iteration ->
+            val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+              catalogDescriptor,
+              1000L + (iteration % (writersCount * threadsPerWriter))
+            )
+
+            val postDescriptors = (0 until postsPerThread)
+              .map { postIndex -> post(threadDescriptor, threadDescriptor.threadNo * 1000 + postIndex) }
+
+            // Every batch is published under one stripe lock so readers see either the whole thread
+            // or nothing
+            val postFiltersCount = postFilterManager.getManyPostFilters(postDescriptors).size
+            assertTrue(postFiltersCount == 0 || postFiltersCount == postsPerThread)
+          }
+        } catch (error: Throwable) {
+          errors += error
+        }
+      }
+    }
+
+    startLatch.countDown()
+    (writers + readers).forEach { thread -> thread.join() }
+
+    assertTrue(errors.joinToString(), errors.isEmpty())
+
+    repeat(writersCount) { writerIndex ->
+      assertEquals(threadsPerWriter * postsPerThread, postFilterManager.countMatchedPosts(writerIndex.toLong()))
+    }
+  }
+
+  private fun post(threadDescriptor: ChanDescriptor.ThreadDescriptor, postNo: Long): PostDescriptor {
+    return PostDescriptor.create(threadDescriptor, postNo)
+  }
+
+}
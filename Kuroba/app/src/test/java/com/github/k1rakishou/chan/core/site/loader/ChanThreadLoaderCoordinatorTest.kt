@@ -0,0 +1,175 @@
+package com.github.k1rakishou.chan.core.site.loader
+
+import android.app.Application
+import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
+import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
+import com.github.k1rakishou.chan.core.manager.BoardManager
+import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
+import com.github.k1rakishou.chan.core.site.Site
+import com.github.k1rakishou.chan.core.site.SiteEndpoints
+import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ParsePostsV1UseCase
+import com.github.k1rakishou.chan.core.site.parser.ChanReader
+import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.options.ChanCacheOptions
+import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
+import com.github.k1rakishou.model.data.options.ChanLoadOptions
+import com.github.k1rakishou.model.data.options.ChanReadOptions
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
+import com.github.k1rakishou.model.repository.ChanPostRepository
+import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.onBlocking
+import com.nhaarman.mockitokotlin2.verifyBlocking
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28], application = Application::class)
+class ChanThreadLoaderCoordinatorTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val okHttpClient = OkHttpClient()
+  private lateinit var server: MockWebServer
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `not modified thread is neither read nor parsed and the cached thread is kept`() = runBlocking {
+    val threadUrl = server.url("/g/thread/1.json")
+
+    val chanThreadsCache = ChanThreadsCache(
+      isDevBuild = false,
+      isLowRamDevice = false,
+      maxCacheSizeBytes = 1024L * 1024L,
+      chanCatalogSnapshotCache = ChanCatalogSnapshotCache()
+    )
+
+    val originalPost = originalPost()
+
+    withContext(Dispatchers.IO) {
+      chanThreadsCache.putManyThreadPostsIntoCache(
+        threadDescriptor = threadDescriptor,
+        parsedPosts = listOf(originalPost),
+        cacheOptions = ChanCacheOptions.onlyCacheInMemory(),
+        chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateCache,
+        postsFromServerData = null
+      )
+    }
+
+    val chanReader = mock<ChanReader>()
+    val siteEndpoints = mock<SiteEndpoints> {
+      on { thread(threadDescriptor) } doReturn threadUrl
+    }
+    val site = mock<Site> {
+      on { endpoints() } doReturn siteEndpoints
+      on { chanReader() } doReturn chanReader
+    }
+    val threadDownloadManager = mock<ThreadDownloadManager> {
+      onBlocking { isThreadFullyDownloaded(any()) } doReturn false
+    }
+
+    val coordinator = ChanThreadLoaderCoordinator(
+      proxiedOkHttpClient = object : ProxiedOkHttpClient {
+        override fun okHttpClient(): OkHttpClient = okHttpClient
+      },
+      chanPostRepository = mock<ChanPostRepository>(),
+      chanCatalogSnapshotRepository = mock<ChanCatalogSnapshotRepository>(),
+      appConstants = mock<AppConstants>(),
+      boardManager = mock<BoardManager>(),
+      siteResolver = mock<SiteResolver>(),
+      chanLoadProgressNotifier = ChanLoadProgressNotifier(),
+      chanThreadsCache = chanThreadsCache,
+      chanCatalogSnapshotCache = ChanCatalogSnapshotCache(),
+      threadDownloadManager = threadDownloadManager,
+      parsePostsV1UseCase = mock<ParsePostsV1UseCase>()
+    )
+
+    // What the previous (full) load of this thread has remembered
+    coordinator.conditionalRequestValidators.store(threadUrl, responseWithETag(threadUrl.toString(), "\"abc\""))
+    server.enqueue(MockResponse().setResponseCode(304))
+
+    val result = coordinator.loadThreadOrCatalog(
+      page = null,
+      site = site,
+      compositeCatalogDescriptor = null,
+      chanDescriptor = threadDescriptor,
+      chanCacheOptions = ChanCacheOptions.onlyCacheInMemory(),
+      chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateCache,
+      chanReadOptions = ChanReadOptions.default(),
+      chanLoadOptions = ChanLoadOptions.retainAll()
+    ).unwrap()
+
+    assertEquals(ThreadLoadResult.Loaded(threadDescriptor), result)
+    assertEquals("\"abc\"", server.takeRequest().getHeader("If-None-Match"))
+
+    // The response was never read/parsed so nothing in the cache has changed
+    verifyBlocking(chanReader, never()) { getParser() }
+    assertEquals(1, chanThreadsCache.getThreadPostsCount(threadDescriptor))
+    assertSame(originalPost, chanThreadsCache.getThreadPosts(threadDescriptor).single())
+  }
+
+  private fun responseWithETag(url: String, etag: String): Response {
+    return Response.Builder()
+      .request(Request.Builder().url(url).build())
+      .protocol(Protocol.HTTP_1_1)
+      .code(200)
+      .message("OK")
+      .header("ETag", etag)
+      .build()
+  }
+
+  private fun originalPost(): ChanOriginalPost {
+    return ChanOriginalPost(
+      chanPostId = 0L,
+      postDescriptor = PostDescriptor.create(threadDescriptor, threadDescriptor.threadNo),
+      postImages = mutableListOf(),
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = emptySet(),
+      timestamp = 1L,
+      postComment = PostComment(originalComment = "OP", originalUnparsedComment = "OP", emptyList()),
+      isSavedReply = false,
+      lastModified = 0L,
+      sticky = false,
+      closed = false,
+      archived = false,
+      endless = false,
+      isSage = false,
+      deleted = false,
+      posterIdColor = 0
+    )
+  }
+
+}
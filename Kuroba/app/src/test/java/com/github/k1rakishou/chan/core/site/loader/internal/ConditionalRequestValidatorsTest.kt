@@ -0,0 +1,90 @@
+package com.github.k1rakishou.chan.core.site.loader.internal
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class ConditionalRequestValidatorsTest {
+  private val okHttpClient = OkHttpClient()
+  private lateinit var server: MockWebServer
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `second request is conditional and is answered with 304`() {
+    val validators = ConditionalRequestValidators()
+    val url = server.url("/g/thread/1.json")
+
+    server.enqueue(
+      MockResponse()
+        .setResponseCode(200)
+        .setHeader("ETag", "\"abc\"")
+        .setHeader("Last-Modified", "Sat, 17 Oct 2026 10:00:00 GMT")
+        .setBody("{\"posts\":[]}")
+    )
+    server.enqueue(MockResponse().setResponseCode(ConditionalRequestValidators.HTTP_NOT_MODIFIED))
+
+    val firstRequestBuilder = Request.Builder().url(url).get()
+    assertFalse(validators.applyTo(url, firstRequestBuilder))
+
+    okHttpClient.newCall(firstRequestBuilder.build()).execute().use { response ->
+      assertEquals(200, response.code)
+      validators.store(url, response)
+    }
+
+    val firstRecorded = server.takeRequest()
+    assertNull(firstRecorded.getHeader("If-None-Match"))
+    assertNull(firstRecorded.getHeader("If-Modified-Since"))
+
+    val secondRequestBuilder = Request.Builder().url(url).get()
+    assertTrue(validators.applyTo(url, secondRequestBuilder))
+
+    okHttpClient.newCall(secondRequestBuilder.build()).execute().use { response ->
+      assertEquals(ConditionalRequestValidators.HTTP_NOT_MODIFIED, response.code)
+    }
+
+    val secondRecorded = server.takeRequest()
+    assertEquals("\"abc\"", secondRecorded.getHeader("If-None-Match"))
+    assertEquals("Sat, 17 Oct 2026 10:00:00 GMT", secondRecorded.getHeader("If-Modified-Since"))
+  }
+
+  @Test
+  fun `validators are dropped when response has none or after remove`() {
+    val validators = ConditionalRequestValidators()
+    val url = server.url("/g/catalog.json")
+
+    server.enqueue(MockResponse().setResponseCode(200).setHeader("ETag", "\"v1\"").setBody("[]"))
+    server.enqueue(MockResponse().setResponseCode(200).setBody("[]"))
+
+    okHttpClient.newCall(Request.Builder().url(url).get().build()).execute().use { response ->
+      validators.store(url, response)
+    }
+    assertTrue(validators.applyTo(url, Request.Builder().url(url)))
+
+    validators.remove(url)
+    assertFalse(validators.applyTo(url, Request.Builder().url(url)))
+
+    okHttpClient.newCall(Request.Builder().url(url).get().build()).execute().use { response ->
+      validators.store(url, response)
+    }
+    assertFalse(validators.applyTo(url, Request.Builder().url(url)))
+  }
+
+}
@@ -0,0 +1,55 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+import com.google.gson.stream.JsonReader
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+import java.io.StringReader
+
+class RawPostJsonHasherTest {
+
+  @Test
+  fun `same post json produces the same hash`() {
+    val json = """{"no":123,"resto":100,"com":"Hello &gt;&gt;100","time":1600000000,"tim":"1600000000123"}"""
+
+    assertEquals(hashPost(json), hashPost(json))
+  }
+
+  @Test
+  fun `any changed value produces a different hash`() {
+    val original = """{"no":123,"resto":100,"com":"Hello","time":1600000000,"filedeleted":0}"""
+
+    assertNotEquals(hashPost(original), hashPost(original.replace("Hello", "Hello!")))
+    assertNotEquals(hashPost(original), hashPost(original.replace("1600000000", "1600000001")))
+    assertNotEquals(hashPost(original), hashPost(original.replace("\"filedeleted\":0", "\"filedeleted\":1")))
+  }
+
+  @Test
+  fun `values are not mixed between adjacent fields`() {
+    val first = """{"sub":"ab","name":"c"}"""
+    val second = """{"sub":"a","name":"bc"}"""
+
+    assertNotEquals(hashPost(first), hashPost(second))
+  }
+
+  private fun hashPost(json: String): Long {
+    val hasher = RawPostJsonHasher()
+
+    JsonReader(StringReader(json)).use { reader ->
+      reader.beginObject()
+
+      while (reader.hasNext()) {
+        when (hasher.nextName(reader)) {
+          "no", "resto", "filedeleted" -> hasher.nextInt(reader)
+          "time" -> hasher.nextLong(reader)
+          else -> hasher.nextString(reader)
+        }
+      }
+
+      reader.endObject()
+    }
+
+    return hasher.value
+  }
+
+}
@@ -0,0 +1,43 @@
+package com.github.k1rakishou.chan.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+class HashingUtilTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `test md5 provided by the site matches the md5 of the downloaded file`() {
+    val file = temporaryFolder.newFile("1644316447291.png")
+    file.writeText("Hello world")
+
+    // The way 4chan/vichan provide md5s in the thread json ("md5" field) and FoolFuuka in "md5Base64"
+    val siteMd5 = "PiWWCnnbxptnTNTsZ6csYg=="
+    val hexMd5 = "3e25960a79dbc69b674cd4ec67a72c62"
+
+    assertEquals(hexMd5, HashingUtil.fileHash(file))
+    assertEquals(hexMd5, HashingUtil.md5ToHex(siteMd5))
+  }
+
+  @Test
+  fun `test md5 hex strings are only lowercased`() {
+    assertEquals("d41d8cd98f00b204e9800998ecf8427e", HashingUtil.md5ToHex("d41d8cd98f00b204e9800998ecf8427e"))
+    assertEquals("d41d8cd98f00b204e9800998ecf8427e", HashingUtil.md5ToHex("D41D8CD98F00B204E9800998ECF8427E"))
+    assertEquals("d41d8cd98f00b204e9800998ecf8427e", HashingUtil.md5ToHex("1B2M2Y8AsgTpgAmY7PhCfg=="))
+  }
+
+  @Test
+  fun `test things that are not md5s are rejected`() {
+    assertNull(HashingUtil.md5ToHex(""))
+    assertNull(HashingUtil.md5ToHex("abc"))
+    // base64 of a sha256 hash
+    assertNull(HashingUtil.md5ToHex("LXEWQrcmsEQBYnyp+6wy9chTD7GQPMTbAiWHF5IaSIE="))
+    assertNull(HashingUtil.md5ToHex("d41d8cd98f00b204e9800998ecf8427z"))
+  }
+
+}
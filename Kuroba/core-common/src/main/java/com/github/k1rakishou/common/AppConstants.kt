@@ -17,6 +17,7 @@ open class AppConstants(
   maxPostsInDatabaseSettingValue: Int,
   maxThreadsInDatabaseSettingValue: Int
 ) {
+  val maxPostsCacheSizeInBytes: Long
   val maxPostsCountInPostsCache: Int
   val maxAmountOfPostsInDatabase: Int = maxPostsInDatabaseSettingValue
   val maxAmountOfThreadsInDatabase: Int = maxThreadsInDatabaseSettingValue
@@ -130,7 +131,9 @@ open class AppConstants(
     val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as? ActivityManager
 
     mpvDemuxerCacheMaxSize = calculateMpvDemuxerCacheSize(activityManager)
-    maxPostsCountInPostsCache = calculatePostsCountForPostsCacheDependingOnDeviceRam(activityManager).toInt()
+    maxPostsCacheSizeInBytes = calculatePostsCacheSizeDependingOnDeviceRam(activityManager)
+    // Approximate, only used for logs. The cache itself is limited by maxPostsCacheSizeInBytes.
+    maxPostsCountInPostsCache = (maxPostsCacheSizeInBytes / AVERAGE_POST_MEMORY_SIZE).toInt()
 
     userAgent = try {
       WebSettings.getDefaultUserAgent(context)
@@ -180,15 +183,16 @@ open class AppConstants(
     return 64 * ONE_MEGABYTE
   }
 
-  private fun calculatePostsCountForPostsCacheDependingOnDeviceRam(activityManager: ActivityManager?): Long {
+  private fun calculatePostsCacheSizeDependingOnDeviceRam(activityManager: ActivityManager?): Long {
+    val minSize = MINIMUM_POSTS_CACHE_POSTS_COUNT * AVERAGE_POST_MEMORY_SIZE
+    val maxSize = MAX_POSTS_CACHE_COUNT * AVERAGE_POST_MEMORY_SIZE
+
     if (isLowRamDevice || activityManager == null) {
-      return MINIMUM_POSTS_CACHE_POSTS_COUNT
+      return minSize
     }
 
     val memoryChunk = ((activityManager.memoryClass * ONE_MEGABYTE) / 100) * RAM_PERCENT_FOR_POSTS_CACHE
-    val cachePostsCount = memoryChunk / AVERAGE_POST_MEMORY_SIZE
-
-    return cachePostsCount.coerceIn(MINIMUM_POSTS_CACHE_POSTS_COUNT, MAX_POSTS_CACHE_COUNT)
+    return memoryChunk.coerceIn(minSize, maxSize)
   }
 
   companion object {
@@ -1195,74 +1195,87 @@ inline fun <T, reified R> List<T>.mapArray(mapper: (T) -> R): Array<R> {
   return array as Array<R>
 }
 
+/**
+ * Processes [dataList] with at most [batchCount] elements in flight at any time. Every worker
+ * takes the next unprocessed element as soon as it is done with the previous one so a single
+ * slow element does not stall the rest of the elements (unlike processing the list in chunks and
+ * awaiting every chunk). Results are returned in the order of [dataList], elements for which
+ * [processFunc] returned null or threw are skipped.
+ * */
 suspend fun <T, R> processDataCollectionConcurrently(
   dataList: Collection<T>,
   batchCount: Int = Runtime.getRuntime().availableProcessors(),
   dispatcher: CoroutineDispatcher = Dispatchers.Default,
+  onItemProcessed: ((index: Int, latencyNanos: Long) -> Unit)? = null,
   processFunc: suspend (T) -> R?
 ): List<R> {
-  if (dataList.isEmpty()) {
-    return emptyList()
-  }
-
-  return supervisorScope {
-    return@supervisorScope dataList
-      .chunked(batchCount)
-      .flatMap { dataChunk ->
-        return@flatMap dataChunk
-          .map { data ->
-            return@map async(dispatcher) {
-              try {
-                ensureActive()
-                return@async processFunc(data)
-              } catch (error: Throwable) {
-                return@async null
-              }
-            }
-          }
-          .awaitAll()
-          .filterNotNull()
-      }
-  }
+  return processDataCollectionConcurrentlyIndexed(
+    dataList = dataList,
+    batchCount = batchCount,
+    dispatcher = dispatcher,
+    onItemProcessed = onItemProcessed
+  ) { _, data -> processFunc(data) }
 }
 
 /**
- * @note: indexed doesn't mean ordered!
+ * Same as [processDataCollectionConcurrently] but [processFunc] also receives the index of the
+ * element in [dataList]. [onItemProcessed] is called with the index of every processed element and
+ * the time it took to process it.
  * */
 suspend fun <T, R> processDataCollectionConcurrentlyIndexed(
   dataList: Collection<T>,
   batchCount: Int = Runtime.getRuntime().availableProcessors(),
   dispatcher: CoroutineDispatcher = Dispatchers.Default,
+  onItemProcessed: ((index: Int, latencyNanos: Long) -> Unit)? = null,
   processFunc: suspend (Int, T) -> R?
 ): List<R> {
   if (dataList.isEmpty()) {
     return emptyList()
   }
 
-  val batchIndex = AtomicInteger(0)
-
-  return supervisorScope {
-    return@supervisorScope dataList
-      .chunked(batchCount)
-      .flatMap { dataChunk ->
-        val results = dataChunk
-          .mapIndexed { index, data ->
-            return@mapIndexed async(dispatcher) {
-              try {
-                ensureActive()
-                return@async processFunc(batchIndex.get() + index, data)
-              } catch (error: Throwable) {
-                return@async null
-              }
-            }
+  val dataArray = dataList.toList()
+  val results = arrayOfNulls<Any?>(dataArray.size)
+  val nextIndex = AtomicInteger(0)
+  val workersCount = batchCount.coerceIn(1, dataArray.size)
+
+  supervisorScope {
+    val workers = (0 until workersCount).map {
+      async(dispatcher) {
+        while (true) {
+          val index = nextIndex.getAndIncrement()
+          if (index >= dataArray.size) {
+            break
           }
-          .awaitAll()
-          .filterNotNull()
 
-        batchIndex.addAndGet(results.size)
-        return@flatMap results
+          ensureActive()
+          val startTime = System.nanoTime()
+
+          results[index] = try {
+            processFunc(index, dataArray[index])
+          } catch (error: Throwable) {
+            // Rethrow if we were canceled, otherwise just skip this element
+            ensureActive()
+            null
+          }
+
+          onItemProcessed?.invoke(index, System.nanoTime() - startTime)
+        }
       }
+    }
+
+    workers.awaitAll()
   }
+
+  val resultList = mutableListWithCap<R>(dataArray.size)
+
+  for (result in results) {
+    if (result != null) {
+      @Suppress("UNCHECKED_CAST")
+      resultList += result as R
+    }
+  }
+
+  return resultList
 }
 
 private const val COOKIE_HEADER_NAME = "Cookie"
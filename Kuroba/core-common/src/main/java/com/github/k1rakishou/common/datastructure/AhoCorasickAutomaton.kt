@@ -0,0 +1,161 @@
+package com.github.k1rakishou.common.datastructure
+
+import java.util.*
+
+/**
+ * Finds every occurrence of every keyword in a text in one pass over the text, no matter how many
+ * keywords there are. Keywords are identified by their index in the list the automaton was built
+ * from.
+ * */
+class AhoCorasickAutomaton private constructor(
+  private val childChars: Array<CharArray>,
+  private val childNodes: Array<IntArray>,
+  private val failLinks: IntArray,
+  private val outputs: Array<IntArray>,
+  private val ignoreAsciiCase: Boolean
+) {
+
+  fun findAll(text: CharSequence, onMatch: (keywordIndex: Int) -> Unit) {
+    var node = ROOT
+
+    for (index in 0 until text.length) {
+      val ch = normalize(text[index], ignoreAsciiCase)
+
+      while (true) {
+        val next = findChild(node, ch)
+        if (next >= 0) {
+          node = next
+          break
+        }
+
+        if (node == ROOT) {
+          break
+        }
+
+        node = failLinks[node]
+      }
+
+      val nodeOutputs = outputs[node]
+      for (outputIndex in nodeOutputs.indices) {
+        onMatch(nodeOutputs[outputIndex])
+      }
+    }
+  }
+
+  private fun findChild(node: Int, ch: Char): Int {
+    val chars = childChars[node]
+    if (chars.isEmpty()) {
+      return -1
+    }
+
+    val index = Arrays.binarySearch(chars, ch)
+    if (index < 0) {
+      return -1
+    }
+
+    return childNodes[node][index]
+  }
+
+  companion object {
+    private const val ROOT = 0
+    private val EMPTY_OUTPUTS = IntArray(0)
+    private val EMPTY_CHARS = CharArray(0)
+
+    fun build(keywords: List<String>, ignoreAsciiCase: Boolean): AhoCorasickAutomaton {
+      val children = mutableListOf<TreeMap<Char, Int>>(TreeMap())
+      val nodeOutputs = mutableListOf<MutableList<Int>?>(null)
+
+      keywords.forEachIndexed { keywordIndex, keyword ->
+        if (keyword.isEmpty()) {
+          return@forEachIndexed
+        }
+
+        var node = ROOT
+
+        for (rawChar in keyword) {
+          val ch = normalize(rawChar, ignoreAsciiCase)
+          val next = children[node][ch]
+
+          node = if (next != null) {
+            next
+          } else {
+            children += TreeMap()
+            nodeOutputs += null
+
+            val newNode = children.lastIndex
+            children[node][ch] = newNode
+            newNode
+          }
+        }
+
+        val outputsOfNode = nodeOutputs[node] ?: mutableListOf<Int>().also { nodeOutputs[node] = it }
+        outputsOfNode += keywordIndex
+      }
+
+      val nodesCount = children.size
+      val failLinks = IntArray(nodesCount)
+      val outputs = arrayOfNulls<IntArray>(nodesCount)
+      val queue = ArrayDeque<Int>()
+
+      outputs[ROOT] = nodeOutputs[ROOT]?.toIntArray() ?: EMPTY_OUTPUTS
+
+      for (child in children[ROOT].values) {
+        failLinks[child] = ROOT
+        queue.add(child)
+      }
+
+      // Nodes are visited in BFS order so the fail link target of a node (which is always closer
+      // to the root) is already fully processed.
+      while (queue.isNotEmpty()) {
+        val node = queue.poll()!!
+
+        val ownOutputs = nodeOutputs[node]
+        val failOutputs = outputs[failLinks[node]]!!
+
+        outputs[node] = when {
+          ownOutputs == null -> failOutputs
+          failOutputs.isEmpty() -> ownOutputs.toIntArray()
+          else -> ownOutputs.toIntArray() + failOutputs
+        }
+
+        for ((ch, child) in children[node]) {
+          var fail = failLinks[node]
+
+          while (fail != ROOT && children[fail][ch] == null) {
+            fail = failLinks[fail]
+          }
+
+          val failTarget = children[fail][ch]
+          failLinks[child] = if (failTarget != null && failTarget != child) failTarget else ROOT
+          queue.add(child)
+        }
+      }
+
+      val childChars = Array(nodesCount) { node ->
+        val nodeChildren = children[node]
+        if (nodeChildren.isEmpty()) EMPTY_CHARS else nodeChildren.keys.toCharArray()
+      }
+
+      val childNodes = Array(nodesCount) { node ->
+        children[node].values.toIntArray()
+      }
+
+      return AhoCorasickAutomaton(
+        childChars = childChars,
+        childNodes = childNodes,
+        failLinks = failLinks,
+        outputs = Array(nodesCount) { node -> outputs[node]!! },
+        ignoreAsciiCase = ignoreAsciiCase
+      )
+    }
+
+    private fun normalize(ch: Char, ignoreAsciiCase: Boolean): Char {
+      if (ignoreAsciiCase && ch in 'A'..'Z') {
+        return ch + ('a' - 'A')
+      }
+
+      return ch
+    }
+  }
+
+}
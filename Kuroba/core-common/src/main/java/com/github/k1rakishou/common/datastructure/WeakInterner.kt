@@ -0,0 +1,97 @@
+package com.github.k1rakishou.common.datastructure
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A pool of canonical instances of immutable objects (like String.intern() but for any class with
+ * proper equals/hashCode). Canonical instances are only weakly reachable from the pool so they are
+ * garbage collected once nobody else uses them.
+ *
+ * [intern] is called on hot paths (e.g. every PostDescriptor.create() call) from many threads at
+ * once so it never takes a lock. Lookups of already interned instances are plain ConcurrentHashMap
+ * reads, new instances are added with putIfAbsent(). Entries of collected instances are removed
+ * lazily (on the next [intern]/[size] call) via a ReferenceQueue.
+ * */
+class WeakInterner<T : Any> {
+  private val canonicalInstances = ConcurrentHashMap<WeakKey<T>, WeakKey<T>>()
+  private val collectedInstances = ReferenceQueue<T>()
+
+  /**
+   * Returns the canonical instance equal to [sample]. If there is none yet then [sample] becomes
+   * the canonical instance.
+   * */
+  fun intern(sample: T): T {
+    removeCollectedInstances()
+
+    val lookupKey = WeakKey(sample, null)
+
+    while (true) {
+      val canonical = canonicalInstances[lookupKey]?.get()
+      if (canonical != null) {
+        return canonical
+      }
+
+      val newKey = WeakKey(sample, collectedInstances)
+
+      val prevKey = canonicalInstances.putIfAbsent(newKey, newKey)
+        ?: return sample
+
+      val prevCanonical = prevKey.get()
+      if (prevCanonical != null) {
+        // Some other thread has interned an equal object first
+        return prevCanonical
+      }
+
+      // The canonical instance was collected in the meantime but its entry is still there
+      canonicalInstances.remove(prevKey, prevKey)
+    }
+  }
+
+  /**
+   * The amount of canonical instances currently in the pool (including the ones that are already
+   * unreachable but were not yet collected).
+   * */
+  fun size(): Int {
+    removeCollectedInstances()
+    return canonicalInstances.size
+  }
+
+  private fun removeCollectedInstances() {
+    while (true) {
+      val collected = collectedInstances.poll()
+        ?: break
+
+      canonicalInstances.remove(collected)
+    }
+  }
+
+  /**
+   * Compares by the referent's value while it's alive. Once the referent is collected the key is
+   * only equal to itself so that it can still be removed from the map.
+   * */
+  private class WeakKey<T : Any>(
+    referent: T,
+    queue: ReferenceQueue<T>?
+  ) : WeakReference<T>(referent, queue) {
+    private val hash = referent.hashCode()
+
+    override fun equals(other: Any?): Boolean {
+      if (this === other) {
+        return true
+      }
+
+      if (other !is WeakKey<*>) {
+        return false
+      }
+
+      val referent = get()
+        ?: return false
+
+      return referent == other.get()
+    }
+
+    override fun hashCode(): Int = hash
+  }
+}
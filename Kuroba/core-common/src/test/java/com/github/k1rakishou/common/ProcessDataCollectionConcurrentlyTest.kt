@@ -0,0 +1,120 @@
+package com.github.k1rakishou.common
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.currentTime
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ProcessDataCollectionConcurrentlyTest {
+
+  @Test
+  fun `results keep the input order and skip failed elements`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val input = (0 until 20).toList()
+
+    val results = processDataCollectionConcurrently(input, 4, dispatcher) { value ->
+      // Later elements finish first
+      delay((20 - value) * 10L)
+
+      if (value % 5 == 0) {
+        throw RuntimeException("Failed to process $value")
+      }
+
+      return@processDataCollectionConcurrently value * 2
+    }
+
+    assertEquals(input.filter { it % 5 != 0 }.map { it * 2 }, results)
+  }
+
+  @Test
+  fun `never keeps more than batchCount elements in flight and reports every element`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val inFlight = AtomicInteger(0)
+    val maxInFlight = AtomicInteger(0)
+    val processedIndexes = mutableSetOf<Int>()
+
+    processDataCollectionConcurrentlyIndexed(
+      dataList = (0 until 50).toList(),
+      batchCount = 3,
+      dispatcher = dispatcher,
+      onItemProcessed = { index, latencyNanos ->
+        assertTrue(latencyNanos >= 0)
+        synchronized(processedIndexes) { processedIndexes += index }
+      }
+    ) { index, _ ->
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { a, b -> maxOf(a, b) }
+      delay(if (index % 7 == 0) 100L else 5L)
+      inFlight.decrementAndGet()
+    }
+
+    assertEquals(3, maxInFlight.get())
+    assertEquals((0 until 50).toSet(), processedIndexes)
+  }
+
+  @Test
+  fun `uneven delays are processed faster than with chunked batches`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    // Every fourth element is slow, like a slow network request mixed with fast ones
+    val delays = (0 until 64).map { index -> if (index % 4 == 0) 1000L else 10L }
+
+    val chunkedStartTime = currentTime
+    processInChunks(delays, 4, dispatcher)
+    val chunkedDuration = currentTime - chunkedStartTime
+
+    val boundedStartTime = currentTime
+    processDataCollectionConcurrently(delays, 4, dispatcher) { delayMs -> delay(delayMs) }
+    val boundedDuration = currentTime - boundedStartTime
+
+    // Chunked: every chunk of 4 waits for its one slow element, 16 * 1000ms.
+    // Bounded: 16 slow elements spread over 4 workers, ~4 * 1000ms + fast elements.
+    assertEquals(16_000L, chunkedDuration)
+    assertTrue("boundedDuration=$boundedDuration", boundedDuration * 3 < chunkedDuration)
+  }
+
+  @Test
+  fun `cancellation stops processing the remaining elements`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val processed = AtomicInteger(0)
+
+    val job = launch {
+      processDataCollectionConcurrently((0 until 100).toList(), 2, dispatcher) {
+        delay(100L)
+        processed.incrementAndGet()
+      }
+    }
+
+    advanceTimeBy(250L)
+    runCurrent()
+    job.cancel()
+    job.join()
+
+    assertEquals(4, processed.get())
+  }
+
+  // The way processDataCollectionConcurrently used to work before
+  private suspend fun processInChunks(
+    delays: List<Long>,
+    batchCount: Int,
+    dispatcher: CoroutineDispatcher
+  ) {
+    coroutineScope {
+      delays.chunked(batchCount).forEach { chunk ->
+        chunk.map { delayMs -> async(dispatcher) { delay(delayMs) } }.awaitAll()
+      }
+    }
+  }
+
+}
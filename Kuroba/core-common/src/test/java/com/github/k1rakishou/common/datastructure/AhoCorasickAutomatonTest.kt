@@ -0,0 +1,74 @@
+package com.github.k1rakishou.common.datastructure
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class AhoCorasickAutomatonTest {
+
+  @Test
+  fun `test finds overlapping keywords`() {
+    val keywords = listOf("he", "she", "his", "hers")
+    val automaton = AhoCorasickAutomaton.build(keywords, ignoreAsciiCase = false)
+
+    val found = findAll(automaton, "ushers")
+    assertEquals(listOf("she", "he", "hers"), found.map { keywords[it] })
+  }
+
+  @Test
+  fun `test ignores ascii case when asked to`() {
+    val keywords = listOf("Test", "kEy")
+
+    val caseSensitive = AhoCorasickAutomaton.build(keywords, ignoreAsciiCase = false)
+    assertTrue(findAll(caseSensitive, "TEST KEY").isEmpty())
+
+    val caseInsensitive = AhoCorasickAutomaton.build(keywords, ignoreAsciiCase = true)
+    assertEquals(setOf(0, 1), findAll(caseInsensitive, "TEST KEY").toSet())
+  }
+
+  @Test
+  fun `test empty keywords and empty text`() {
+    val automaton = AhoCorasickAutomaton.build(listOf("", "a"), ignoreAsciiCase = false)
+
+    assertTrue(findAll(automaton, "").isEmpty())
+    assertEquals(listOf(1, 1), findAll(automaton, "aa"))
+  }
+
+  @Test
+  fun `test same results as naive search`() {
+    val random = Random(1234)
+    val alphabet = "abcAB"
+
+    repeat(200) {
+      val keywords = (0 until random.nextInt(1, 10)).map {
+        randomString(random, alphabet, random.nextInt(1, 4))
+      }
+
+      val text = randomString(random, alphabet, random.nextInt(0, 50))
+      val automaton = AhoCorasickAutomaton.build(keywords, ignoreAsciiCase = true)
+
+      val expected = mutableListOf<Int>()
+      keywords.forEachIndexed { keywordIndex, keyword ->
+        var index = text.indexOf(keyword, ignoreCase = true)
+        while (index >= 0) {
+          expected += keywordIndex
+          index = text.indexOf(keyword, startIndex = index + 1, ignoreCase = true)
+        }
+      }
+
+      assertEquals(expected.sorted(), findAll(automaton, text).sorted())
+    }
+  }
+
+  private fun findAll(automaton: AhoCorasickAutomaton, text: String): List<Int> {
+    val found = mutableListOf<Int>()
+    automaton.findAll(text) { keywordIndex -> found += keywordIndex }
+    return found
+  }
+
+  private fun randomString(random: Random, alphabet: String, length: Int): String {
+    return buildString { repeat(length) { append(alphabet[random.nextInt(alphabet.length)]) } }
+  }
+
+}
@@ -0,0 +1,97 @@
+package com.github.k1rakishou.common.datastructure
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNotSame
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class WeakInternerTest {
+
+  @Test
+  fun `test equal objects are interned into the first instance`() {
+    val interner = WeakInterner<Key>()
+
+    val first = Key(1)
+    val second = Key(1)
+
+    assertSame(first, interner.intern(first))
+    assertSame(first, interner.intern(second))
+    assertNotSame(first, interner.intern(Key(2)))
+    assertEquals(2, interner.size())
+  }
+
+  @Test
+  fun `test unreachable instances are evicted after gc`() {
+    val interner = WeakInterner<Key>()
+    val alive = interner.intern(Key(0))
+
+    internUnreachable(interner, count = 1000)
+    assertTrue(interner.size() > 1)
+
+    awaitCondition { interner.size() == 1 }
+
+    assertEquals(1, interner.size())
+    assertSame(alive, interner.intern(Key(0)))
+
+    // Equal objects interned after the previous canonical instance was collected become canonical
+    val newInstance = Key(1)
+    assertSame(newInstance, interner.intern(newInstance))
+    assertEquals(2, interner.size())
+  }
+
+  @Test
+  fun `test concurrently interned equal objects end up as one instance`() {
+    val interner = WeakInterner<Key>()
+    val threadsCount = 8
+    val keysCount = 10_000
+    val executor = Executors.newFixedThreadPool(threadsCount)
+    val startLatch = CountDownLatch(1)
+
+    try {
+      val futures = (0 until threadsCount).map {
+        executor.submit<List<Key>> {
+          startLatch.await()
+          (0 until keysCount).map { value -> interner.intern(Key(value)) }
+        }
+      }
+
+      startLatch.countDown()
+      val results = futures.map { future -> future.get(30, TimeUnit.SECONDS) }
+
+      (0 until keysCount).forEach { index ->
+        val canonical = results[0][index]
+        results.forEach { result -> assertSame(canonical, result[index]) }
+      }
+
+      assertEquals(keysCount, interner.size())
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private fun internUnreachable(interner: WeakInterner<Key>, count: Int) {
+    (1..count).forEach { value -> interner.intern(Key(value)) }
+  }
+
+  private fun awaitCondition(condition: () -> Boolean) {
+    repeat(50) {
+      if (condition()) {
+        return
+      }
+
+      // Garbage to make the collector actually run
+      @Suppress("UNUSED_VARIABLE")
+      val garbage = ArrayList<ByteArray>().apply { repeat(16) { add(ByteArray(64 * 1024)) } }
+
+      System.gc()
+      Thread.sleep(20)
+    }
+  }
+
+  private data class Key(val value: Int)
+}
@@ -1,6 +1,7 @@
 package com.github.k1rakishou.model.data.descriptor
 
 import android.os.Parcelable
+import com.github.k1rakishou.common.datastructure.WeakInterner
 import kotlinx.parcelize.Parcelize
 
 @Parcelize
@@ -36,6 +37,8 @@ class BoardDescriptor private constructor(
   }
 
   companion object {
+    private val interner = WeakInterner<BoardDescriptor>()
+
     @JvmStatic
     fun create(siteDescriptor: SiteDescriptor, boardCode: String): BoardDescriptor {
       return create(siteDescriptor.siteName, boardCode)
@@ -45,7 +48,7 @@ class BoardDescriptor private constructor(
     fun create(siteName: String, boardCodeInput: String): BoardDescriptor {
       val boardCode = boardCodeInput.intern()
 
-      return BoardDescriptor(SiteDescriptor.create(siteName), boardCode)
+      return interner.intern(BoardDescriptor(SiteDescriptor.create(siteName), boardCode))
     }
   }
 }
\ No newline at end of file
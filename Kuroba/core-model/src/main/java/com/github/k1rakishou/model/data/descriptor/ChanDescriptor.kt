@@ -1,9 +1,15 @@
 package com.github.k1rakishou.model.data.descriptor
 
 import android.os.Parcelable
+import com.github.k1rakishou.common.datastructure.WeakInterner
 import com.github.k1rakishou.model.entity.chan.catalog.CompositeCatalogEntity
 import kotlinx.parcelize.Parcelize
 
+/**
+ * All descriptors created via the companion create() functions are interned (weakly, see
+ * [WeakInterner]) so equal descriptors are usually the same object and equals() short-circuits on
+ * identity. Descriptors restored from a Parcel are not interned but still compare by value.
+ * */
 sealed class ChanDescriptor : Parcelable {
   abstract fun isThreadDescriptor(): Boolean
   abstract fun isCatalogDescriptor(): Boolean
@@ -110,6 +116,8 @@ sealed class ChanDescriptor : Parcelable {
     }
 
     companion object {
+      private val interner = WeakInterner<ThreadDescriptor>()
+
       @JvmStatic
       fun create(siteName: String, boardCode: String, threadNo: Long): ThreadDescriptor {
         require(threadNo > 0) { "Bad threadId: $threadNo" }
@@ -130,7 +138,7 @@ sealed class ChanDescriptor : Parcelable {
       fun create(boardDescriptor: BoardDescriptor, threadNo: Long): ThreadDescriptor {
         require(threadNo > 0) { "Bad threadId: $threadNo" }
 
-        return ThreadDescriptor(boardDescriptor, threadNo)
+        return interner.intern(ThreadDescriptor(boardDescriptor, threadNo))
       }
 
       fun fromDescriptorParcelable(descriptorParcelable: DescriptorParcelable): ThreadDescriptor {
@@ -195,6 +203,8 @@ sealed class ChanDescriptor : Parcelable {
     }
 
     companion object {
+      private val interner = WeakInterner<CatalogDescriptor>()
+
       fun fromDescriptorParcelable(descriptorParcelable: DescriptorParcelable): CatalogDescriptor {
         require(!descriptorParcelable.isThreadDescriptor()) { "Not a catalog descriptor type" }
         require(descriptorParcelable is SingleDescriptorParcelable) { "Must be SingleDescriptorParcelable" }
@@ -215,7 +225,7 @@ sealed class ChanDescriptor : Parcelable {
         val siteName = siteNameInput.intern()
         val boardCode = boardCodeInput.intern()
 
-        return CatalogDescriptor(BoardDescriptor.create(siteName, boardCode))
+        return interner.intern(CatalogDescriptor(BoardDescriptor.create(siteName, boardCode)))
       }
 
       /**
@@ -336,6 +346,8 @@ sealed class ChanDescriptor : Parcelable {
       const val MIN_CATALOGS_COUNT = 2
       const val MAX_CATALOGS_COUNT = 10
 
+      private val interner = WeakInterner<CompositeCatalogDescriptor>()
+
       fun createSafe(catalogDescriptors: List<CatalogDescriptor>): CompositeCatalogDescriptor? {
         if (catalogDescriptors.size < MIN_CATALOGS_COUNT) {
           return null
@@ -349,13 +361,13 @@ sealed class ChanDescriptor : Parcelable {
       }
 
       fun create(catalogDescriptors: List<CatalogDescriptor>): CompositeCatalogDescriptor {
-        return CompositeCatalogDescriptor(catalogDescriptors)
+        return interner.intern(CompositeCatalogDescriptor(catalogDescriptors))
       }
 
       fun fromDescriptorParcelable(descriptorParcelable: DescriptorParcelable): CompositeCatalogDescriptor {
         require(descriptorParcelable is CompositeDescriptorParcelable) { "Must be CompositeDescriptorParcelable" }
 
-        return CompositeCatalogDescriptor(descriptorParcelable.toCatalogDescriptors())
+        return create(descriptorParcelable.toCatalogDescriptors())
       }
 
       /**
@@ -394,7 +406,7 @@ sealed class ChanDescriptor : Parcelable {
           return null
         }
 
-        return CompositeCatalogDescriptor(catalogDescriptors)
+        return create(catalogDescriptors)
       }
     }
 
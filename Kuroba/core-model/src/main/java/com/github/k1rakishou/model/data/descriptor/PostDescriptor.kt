@@ -1,8 +1,13 @@
 package com.github.k1rakishou.model.data.descriptor
 
+import com.github.k1rakishou.common.datastructure.WeakInterner
 import com.github.k1rakishou.core_logger.Logger
 import java.util.*
 
+/**
+ * Instances created with the companion create() functions are interned (weakly) so that the
+ * same post referenced from many places (replies, filters, seen posts etc) is usually one object.
+ * */
 open class PostDescriptor protected constructor(
   /**
    * A post may belong to a thread or to a catalog (OP) that's why we use abstract
@@ -114,6 +119,11 @@ open class PostDescriptor protected constructor(
   companion object {
     private const val TAG = "PostDescriptor"
 
+    private val interner = WeakInterner<PostDescriptor>()
+
+    // For tests
+    internal fun internedCount(): Int = interner.size()
+
     // PD___TD___4chan___g___12345678___345345345___0
     // PD___CD___4chan___g___345345345___0
     fun deserializeFromString(postDescriptorString: String): PostDescriptor? {
@@ -179,9 +189,11 @@ open class PostDescriptor protected constructor(
     fun create(siteName: String, boardCode: String, threadNo: Long): PostDescriptor {
       require(threadNo > 0) { "Bad threadNo: $threadNo" }
 
-      return PostDescriptor(
-        descriptor = ChanDescriptor.CatalogDescriptor.create(siteName, boardCode),
-        postNo = threadNo
+      return interner.intern(
+        PostDescriptor(
+          descriptor = ChanDescriptor.CatalogDescriptor.create(siteName, boardCode),
+          postNo = threadNo
+        )
       )
     }
 
@@ -201,7 +213,10 @@ open class PostDescriptor protected constructor(
 
     @JvmStatic
     fun create(threadDescriptor: ChanDescriptor.ThreadDescriptor, postNo: Long): PostDescriptor {
-      return create(threadDescriptor.siteName(), threadDescriptor.boardCode(), threadDescriptor.threadNo, postNo, 0)
+      require(postNo > 0) { "Bad postNo: $postNo. threadDescriptor=$threadDescriptor, postNo=$postNo" }
+
+      // Hot path (used when iterating reply sets), no need to go through the site/board lookups
+      return interner.intern(PostDescriptor(threadDescriptor, postNo, 0L))
     }
 
     @JvmOverloads
@@ -210,10 +225,12 @@ open class PostDescriptor protected constructor(
       require(threadNo > 0) { "Bad threadNo: $threadNo. siteName=$siteName, boardCode=$boardCode, threadNo=$threadNo, postNo=$postNo, postSubNo=$postSubNo" }
       require(postNo > 0) { "Bad postNo: $postNo. siteName=$siteName, boardCode=$boardCode, threadNo=$threadNo, postNo=$postNo, postSubNo=$postSubNo" }
 
-      return PostDescriptor(
-        ChanDescriptor.ThreadDescriptor.create(siteName, boardCode, threadNo),
-        postNo,
-        postSubNo
+      return interner.intern(
+        PostDescriptor(
+          ChanDescriptor.ThreadDescriptor.create(siteName, boardCode, threadNo),
+          postNo,
+          postSubNo
+        )
       )
     }
   }
@@ -1,6 +1,7 @@
 package com.github.k1rakishou.model.data.descriptor
 
 import android.os.Parcelable
+import com.github.k1rakishou.common.datastructure.WeakInterner
 import kotlinx.parcelize.Parcelize
 
 @Parcelize
@@ -43,10 +44,12 @@ class SiteDescriptor private constructor(
   }
 
   companion object {
+    private val interner = WeakInterner<SiteDescriptor>()
+
     fun create(siteNameInput: String): SiteDescriptor {
       val siteName = siteNameInput.intern()
 
-      return SiteDescriptor(siteName)
+      return interner.intern(SiteDescriptor(siteName))
     }
   }
 
@@ -83,7 +83,7 @@ class ChanOriginalPost(
       repliesFrom = repliesFrom,
       deleted = overrideDeleted ?: isDeleted
     ).also { newPost ->
-      newPost.replaceOnDemandContentLoadedArray(this.copyOnDemandContentLoadedArray())
+      newPost.replaceOnDemandContentLoadedFlags(this.copyOnDemandContentLoadedFlags())
     }
   }
 
@@ -24,11 +24,11 @@ open class ChanPost(
   posterIdColor: Int
 ) {
   /**
-   * We use this array to avoid infinite loops when binding posts since after all post content
+   * We use these flags to avoid infinite loops when binding posts since after all post content
    * loaders have done their jobs we update the post via notifyItemChange, which triggers
-   * onPostBind() again.
+   * onPostBind() again. One bit per [LoaderType.arrayIndex].
    */
-  private val onDemandContentLoadedArray = Array<Boolean>(LoaderType.COUNT) { false }
+  private var onDemandContentLoadedFlags = 0
 
   @get:Synchronized
   @set:Synchronized
@@ -39,10 +39,10 @@ open class ChanPost(
   var posterIdColor: Int = 0
 
   @get:Synchronized
-  val repliesFrom = mutableSetOf<PostDescriptor>()
+  val repliesFrom: MutableSet<PostDescriptor> = PostReplySet()
 
   @get:Synchronized
-  val repliesTo = mutableSetOf<PostDescriptor>()
+  val repliesTo: MutableSet<PostDescriptor> = PostReplySet()
 
   @get:Synchronized
   val repliesFromCopy: Set<PostDescriptor>
@@ -79,10 +79,6 @@ open class ChanPost(
   init {
     this.posterIdColor = posterIdColor
 
-    for (loaderType in LoaderType.values()) {
-      onDemandContentLoadedArray[loaderType.arrayIndex] = false
-    }
-
     repliesFrom?.let { replies -> this.repliesFrom.addAll(replies) }
 
     if (repliesTo.isNotEmpty()) {
@@ -110,13 +106,13 @@ open class ChanPost(
       isSage = isSage,
       deleted = overrideDeleted ?: isDeleted
     ).also { newPost ->
-      newPost.replaceOnDemandContentLoadedArray(this.copyOnDemandContentLoadedArray())
+      newPost.replaceOnDemandContentLoadedFlags(this.copyOnDemandContentLoadedFlags())
     }
   }
 
   @Synchronized
   open fun isContentLoadedForLoader(loaderType: LoaderType): Boolean {
-    return onDemandContentLoadedArray[loaderType.arrayIndex]
+    return (onDemandContentLoadedFlags and loaderType.flag()) != 0
   }
 
   @Synchronized
@@ -124,52 +120,26 @@ open class ChanPost(
     loaderType: LoaderType,
     loaded: Boolean = true
   ) {
-    onDemandContentLoadedArray[loaderType.arrayIndex] = loaded
+    onDemandContentLoadedFlags = if (loaded) {
+      onDemandContentLoadedFlags or loaderType.flag()
+    } else {
+      onDemandContentLoadedFlags and loaderType.flag().inv()
+    }
   }
 
   @Synchronized
   open fun allLoadersCompletedLoading(): Boolean {
-    return onDemandContentLoadedArray
-      .all { loaderContentLoadState -> loaderContentLoadState }
-  }
-
-  @Synchronized
-  fun copyOnDemandContentLoadedArray(): Array<Boolean> {
-    val newArray = Array<Boolean>(LoaderType.COUNT) { false }
-
-    onDemandContentLoadedArray.forEachIndexed { index, loaderContentLoadState ->
-      newArray[index] = loaderContentLoadState
-    }
-
-    return newArray
+    return onDemandContentLoadedFlags == ALL_LOADERS_COMPLETED_FLAGS
   }
 
   @Synchronized
-  fun replaceOnDemandContentLoadedArray(newArray: Array<Boolean>) {
-    for (index in onDemandContentLoadedArray.indices) {
-      onDemandContentLoadedArray[index] = newArray[index]
-    }
+  fun copyOnDemandContentLoadedFlags(): Int {
+    return onDemandContentLoadedFlags
   }
 
   @Synchronized
-  fun onDemandContentLoadedMapsDiffer(
-    thisArray: Array<Boolean>,
-    otherArray: Array<Boolean>
-  ): Boolean {
-    if (thisArray.size != otherArray.size) {
-      return true
-    }
-
-    for (index in thisArray.indices) {
-      val thisLoaderState = thisArray[index]
-      val otherLoaderState = otherArray[index]
-
-      if (thisLoaderState != otherLoaderState) {
-        return true
-      }
-    }
-
-    return false
+  fun replaceOnDemandContentLoadedFlags(newFlags: Int) {
+    onDemandContentLoadedFlags = newFlags
   }
 
   @Synchronized
@@ -190,6 +160,44 @@ open class ChanPost(
     }
   }
 
+  /**
+   * Approximate amount of heap memory (in bytes) retained by this post. The posts cache sums it up
+   * and compares the result against its byte budget (AppConstants.maxPostsCacheSizeInBytes) so the
+   * per-object sizes below are picked to be close to the actual (ART) object sizes.
+   * */
+  @Synchronized
+  fun estimateRetainedSize(): Long {
+    var size = POST_BASE_SIZE + postComment.estimateRetainedSize()
+
+    size += ((subject?.length ?: 0) + (tripcode?.length ?: 0) + (name?.length ?: 0)) * CHAR_SIZE
+    size += ((posterId?.length ?: 0) + (moderatorCapcode?.length ?: 0)) * CHAR_SIZE
+
+    for (postImage in _postImages) {
+      size += POST_IMAGE_SIZE
+      size += (postImage.serverFilename.length + (postImage.filename?.length ?: 0)) * CHAR_SIZE
+    }
+
+    size += postIcons.size * POST_ICON_SIZE
+    size += (repliesTo.size + repliesFrom.size) * REPLY_SIZE
+
+    return size
+  }
+
+  @Synchronized
+  internal fun addReplyFrom(postDescriptor: PostDescriptor): Boolean {
+    return repliesFrom.add(postDescriptor)
+  }
+
+  @Synchronized
+  internal fun addRepliesFrom(postDescriptors: Collection<PostDescriptor>) {
+    repliesFrom.addAll(postDescriptors)
+  }
+
+  @Synchronized
+  internal fun removeReplyFrom(postDescriptor: PostDescriptor): Boolean {
+    return repliesFrom.remove(postDescriptor)
+  }
+
   @Synchronized
   internal fun addImage(chanPostImage: ChanPostImage): Boolean {
     val alreadyAdded = _postImages
@@ -241,7 +249,7 @@ open class ChanPost(
       return false
     }
 
-    if (!onDemandContentLoadedMapsDiffer(onDemandContentLoadedArray, other.onDemandContentLoadedArray)) {
+    if (copyOnDemandContentLoadedFlags() == other.copyOnDemandContentLoadedFlags()) {
       return false
     }
 
@@ -291,4 +299,20 @@ open class ChanPost(
       '}'
   }
 
-}
\ No newline at end of file
+  companion object {
+    // Approximate sizes (in bytes) of the objects a post retains, see estimateRetainedSize()
+    private const val CHAR_SIZE = 2L
+    // The post object itself, its descriptor and all the collections it holds
+    private const val POST_BASE_SIZE = 512L
+    // ChanPostImage object with its urls
+    private const val POST_IMAGE_SIZE = 768L
+    private const val POST_ICON_SIZE = 256L
+    // An entry in a repliesTo/repliesFrom set (see PostReplySet)
+    private const val REPLY_SIZE = 16L
+
+    private val ALL_LOADERS_COMPLETED_FLAGS = (1 shl LoaderType.COUNT) - 1
+
+    private fun LoaderType.flag(): Int = 1 shl arrayIndex
+  }
+
+}
@@ -2,6 +2,7 @@ package com.github.k1rakishou.model.data.post
 
 import android.text.Spannable
 import android.text.SpannableString
+import android.text.Spanned
 import androidx.core.text.getSpans
 import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.core_spannable.PostLinkable
@@ -33,6 +34,16 @@ class PostComment(
   @set:Synchronized
   private var _updatedCommentHash: MurmurHashUtils.Murmur3Hash? = null
 
+  // Comments are only replaced as a whole so their sizes are estimated once, when they are set,
+  // and not every time the thread cache estimates its size.
+  @get:Synchronized
+  @set:Synchronized
+  private var _originalCommentSize = estimateCharSequenceSize(originalComment)
+
+  @get:Synchronized
+  @set:Synchronized
+  private var _updatedCommentSize = 0L
+
   @get:Synchronized
   val originalCommentHash: MurmurHashUtils.Murmur3Hash
     get() = _originalCommentHash
@@ -51,6 +62,7 @@ class PostComment(
       newPostComment._updatedComment = this._updatedComment
       newPostComment._originalCommentHash = this._originalCommentHash
       newPostComment._updatedCommentHash = this._updatedCommentHash
+      newPostComment._updatedCommentSize = this._updatedCommentSize
     }
   }
 
@@ -60,6 +72,7 @@ class PostComment(
 
     this._updatedComment = newComment
     this._updatedCommentHash = MurmurHashUtils.murmurhash3_x64_128(newComment)
+    this._updatedCommentSize = estimateCharSequenceSize(newComment)
   }
 
   @Synchronized
@@ -84,6 +97,20 @@ class PostComment(
   @Synchronized
   fun hasComment() = originalComment.isNotEmpty()
 
+  /**
+   * Rough estimate (in bytes) of the memory retained by this comment: the chars of all comment
+   * versions plus the spans attached to them.
+   * */
+  @Synchronized
+  fun estimateRetainedSize(): Long {
+    var size = _originalCommentSize + _updatedCommentSize
+
+    size += (originalUnparsedComment?.length ?: 0) * CHAR_SIZE
+    size += linkables.size * LINKABLE_SIZE
+
+    return size
+  }
+
   @Synchronized
   fun containsPostLinkable(postLinkable: PostLinkable): Boolean {
     return linkables.contains(postLinkable)
@@ -136,4 +163,20 @@ class PostComment(
     return originalComment.hashCode()
   }
 
-}
\ No newline at end of file
+  companion object {
+    // Approximate sizes (in bytes) of the objects a comment retains, see estimateRetainedSize()
+    private const val CHAR_SIZE = 2L
+    private const val SPAN_SIZE = 64L
+    private const val LINKABLE_SIZE = 96L
+
+    private fun estimateCharSequenceSize(charSequence: CharSequence): Long {
+      val spansCount = (charSequence as? Spanned)
+        ?.getSpans(0, charSequence.length, Any::class.java)
+        ?.size
+        ?: 0
+
+      return (charSequence.length * CHAR_SIZE) + (spansCount * SPAN_SIZE)
+    }
+  }
+
+}
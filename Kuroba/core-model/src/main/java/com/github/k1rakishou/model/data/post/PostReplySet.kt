@@ -0,0 +1,229 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * A compact set of post descriptors used for [ChanPost.repliesTo]/[ChanPost.repliesFrom]. Almost
+ * all replies point to posts of the same thread so instead of keeping a hash set entry (plus the
+ * descriptor) per reply we only keep the post numbers of that thread in sorted primitive arrays
+ * (postSubNos array is only allocated once there is a post with non-zero subNo). Descriptors of
+ * other threads (cross-thread quotes) go into a regular set. Descriptors are materialized (they are
+ * interned so this is mostly a lookup) when iterating.
+ *
+ * Iteration order is: posts of the main thread sorted by postNo/postSubNo, then all the others.
+ * Not thread-safe, same as the sets it replaces.
+ * */
+class PostReplySet() : AbstractMutableSet<PostDescriptor>() {
+  private var threadDescriptor: ChanDescriptor.ThreadDescriptor? = null
+  private var postNos: LongArray = EMPTY
+  private var postSubNos: LongArray? = null
+  private var threadPostsCount = 0
+  private var others: MutableSet<PostDescriptor>? = null
+
+  constructor(postDescriptors: Collection<PostDescriptor>) : this() {
+    addAll(postDescriptors)
+  }
+
+  override val size: Int
+    get() = threadPostsCount + (others?.size ?: 0)
+
+  override fun isEmpty(): Boolean = size == 0
+
+  override fun contains(element: PostDescriptor): Boolean {
+    if (isThreadPost(element)) {
+      return indexOf(element.postNo, element.postSubNo) >= 0
+    }
+
+    return others?.contains(element) ?: false
+  }
+
+  override fun add(element: PostDescriptor): Boolean {
+    if (threadDescriptor == null && element.descriptor is ChanDescriptor.ThreadDescriptor) {
+      threadDescriptor = element.descriptor as ChanDescriptor.ThreadDescriptor
+    }
+
+    if (!isThreadPost(element)) {
+      var otherPosts = others
+      if (otherPosts == null) {
+        otherPosts = LinkedHashSet(4)
+        others = otherPosts
+      }
+
+      return otherPosts.add(element)
+    }
+
+    val index = indexOf(element.postNo, element.postSubNo)
+    if (index >= 0) {
+      return false
+    }
+
+    insertAt(-(index + 1), element.postNo, element.postSubNo)
+    return true
+  }
+
+  override fun remove(element: PostDescriptor): Boolean {
+    if (!isThreadPost(element)) {
+      return others?.remove(element) ?: false
+    }
+
+    val index = indexOf(element.postNo, element.postSubNo)
+    if (index < 0) {
+      return false
+    }
+
+    removeAt(index)
+    return true
+  }
+
+  override fun clear() {
+    postNos = EMPTY
+    postSubNos = null
+    threadPostsCount = 0
+    others = null
+  }
+
+  override fun iterator(): MutableIterator<PostDescriptor> {
+    return ReplyIterator()
+  }
+
+  private fun isThreadPost(postDescriptor: PostDescriptor): Boolean {
+    val currentThreadDescriptor = threadDescriptor
+      ?: return false
+
+    return postDescriptor.descriptor == currentThreadDescriptor
+  }
+
+  private fun postSubNoAt(index: Int): Long {
+    return postSubNos?.get(index) ?: 0L
+  }
+
+  private fun indexOf(postNo: Long, postSubNo: Long): Int {
+    var low = 0
+    var high = threadPostsCount - 1
+
+    while (low <= high) {
+      val mid = (low + high) ushr 1
+      val midPostNo = postNos[mid]
+
+      val result = if (midPostNo != postNo) {
+        midPostNo.compareTo(postNo)
+      } else {
+        postSubNoAt(mid).compareTo(postSubNo)
+      }
+
+      when {
+        result < 0 -> low = mid + 1
+        result > 0 -> high = mid - 1
+        else -> return mid
+      }
+    }
+
+    return -(low + 1)
+  }
+
+  private fun insertAt(index: Int, postNo: Long, postSubNo: Long) {
+    if (threadPostsCount == postNos.size) {
+      postNos = postNos.copyOf(growCapacity(postNos.size))
+      postSubNos = postSubNos?.copyOf(postNos.size)
+    }
+
+    if (postSubNo != 0L && postSubNos == null) {
+      postSubNos = LongArray(postNos.size)
+    }
+
+    System.arraycopy(postNos, index, postNos, index + 1, threadPostsCount - index)
+    postNos[index] = postNo
+
+    postSubNos?.let { subNos ->
+      System.arraycopy(subNos, index, subNos, index + 1, threadPostsCount - index)
+      subNos[index] = postSubNo
+    }
+
+    ++threadPostsCount
+  }
+
+  private fun removeAt(index: Int) {
+    val moveCount = threadPostsCount - index - 1
+
+    System.arraycopy(postNos, index + 1, postNos, index, moveCount)
+    postSubNos?.let { subNos -> System.arraycopy(subNos, index + 1, subNos, index, moveCount) }
+
+    --threadPostsCount
+  }
+
+  private fun growCapacity(currentCapacity: Int): Int {
+    if (currentCapacity < 4) {
+      return 4
+    }
+
+    return currentCapacity + (currentCapacity shr 1)
+  }
+
+  private inner class ReplyIterator : MutableIterator<PostDescriptor> {
+    private var nextIndex = 0
+    private var lastReturnedIndex = -1
+    private var othersIterator: MutableIterator<PostDescriptor>? = null
+
+    override fun hasNext(): Boolean {
+      if (nextIndex < threadPostsCount) {
+        return true
+      }
+
+      return getOthersIterator()?.hasNext() ?: false
+    }
+
+    override fun next(): PostDescriptor {
+      if (nextIndex < threadPostsCount) {
+        lastReturnedIndex = nextIndex++
+
+        val currentThreadDescriptor = threadDescriptor!!
+        val postSubNo = postSubNoAt(lastReturnedIndex)
+
+        if (postSubNo == 0L) {
+          return PostDescriptor.create(currentThreadDescriptor, postNos[lastReturnedIndex])
+        }
+
+        return PostDescriptor.create(
+          chanDescriptor = currentThreadDescriptor,
+          threadNo = currentThreadDescriptor.threadNo,
+          postNo = postNos[lastReturnedIndex],
+          postSubNo = postSubNo
+        )
+      }
+
+      lastReturnedIndex = -1
+
+      return getOthersIterator()?.next()
+        ?: throw NoSuchElementException()
+    }
+
+    override fun remove() {
+      if (lastReturnedIndex >= 0) {
+        removeAt(lastReturnedIndex)
+
+        nextIndex = lastReturnedIndex
+        lastReturnedIndex = -1
+        return
+      }
+
+      val iterator = othersIterator
+        ?: throw IllegalStateException("next() was not called")
+
+      iterator.remove()
+    }
+
+    private fun getOthersIterator(): MutableIterator<PostDescriptor>? {
+      if (othersIterator == null) {
+        othersIterator = others?.iterator()
+      }
+
+      return othersIterator
+    }
+  }
+
+  companion object {
+    private val EMPTY = LongArray(0)
+  }
+
+}
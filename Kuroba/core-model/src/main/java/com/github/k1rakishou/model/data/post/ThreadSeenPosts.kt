@@ -0,0 +1,220 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import org.joda.time.DateTime
+
+/**
+ * Seen posts of one thread stored as sorted primitive arrays (postNo, postSubNo, insertedAt millis)
+ * instead of a PostDescriptor -> SeenPost map. postSubNos array is only allocated when there is at
+ * least one post with non-zero subNo. Immutable, adding posts returns a new instance, so it can be
+ * read from any thread without locking.
+ * */
+class ThreadSeenPosts private constructor(
+  private val postNos: LongArray,
+  private val postSubNos: LongArray?,
+  private val insertedAtMillis: LongArray
+) {
+
+  val size: Int
+    get() = postNos.size
+
+  fun contains(postDescriptor: PostDescriptor): Boolean {
+    return indexOf(postDescriptor.postNo, postDescriptor.postSubNo) >= 0
+  }
+
+  /**
+   * Returns the time (in millis) the post was seen at or -1 if it's not seen.
+   * */
+  fun insertedAtMillis(postDescriptor: PostDescriptor): Long {
+    val index = indexOf(postDescriptor.postNo, postDescriptor.postSubNo)
+    if (index < 0) {
+      return -1L
+    }
+
+    return insertedAtMillis[index]
+  }
+
+  /**
+   * Returns a new instance with posts of both this and [other]. For posts that are in both the time
+   * they were seen at is taken from this instance.
+   * */
+  fun plus(other: ThreadSeenPosts): ThreadSeenPosts {
+    if (other.size == 0) {
+      return this
+    }
+
+    if (size == 0) {
+      return other
+    }
+
+    val resultPostNos = LongArray(size + other.size)
+    val resultPostSubNos = if (postSubNos != null || other.postSubNos != null) {
+      LongArray(size + other.size)
+    } else {
+      null
+    }
+    val resultInsertedAtMillis = LongArray(size + other.size)
+
+    var thisIndex = 0
+    var otherIndex = 0
+    var resultIndex = 0
+
+    while (thisIndex < size || otherIndex < other.size) {
+      val result = when {
+        thisIndex >= size -> 1
+        otherIndex >= other.size -> -1
+        else -> compare(
+          postNos[thisIndex], postSubNoAt(thisIndex),
+          other.postNos[otherIndex], other.postSubNoAt(otherIndex)
+        )
+      }
+
+      if (result <= 0) {
+        resultPostNos[resultIndex] = postNos[thisIndex]
+        resultPostSubNos?.set(resultIndex, postSubNoAt(thisIndex))
+        resultInsertedAtMillis[resultIndex] = insertedAtMillis[thisIndex]
+
+        ++thisIndex
+
+        if (result == 0) {
+          ++otherIndex
+        }
+      } else {
+        resultPostNos[resultIndex] = other.postNos[otherIndex]
+        resultPostSubNos?.set(resultIndex, other.postSubNoAt(otherIndex))
+        resultInsertedAtMillis[resultIndex] = other.insertedAtMillis[otherIndex]
+
+        ++otherIndex
+      }
+
+      ++resultIndex
+    }
+
+    if (resultIndex == size) {
+      // Everything from other was already here
+      return this
+    }
+
+    return ThreadSeenPosts(
+      postNos = resultPostNos.copyOf(resultIndex),
+      postSubNos = resultPostSubNos?.copyOf(resultIndex),
+      insertedAtMillis = resultInsertedAtMillis.copyOf(resultIndex)
+    )
+  }
+
+  fun plus(seenPosts: Collection<SeenPost>): ThreadSeenPosts {
+    return plus(from(seenPosts))
+  }
+
+  /**
+   * Returns a new instance only containing [postDescriptor] (if it's in this instance).
+   * */
+  fun retainOnly(postDescriptor: PostDescriptor): ThreadSeenPosts {
+    val index = indexOf(postDescriptor.postNo, postDescriptor.postSubNo)
+    if (index < 0) {
+      return EMPTY
+    }
+
+    if (size == 1) {
+      return this
+    }
+
+    return ThreadSeenPosts(
+      postNos = longArrayOf(postNos[index]),
+      postSubNos = postSubNos?.let { subNos -> longArrayOf(subNos[index]) },
+      insertedAtMillis = longArrayOf(insertedAtMillis[index])
+    )
+  }
+
+  fun toSeenPosts(threadDescriptor: ChanDescriptor.ThreadDescriptor): List<SeenPost> {
+    return (0 until size).map { index ->
+      val postDescriptor = PostDescriptor.create(
+        chanDescriptor = threadDescriptor,
+        threadNo = threadDescriptor.threadNo,
+        postNo = postNos[index],
+        postSubNo = postSubNoAt(index)
+      )
+
+      return@map SeenPost(postDescriptor, DateTime(insertedAtMillis[index]))
+    }
+  }
+
+  private fun postSubNoAt(index: Int): Long {
+    return postSubNos?.get(index) ?: 0L
+  }
+
+  private fun indexOf(postNo: Long, postSubNo: Long): Int {
+    var low = 0
+    var high = size - 1
+
+    while (low <= high) {
+      val mid = (low + high) ushr 1
+      val result = compare(postNos[mid], postSubNoAt(mid), postNo, postSubNo)
+
+      when {
+        result < 0 -> low = mid + 1
+        result > 0 -> high = mid - 1
+        else -> return mid
+      }
+    }
+
+    return -1
+  }
+
+  companion object {
+    val EMPTY = ThreadSeenPosts(LongArray(0), null, LongArray(0))
+
+    fun from(seenPosts: Collection<SeenPost>): ThreadSeenPosts {
+      if (seenPosts.isEmpty()) {
+        return EMPTY
+      }
+
+      val sortedSeenPosts = seenPosts.sortedWith(SEEN_POSTS_COMPARATOR)
+      val hasSubNos = sortedSeenPosts.any { seenPost -> seenPost.postDescriptor.postSubNo != 0L }
+
+      val postNos = LongArray(sortedSeenPosts.size)
+      val postSubNos = if (hasSubNos) LongArray(sortedSeenPosts.size) else null
+      val insertedAtMillis = LongArray(sortedSeenPosts.size)
+      var count = 0
+
+      for (seenPost in sortedSeenPosts) {
+        val postNo = seenPost.postDescriptor.postNo
+        val postSubNo = seenPost.postDescriptor.postSubNo
+
+        if (count > 0 && postNos[count - 1] == postNo && (postSubNos?.get(count - 1) ?: 0L) == postSubNo) {
+          // Duplicate, keep the first one
+          continue
+        }
+
+        postNos[count] = postNo
+        postSubNos?.set(count, postSubNo)
+        insertedAtMillis[count] = seenPost.insertedAt.millis
+        ++count
+      }
+
+      return ThreadSeenPosts(
+        postNos = postNos.copyOf(count),
+        postSubNos = postSubNos?.copyOf(count),
+        insertedAtMillis = insertedAtMillis.copyOf(count)
+      )
+    }
+
+    private fun compare(postNo1: Long, postSubNo1: Long, postNo2: Long, postSubNo2: Long): Int {
+      val postNoResult = postNo1.compareTo(postNo2)
+      if (postNoResult != 0) {
+        return postNoResult
+      }
+
+      return postSubNo1.compareTo(postSubNo2)
+    }
+
+    private val SEEN_POSTS_COMPARATOR = Comparator<SeenPost> { seenPost1, seenPost2 ->
+      compare(
+        seenPost1.postDescriptor.postNo, seenPost1.postDescriptor.postSubNo,
+        seenPost2.postDescriptor.postNo, seenPost2.postDescriptor.postSubNo
+      )
+    }
+  }
+
+}
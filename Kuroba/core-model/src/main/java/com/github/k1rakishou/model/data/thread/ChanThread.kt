@@ -1,5 +1,6 @@
 package com.github.k1rakishou.model.data.thread
 
+import android.text.TextUtils
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.common.hashSetWithCap
@@ -29,24 +30,50 @@ import kotlin.concurrent.write
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
+/**
+ * Posts of a thread. Writers (addOrUpdatePosts, deletePosts etc) hold the write side of [lock] and
+ * modify the posts (and some of the post objects, like images, OP state or repliesFrom) in place,
+ * readers hold the read side. Small edits only touch what they change, they never copy the posts.
+ *
+ * Every change of the posts increments [version] and comes with a [ThreadPostsChangeSet] describing
+ * what changed, it's passed to [onPostsChanged] while the lock is still held (so change sets are
+ * delivered in order).
+ * */
 class ChanThread(
   private val isDevBuild: Boolean,
   val threadDescriptor: ChanDescriptor.ThreadDescriptor,
-  initialLastAccessTime: Long
+  initialLastAccessTime: Long,
+  private val onPostsChanged: ((ThreadPostsChangeSet) -> Unit)? = null
 ) {
   private val lock = ReentrantReadWriteLock()
 
   @GuardedBy("lock")
   private val threadPosts = mutableListOf<ChanPost>()
   @GuardedBy("lock")
-  private val postsByPostDescriptors = mutableMapOf<PostDescriptor, ChanPost>()
+  // Post numbers and flags of threadPosts (same order), used to look up posts without a hash map
+  private val postColumns = ThreadPostColumns()
+
+  @GuardedBy("lock")
+  // Posts of this thread quoted by other posts of this thread while not being in the thread (not
+  // loaded yet or deleted) -> the posts quoting them. Linked once the quoted post gets added.
+  private val danglingReplies = mutableMapOf<PostDescriptor, MutableSet<PostDescriptor>>()
+
+  @GuardedBy("lock")
+  private var postsVersion = 0L
   @GuardedBy("lock")
   // Stores hashes of unparsed post comments, the way we got the from the server, without any spans added yet.
   private val rawPostHashesMap = mutableMapOf<PostDescriptor, MurmurHashUtils.Murmur3Hash>()
   @GuardedBy("lock")
+  // Stores hashes of the whole raw post json objects, computed while the json is being read.
+  private val rawPostJsonHashesMap = mutableMapOf<PostDescriptor, Long>()
+  @GuardedBy("lock")
   private var lastAccessTime = initialLastAccessTime
   @GuardedBy("lock")
   private var lastUpdateTime = 0L
+  // Cached result of estimatedRetainedSize() for the posts of some version. Only written while
+  // holding the lock (read lock is enough since the value is the same for all readers).
+  @Volatile
+  private var estimatedRetainedSizeCached: RetainedSizeEstimate? = null
 
   // All the ***forUi variables/flags are used to display one-shot snackbar messages like
   // This thread is now sticky/no longer sticky/closed/archived/deleted etc
@@ -61,21 +88,27 @@ class ChanThread(
   @GuardedBy("lock")
   private var isNowArchivedForUi: Boolean? = null
 
+  /**
+   * Incremented every time the posts of this thread change.
+   * */
+  val version: Long
+    get() = lock.read { postsVersion }
+
   val postsCount: Int
     get() = lock.read { threadPosts.size }
 
   val repliesCount: Int
-    get() = lock.read {
+    get() {
       val postsTotal = postsCount
       if (postsTotal <= 0) {
-        return@read 0
+        return 0
       }
 
-      return@read postsTotal - 1
+      return postsTotal - 1
     }
 
   val imagesCount: Int
-    get() = lock.read { threadPosts.sumBy { post -> post.postImages.size } }
+    get() = lock.read { threadPosts.sumBy { post -> post.postImagesCount } }
 
   fun getAndConsumeDeletedPostsForUi(): Int {
     return lock.write {
@@ -134,13 +167,47 @@ class ChanThread(
     return lock.read { rawPostHashesMap[postDescriptor] }
   }
 
+  /**
+   * Raw json hashes must only be stored after the posts they were computed for are stored, so
+   * hashes of posts that this thread does not have are ignored.
+   * */
+  fun putRawPostJsonHashes(hashes: Map<PostDescriptor, Long>) {
+    if (hashes.isEmpty()) {
+      return
+    }
+
+    lock.write {
+      hashes.forEach { (postDescriptor, hash) ->
+        if (indexOfPostLocked(postDescriptor) >= 0) {
+          rawPostJsonHashesMap[postDescriptor] = hash
+        }
+      }
+    }
+  }
+
+  fun getRawPostJsonHash(postDescriptor: PostDescriptor): Long? {
+    return lock.read { rawPostJsonHashesMap[postDescriptor] }
+  }
+
   fun clearPostHashes() {
-    lock.write { rawPostHashesMap.clear() }
+    lock.write {
+      rawPostHashesMap.clear()
+      rawPostJsonHashesMap.clear()
+    }
+  }
+
+  fun clearPostHashes(postDescriptors: Collection<PostDescriptor>) {
+    lock.write {
+      postDescriptors.forEach { postDescriptor ->
+        rawPostHashesMap.remove(postDescriptor)
+        rawPostJsonHashesMap.remove(postDescriptor)
+      }
+    }
   }
 
   fun getPostImage(postDescriptor: PostDescriptor, imageUrl: HttpUrl): ChanPostImage? {
     return lock.read {
-      return@read postsByPostDescriptors[postDescriptor]
+      return@read getPostLocked(postDescriptor)
         ?.firstPostImageOrNull { chanPostImage -> chanPostImage.imageUrl == imageUrl }
     }
   }
@@ -150,7 +217,7 @@ class ChanThread(
       val posts = mutableListWithCap<ChanPost>(postDescriptors.size)
 
       postDescriptors.forEach { postDescriptor ->
-        posts += postsByPostDescriptors[postDescriptor]
+        posts += getPostLocked(postDescriptor)
           ?: return@forEach
       }
 
@@ -163,9 +230,12 @@ class ChanThread(
   }
 
   @OptIn(ExperimentalTime::class)
-  fun addOrUpdatePosts(newChanPosts: List<ChanPost>, postsFromServerData: PostsFromServerData?): Boolean {
+  fun addOrUpdatePosts(
+    newChanPosts: List<ChanPost>,
+    postsFromServerData: PostsFromServerData?
+  ): ThreadPostsChangeSet {
     if (newChanPosts.isEmpty()) {
-      return true
+      return ThreadPostsChangeSet.Builder(threadDescriptor).build(version)
     }
 
     return lock.write {
@@ -178,21 +248,39 @@ class ChanThread(
       }
 
       val deletedPostsSet = findDeletedPosts(threadPosts, postsFromServerData)
+      val changes = ThreadPostsChangeSet.Builder(threadDescriptor)
 
       var addedOrUpdatedOrDeletedPosts = false
+      val oldPostsCount = threadPosts.size
       var addedPostsCount = 0
       var updatedPostsCount = 0
       var deletedPostsCount = 0
+      // postColumns are only updated once all the posts are processed so we need to remember
+      // where the posts we append go in case the same post comes twice
+      var appendedPostIndexes: MutableMap<PostDescriptor, Int>? = null
+      // Posts that were already in the thread before this update (as they were before the update),
+      // used to only relink the replies that changed
+      var updatedOldPosts: MutableMap<PostDescriptor, ChanPost>? = null
 
       newChanPosts.forEach { newChanPost ->
         require(newChanPost.postDescriptor.descriptor is ChanDescriptor.ThreadDescriptor) {
           "postDescriptor.descriptor must be thread ThreadDescriptor"
         }
 
+        var oldChanPostIndex = indexOfPostLocked(newChanPost.postDescriptor)
+        if (oldChanPostIndex < 0) {
+          oldChanPostIndex = appendedPostIndexes?.get(newChanPost.postDescriptor) ?: -1
+        }
+
         // We don't have this post, just add it at the end
-        if (!postsByPostDescriptors.containsKey(newChanPost.postDescriptor)) {
+        if (oldChanPostIndex < 0) {
+          if (appendedPostIndexes == null) {
+            appendedPostIndexes = hashMapOf()
+          }
+
+          appendedPostIndexes!![newChanPost.postDescriptor] = threadPosts.size
           threadPosts.add(newChanPost)
-          postsByPostDescriptors[newChanPost.postDescriptor] = newChanPost
+          changes.inserted(newChanPost.postDescriptor)
 
           addedOrUpdatedOrDeletedPosts = true
           addedPostsCount++
@@ -200,10 +288,6 @@ class ChanThread(
           return@forEach
         }
 
-        val oldChanPostIndex = threadPosts
-          .indexOfFirst { post -> post.postDescriptor == newChanPost.postDescriptor }
-        check(oldChanPostIndex >= 0) { "Bad oldChanPostIndex: $oldChanPostIndex" }
-
         val oldChanPost = threadPosts[oldChanPostIndex]
 
         if (oldChanPost is ChanOriginalPost && newChanPost is ChanOriginalPost) {
@@ -215,7 +299,17 @@ class ChanThread(
         val mergedPost = mergePosts(oldChanPost, newChanPost, deletedPostsSet)
 
         threadPosts[oldChanPostIndex] = mergedPost
-        postsByPostDescriptors[newChanPost.postDescriptor] = mergedPost
+        changes.updated(mergedPost.postDescriptor, diffPostFields(oldChanPost, mergedPost))
+
+        if (appendedPostIndexes?.containsKey(newChanPost.postDescriptor) != true) {
+          if (updatedOldPosts == null) {
+            updatedOldPosts = hashMapOf()
+          }
+
+          if (!updatedOldPosts!!.containsKey(newChanPost.postDescriptor)) {
+            updatedOldPosts!![newChanPost.postDescriptor] = oldChanPost
+          }
+        }
 
         addedOrUpdatedOrDeletedPosts = true
         ++updatedPostsCount
@@ -223,8 +317,8 @@ class ChanThread(
 
       if (deletedPostsSet != null && deletedPostsSet.isNotEmpty()) {
         deletedPostsSet.forEach { deletedPostDescriptor ->
-          val oldChanPostIndex = threadPosts
-            .indexOfFirst { post -> post.postDescriptor == deletedPostDescriptor }
+          // Deleted posts are always the old ones so their indexes did not change
+          val oldChanPostIndex = indexOfPostLocked(deletedPostDescriptor)
 
           if (oldChanPostIndex < 0) {
             return@forEach
@@ -240,7 +334,7 @@ class ChanThread(
           val updatedPost = oldPost.deepCopy(overrideDeleted = true)
 
           threadPosts[oldChanPostIndex] = updatedPost
-          postsByPostDescriptors[updatedPost.postDescriptor] = updatedPost
+          changes.updated(updatedPost.postDescriptor, ThreadPostsChangeSet.FIELD_DELETED)
 
           addedOrUpdatedOrDeletedPosts = true
           ++deletedPostsCount
@@ -252,25 +346,44 @@ class ChanThread(
           if (!postsAreSorted()) {
             Logger.d(TAG, "addOrUpdatePosts() posts need to be sorted")
             threadPosts.sortWith(POSTS_COMPARATOR)
+            postColumns.rebuild(threadPosts)
+          } else {
+            // The posts before oldPostsCount kept their positions, only their images may have changed
+            updatedOldPosts?.keys?.forEach { postDescriptor ->
+              val postIndex = indexOfPostLocked(postDescriptor)
+              if (postIndex >= 0) {
+                postColumns.setHasImages(postIndex, threadPosts[postIndex].postImagesCount > 0)
+              }
+            }
+
+            for (postIndex in oldPostsCount until threadPosts.size) {
+              postColumns.append(threadPosts[postIndex])
+            }
           }
 
-          recalculatePostReplies(newChanPosts)
+          updatePostRepliesLocked(appendedPostIndexes?.keys, updatedOldPosts, changes)
         }
       }
 
       deletedPostsForUi += deletedPostsCount
       checkPostsConsistency()
 
+      val changeSet = if (addedOrUpdatedOrDeletedPosts) {
+        onPostsChangedLocked(changes)
+      } else {
+        changes.build(postsVersion)
+      }
+
       Logger.d(TAG, "Thread cache (${threadDescriptor}) Added ${addedPostsCount} new posts, " +
         "updated ${updatedPostsCount} posts, marked as deleted ${deletedPostsCount} posts. " +
-        "sortAndRecalculationDuration=$sortAndRecalculationDuration")
+        "sortAndRecalculationDuration=$sortAndRecalculationDuration, changeSet=$changeSet")
 
-      return@write addedOrUpdatedOrDeletedPosts
+      return@write changeSet
     }
   }
 
-  fun setOrUpdateOriginalPost(newChanOriginalPost: ChanOriginalPost) {
-    lock.write {
+  fun setOrUpdateOriginalPost(newChanOriginalPost: ChanOriginalPost): ThreadPostsChangeSet {
+    return lock.write {
       val oldPostDescriptor = threadPosts.firstOrNull()?.postDescriptor
       val newPostDescriptor = newChanOriginalPost.postDescriptor
 
@@ -290,6 +403,8 @@ class ChanThread(
         }
       }
 
+      val changes = ThreadPostsChangeSet.Builder(threadDescriptor)
+
       if (threadPosts.isNotEmpty()) {
         require(threadPosts.first() is ChanOriginalPost) {
           "First post is not an original post! post=${threadPosts.first()}"
@@ -304,18 +419,32 @@ class ChanThread(
         val mergedChanOriginalPost = mergePosts(oldChanOriginalPost, newChanOriginalPost, null)
 
         threadPosts[0] = mergedChanOriginalPost
-        postsByPostDescriptors[newChanOriginalPost.postDescriptor] = mergedChanOriginalPost
+        changes.updated(
+          mergedChanOriginalPost.postDescriptor,
+          diffPostFields(oldChanOriginalPost, mergedChanOriginalPost)
+        )
+
+        postColumns.setHasImages(0, mergedChanOriginalPost.postImagesCount > 0)
+        updatePostRepliesLocked(
+          null,
+          mapOf(oldChanOriginalPost.postDescriptor to oldChanOriginalPost),
+          changes
+        )
       } else {
         threadPosts.add(newChanOriginalPost)
-        postsByPostDescriptors[newChanOriginalPost.postDescriptor] = newChanOriginalPost
+        changes.inserted(newChanOriginalPost.postDescriptor)
 
         if (!postsAreSorted()) {
           Logger.d(TAG, "setOrUpdateOriginalPost() posts need to be sorted")
           threadPosts.sortWith(POSTS_COMPARATOR)
         }
+
+        postColumns.rebuild(threadPosts)
+        updatePostRepliesLocked(listOf(newChanOriginalPost.postDescriptor), null, changes)
       }
 
       checkPostsConsistency()
+      return@write onPostsChangedLocked(changes)
     }
   }
 
@@ -325,12 +454,7 @@ class ChanThread(
         return@read null
       }
 
-      val firstPost = threadPosts.first()
-      if (firstPost is ChanOriginalPost) {
-        return@read firstPost
-      }
-
-      return null
+      return@read threadPosts.first() as? ChanOriginalPost
     }
   }
 
@@ -398,9 +522,12 @@ class ChanThread(
       val chanOriginalPost = threadPosts.first() as? ChanOriginalPost
         ?: return@write
 
+      var changedFields = 0
+
       if (deleted != null) {
         if (chanOriginalPost.isDeleted != deleted) {
           isNowDeletedForUi = deleted
+          changedFields = changedFields or ThreadPostsChangeSet.FIELD_DELETED
         }
 
         chanOriginalPost.isDeleted = deleted
@@ -409,6 +536,7 @@ class ChanThread(
       if (archived != null) {
         if (chanOriginalPost.archived != archived) {
           isNowArchivedForUi = archived
+          changedFields = changedFields or ThreadPostsChangeSet.FIELD_THREAD_STATUS
         }
 
         chanOriginalPost.archived = archived
@@ -417,16 +545,24 @@ class ChanThread(
       if (closed != null) {
         if (chanOriginalPost.closed != closed) {
           isNowClosedForUi = closed
+          changedFields = changedFields or ThreadPostsChangeSet.FIELD_THREAD_STATUS
         }
 
         chanOriginalPost.closed = closed
       }
+
+      if (changedFields != 0) {
+        val changes = ThreadPostsChangeSet.Builder(threadDescriptor)
+        changes.updated(chanOriginalPost.postDescriptor, changedFields)
+
+        onPostsChangedLocked(changes)
+      }
     }
   }
 
   fun canUpdateThread(): Boolean {
     return lock.read {
-      val originalPost = getOriginalPostSafe()
+      val originalPost = threadPosts.firstOrNull() as? ChanOriginalPost
       if (originalPost == null) {
         // I guess we should update the thread if we have no posts?
         return@read true
@@ -443,7 +579,7 @@ class ChanThread(
   }
 
   fun getPost(postDescriptor: PostDescriptor): ChanPost? {
-    return lock.read { postsByPostDescriptors[postDescriptor] }
+    return lock.read { getPostLocked(postDescriptor) }
   }
 
   fun <T> iteratePostIndexes(
@@ -461,9 +597,7 @@ class ChanThread(
             "postDescriptor.threadDescriptor=${postDescriptor.threadDescriptor()}"
         }
 
-        val postIndex = threadPosts
-          .indexOfFirst { chanPost -> chanPost.postDescriptor == postDescriptor }
-
+        val postIndex = indexOfPostLocked(postDescriptor)
         if (postIndex < 0) {
           return@forEach
         }
@@ -477,7 +611,7 @@ class ChanThread(
   }
 
   fun getNewPostsCount(lastPostNo: Long): Int {
-    return lock.read { threadPosts.count { chanPost -> chanPost.postNo() > lastPostNo } }
+    return lock.read { postColumns.countPostsWithPostNoGreaterThan(lastPostNo) }
   }
 
   fun findPostWithRepliesRecursive(
@@ -495,16 +629,33 @@ class ChanThread(
       "Either includeRepliesFrom or includeRepliesTo must be true"
     }
 
-    val postsToCheck = mutableListOf<ChanPost>()
-
     lock.read {
-      for (post in threadPosts) {
-        if (post.postDescriptor != postDescriptor || postsSet.contains(post)) {
-          continue
-        }
+      findPostWithRepliesRecursiveLocked(
+        postDescriptor = postDescriptor,
+        postsSet = postsSet,
+        includeRepliesFrom = includeRepliesFrom,
+        includeRepliesTo = includeRepliesTo,
+        maxRecursion = maxRecursion
+      )
+    }
+  }
 
-        postsToCheck.add(post)
-      }
+  private fun findPostWithRepliesRecursiveLocked(
+    postDescriptor: PostDescriptor,
+    postsSet: MutableSet<ChanPost>,
+    includeRepliesFrom: Boolean,
+    includeRepliesTo: Boolean,
+    maxRecursion: Int
+  ) {
+    if (maxRecursion < 0) {
+      return
+    }
+
+    val postsToCheck = mutableListOf<ChanPost>()
+
+    val chanPost = getPostLocked(postDescriptor)
+    if (chanPost != null && !postsSet.contains(chanPost)) {
+      postsToCheck.add(chanPost)
     }
 
     for (post in postsToCheck) {
@@ -515,9 +666,8 @@ class ChanThread(
       postsSet.add(post)
 
       if (includeRepliesFrom) {
-        val repliesFrom = post.repliesFromCopy
-        repliesFrom.forEach { lookUpPostDescriptor ->
-          findPostWithRepliesRecursive(
+        post.repliesFrom.forEach { lookUpPostDescriptor ->
+          findPostWithRepliesRecursiveLocked(
             postDescriptor = lookUpPostDescriptor,
             postsSet = postsSet,
             includeRepliesFrom = includeRepliesFrom,
@@ -528,9 +678,8 @@ class ChanThread(
       }
 
       if (includeRepliesTo) {
-        val repliesTo = post.repliesTo
-        repliesTo.forEach { lookUpPostDescriptor ->
-          findPostWithRepliesRecursive(
+        post.repliesTo.forEach { lookUpPostDescriptor ->
+          findPostWithRepliesRecursiveLocked(
             postDescriptor = lookUpPostDescriptor,
             postsSet = postsSet,
             includeRepliesFrom = includeRepliesFrom,
@@ -542,31 +691,43 @@ class ChanThread(
     }
   }
 
-  fun deletePosts(postDescriptors: Collection<PostDescriptor>) {
-    lock.write {
+  fun deletePosts(postDescriptors: Collection<PostDescriptor>): ThreadPostsChangeSet {
+    return lock.write {
       require(threadPosts.isNotEmpty()) { "posts are empty!" }
+
       require(threadPosts.first() is ChanOriginalPost) {
         "First post is not an original post! post=${threadPosts.first()}"
       }
 
+      val postIndexesToRemove = mutableListWithCap<Int>(postDescriptors.size)
+
       postDescriptors.forEach { postDescriptor ->
         if (postDescriptor.isOP()) {
           Logger.e(TAG, "Deleting original post ${postDescriptor}!!! This may end up very badly!")
         }
 
-        val postIndex = threadPosts.indexOfFirst { chanPost ->
-          chanPost.postDescriptor == postDescriptor
-        }
-
+        val postIndex = indexOfPostLocked(postDescriptor)
         if (postIndex >= 0) {
-          threadPosts.removeAt(postIndex)
+          postIndexesToRemove += postIndex
         }
 
         rawPostHashesMap.remove(postDescriptor)
-        postsByPostDescriptors.remove(postDescriptor)
+        rawPostJsonHashesMap.remove(postDescriptor)
       }
 
+      // Remove from the end so that the rest of the indexes stay valid
+      val removedPosts = postIndexesToRemove
+        .distinct()
+        .sortedDescending()
+        .map { postIndex -> threadPosts.removeAt(postIndex) }
+
+      val changes = ThreadPostsChangeSet.Builder(threadDescriptor)
+      removedPosts.forEach { removedPost -> changes.deleted(removedPost.postDescriptor) }
+
+      postColumns.rebuild(threadPosts)
+      unlinkRemovedPostsLocked(removedPosts, changes)
       checkPostsConsistency()
+      return@write onPostsChangedLocked(changes)
     }
   }
 
@@ -579,15 +740,8 @@ class ChanThread(
 
   fun iteratePostsOrderedWhile(iterator: (ChanPost) -> Boolean) {
     lock.read {
-      if (threadPosts.isEmpty()) {
-        return@read
-      }
-
       for (index in threadPosts.indices) {
-        val chanPost = threadPosts.getOrNull(index)
-          ?: return@read
-
-        if (!iterator(chanPost)) {
+        if (!iterator(threadPosts[index])) {
           return@read
         }
       }
@@ -600,13 +754,10 @@ class ChanThread(
         return@read emptyList()
       }
 
-      val resultList = mutableListOf<T>()
+      val resultList = mutableListWithCap<T>(threadPosts.size)
 
       for (index in threadPosts.indices) {
-        val chanPost = threadPosts.getOrNull(index)
-          ?: return@read emptyList()
-
-        resultList += mapper(chanPost)
+        resultList += mapper(threadPosts[index])
       }
 
       return@read resultList
@@ -626,7 +777,7 @@ class ChanThread(
     check(rightCount >= 0) { "Bad right count: $rightCount" }
 
     return lock.read {
-      val indexOfPost = threadPosts.indexOfFirst { post -> post.postDescriptor == postDescriptor }
+      val indexOfPost = indexOfPostLocked(postDescriptor)
       if (indexOfPost < 0) {
         return@read emptyList()
       }
@@ -635,42 +786,37 @@ class ChanThread(
       val postDescriptors = mutableListWithCap<PostDescriptor>(totalCount)
 
       // Check current post and add it to the list if it has images
-      threadPosts.getOrNull(indexOfPost)?.let { currentPost ->
-        if (currentPost.postImages.isNotEmpty()) {
-          postDescriptors += currentPost.postDescriptor
-        }
+      if (postColumns.hasImagesAt(indexOfPost)) {
+        postDescriptors += threadPosts[indexOfPost].postDescriptor
       }
 
       var currentPostIndex = indexOfPost - 1
       var takeFromLeft = leftCount
 
       // Check posts to the left of the current post and add to the list those that have images
-      while (takeFromLeft > 0 && currentPostIndex in threadPosts.indices) {
-        val post = threadPosts.getOrNull(currentPostIndex--)
-          ?: break
-
-        if (post.postImages.isEmpty()) {
+      // (only the columns are scanned, posts are only touched when they have images)
+      while (takeFromLeft > 0 && currentPostIndex >= 0) {
+        val postIndex = currentPostIndex--
+        if (!postColumns.hasImagesAt(postIndex)) {
           continue
         }
 
         --takeFromLeft
-        postDescriptors += post.postDescriptor
+        postDescriptors += threadPosts[postIndex].postDescriptor
       }
 
       currentPostIndex = indexOfPost + 1
       var takeFromRight = rightCount
 
       // Check posts to the right of the current post and add to the list those that have images
-      while (takeFromRight > 0 && currentPostIndex in threadPosts.indices) {
-        val post = threadPosts.getOrNull(currentPostIndex++)
-          ?: break
-
-        if (post.postImages.isEmpty()) {
+      while (takeFromRight > 0 && currentPostIndex < postColumns.size) {
+        val postIndex = currentPostIndex++
+        if (!postColumns.hasImagesAt(postIndex)) {
           continue
         }
 
         --takeFromRight
-        postDescriptors += post.postDescriptor
+        postDescriptors += threadPosts[postIndex].postDescriptor
       }
 
       return@read postDescriptors
@@ -679,7 +825,7 @@ class ChanThread(
 
   fun getPostDescriptorRelativeTo(postDescriptor: PostDescriptor, offset: Int): PostDescriptor? {
     return lock.read {
-      val currentPostIndex = threadPosts.indexOfFirst { post -> post.postDescriptor == postDescriptor }
+      val currentPostIndex = indexOfPostLocked(postDescriptor)
       if (currentPostIndex < 0) {
         return@read null
       }
@@ -694,7 +840,7 @@ class ChanThread(
     iterator: (ChanPostImage) -> Unit
   ): Boolean {
     return lock.read {
-      val post = postsByPostDescriptors[postDescriptor]
+      val post = getPostLocked(postDescriptor)
         ?: return@read false
 
       post.iteratePostImages { postImage -> iterator(postImage) }
@@ -708,7 +854,7 @@ class ChanThread(
       val resultList = mutableListWithCap<ChanPostImage>(threadPosts.size)
 
       threadPosts.forEach { chanPost ->
-        resultList.addAll(chanPost.postImages)
+        chanPost.iteratePostImages { postImage -> resultList += postImage }
       }
 
       return@read resultList
@@ -717,8 +863,12 @@ class ChanThread(
 
   fun postHasImages(postDescriptor: PostDescriptor): Boolean {
     return lock.read {
-      return@read postsByPostDescriptors[postDescriptor]?.postImages?.isNotEmpty()
-        ?: false
+      val postIndex = indexOfPostLocked(postDescriptor)
+      if (postIndex < 0) {
+        return@read false
+      }
+
+      return@read postColumns.hasImagesAt(postIndex)
     }
   }
 
@@ -731,8 +881,11 @@ class ChanThread(
       val chanOriginalPost = threadPosts.firstOrNull()
       if (chanOriginalPost == null) {
         threadPosts.clear()
-        postsByPostDescriptors.clear()
+        postColumns.clear()
+        danglingReplies.clear()
         rawPostHashesMap.clear()
+        rawPostJsonHashesMap.clear()
+        onPostsChangedLocked(ThreadPostsChangeSet.Builder(threadDescriptor))
 
         return@write
       }
@@ -742,24 +895,34 @@ class ChanThread(
         return@write
       }
 
+      val removedPosts = mutableListWithCap<ChanPost>(threadPosts.size - 1)
+
       threadPosts.mutableIteration { mutableIterator, chanPost ->
         if (chanPost !== chanOriginalPost) {
+          removedPosts += chanPost
           mutableIterator.remove()
         }
 
         return@mutableIteration true
       }
 
-      postsByPostDescriptors.mutableIteration { mutableIterator, entry ->
-        val chanPost = entry.value
-        if (chanPost !== chanOriginalPost) {
+      val changes = ThreadPostsChangeSet.Builder(threadDescriptor)
+      removedPosts.forEach { removedPost -> changes.deleted(removedPost.postDescriptor) }
+
+      postColumns.rebuild(threadPosts)
+      unlinkRemovedPostsLocked(removedPosts, changes)
+      onPostsChangedLocked(changes)
+
+      rawPostHashesMap.mutableIteration { mutableIterator, entry ->
+        val postDescriptor = entry.key
+        if (postDescriptor != chanOriginalPost.postDescriptor) {
           mutableIterator.remove()
         }
 
         return@mutableIteration true
       }
 
-      rawPostHashesMap.mutableIteration { mutableIterator, entry ->
+      rawPostJsonHashesMap.mutableIteration { mutableIterator, entry ->
         val postDescriptor = entry.key
         if (postDescriptor != chanOriginalPost.postDescriptor) {
           mutableIterator.remove()
@@ -770,6 +933,36 @@ class ChanThread(
     }
   }
 
+  private fun indexOfPostLocked(postDescriptor: PostDescriptor): Int {
+    require(lock.isWriteLockedByCurrentThread || lock.readHoldCount > 0) { "Lock must be locked!" }
+
+    if (postDescriptor.descriptor != threadDescriptor) {
+      return -1
+    }
+
+    return postColumns.indexOf(postDescriptor.postNo, postDescriptor.postSubNo)
+  }
+
+  private fun getPostLocked(postDescriptor: PostDescriptor): ChanPost? {
+    val postIndex = indexOfPostLocked(postDescriptor)
+    if (postIndex < 0) {
+      return null
+    }
+
+    return threadPosts[postIndex]
+  }
+
+  private fun onPostsChangedLocked(changes: ThreadPostsChangeSet.Builder): ThreadPostsChangeSet {
+    require(lock.isWriteLockedByCurrentThread) { "Lock must be write locked!" }
+
+    ++postsVersion
+
+    val changeSet = changes.build(postsVersion)
+    onPostsChanged?.invoke(changeSet)
+
+    return changeSet
+  }
+
   private fun updateThreadStatusFlagsForUi(
     oldChanOriginalPost: ChanOriginalPost,
     newChanOriginalPost: ChanOriginalPost
@@ -914,6 +1107,56 @@ class ChanThread(
     return oldChanPost.postComment.originalCommentHash != newChanPost.postComment.originalCommentHash
   }
 
+  /**
+   * Returns [ThreadPostsChangeSet] field flags of the fields that differ between [oldChanPost] and
+   * [newChanPost] (the same post before and after a merge).
+   * */
+  private fun diffPostFields(oldChanPost: ChanPost, newChanPost: ChanPost): Int {
+    var fields = 0
+
+    if (postCommentsDiffer(oldChanPost, newChanPost)) {
+      fields = fields or ThreadPostsChangeSet.FIELD_COMMENT
+    }
+
+    if (ChanPostUtils.postImagesDiffer(newChanPost.postImages, oldChanPost.postImages)) {
+      fields = fields or ThreadPostsChangeSet.FIELD_IMAGES
+    }
+
+    if (oldChanPost.isDeleted != newChanPost.isDeleted) {
+      fields = fields or ThreadPostsChangeSet.FIELD_DELETED
+    }
+
+    if (oldChanPost.repliesTo != newChanPost.repliesTo) {
+      fields = fields or ThreadPostsChangeSet.FIELD_REPLIES_TO
+    }
+
+    val headersDiffer = !TextUtils.equals(oldChanPost.subject, newChanPost.subject)
+      || !TextUtils.equals(oldChanPost.tripcode, newChanPost.tripcode)
+      || oldChanPost.name != newChanPost.name
+      || oldChanPost.posterId != newChanPost.posterId
+      || oldChanPost.moderatorCapcode != newChanPost.moderatorCapcode
+      || oldChanPost.isSavedReply != newChanPost.isSavedReply
+      || oldChanPost.isSage != newChanPost.isSage
+      || oldChanPost.postIcons.size != newChanPost.postIcons.size
+
+    if (headersDiffer) {
+      fields = fields or ThreadPostsChangeSet.FIELD_POST_HEADER
+    }
+
+    if (oldChanPost is ChanOriginalPost && newChanPost is ChanOriginalPost) {
+      val threadStatusDiffers = oldChanPost.sticky != newChanPost.sticky
+        || oldChanPost.closed != newChanPost.closed
+        || oldChanPost.archived != newChanPost.archived
+        || oldChanPost.endless != newChanPost.endless
+
+      if (threadStatusDiffers) {
+        fields = fields or ThreadPostsChangeSet.FIELD_THREAD_STATUS
+      }
+    }
+
+    return fields
+  }
+
   private fun mergePostImages(
     newPostImages: List<ChanPostImage>,
     oldPostImages: List<ChanPostImage>
@@ -958,43 +1201,128 @@ class ChanThread(
     oldChanPost: ChanPost,
     postCommentsDiffer: Boolean
   ) {
-    mergedPost.replaceOnDemandContentLoadedArray(oldChanPost.copyOnDemandContentLoadedArray())
+    mergedPost.replaceOnDemandContentLoadedFlags(oldChanPost.copyOnDemandContentLoadedFlags())
 
     if (postCommentsDiffer) {
       mergedPost.setContentLoadedForLoader(LoaderType.PostExtraContentLoader, false)
     }
   }
 
-  private fun recalculatePostReplies(newChanPosts: List<ChanPost>) {
-    require(lock.isWriteLocked) { "Lock must be write locked!" }
+  /**
+   * Updates repliesFrom of the posts quoted by the posts that were just added or updated instead of
+   * recalculating the reply graph of the whole thread. For updated posts only the quotes that were
+   * added/removed since [updatedOldPosts] are relinked. Must be called after [postColumns] are updated.
+   * */
+  private fun updatePostRepliesLocked(
+    addedPostDescriptors: Collection<PostDescriptor>?,
+    updatedOldPosts: Map<PostDescriptor, ChanPost>?,
+    changes: ThreadPostsChangeSet.Builder
+  ) {
+    require(lock.isWriteLockedByCurrentThread) { "Lock must be write locked!" }
 
-    val replies = HashMap<PostDescriptor, MutableList<PostDescriptor>>(threadPosts.size)
+    addedPostDescriptors?.forEach { postDescriptor ->
+      val addedPost = getPostLocked(postDescriptor)
+        ?: return@forEach
 
-    for (newChanPost in newChanPosts) {
-      val sourcePost = postsByPostDescriptors[newChanPost.postDescriptor]
-        ?: continue
+      linkRepliesLocked(postDescriptor, addedPost.repliesTo, changes)
 
-      for (replyTo in sourcePost.repliesTo) {
-        if (postsByPostDescriptors[replyTo]?.repliesFrom?.contains(sourcePost.postDescriptor) == true) {
-          // Already processed
-          continue
+      // Posts that were added before this one and quote it
+      val quotingPostDescriptors = danglingReplies.remove(postDescriptor)
+      if (quotingPostDescriptors != null) {
+        addedPost.addRepliesFrom(quotingPostDescriptors)
+      }
+    }
+
+    updatedOldPosts?.forEach { (postDescriptor, oldChanPost) ->
+      val mergedPost = getPostLocked(postDescriptor)
+        ?: return@forEach
+
+      val oldRepliesTo = oldChanPost.repliesTo
+      val newRepliesTo = mergedPost.repliesTo
+
+      if (oldRepliesTo === newRepliesTo || oldRepliesTo == newRepliesTo) {
+        return@forEach
+      }
+
+      unlinkRepliesLocked(postDescriptor, oldRepliesTo.filter { replyTo -> replyTo !in newRepliesTo }, changes)
+      linkRepliesLocked(postDescriptor, newRepliesTo.filter { replyTo -> replyTo !in oldRepliesTo }, changes)
+    }
+  }
+
+  /**
+   * Removes the replies of the [removedPosts] (that are already removed from [threadPosts]) from the
+   * posts they quote. Replies to the [removedPosts] from the posts that are still in the thread
+   * become dangling so that they are linked again if the removed posts come back.
+   * */
+  private fun unlinkRemovedPostsLocked(
+    removedPosts: Collection<ChanPost>,
+    changes: ThreadPostsChangeSet.Builder
+  ) {
+    require(lock.isWriteLockedByCurrentThread) { "Lock must be write locked!" }
+
+    if (removedPosts.isEmpty()) {
+      return
+    }
+
+    removedPosts.forEach { removedPost ->
+      unlinkRepliesLocked(removedPost.postDescriptor, removedPost.repliesTo, changes)
+    }
+
+    removedPosts.forEach { removedPost ->
+      removedPost.repliesFromCopy.forEach { quotingPostDescriptor ->
+        if (indexOfPostLocked(quotingPostDescriptor) >= 0) {
+          danglingReplies
+            .getOrPut(removedPost.postDescriptor) { hashSetWithCap(2) }
+            .add(quotingPostDescriptor)
         }
+      }
+    }
+  }
 
-        var value = replies[replyTo]
+  private fun linkRepliesLocked(
+    quotingPostDescriptor: PostDescriptor,
+    repliesTo: Collection<PostDescriptor>,
+    changes: ThreadPostsChangeSet.Builder
+  ) {
+    for (replyTo in repliesTo) {
+      if (replyTo.descriptor != threadDescriptor) {
+        // Cross-thread quote, this post is never going to be in this thread
+        continue
+      }
 
-        if (value == null) {
-          value = ArrayList(3)
-          replies[replyTo] = value
+      val quotedPost = getPostLocked(replyTo)
+      if (quotedPost != null) {
+        if (quotedPost.addReplyFrom(quotingPostDescriptor)) {
+          changes.updated(replyTo, ThreadPostsChangeSet.FIELD_REPLIES_FROM)
         }
 
-        value.add(sourcePost.postDescriptor)
+        continue
       }
+
+      danglingReplies
+        .getOrPut(replyTo) { hashSetWithCap(2) }
+        .add(quotingPostDescriptor)
     }
+  }
+
+  private fun unlinkRepliesLocked(
+    quotingPostDescriptor: PostDescriptor,
+    repliesTo: Collection<PostDescriptor>,
+    changes: ThreadPostsChangeSet.Builder
+  ) {
+    for (replyTo in repliesTo) {
+      if (getPostLocked(replyTo)?.removeReplyFrom(quotingPostDescriptor) == true) {
+        changes.updated(replyTo, ThreadPostsChangeSet.FIELD_REPLIES_FROM)
+      }
+
+      val quotingPostDescriptors = danglingReplies[replyTo]
+        ?: continue
 
-    for ((postNo, replyList) in replies) {
-      val subject = postsByPostDescriptors[postNo]
+      quotingPostDescriptors.remove(quotingPostDescriptor)
 
-      subject?.repliesFrom?.addAll(replyList)
+      if (quotingPostDescriptors.isEmpty()) {
+        danglingReplies.remove(replyTo)
+      }
     }
   }
 
@@ -1004,13 +1332,20 @@ class ChanThread(
     }
 
     lock.read {
-      check(threadPosts.size == postsByPostDescriptors.size) {
+      check(threadPosts.size == postColumns.size) {
         "Sizes do not match (threadPosts.size=${threadPosts.size}, " +
-          "postsByPostDescriptors.size=${postsByPostDescriptors.size}"
+          "postColumns.size=${postColumns.size}"
       }
 
-      threadPosts.forEach { chanPost1 ->
-        val chanPost2 = postsByPostDescriptors[chanPost1.postDescriptor]
+      threadPosts.forEachIndexed { index, chanPost1 ->
+        check(postColumns.postNoAt(index) == chanPost1.postNo()) {
+          "postNos do not match at $index (column=${postColumns.postNoAt(index)}, post=${chanPost1.postNo()})"
+        }
+        check(postColumns.postSubNoAt(index) == chanPost1.postSubNo()) {
+          "postSubNos do not match at $index (column=${postColumns.postSubNoAt(index)}, post=${chanPost1.postSubNo()})"
+        }
+
+        val chanPost2 = getPostLocked(chanPost1.postDescriptor)
 
         if (chanPost1 is ChanOriginalPost) {
           check(chanPost1.lastModified >= 0L) { "Bad lastModified" }
@@ -1020,7 +1355,7 @@ class ChanThread(
           check(chanPost2.lastModified >= 0L) { "Bad lastModified" }
         }
 
-        checkNotNull(chanPost2) { "postsByPostDescriptors does not contain $chanPost1" }
+        checkNotNull(chanPost2) { "postColumns can't find $chanPost1" }
         check(chanPost1 == chanPost2) { "Posts do not match (chanPost1=$chanPost1, chanPost2=$chanPost2)" }
 
         check(chanPost1.postDescriptor.descriptor is ChanDescriptor.ThreadDescriptor) {
@@ -1033,6 +1368,43 @@ class ChanThread(
             "descriptor=${chanPost2.postDescriptor.descriptor}"
         }
       }
+
+      checkPostRepliesConsistency()
+    }
+  }
+
+  /**
+   * Rebuilds the whole reply graph from scratch and compares it with the incrementally updated one.
+   * */
+  private fun checkPostRepliesConsistency() {
+    val expectedRepliesFrom = HashMap<PostDescriptor, MutableSet<PostDescriptor>>(threadPosts.size)
+    val expectedDanglingReplies = HashMap<PostDescriptor, MutableSet<PostDescriptor>>()
+
+    threadPosts.forEach { quotingPost ->
+      quotingPost.repliesTo.forEach { replyTo ->
+        if (replyTo.descriptor == threadDescriptor) {
+          val replies = if (getPostLocked(replyTo) != null) {
+            expectedRepliesFrom
+          } else {
+            expectedDanglingReplies
+          }
+
+          replies.getOrPut(replyTo) { hashSetWithCap(2) }.add(quotingPost.postDescriptor)
+        }
+      }
+    }
+
+    threadPosts.forEach { chanPost ->
+      val expected = expectedRepliesFrom[chanPost.postDescriptor] ?: emptySet<PostDescriptor>()
+      val actual = chanPost.repliesFromCopy
+
+      check(expected == actual) {
+        "repliesFrom do not match (post=${chanPost.postDescriptor}, expected=$expected, actual=$actual)"
+      }
+    }
+
+    check(expectedDanglingReplies == danglingReplies) {
+      "danglingReplies do not match (expected=$expectedDanglingReplies, actual=$danglingReplies)"
     }
   }
 
@@ -1088,29 +1460,66 @@ class ChanThread(
 
   fun getPostWithRepliesToThisPost(postDescriptor: PostDescriptor): List<PostDescriptor> {
     return lock.read {
-      val chanPost = postsByPostDescriptors[postDescriptor]
+      val chanPost = getPostLocked(postDescriptor)
         ?: return@read emptyList()
 
       val resultPosts = mutableListOf<PostDescriptor>()
       resultPosts += chanPost.postDescriptor
-      resultPosts.addAll(chanPost.repliesFrom)
+      resultPosts.addAll(chanPost.repliesFromCopy)
       return@read resultPosts
     }
   }
 
+  /**
+   * A rough estimate (in bytes) of the memory retained by the posts of this thread. Used by the
+   * cache to evict threads by their weight instead of the amount of posts since posts may differ
+   * in size a lot (long comments with lots of spans vs a single image with no comment). The value
+   * is cached until the posts of this thread change.
+   * */
+  fun estimatedRetainedSize(): Long {
+    return lock.read {
+      val cached = estimatedRetainedSizeCached
+      if (cached != null && cached.version == postsVersion) {
+        return@read cached.size
+      }
+
+      val size = threadPosts.sumOf { chanPost -> chanPost.estimateRetainedSize() }
+      estimatedRetainedSizeCached = RetainedSizeEstimate(postsVersion, size)
+
+      return@read size
+    }
+  }
+
   fun isThreadLockCurrentlyLocked(): Boolean {
     return lock.isWriteLocked && !lock.isWriteLockedByCurrentThread
   }
 
   fun addImage(chanPostImage: ChanPostImage) {
     lock.write {
-      val chanPost = postsByPostDescriptors[chanPostImage.ownerPostDescriptor]
-        ?: return@write false
+      val postIndex = indexOfPostLocked(chanPostImage.ownerPostDescriptor)
+      if (postIndex < 0) {
+        return@write false
+      }
+
+      if (!threadPosts[postIndex].addImage(chanPostImage)) {
+        return@write false
+      }
 
-      return@write chanPost.addImage(chanPostImage)
+      val changes = ThreadPostsChangeSet.Builder(threadDescriptor)
+      changes.updated(chanPostImage.ownerPostDescriptor, ThreadPostsChangeSet.FIELD_IMAGES)
+
+      postColumns.setHasImages(postIndex, true)
+      onPostsChangedLocked(changes)
+
+      return@write true
     }
   }
 
+  private class RetainedSizeEstimate(
+    val version: Long,
+    val size: Long
+  )
+
   companion object {
     private const val TAG = "ChanThread"
 
@@ -0,0 +1,156 @@
+package com.github.k1rakishou.model.data.thread
+
+import com.github.k1rakishou.model.data.post.ChanPost
+
+/**
+ * Primitive columns (post numbers and flags) of the posts of a [ChanThread], in the same order as
+ * the posts themselves. Used instead of a PostDescriptor -> ChanPost hash map to find posts by their
+ * numbers (binary search) and to scan the thread (e.g. for posts with images) without touching the
+ * post objects. Not thread-safe, guarded by the lock of the owning [ChanThread].
+ * */
+internal class ThreadPostColumns {
+  private var postNos = EMPTY_LONGS
+  private var postSubNos = EMPTY_LONGS
+  private var flags = EMPTY_BYTES
+  // Posts after the original post are sorted by postNo/postSubNo (see ChanThread.POSTS_COMPARATOR)
+  // almost always, but we don't want to return wrong results if they are not for some reason.
+  private var sortedAfterFirst = true
+
+  var size: Int = 0
+    private set
+
+  fun rebuild(posts: List<ChanPost>) {
+    val count = posts.size
+
+    if (postNos.size < count || postNos.size > count * 2) {
+      resize(count)
+    }
+
+    size = 0
+    sortedAfterFirst = true
+
+    for (index in 0 until count) {
+      setAt(index, posts[index])
+    }
+
+    size = count
+  }
+
+  /**
+   * Adds the columns of a post that was added at the end of the posts list, so that appending new
+   * posts to a thread doesn't require rebuilding the columns of all of its posts.
+   * */
+  fun append(post: ChanPost) {
+    if (size == postNos.size) {
+      resize(size + (size shr 1) + 1)
+    }
+
+    setAt(size, post)
+    ++size
+  }
+
+  private fun setAt(index: Int, post: ChanPost) {
+    postNos[index] = post.postNo()
+    postSubNos[index] = post.postSubNo()
+    flags[index] = if (post.postImagesCount > 0) FLAG_HAS_IMAGES else 0
+
+    if (index >= 2 && compare(index - 1, postNos[index], postSubNos[index]) > 0) {
+      sortedAfterFirst = false
+    }
+  }
+
+  private fun resize(capacity: Int) {
+    postNos = postNos.copyOf(capacity)
+    postSubNos = postSubNos.copyOf(capacity)
+    flags = flags.copyOf(capacity)
+  }
+
+  fun clear() {
+    postNos = EMPTY_LONGS
+    postSubNos = EMPTY_LONGS
+    flags = EMPTY_BYTES
+    sortedAfterFirst = true
+    size = 0
+  }
+
+  fun postNoAt(index: Int): Long = postNos[index]
+  fun postSubNoAt(index: Int): Long = postSubNos[index]
+
+  fun hasImagesAt(index: Int): Boolean {
+    return (flags[index].toInt() and FLAG_HAS_IMAGES.toInt()) != 0
+  }
+
+  fun setHasImages(index: Int, hasImages: Boolean) {
+    flags[index] = if (hasImages) {
+      (flags[index].toInt() or FLAG_HAS_IMAGES.toInt()).toByte()
+    } else {
+      (flags[index].toInt() and FLAG_HAS_IMAGES.toInt().inv()).toByte()
+    }
+  }
+
+  fun countPostsWithPostNoGreaterThan(postNo: Long): Int {
+    var count = 0
+
+    for (index in 0 until size) {
+      if (postNos[index] > postNo) {
+        ++count
+      }
+    }
+
+    return count
+  }
+
+  fun indexOf(postNo: Long, postSubNo: Long): Int {
+    if (size == 0) {
+      return -1
+    }
+
+    // The original post is always the first one, even when its postNo is greater than the postNo
+    // of the next post
+    if (postNos[0] == postNo && postSubNos[0] == postSubNo) {
+      return 0
+    }
+
+    if (!sortedAfterFirst) {
+      for (index in 1 until size) {
+        if (postNos[index] == postNo && postSubNos[index] == postSubNo) {
+          return index
+        }
+      }
+
+      return -1
+    }
+
+    var low = 1
+    var high = size - 1
+
+    while (low <= high) {
+      val mid = (low + high) ushr 1
+      val result = compare(mid, postNo, postSubNo)
+
+      when {
+        result < 0 -> low = mid + 1
+        result > 0 -> high = mid - 1
+        else -> return mid
+      }
+    }
+
+    return -1
+  }
+
+  private fun compare(index: Int, postNo: Long, postSubNo: Long): Int {
+    val postNoResult = postNos[index].compareTo(postNo)
+    if (postNoResult != 0) {
+      return postNoResult
+    }
+
+    return postSubNos[index].compareTo(postSubNo)
+  }
+
+  companion object {
+    private const val FLAG_HAS_IMAGES: Byte = 1
+
+    private val EMPTY_LONGS = LongArray(0)
+    private val EMPTY_BYTES = ByteArray(0)
+  }
+}
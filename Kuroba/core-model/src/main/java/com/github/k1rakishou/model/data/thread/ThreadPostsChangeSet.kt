@@ -0,0 +1,101 @@
+package com.github.k1rakishou.model.data.thread
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * What exactly changed in a [ChanThread] after one update (adding/merging posts, deleting posts,
+ * cleaning up the thread). [version] is the [ChanThread.version] right after the update so that
+ * subscribers can tell whether they missed an update.
+ *
+ * [insertedPosts] are the posts that were not in the thread before. [updatedPosts] are the posts
+ * that were already in the thread and had at least one of their fields changed (see [FIELD_COMMENT]
+ * etc), posts that were merged without any changes are not included. [deletedPosts] are the posts
+ * that were removed from the thread. Posts that the server deleted stay in the thread, they are
+ * [updatedPosts] with [FIELD_DELETED] set.
+ * */
+class ThreadPostsChangeSet(
+  val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+  val version: Long,
+  val insertedPosts: List<PostDescriptor>,
+  val updatedPosts: Map<PostDescriptor, Int>,
+  val deletedPosts: List<PostDescriptor>
+) {
+
+  fun isEmpty(): Boolean {
+    return insertedPosts.isEmpty() && updatedPosts.isEmpty() && deletedPosts.isEmpty()
+  }
+
+  fun updatedFields(postDescriptor: PostDescriptor): Int {
+    return updatedPosts[postDescriptor] ?: 0
+  }
+
+  fun isFieldUpdated(postDescriptor: PostDescriptor, field: Int): Boolean {
+    return (updatedFields(postDescriptor) and field) != 0
+  }
+
+  override fun toString(): String {
+    return "ThreadPostsChangeSet(threadDescriptor=$threadDescriptor, version=$version, " +
+      "insertedPosts=${insertedPosts.size}, updatedPosts=${updatedPosts.size}, " +
+      "deletedPosts=${deletedPosts.size})"
+  }
+
+  internal class Builder(
+    private val threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ) {
+    private val insertedPosts = LinkedHashSet<PostDescriptor>()
+    private val updatedPosts = LinkedHashMap<PostDescriptor, Int>()
+    private val deletedPosts = LinkedHashSet<PostDescriptor>()
+
+    fun isEmpty(): Boolean {
+      return insertedPosts.isEmpty() && updatedPosts.isEmpty() && deletedPosts.isEmpty()
+    }
+
+    fun inserted(postDescriptor: PostDescriptor) {
+      deletedPosts.remove(postDescriptor)
+      insertedPosts.add(postDescriptor)
+    }
+
+    fun updated(postDescriptor: PostDescriptor, fields: Int) {
+      if (fields == 0 || postDescriptor in insertedPosts) {
+        return
+      }
+
+      updatedPosts[postDescriptor] = (updatedPosts[postDescriptor] ?: 0) or fields
+    }
+
+    fun deleted(postDescriptor: PostDescriptor) {
+      if (insertedPosts.remove(postDescriptor)) {
+        return
+      }
+
+      updatedPosts.remove(postDescriptor)
+      deletedPosts.add(postDescriptor)
+    }
+
+    fun build(version: Long): ThreadPostsChangeSet {
+      return ThreadPostsChangeSet(
+        threadDescriptor = threadDescriptor,
+        version = version,
+        insertedPosts = insertedPosts.toList(),
+        updatedPosts = LinkedHashMap(updatedPosts),
+        deletedPosts = deletedPosts.toList()
+      )
+    }
+  }
+
+  companion object {
+    const val FIELD_COMMENT = 1 shl 0
+    const val FIELD_IMAGES = 1 shl 1
+    const val FIELD_DELETED = 1 shl 2
+    // Posts this post quotes
+    const val FIELD_REPLIES_TO = 1 shl 3
+    // Posts quoting this post
+    const val FIELD_REPLIES_FROM = 1 shl 4
+    // Subject, name, tripcode, poster id, capcode, icons etc
+    const val FIELD_POST_HEADER = 1 shl 5
+    // Sticky/closed/archived/endless state of the original post
+    const val FIELD_THREAD_STATUS = 1 shl 6
+  }
+
+}
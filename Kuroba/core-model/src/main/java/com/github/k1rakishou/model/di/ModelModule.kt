@@ -121,7 +121,7 @@ class ModelModule {
     return ChanThreadsCache(
       dependencies.isDevFlavor,
       dependencies.isLowRamDevice,
-      dependencies.appConstants.maxPostsCountInPostsCache,
+      dependencies.appConstants.maxPostsCacheSizeInBytes,
       chanCatalogSnapshotCache
     )
   }
@@ -62,6 +62,31 @@ object ChanPostMapper {
     }
   }
 
+  /**
+   * A cheaper version of [toPostBuilder] that only copies the fields filters are matched against
+   * (no linkables, replies or thread stats).
+   * */
+  @JvmStatic
+  fun toFilterablePostBuilder(chanPost: ChanPost): ChanPostBuilder {
+    val postDescriptor = chanPost.postDescriptor
+
+    return ChanPostBuilder()
+      .boardDescriptor(postDescriptor.boardDescriptor())
+      .id(postDescriptor.postNo)
+      .opId(postDescriptor.getThreadNo())
+      .op(postDescriptor.isOP())
+      .sticky((chanPost as? ChanOriginalPost)?.sticky ?: false)
+      .subject(chanPost.subject)
+      .name(chanPost.name)
+      .comment(chanPost.postComment.originalUnparsedComment)
+      .tripcode(chanPost.tripcode)
+      .postImages(chanPost.postImages, postDescriptor)
+      .posterId(chanPost.posterId)
+      .moderatorCapcode(chanPost.moderatorCapcode ?: "")
+      .httpIcons(chanPost.postIcons)
+      .isSavedReply(chanPost.isSavedReply)
+  }
+
   @JvmStatic
   fun fromPostBuilder(chanPostBuilder: ChanPostBuilder): ChanPost {
     val postDescriptor = chanPostBuilder.postDescriptor
@@ -15,7 +15,7 @@ import kotlinx.coroutines.sync.withLock
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTimedValue
 
-class ChanCatalogSnapshotRepository(
+open class ChanCatalogSnapshotRepository(
   database: KurobaDatabase,
   private val verboseLogsEnabled: Boolean,
   private val applicationScope: CoroutineScope,
@@ -34,7 +34,7 @@ import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 import kotlin.time.measureTimedValue
 
-class ChanPostRepository(
+open class ChanPostRepository(
   database: KurobaDatabase,
   private val isDevFlavor: Boolean,
   private val applicationScope: CoroutineScope,
@@ -266,12 +266,36 @@ class ChanPostRepository(
     return chanThreadsCache.getPostHash(postDescriptor)
   }
 
+  fun putRawPostJsonHashes(threadDescriptor: ChanDescriptor.ThreadDescriptor, hashes: Map<PostDescriptor, Long>) {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+
+    chanThreadsCache.putRawPostJsonHashes(threadDescriptor, hashes)
+  }
+
+  fun getRawPostJsonHash(postDescriptor: PostDescriptor): Long? {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+
+    return chanThreadsCache.getRawPostJsonHash(postDescriptor)
+  }
+
   fun clearPostHashes() {
     check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
 
     chanThreadsCache.clearPostHashes()
   }
 
+  fun clearPostHashes(postDescriptors: Collection<PostDescriptor>) {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+
+    chanThreadsCache.clearPostHashes(postDescriptors)
+  }
+
+  fun iterateCachedThreadPosts(iterator: (List<ChanPost>) -> Unit) {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+
+    chanThreadsCache.iterateCachedThreadPosts(iterator)
+  }
+
   suspend fun getCatalogOriginalPosts(
     descriptor: ChanDescriptor.CatalogDescriptor,
     count: Int
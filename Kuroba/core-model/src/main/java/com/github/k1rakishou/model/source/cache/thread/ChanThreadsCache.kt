@@ -1,5 +1,7 @@
 package com.github.k1rakishou.model.source.cache.thread
 
+import android.content.ComponentCallbacks2
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.common.linkedMapWithCap
@@ -14,6 +16,7 @@ import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.thread.ChanThread
+import com.github.k1rakishou.model.data.thread.ThreadPostsChangeSet
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import org.joda.time.Period
@@ -28,13 +31,16 @@ import kotlin.time.measureTime
 class ChanThreadsCache(
   private val isDevBuild: Boolean,
   private val isLowRamDevice: Boolean,
-  private val maxCacheSize: Int,
+  // Budget for the estimated retained size (in bytes) of all cached threads
+  private val maxCacheSizeBytes: Long,
   private val chanCatalogSnapshotCache: ChanCatalogSnapshotCache
 ) {
   private val chanThreads = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, ChanThread>(128)
   private val lastEvictInvokeTime = AtomicLong(0L)
+  private val evictionLock = Any()
   private val oneYearPeriodMillis by lazy { Period.years(1).millis }
   private val chanThreadDeleteEventListeners = CopyOnWriteArrayList<(ThreadDeleteEvent) -> Unit>()
+  private val threadPostsChangeListeners = CopyOnWriteArrayList<(ThreadPostsChangeSet) -> Unit>()
 
   fun addChanThreadDeleteEventListener(listener: (ThreadDeleteEvent) -> Unit) {
     chanThreadDeleteEventListeners += listener
@@ -44,6 +50,15 @@ class ChanThreadsCache(
     return chanThreads[threadDescriptor]?.isThreadLockCurrentlyLocked() ?: false
   }
 
+  /**
+   * [listener] is called with the change set of every update of every cached thread. It's called
+   * synchronously by the thread that updated the posts while the [ChanThread] is still locked for
+   * writing, so it must be fast (e.g. just post the change set somewhere else).
+   * */
+  fun addThreadPostsChangeListener(listener: (ThreadPostsChangeSet) -> Unit) {
+    threadPostsChangeListeners += listener
+  }
+
   fun putPostHash(postDescriptor: PostDescriptor, hash: MurmurHashUtils.Murmur3Hash) {
     chanThreads[postDescriptor.threadDescriptor()]?.putPostHash(postDescriptor, hash)
   }
@@ -52,10 +67,34 @@ class ChanThreadsCache(
     return chanThreads[postDescriptor.threadDescriptor()]?.getPostHash(postDescriptor)
   }
 
+  fun putRawPostJsonHashes(threadDescriptor: ChanDescriptor.ThreadDescriptor, hashes: Map<PostDescriptor, Long>) {
+    chanThreads[threadDescriptor]?.putRawPostJsonHashes(hashes)
+  }
+
+  fun getRawPostJsonHash(postDescriptor: PostDescriptor): Long? {
+    return chanThreads[postDescriptor.threadDescriptor()]?.getRawPostJsonHash(postDescriptor)
+  }
+
   fun clearPostHashes() {
     chanThreads.values.forEach { chanThread -> chanThread.clearPostHashes() }
   }
 
+  fun clearPostHashes(postDescriptors: Collection<PostDescriptor>) {
+    postDescriptors
+      .groupBy { postDescriptor -> postDescriptor.threadDescriptor() }
+      .forEach { (threadDescriptor, threadPostDescriptors) ->
+        chanThreads[threadDescriptor]?.clearPostHashes(threadPostDescriptors)
+      }
+  }
+
+  /**
+   * Iterates posts of every cached thread (catalog original posts included), one thread at a time.
+   * Posts are copied out of the thread first so the thread is not locked while [iterator] runs.
+   * */
+  fun iterateCachedThreadPosts(iterator: (List<ChanPost>) -> Unit) {
+    chanThreads.values.forEach { chanThread -> iterator(chanThread.getAll()) }
+  }
+
   fun cacheNeedsUpdate(
     chanDescriptor: ChanDescriptor,
     chanCacheUpdateOptions: ChanCacheUpdateOptions
@@ -98,7 +137,8 @@ class ChanThreadsCache(
         return@getOrPut ChanThread(
           isDevBuild = isDevBuild,
           threadDescriptor = threadDescriptor,
-          initialLastAccessTime = getLastThreadAccessTime(cacheOptions)
+          initialLastAccessTime = getLastThreadAccessTime(cacheOptions),
+          onPostsChanged = { changeSet -> notifyThreadPostsChangeListeners(changeSet) }
         )
       })
 
@@ -136,7 +176,8 @@ class ChanThreadsCache(
       return@getOrPut ChanThread(
         isDevBuild = isDevBuild,
         threadDescriptor = threadDescriptor,
-        initialLastAccessTime = getLastThreadAccessTime(cacheOptions)
+        initialLastAccessTime = getLastThreadAccessTime(cacheOptions),
+        onPostsChanged = { changeSet -> notifyThreadPostsChangeListeners(changeSet) }
       )
     })
 
@@ -245,6 +286,10 @@ class ChanThreadsCache(
     return chanThreads.values.sumBy { chanThread -> chanThread.postsCount }
   }
 
+  fun getTotalEstimatedRetainedSize(): Long {
+    return chanThreads.values.sumOf { chanThread -> chanThread.estimatedRetainedSize() }
+  }
+
   fun getLastPost(threadDescriptor: ChanDescriptor.ThreadDescriptor): ChanPost? {
     return chanThreads[threadDescriptor]?.lastPost()
   }
@@ -371,6 +416,40 @@ class ChanThreadsCache(
     return now - oneYearPeriodMillis
   }
 
+  /**
+   * Called when the system asks the app to release memory (ComponentCallbacks2.onTrimMemory).
+   * Evicts the oldest threads until the estimated size of the cache goes down to a fraction of the
+   * budget that depends on the [level]. Immune threads are never evicted.
+   * */
+  @OptIn(ExperimentalTime::class)
+  fun onTrimMemory(level: Int) {
+    val budgetFraction = budgetFractionForTrimMemoryLevel(level)
+    if (budgetFraction >= 1f) {
+      return
+    }
+
+    val targetSize = (maxCacheSizeBytes * budgetFraction).toLong()
+    val currentTotalSize = getTotalEstimatedRetainedSize()
+
+    if (currentTotalSize <= targetSize) {
+      Logger.d(TAG, "onTrimMemory(${level}) nothing to evict, currentTotalSize=${currentTotalSize}, " +
+        "targetSize=${targetSize}")
+      return
+    }
+
+    val time = measureTime {
+      evictOld(
+        immuneThreadsCount = immuneThreadsCount(isLowRamDevice),
+        sizeToEvictParam = currentTotalSize - targetSize
+      )
+    }
+
+    Logger.d(TAG, "onTrimMemory(${level}) evicted down to ${getTotalEstimatedRetainedSize()} " +
+      "(was ${currentTotalSize}, targetSize=${targetSize}, max=${maxCacheSizeBytes}), took ${time}")
+
+    lastEvictInvokeTime.set(System.currentTimeMillis())
+  }
+
   @OptIn(ExperimentalTime::class)
   private fun runOldPostEvictionRoutineIfNeeded() {
     val delta = System.currentTimeMillis() - lastEvictInvokeTime.get()
@@ -378,8 +457,8 @@ class ChanThreadsCache(
       return
     }
 
-    val currentTotalPostsCount = getTotalCachedPostsCount()
-    if (currentTotalPostsCount <= maxCacheSize) {
+    val currentTotalSize = getTotalEstimatedRetainedSize()
+    if (currentTotalSize <= maxCacheSizeBytes) {
       return
     }
 
@@ -390,18 +469,20 @@ class ChanThreadsCache(
       return
     }
 
-    val amountToEvict = (currentTotalPostsCount - maxCacheSize) + (maxCacheSize / 2)
-    if (amountToEvict > 0) {
+    val sizeToEvict = (currentTotalSize - maxCacheSizeBytes) + (maxCacheSizeBytes / 2)
+    if (sizeToEvict > 0) {
       Logger.d(TAG, "evictOld start (immuneThreadsCount=${actualImmuneThreadsCount}, " +
-        "currentTotalPostsCount: ${currentTotalPostsCount} / max:${maxCacheSize}, " +
+        "currentTotalSize: ${currentTotalSize} / max:${maxCacheSizeBytes}, " +
+        "currentTotalPostsCount: ${getTotalCachedPostsCount()}, " +
         "threads with posts: ${amountOfThreadsWithMoreThanOnPost} / total threads: ${getCachedThreadsCount()})")
 
       val time = measureTime {
-        evictOld(immuneThreadsCount = actualImmuneThreadsCount, amountToEvictParam = amountToEvict)
+        evictOld(immuneThreadsCount = actualImmuneThreadsCount, sizeToEvictParam = sizeToEvict)
       }
 
       Logger.d(TAG, "evictOld end (immuneThreadsCount=${actualImmuneThreadsCount}, " +
-        "currentTotalPostsCount: ${getTotalCachedPostsCount()} / max:${maxCacheSize}), " +
+        "currentTotalSize: ${getTotalEstimatedRetainedSize()} / max:${maxCacheSizeBytes}, " +
+        "currentTotalPostsCount: ${getTotalCachedPostsCount()}, " +
         "threads with posts: ${getThreadsWithMoreThanOnePostCount()}) / total threads: ${getCachedThreadsCount()} " +
         "took ${time}")
     }
@@ -409,12 +490,19 @@ class ChanThreadsCache(
     lastEvictInvokeTime.set(System.currentTimeMillis())
   }
 
-  private fun evictOld(immuneThreadsCount: Int, amountToEvictParam: Int) {
-    require(amountToEvictParam > 0) { "amountToEvictParam is too small: $amountToEvictParam" }
+  private fun evictOld(immuneThreadsCount: Int, sizeToEvictParam: Long) {
+    synchronized(evictionLock) {
+      evictOldLocked(immuneThreadsCount, sizeToEvictParam)
+    }
+  }
+
+  @GuardedBy("evictionLock")
+  private fun evictOldLocked(immuneThreadsCount: Int, sizeToEvictParam: Long) {
+    require(sizeToEvictParam > 0) { "sizeToEvictParam is too small: $sizeToEvictParam" }
 
     val accessTimes = chanThreads.entries
       .map { (threadDescriptor, chanThread) -> threadDescriptor to chanThread.getLastAccessTime() }
-    val totalPostsCount = getTotalCachedPostsCount()
+    val totalSize = getTotalEstimatedRetainedSize()
 
     val threadDescriptorsSorted = accessTimes
       // We will get the oldest accessed key in the beginning of the list
@@ -429,24 +517,30 @@ class ChanThreadsCache(
 
     Logger.d(TAG, "threadDescriptorsSorted size=${threadDescriptorsSorted.size}, " +
         "accessTimes size=${accessTimes.size}, " +
-        "totalPostsCount=${totalPostsCount}")
+        "totalSize=${totalSize}")
 
     val threadDescriptorsToClean = mutableListOf<ChanDescriptor.ThreadDescriptor>()
-    var amountOfPostsToEvict = amountToEvictParam
+    var sizeToEvict = sizeToEvictParam
 
     for (threadDescriptor in threadDescriptorsSorted) {
-      if (amountOfPostsToEvict <= 0) {
+      if (sizeToEvict <= 0) {
         break
       }
 
-      val count = chanThreads[threadDescriptor]?.postsCount ?: 0
+      val chanThread = chanThreads[threadDescriptor]
+        ?: continue
+
+      if (chanThread.postsCount <= 1 && isThreadInCurrentCatalog(chanThread)) {
+        // Cleaning up this thread won't free anything since we will keep the original post anyway
+        continue
+      }
 
       threadDescriptorsToClean += threadDescriptor
-      amountOfPostsToEvict -= count
+      sizeToEvict -= chanThread.estimatedRetainedSize()
     }
 
     Logger.d(TAG, "Evicting ${threadDescriptorsToClean.size} threads, " +
-        "postsToEvict=${amountToEvictParam - amountOfPostsToEvict}")
+        "sizeToEvict=${sizeToEvictParam - sizeToEvict}")
 
     if (threadDescriptorsToClean.isEmpty()) {
       Logger.d(TAG, "threadDescriptorsToDelete is empty")
@@ -462,12 +556,7 @@ class ChanThreadsCache(
 
       chanThread.cleanup()
 
-      val isThreadInCurrentCatalog = chanCatalogSnapshotCache.get(chanThread.threadDescriptor.catalogDescriptor())
-        ?.catalogThreadDescriptorSet
-        ?.contains(threadDescriptor)
-        ?: false
-
-      if (!isThreadInCurrentCatalog && chanThread.postsCount <= 1) {
+      if (!isThreadInCurrentCatalog(chanThread) && chanThread.postsCount <= 1) {
         threadsToRemove += threadDescriptor
         chanThreads.remove(threadDescriptor)
       } else {
@@ -503,12 +592,25 @@ class ChanThreadsCache(
     }
   }
 
+  private fun isThreadInCurrentCatalog(chanThread: ChanThread): Boolean {
+    return chanCatalogSnapshotCache.get(chanThread.threadDescriptor.catalogDescriptor())
+      ?.catalogThreadDescriptorSet
+      ?.contains(chanThread.threadDescriptor)
+      ?: false
+  }
+
   private fun notifyChanThreadDeleteEventListeners(threadDeleteEvent: ThreadDeleteEvent) {
     chanThreadDeleteEventListeners.forEach { listener ->
       listener.invoke(threadDeleteEvent)
     }
   }
 
+  private fun notifyThreadPostsChangeListeners(changeSet: ThreadPostsChangeSet) {
+    threadPostsChangeListeners.forEach { listener ->
+      listener.invoke(changeSet)
+    }
+  }
+
   sealed class ThreadDeleteEvent(val evictingOld: Boolean) {
 
     class RemoveThreads(
@@ -584,6 +686,23 @@ class ChanThreadsCache(
     // 15 seconds
     private val EVICTION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(15)
 
+    /**
+     * Which part of the cache budget to keep when the system asks us to trim memory. The higher
+     * the level the less memory we are allowed to keep. Immune threads are kept regardless.
+     * */
+    fun budgetFractionForTrimMemoryLevel(level: Int): Float {
+      return when {
+        level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE -> 0f
+        level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE -> 0.25f
+        level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> 0.5f
+        level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> 0.75f
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> 0.25f
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> 0.5f
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE -> 0.75f
+        else -> 1f
+      }
+    }
+
     fun immuneThreadsCount(isLowRamDevice: Boolean): Int {
       return if (isLowRamDevice) {
         IMMUNE_THREADS_LOW_RAM_COUNT
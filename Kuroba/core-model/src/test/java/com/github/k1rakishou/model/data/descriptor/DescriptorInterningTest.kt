@@ -0,0 +1,140 @@
+package com.github.k1rakishou.model.data.descriptor
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+
+class DescriptorInterningTest {
+
+  @Test
+  fun `test equal descriptors are the same instance`() {
+    assertSame(SiteDescriptor.create("4chan"), SiteDescriptor.create("4chan"))
+    assertSame(BoardDescriptor.create("4chan", "g"), BoardDescriptor.create("4chan", "g"))
+    assertSame(
+      ChanDescriptor.CatalogDescriptor.create("4chan", "g"),
+      ChanDescriptor.CatalogDescriptor.create(BoardDescriptor.create("4chan", "g"))
+    )
+
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L)
+    assertSame(threadDescriptor, ChanDescriptor.ThreadDescriptor.create(BoardDescriptor.create("4chan", "g"), 1L))
+    assertSame(threadDescriptor.boardDescriptor, BoardDescriptor.create("4chan", "g"))
+
+    assertSame(
+      PostDescriptor.create(threadDescriptor, 2L),
+      PostDescriptor.create("4chan", "g", 1L, 2L)
+    )
+    assertSame(
+      PostDescriptor.create("4chan", "g", 1L),
+      PostDescriptor.create(ChanDescriptor.CatalogDescriptor.create("4chan", "g"), 1L)
+    )
+    assertSame(
+      PostDescriptor.deserializeFromString(PostDescriptor.create(threadDescriptor, 2L).serializeToString()),
+      PostDescriptor.create(threadDescriptor, 2L)
+    )
+
+    val catalogs = listOf(
+      ChanDescriptor.CatalogDescriptor.create("4chan", "g"),
+      ChanDescriptor.CatalogDescriptor.create("4chan", "a")
+    )
+
+    assertSame(
+      ChanDescriptor.CompositeCatalogDescriptor.create(catalogs),
+      ChanDescriptor.CompositeCatalogDescriptor.create(catalogs.toList())
+    )
+  }
+
+  @Test
+  fun `test different descriptors are not merged`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L)
+
+    assertTrue(PostDescriptor.create(threadDescriptor, 2L) !== PostDescriptor.create(threadDescriptor, 3L))
+    assertTrue(PostDescriptor.create("4chan", "g", 1L, 2L, 0L) != PostDescriptor.create("4chan", "g", 1L, 2L, 1L))
+    assertTrue(threadDescriptor != ChanDescriptor.ThreadDescriptor.create("4chan", "a", 1L))
+  }
+
+  @Test
+  fun `test large thread set only retains one descriptor per post`() {
+    val threadsCount = 100
+    val postsPerThread = 300
+    val repliesPerPost = 3
+    val internedBefore = PostDescriptor.internedCount()
+
+    // Emulates ChanPost.repliesTo/repliesFrom: every post references a few other posts of the same
+    // thread and every referenced post references it back
+    val threads = (1..threadsCount).map { threadIndex ->
+      val threadNo = threadIndex * 100_000L
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", threadNo)
+
+      (0 until postsPerThread).flatMap { postIndex ->
+        val postNo = threadNo + postIndex
+
+        (1..repliesPerPost).flatMap { replyIndex ->
+          val replyToPostNo = threadNo + ((postIndex + replyIndex) % postsPerThread)
+
+          listOf(
+            PostDescriptor.create(threadDescriptor, replyToPostNo),
+            PostDescriptor.create("4chan", "g", threadNo, postNo)
+          )
+        }
+      }
+    }
+
+    val retained = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+    var references = 0
+
+    threads.forEach { postDescriptors ->
+      postDescriptors.forEach { postDescriptor ->
+        ++references
+
+        retained += postDescriptor
+        retained += postDescriptor.descriptor
+        retained += postDescriptor.boardDescriptor()
+        retained += postDescriptor.siteDescriptor()
+      }
+    }
+
+    assertEquals(threadsCount * postsPerThread * repliesPerPost * 2, references)
+
+    // Every post + every thread + one board + one site. Without interning every reference would
+    // hold its own PostDescriptor, ThreadDescriptor, BoardDescriptor and SiteDescriptor.
+    val expectedRetained = (threadsCount * postsPerThread) + threadsCount + 1 + 1
+    assertEquals(expectedRetained, retained.size)
+
+    // The interner got exactly one new entry per post. Entries left by the other tests may be
+    // collected in the meantime so the count can only be lower than that.
+    val internedCount = PostDescriptor.internedCount()
+    assertTrue(internedCount >= threadsCount * postsPerThread)
+    assertTrue(internedCount <= internedBefore + threadsCount * postsPerThread)
+  }
+
+  @Test
+  fun `test post descriptors nobody references are removed from the interner`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "b", 1L)
+    val alive = PostDescriptor.create(threadDescriptor, 2L)
+
+    createUnreachablePostDescriptors(threadDescriptor, count = 1000)
+    val internedWithGarbage = PostDescriptor.internedCount()
+
+    for (attempt in 0 until 50) {
+      if (PostDescriptor.internedCount() <= internedWithGarbage - 1000) {
+        break
+      }
+
+      System.gc()
+      Thread.sleep(20)
+    }
+
+    assertTrue(PostDescriptor.internedCount() <= internedWithGarbage - 1000)
+    assertSame(alive, PostDescriptor.create("4chan", "b", 1L, 2L))
+  }
+
+  private fun createUnreachablePostDescriptors(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    count: Int
+  ) {
+    (1..count).forEach { index -> PostDescriptor.create(threadDescriptor, 1000L + index) }
+  }
+
+}
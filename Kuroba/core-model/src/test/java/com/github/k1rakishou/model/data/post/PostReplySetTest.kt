@@ -0,0 +1,76 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class PostReplySetTest {
+  private val threadDescriptor1 = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val threadDescriptor2 = ChanDescriptor.ThreadDescriptor.create("test", "g", 2L)
+
+  @Test
+  fun `test iteration order`() {
+    val replySet = PostReplySet()
+
+    replySet += PostDescriptor.create(threadDescriptor1, 10L)
+    replySet += PostDescriptor.create(threadDescriptor2, 5L)
+    replySet += PostDescriptor.create(threadDescriptor1, 3L)
+    replySet += PostDescriptor.create("test", "g", 1L, 3L, 1L)
+
+    assertFalse(replySet.add(PostDescriptor.create(threadDescriptor1, 10L)))
+    assertEquals(
+      listOf(
+        PostDescriptor.create(threadDescriptor1, 3L),
+        PostDescriptor.create("test", "g", 1L, 3L, 1L),
+        PostDescriptor.create(threadDescriptor1, 10L),
+        PostDescriptor.create(threadDescriptor2, 5L)
+      ),
+      replySet.toList()
+    )
+  }
+
+  @Test
+  fun `test behaves like a regular set`() {
+    val random = Random(1234)
+
+    repeat(100) {
+      val replySet = PostReplySet()
+      val expectedSet = LinkedHashSet<PostDescriptor>()
+
+      repeat(100) {
+        val postDescriptor = when (random.nextInt(4)) {
+          0 -> PostDescriptor.create(threadDescriptor2, random.nextLong(1, 20))
+          1 -> PostDescriptor.create("test", "g", 1L, random.nextLong(1, 20), random.nextLong(0, 2))
+          else -> PostDescriptor.create(threadDescriptor1, random.nextLong(1, 40))
+        }
+
+        if (random.nextInt(3) == 0) {
+          assertEquals(expectedSet.remove(postDescriptor), replySet.remove(postDescriptor))
+        } else {
+          assertEquals(expectedSet.add(postDescriptor), replySet.add(postDescriptor))
+        }
+
+        assertEquals(expectedSet.size, replySet.size)
+        assertTrue(expectedSet.all { replySet.contains(it) })
+        assertEquals(expectedSet, replySet)
+        assertEquals(expectedSet.hashCode(), replySet.hashCode())
+      }
+
+      val iterator = replySet.iterator()
+      while (iterator.hasNext()) {
+        val postDescriptor = iterator.next()
+        if (postDescriptor.postNo % 2 == 0L) {
+          iterator.remove()
+          expectedSet.remove(postDescriptor)
+        }
+      }
+
+      assertEquals(expectedSet, replySet)
+    }
+  }
+
+}
@@ -0,0 +1,89 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import org.joda.time.DateTime
+import org.junit.Test
+import kotlin.random.Random
+
+class ThreadSeenPostsTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+
+  @Test
+  fun `test first inserted time wins`() {
+    val threadSeenPosts = ThreadSeenPosts.from(
+      listOf(seenPost(10L, 0L, 100L), seenPost(3L, 1L, 200L), seenPost(10L, 0L, 300L))
+    )
+
+    assertEquals(2, threadSeenPosts.size)
+    assertEquals(100L, threadSeenPosts.insertedAtMillis(postDescriptor(10L, 0L)))
+    assertEquals(200L, threadSeenPosts.insertedAtMillis(postDescriptor(3L, 1L)))
+    assertEquals(-1L, threadSeenPosts.insertedAtMillis(postDescriptor(3L, 0L)))
+
+    val merged = threadSeenPosts.plus(listOf(seenPost(10L, 0L, 400L), seenPost(5L, 0L, 500L)))
+    assertEquals(3, merged.size)
+    assertEquals(100L, merged.insertedAtMillis(postDescriptor(10L, 0L)))
+    assertEquals(500L, merged.insertedAtMillis(postDescriptor(5L, 0L)))
+
+    // Nothing new, same instance
+    assertSame(merged, merged.plus(listOf(seenPost(5L, 0L, 600L))))
+
+    val retained = merged.retainOnly(postDescriptor(5L, 0L))
+    assertEquals(1, retained.size)
+    assertTrue(retained.contains(postDescriptor(5L, 0L)))
+    assertFalse(retained.contains(postDescriptor(10L, 0L)))
+    assertEquals(0, merged.retainOnly(postDescriptor(1000L, 0L)).size)
+  }
+
+  @Test
+  fun `test behaves like a map`() {
+    val random = Random(1234)
+
+    repeat(100) {
+      var threadSeenPosts = ThreadSeenPosts.EMPTY
+      val expectedMap = mutableMapOf<PostDescriptor, Long>()
+
+      repeat(20) { iteration ->
+        val seenPosts = (0 until random.nextInt(0, 10)).map {
+          val postSubNo = if (random.nextInt(5) == 0) random.nextLong(1, 3) else 0L
+          seenPost(random.nextLong(1, 50), postSubNo, iteration.toLong())
+        }
+
+        seenPosts.forEach { seenPost ->
+          expectedMap.putIfAbsent(seenPost.postDescriptor, seenPost.insertedAt.millis)
+        }
+
+        threadSeenPosts = threadSeenPosts.plus(seenPosts)
+
+        assertEquals(expectedMap.size, threadSeenPosts.size)
+        expectedMap.forEach { (postDescriptor, insertedAtMillis) ->
+          assertEquals(insertedAtMillis, threadSeenPosts.insertedAtMillis(postDescriptor))
+        }
+      }
+
+      (1L until 50L).forEach { postNo ->
+        val postDescriptor = postDescriptor(postNo, 0L)
+        assertEquals(expectedMap.containsKey(postDescriptor), threadSeenPosts.contains(postDescriptor))
+      }
+
+      assertEquals(
+        expectedMap,
+        threadSeenPosts.toSeenPosts(threadDescriptor)
+          .associate { seenPost -> seenPost.postDescriptor to seenPost.insertedAt.millis }
+      )
+    }
+  }
+
+  private fun postDescriptor(postNo: Long, postSubNo: Long): PostDescriptor {
+    return PostDescriptor.create(threadDescriptor, threadDescriptor.threadNo, postNo, postSubNo)
+  }
+
+  private fun seenPost(postNo: Long, postSubNo: Long, insertedAtMillis: Long): SeenPost {
+    return SeenPost(postDescriptor(postNo, postSubNo), DateTime(insertedAtMillis))
+  }
+
+}
@@ -0,0 +1,363 @@
+package com.github.k1rakishou.model.data.thread
+
+import com.github.k1rakishou.model.data.PostsFromServerData
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.PostComment
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+// isDevBuild is true so every update is also verified by ChanThread.checkPostsConsistency() which
+// rebuilds the whole reply graph and compares it with the incrementally updated one
+@RunWith(RobolectricTestRunner::class)
+class ChanThreadTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val otherThreadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1000L)
+
+  @Test
+  fun `test replies of new posts are linked incrementally`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 1), post(3, 1, 2)),
+      fullUpdate(1, 2, 3)
+    )
+
+    assertEquals(setOf(pd(2), pd(3)), repliesFrom(chanThread, 1))
+    assertEquals(setOf(pd(3)), repliesFrom(chanThread, 2))
+
+    chanThread.addOrUpdatePosts(listOf(post(4, 2, 3), post(5, 4)), incrementalUpdate(4, 5))
+
+    assertEquals(setOf(pd(2), pd(3)), repliesFrom(chanThread, 1))
+    assertEquals(setOf(pd(3), pd(4)), repliesFrom(chanThread, 2))
+    assertEquals(setOf(pd(4)), repliesFrom(chanThread, 3))
+    assertEquals(setOf(pd(5)), repliesFrom(chanThread, 4))
+    assertTrue(repliesFrom(chanThread, 5).isEmpty())
+  }
+
+  @Test
+  fun `test edited quotes are relinked`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 1), post(3, 1, 2)),
+      fullUpdate(1, 2, 3)
+    )
+
+    // Post 3 no longer quotes post 1 but now quotes post 4, post 2 is unchanged
+    chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 1), post(3, 2, 4), post(4)),
+      fullUpdate(1, 2, 3, 4)
+    )
+
+    assertEquals(setOf(pd(2)), repliesFrom(chanThread, 1))
+    assertEquals(setOf(pd(3)), repliesFrom(chanThread, 2))
+    assertEquals(setOf(pd(3)), repliesFrom(chanThread, 4))
+  }
+
+  @Test
+  fun `test quotes of posts that are not loaded yet are linked once they are added`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(
+      listOf(post(1), post(3, 2), post(4, 2, 3)),
+      incrementalUpdate(1, 3, 4)
+    )
+
+    assertEquals(setOf(pd(4)), repliesFrom(chanThread, 3))
+
+    chanThread.addOrUpdatePosts(listOf(post(2, 1)), incrementalUpdate(2))
+
+    assertEquals(setOf(pd(2)), repliesFrom(chanThread, 1))
+    assertEquals(setOf(pd(3), pd(4)), repliesFrom(chanThread, 2))
+  }
+
+  @Test
+  fun `test cross thread quotes are ignored`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+    val crossThreadQuote = PostDescriptor.create(otherThreadDescriptor, 1001L)
+
+    chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 1, otherQuotes = setOf(crossThreadQuote))),
+      fullUpdate(1, 2)
+    )
+
+    assertEquals(setOf(pd(2)), repliesFrom(chanThread, 1))
+  }
+
+  @Test
+  fun `test deleted posts have their replies removed`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 1), post(3, 1, 2), post(4, 3)),
+      fullUpdate(1, 2, 3, 4)
+    )
+
+    chanThread.deletePosts(listOf(pd(3)))
+
+    assertEquals(setOf(pd(2)), repliesFrom(chanThread, 1))
+    assertTrue(repliesFrom(chanThread, 2).isEmpty())
+
+    // Post 4 still quotes post 3 so once it's back it must be linked again
+    chanThread.addOrUpdatePosts(listOf(post(3, 1, 2)), incrementalUpdate(3))
+
+    assertEquals(setOf(pd(2), pd(3)), repliesFrom(chanThread, 1))
+    assertEquals(setOf(pd(3)), repliesFrom(chanThread, 2))
+    assertEquals(setOf(pd(4)), repliesFrom(chanThread, 3))
+
+    chanThread.cleanup()
+
+    assertTrue(repliesFrom(chanThread, 1).isEmpty())
+  }
+
+  @Test
+  fun `test change sets only contain what actually changed`() {
+    val changeSets = mutableListOf<ThreadPostsChangeSet>()
+    val chanThread = ChanThread(true, threadDescriptor, 0L) { changeSet -> changeSets += changeSet }
+
+    val changeSet1 = chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 1), post(3, 1)),
+      fullUpdate(1, 2, 3)
+    )
+
+    assertEquals(listOf(pd(1), pd(2), pd(3)), changeSet1.insertedPosts)
+    assertTrue(changeSet1.updatedPosts.isEmpty())
+    assertTrue(changeSet1.deletedPosts.isEmpty())
+
+    // Post 2 now quotes post 3 instead of post 1, post 3 is not changed, post 4 is new
+    val changeSet2 = chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 3), post(3, 1), post(4, 1)),
+      fullUpdate(1, 2, 3, 4)
+    )
+
+    assertEquals(listOf(pd(4)), changeSet2.insertedPosts)
+    assertEquals(
+      mapOf(
+        pd(1) to ThreadPostsChangeSet.FIELD_REPLIES_FROM,
+        pd(2) to (ThreadPostsChangeSet.FIELD_COMMENT or ThreadPostsChangeSet.FIELD_REPLIES_TO),
+        pd(3) to ThreadPostsChangeSet.FIELD_REPLIES_FROM
+      ),
+      changeSet2.updatedPosts
+    )
+    assertTrue(changeSet2.deletedPosts.isEmpty())
+
+    // Post 3 was deleted on the server (it's not in the new full update)
+    val changeSet3 = chanThread.addOrUpdatePosts(
+      listOf(post(1), post(2, 3), post(4, 1)),
+      fullUpdate(1, 2, 4)
+    )
+
+    assertFalse(changeSet3.isEmpty())
+    assertTrue(changeSet3.insertedPosts.isEmpty())
+    assertEquals(mapOf(pd(3) to ThreadPostsChangeSet.FIELD_DELETED), changeSet3.updatedPosts)
+
+    val changeSet4 = chanThread.deletePosts(listOf(pd(4)))
+
+    assertEquals(listOf(pd(4)), changeSet4.deletedPosts)
+    assertEquals(mapOf(pd(1) to ThreadPostsChangeSet.FIELD_REPLIES_FROM), changeSet4.updatedPosts)
+
+    assertEquals(listOf(changeSet1, changeSet2, changeSet3, changeSet4), changeSets)
+    assertEquals((1L..4L).toList(), changeSets.map { changeSet -> changeSet.version })
+    assertEquals(chanThread.version, changeSet4.version)
+  }
+
+  @Test
+  fun `test raw post json hashes are only stored for posts the thread has`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(listOf(post(1), post(2, 1)), fullUpdate(1, 2))
+    // Post 3 was read but never stored (e.g. the load failed while persisting it)
+    chanThread.putRawPostJsonHashes(mapOf(pd(2) to 2L, pd(3) to 3L))
+
+    assertEquals(2L, chanThread.getRawPostJsonHash(pd(2)))
+    assertNull(chanThread.getRawPostJsonHash(pd(3)))
+
+    chanThread.clearPostHashes(listOf(pd(2)))
+    assertNull(chanThread.getRawPostJsonHash(pd(2)))
+  }
+
+  @Test
+  fun `test posts returned by getAll are not modified by later writes`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(listOf(post(1), post(2, 1)), fullUpdate(1, 2))
+    val postsBefore = chanThread.getAll()
+    val versionBefore = chanThread.version
+
+    chanThread.addOrUpdatePosts(listOf(post(3, 1)), incrementalUpdate(3))
+    chanThread.deletePosts(listOf(pd(2)))
+
+    assertEquals(listOf(pd(1), pd(2)), postsBefore.map { post -> post.postDescriptor })
+    assertEquals(listOf(pd(1), pd(3)), chanThread.getAll().map { post -> post.postDescriptor })
+    assertEquals(versionBefore + 2, chanThread.version)
+  }
+
+  @Test
+  fun `test readers are not affected by writers modifying the posts in place`() {
+    val chanThread = ChanThread(false, threadDescriptor, 0L)
+    chanThread.addOrUpdatePosts(listOf(post(1)) + (2L..50L).map { postNo -> post(postNo, 1) }, null)
+
+    val writesCount = 2000
+    val readersCount = 4
+    val executor = Executors.newFixedThreadPool(readersCount + 1)
+    val writerDone = AtomicBoolean(false)
+
+    try {
+      val writer = executor.submit {
+        try {
+          for (index in 0 until writesCount) {
+            val postNo = 2L + (index % 49)
+
+            // All of these modify the post objects in place
+            chanThread.addImage(postImage(postNo, "$index"))
+            chanThread.updateThreadState(deleted = null, archived = null, closed = index % 2 == 0)
+            chanThread.addOrUpdatePosts(listOf(post(1000L + index, 1, postNo)), null)
+          }
+        } finally {
+          writerDone.set(true)
+        }
+      }
+
+      val readers = (0 until readersCount).map {
+        executor.submit {
+          var prevImagesCount = 0
+
+          while (!writerDone.get()) {
+            val postImages = chanThread.getThreadPostImages()
+            assertTrue(postImages.size >= prevImagesCount)
+            prevImagesCount = postImages.size
+
+            assertTrue(chanThread.imagesCount >= prevImagesCount)
+
+            val postsWithReplies = mutableSetOf<ChanPost>()
+            chanThread.findPostWithRepliesRecursive(
+              postDescriptor = pd(1),
+              postsSet = postsWithReplies,
+              includeRepliesFrom = true,
+              includeRepliesTo = true,
+              maxRecursion = 2
+            )
+            assertTrue(postsWithReplies.size >= 50)
+
+            chanThread.canUpdateThread()
+          }
+        }
+      }
+
+      writer.get(60, TimeUnit.SECONDS)
+      readers.forEach { reader -> reader.get(60, TimeUnit.SECONDS) }
+    } finally {
+      executor.shutdownNow()
+    }
+
+    assertEquals(writesCount, chanThread.imagesCount)
+    assertEquals(writesCount, chanThread.getThreadPostImages().size)
+    assertEquals(50 + writesCount, chanThread.postsCount)
+    assertTrue(chanThread.canUpdateThread())
+  }
+
+  @Test
+  fun `test posts appended or updated without a full rebuild can be looked up`() {
+    val chanThread = ChanThread(true, threadDescriptor, 0L)
+
+    chanThread.addOrUpdatePosts(listOf(post(1), post(2), post(4)), null)
+    chanThread.addOrUpdatePosts(listOf(post(5), post(6)), incrementalUpdate(5, 6))
+    // Comes out of order so the posts have to be sorted again
+    chanThread.addOrUpdatePosts(listOf(post(3)), incrementalUpdate(3))
+    chanThread.addImage(postImage(4, "image"))
+
+    assertEquals((1L..6L).map { postNo -> pd(postNo) }, chanThread.getPostDescriptors())
+    (1L..6L).forEach { postNo -> assertEquals(pd(postNo), chanThread.getPost(pd(postNo))?.postDescriptor) }
+    assertTrue(chanThread.postHasImages(pd(4)))
+    assertEquals(listOf(pd(4)), chanThread.mapPostsWithImagesAround(pd(6), 5, 0))
+    assertEquals(3, chanThread.getNewPostsCount(3L))
+  }
+
+  private fun repliesFrom(chanThread: ChanThread, postNo: Long): Set<PostDescriptor> {
+    return chanThread.getPost(pd(postNo))!!.repliesFromCopy
+  }
+
+  private fun fullUpdate(vararg postNos: Long): PostsFromServerData {
+    return PostsFromServerData(
+      allPostDescriptors = postNos.map { postNo -> pd(postNo) }.toSet(),
+      isIncrementalUpdate = false,
+      isUpdatingDataFromTheServer = true
+    )
+  }
+
+  private fun incrementalUpdate(vararg postNos: Long): PostsFromServerData {
+    return PostsFromServerData(
+      allPostDescriptors = postNos.map { postNo -> pd(postNo) }.toSet(),
+      isIncrementalUpdate = true,
+      isUpdatingDataFromTheServer = true
+    )
+  }
+
+  private fun postImage(postNo: Long, serverFilename: String): ChanPostImage {
+    return ChanPostImage(serverFilename = serverFilename)
+      .also { postImage -> postImage.setPostDescriptor(pd(postNo)) }
+  }
+
+  private fun pd(postNo: Long): PostDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+
+  private fun post(
+    postNo: Long,
+    vararg quotes: Long,
+    otherQuotes: Set<PostDescriptor> = emptySet()
+  ): ChanPost {
+    val repliesTo = quotes.map { quote -> pd(quote) }.toSet() + otherQuotes
+    val comment = repliesTo.joinToString(separator = "\n") { quote -> ">>${quote.postNo}" }
+    val postComment = PostComment(originalComment = comment, originalUnparsedComment = comment, emptyList())
+
+    if (postNo == threadDescriptor.threadNo) {
+      return ChanOriginalPost(
+        chanPostId = 0L,
+        postDescriptor = pd(postNo),
+        postImages = mutableListOf(),
+        postIcons = mutableListOf<ChanPostHttpIcon>(),
+        repliesTo = repliesTo,
+        timestamp = postNo,
+        postComment = postComment,
+        isSavedReply = false,
+        lastModified = 0L,
+        sticky = false,
+        closed = false,
+        archived = false,
+        endless = false,
+        isSage = false,
+        deleted = false,
+        posterIdColor = 0
+      )
+    }
+
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = pd(postNo),
+      _postImages = mutableListOf(),
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = repliesTo,
+      timestamp = postNo,
+      postComment = postComment,
+      subject = null,
+      tripcode = null,
+      isSavedReply = false,
+      isSage = false,
+      deleted = false,
+      posterIdColor = 0
+    )
+  }
+
+}
@@ -0,0 +1,197 @@
+package com.github.k1rakishou.model.source.cache.thread
+
+import android.content.ComponentCallbacks2
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.options.ChanCacheOptions
+import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.Executors
+
+// The cache is low ram so there are 5 immune threads
+@RunWith(RobolectricTestRunner::class)
+class ChanThreadsCacheTest {
+  // ChanThreadsCache.putManyThreadPostsIntoCache() must not be called on the main thread
+  private val backgroundExecutor = Executors.newSingleThreadExecutor()
+
+  @After
+  fun tearDown() {
+    backgroundExecutor.shutdown()
+  }
+
+  @Test
+  fun `threads over the byte budget are evicted oldest first and immune threads are kept`() {
+    val threadSize = estimatedThreadSize()
+    val chanThreadsCache = createCache(maxCacheSizeBytes = threadSize * 7)
+
+    // The budget is checked before a thread is added, so up to 8 threads get in without evictions
+    (1..8L).forEach { threadNo -> putThread(chanThreadsCache, threadNo) }
+    assertEquals(8 * threadSize, chanThreadsCache.getTotalEstimatedRetainedSize())
+
+    // The cache is over the budget now so adding one more thread evicts the oldest threads but
+    // only the ones that are not immune (the freshest 5 threads)
+    putThread(chanThreadsCache, 9L)
+
+    (1..3L).forEach { threadNo -> assertFalse(chanThreadsCache.contains(td(threadNo))) }
+    (4..9L).forEach { threadNo ->
+      assertEquals(POSTS_PER_THREAD, chanThreadsCache.getThreadPostsCount(td(threadNo)))
+    }
+    assertEquals(6 * threadSize, chanThreadsCache.getTotalEstimatedRetainedSize())
+  }
+
+  @Test
+  fun `bigger threads take more of the byte budget`() {
+    val threadSize = estimatedThreadSize()
+    val chanThreadsCache = createCache(maxCacheSizeBytes = threadSize * 7)
+
+    putThread(chanThreadsCache, 1L, commentLength = 50_000)
+    assertTrue(chanThreadsCache.getTotalEstimatedRetainedSize() > threadSize * 7)
+
+    (2..7L).forEach { threadNo -> putThread(chanThreadsCache, threadNo) }
+
+    // The big thread alone exceeds the budget, it is evicted as soon as it's no longer immune
+    assertFalse(chanThreadsCache.contains(td(1L)))
+    (2..7L).forEach { threadNo -> assertTrue(chanThreadsCache.contains(td(threadNo))) }
+  }
+
+  @Test
+  fun `onTrimMemory evicts down to the part of the budget for the trim level`() {
+    val threadSize = estimatedThreadSize()
+    val chanThreadsCache = createCache(maxCacheSizeBytes = threadSize * 20)
+
+    (1..10L).forEach { threadNo -> putThread(chanThreadsCache, threadNo) }
+
+    // 75% and 50% of the budget, the cache is still within it
+    chanThreadsCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+    chanThreadsCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+    assertEquals(10 * threadSize, chanThreadsCache.getTotalEstimatedRetainedSize())
+
+    // 25% of the budget
+    chanThreadsCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+    (1..5L).forEach { threadNo -> assertFalse(chanThreadsCache.contains(td(threadNo))) }
+    assertEquals(5 * threadSize, chanThreadsCache.getTotalEstimatedRetainedSize())
+
+    // Nothing at all is allowed to stay, except for the immune threads
+    chanThreadsCache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+    (6..10L).forEach { threadNo ->
+      assertEquals(POSTS_PER_THREAD, chanThreadsCache.getThreadPostsCount(td(threadNo)))
+    }
+  }
+
+  @Test
+  fun `budget fraction for every trim memory level`() {
+    val expected = mapOf(
+      ComponentCallbacks2.TRIM_MEMORY_COMPLETE to 0f,
+      ComponentCallbacks2.TRIM_MEMORY_MODERATE to 0.25f,
+      ComponentCallbacks2.TRIM_MEMORY_BACKGROUND to 0.5f,
+      ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN to 0.75f,
+      ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL to 0.25f,
+      ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW to 0.5f,
+      ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE to 0.75f,
+      0 to 1f
+    )
+
+    expected.forEach { (level, fraction) ->
+      assertEquals("level=$level", fraction, ChanThreadsCache.budgetFractionForTrimMemoryLevel(level))
+    }
+  }
+
+  private fun estimatedThreadSize(): Long {
+    val chanThreadsCache = createCache(maxCacheSizeBytes = Long.MAX_VALUE)
+    putThread(chanThreadsCache, 1L)
+
+    return chanThreadsCache.getTotalEstimatedRetainedSize()
+  }
+
+  private fun createCache(maxCacheSizeBytes: Long): ChanThreadsCache {
+    return ChanThreadsCache(
+      isDevBuild = false,
+      isLowRamDevice = true,
+      maxCacheSizeBytes = maxCacheSizeBytes,
+      chanCatalogSnapshotCache = ChanCatalogSnapshotCache()
+    )
+  }
+
+  private fun putThread(chanThreadsCache: ChanThreadsCache, threadNo: Long, commentLength: Int = 100) {
+    val threadDescriptor = td(threadNo)
+    val posts = (0 until POSTS_PER_THREAD).map { index ->
+      post(threadDescriptor, index.toLong(), "a".repeat(commentLength))
+    }
+
+    backgroundExecutor.submit {
+      chanThreadsCache.putManyThreadPostsIntoCache(
+        threadDescriptor = threadDescriptor,
+        parsedPosts = posts,
+        cacheOptions = ChanCacheOptions.onlyCacheInMemory(),
+        chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateCache,
+        postsFromServerData = null
+      )
+    }.get()
+
+    // Threads are evicted by their last access time which has millisecond precision
+    Thread.sleep(2)
+  }
+
+  private fun td(threadNo: Long): ChanDescriptor.ThreadDescriptor {
+    return ChanDescriptor.ThreadDescriptor.create("test", "g", threadNo * 1000)
+  }
+
+  private fun post(threadDescriptor: ChanDescriptor.ThreadDescriptor, index: Long, comment: String): ChanPost {
+    val postNo = threadDescriptor.threadNo + index
+    val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+    val postComment = PostComment(originalComment = comment, originalUnparsedComment = comment, emptyList())
+
+    if (postNo == threadDescriptor.threadNo) {
+      return ChanOriginalPost(
+        chanPostId = 0L,
+        postDescriptor = postDescriptor,
+        postImages = mutableListOf(),
+        postIcons = mutableListOf<ChanPostHttpIcon>(),
+        repliesTo = emptySet(),
+        timestamp = postNo,
+        postComment = postComment,
+        isSavedReply = false,
+        lastModified = 0L,
+        sticky = false,
+        closed = false,
+        archived = false,
+        endless = false,
+        isSage = false,
+        deleted = false,
+        posterIdColor = 0
+      )
+    }
+
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = postDescriptor,
+      _postImages = mutableListOf(),
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = emptySet(),
+      timestamp = postNo,
+      postComment = postComment,
+      subject = null,
+      tripcode = null,
+      isSavedReply = false,
+      isSage = false,
+      deleted = false,
+      posterIdColor = 0
+    )
+  }
+
+  companion object {
+    private const val POSTS_PER_THREAD = 10
+  }
+
+}
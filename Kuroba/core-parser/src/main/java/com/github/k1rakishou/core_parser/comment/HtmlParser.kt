@@ -1,19 +1,33 @@
 package com.github.k1rakishou.core_parser.comment
 
 import com.github.k1rakishou.common.mutableListWithCap
-import org.jsoup.parser.Parser
+import org.jsoup.nodes.Entities
 
 /**
- * Not thread safe!
+ * Streaming comment html tokenizer. Text and tags are accumulated in reusable char buffers (no boxed
+ * chars, no intermediate lists) and html entities are decoded inline while the text is being read
+ * so there is no need to run a separate unescape pass over every text node.
+ *
+ * Not thread safe! The buffers are reused between [parse] calls so use one instance per thread.
  * */
 class HtmlParser {
+  private var textBuffer = CharArray(DEFAULT_BUFFER_SIZE)
+  private var textLength = 0
+
+  private var tagBuffer = CharArray(DEFAULT_BUFFER_SIZE)
+  private var partBuffer = CharArray(DEFAULT_BUFFER_SIZE)
+  private var partLength = 0
 
   fun parse(html: String): HtmlDocument {
     try {
+      textLength = 0
+
       val nodes = parseInternal(html = html, start = 0).nodes
       return HtmlDocument(nodes)
     } catch (error: Throwable) {
       throw ParsingException("Failed to parse '$html'", error)
+    } finally {
+      trimBuffers()
     }
   }
 
@@ -22,19 +36,12 @@ class HtmlParser {
     var tagIndex = 0
 
     val outNodes = mutableListWithCap<HtmlNode>(4)
-    val currentBuffer = mutableListWithCap<Char>(32)
 
     while (localOffset < html.length) {
       val currChar = html[localOffset]
 
       if (currChar == '<') {
-        if (currentBuffer.size > 0) {
-          val text = String(currentBuffer.toCharArray())
-          val textUnescaped = Parser.unescapeEntities(text, false)
-
-          addNewTextNode(parentNode, outNodes, textUnescaped)
-          currentBuffer.clear()
-        }
+        flushTextBuffer(parentNode, outNodes)
 
         ++localOffset
 
@@ -64,49 +71,222 @@ class HtmlParser {
         continue
       }
 
-      currentBuffer.add(currChar)
-      ++localOffset
-    }
-
-    if (currentBuffer.size > 0) {
-      val text = String(currentBuffer.toCharArray())
-      val textUnescaped = Parser.unescapeEntities(text, false)
+      if (currChar == '&') {
+        localOffset = decodeEntity(html, localOffset)
+        continue
+      }
 
-      addNewTextNode(parentNode, outNodes, textUnescaped)
-      currentBuffer.clear()
+      appendText(currChar)
+      ++localOffset
     }
 
+    flushTextBuffer(parentNode, outNodes)
     return ParseResult(outNodes, localOffset)
   }
 
-  private fun addNewTextNode(parentNode: HtmlNode?, outNodes: MutableList<HtmlNode>, textUnescaped: String) {
+  private fun flushTextBuffer(parentNode: HtmlNode?, outNodes: MutableList<HtmlNode>) {
+    if (textLength <= 0) {
+      return
+    }
+
     val lastNode = outNodes.lastOrNull()
     val isLastNodeVoid = (lastNode as? HtmlNode.Tag)?.htmlTag?.isVoidElement == true
-    val emptyOrNewLineCharacter = textUnescaped.trim().let { text -> text.isEmpty() || (text.length == 1 && text[0] == '\n') }
 
-    if (lastNode == null || !isLastNodeVoid || !emptyOrNewLineCharacter) {
-      outNodes.add(HtmlNode.Text(textUnescaped, parentNode))
+    if (lastNode == null || !isLastNodeVoid || !isTextBufferBlank()) {
+      outNodes.add(HtmlNode.Text(String(textBuffer, 0, textLength), parentNode))
+    }
+
+    textLength = 0
+  }
+
+  private fun isTextBufferBlank(): Boolean {
+    for (index in 0 until textLength) {
+      if (!textBuffer[index].isWhitespace()) {
+        return false
+      }
+    }
+
+    return true
+  }
+
+  private fun appendText(ch: Char) {
+    if (textLength == textBuffer.size) {
+      textBuffer = textBuffer.copyOf(textBuffer.size * 2)
+    }
+
+    textBuffer[textLength++] = ch
+  }
+
+  private fun appendText(str: String) {
+    for (ch in str) {
+      appendText(ch)
+    }
+  }
+
+  private fun appendCodePoint(codePoint: Int) {
+    if (Character.isBmpCodePoint(codePoint)) {
+      appendText(codePoint.toChar())
+      return
+    }
+
+    appendText(Character.highSurrogate(codePoint))
+    appendText(Character.lowSurrogate(codePoint))
+  }
+
+  /**
+   * [start] points to the '&' symbol. Decodes the entity (if it's a valid one) directly into the text
+   * buffer and returns the offset right after it. When the entity cannot be decoded the '&' symbol is
+   * appended as is and the rest of the sequence is processed as regular text. Mirrors the behavior of
+   * jsoup's Parser.unescapeEntities(text, inAttribute = false).
+   * */
+  private fun decodeEntity(html: String, start: Int): Int {
+    var localOffset = start + 1
+
+    if (localOffset >= html.length) {
+      appendText('&')
+      return localOffset
+    }
+
+    if (html[localOffset] == '#') {
+      return decodeNumericEntity(html, start)
+    }
+
+    val nameStart = localOffset
+
+    // Same as jsoup, entity names are letters followed by digits
+    while (localOffset < html.length && html[localOffset].isLetter()) {
+      ++localOffset
+    }
+
+    while (localOffset < html.length && html[localOffset] in '0'..'9') {
+      ++localOffset
+    }
+
+    val nameEnd = localOffset
+    if (nameEnd == nameStart) {
+      appendText('&')
+      return nameStart
+    }
+
+    val hasSemicolon = html.getOrNull(nameEnd) == ';'
+    val fastEntity = decodeCommonEntity(html, nameStart, nameEnd)
+
+    if (fastEntity != null) {
+      appendText(fastEntity)
+      return if (hasSemicolon) nameEnd + 1 else nameEnd
+    }
+
+    val name = html.substring(nameStart, nameEnd)
+
+    if (hasSemicolon && Entities.isNamedEntity(name)) {
+      appendText(Entities.getByName(name))
+      return nameEnd + 1
+    }
+
+    if (!hasSemicolon && Entities.isBaseNamedEntity(name)) {
+      appendText(Entities.getByName(name))
+      return nameEnd
+    }
+
+    appendText('&')
+    return nameStart
+  }
+
+  private fun decodeNumericEntity(html: String, start: Int): Int {
+    // Skip the "&#"
+    var localOffset = start + 2
+
+    val isHex = html.getOrNull(localOffset).let { ch -> ch == 'x' || ch == 'X' }
+    if (isHex) {
+      ++localOffset
+    }
+
+    val radix = if (isHex) 16 else 10
+    val digitsStart = localOffset
+    var codePoint = 0
+
+    while (localOffset < html.length) {
+      val digit = Character.digit(html[localOffset], radix)
+      if (digit < 0) {
+        break
+      }
+
+      if (codePoint <= Character.MAX_CODE_POINT) {
+        codePoint = codePoint * radix + digit
+      }
+
+      ++localOffset
+    }
+
+    if (localOffset == digitsStart) {
+      appendText('&')
+      return start + 1
+    }
+
+    if (html.getOrNull(localOffset) == ';') {
+      ++localOffset
+    }
+
+    if (codePoint > Character.MAX_CODE_POINT || codePoint in Character.MIN_SURROGATE.code..Character.MAX_SURROGATE.code) {
+      appendText(REPLACEMENT_CHAR)
+    } else if (codePoint in WIN1252_EXTENSIONS_START until WIN1252_EXTENSIONS_START + WIN1252_EXTENSIONS.size) {
+      appendCodePoint(WIN1252_EXTENSIONS[codePoint - WIN1252_EXTENSIONS_START])
+    } else {
+      appendCodePoint(codePoint)
+    }
+
+    return localOffset
+  }
+
+  /**
+   * Resolves the most common entities (the ones that are present in pretty much every post) without
+   * allocating the entity name string and without going into jsoup's entity table.
+   * */
+  private fun decodeCommonEntity(html: String, nameStart: Int, nameEnd: Int): Char? {
+    return when (nameEnd - nameStart) {
+      2 -> {
+        when {
+          html.regionMatches(nameStart, "gt", 0, 2) -> '>'
+          html.regionMatches(nameStart, "lt", 0, 2) -> '<'
+          else -> null
+        }
+      }
+      3 -> {
+        if (html.regionMatches(nameStart, "amp", 0, 3)) '&' else null
+      }
+      4 -> {
+        when {
+          html.regionMatches(nameStart, "quot", 0, 4) -> '\"'
+          html.regionMatches(nameStart, "nbsp", 0, 4) -> '\u00A0'
+          else -> null
+        }
+      }
+      else -> null
     }
   }
 
   private fun parseNode(parentNode: HtmlNode?, html: String, start: Int, tagIndex: Int): ParseNodeResult {
     var localOffset = start
-    val tagRaw = mutableListWithCap<Char>(32)
 
     while (localOffset < html.length) {
-      val ch = html[localOffset]
-      if (ch == '>') {
+      if (html[localOffset] == '>') {
         break
       }
 
-      tagRaw.add(ch)
       ++localOffset
     }
 
+    val tagRawLength = localOffset - start
+    if (tagBuffer.size < tagRawLength) {
+      tagBuffer = CharArray(tagRawLength)
+    }
+
+    html.toCharArray(tagBuffer, 0, start, localOffset)
+
     // Skip the ">"
     ++localOffset
 
-    val htmlNodeTag = createHtmlTag(parentNode, tagRaw.toCharArray(), tagIndex)
+    val htmlNodeTag = createHtmlTag(parentNode, tagBuffer, tagRawLength, tagIndex)
     if (htmlNodeTag.htmlTag.isVoidElement) {
       return ParseNodeResult(htmlNodeTag, localOffset)
     }
@@ -125,10 +305,10 @@ class HtmlParser {
     return ParseNodeResult(HtmlNode.Tag(updatedHtmlTag), parseResult.offset)
   }
 
-  private fun createHtmlTag(parentNode: HtmlNode?, tagRaw: CharArray, tagIndex: Int): HtmlNode.Tag {
-    val tagParts = splitIntoPartsBySeparator(tagRaw, separator = ' ')
+  private fun createHtmlTag(parentNode: HtmlNode?, tagRaw: CharArray, tagRawLength: Int, tagIndex: Int): HtmlNode.Tag {
+    val tagParts = splitIntoPartsBySeparator(tagRaw, tagRawLength, separator = ' ')
     if (tagParts.isEmpty()) {
-      throw ParsingException("tagParts is empty! tagRaw=${tagRaw.joinToString()}")
+      throw ParsingException("tagParts is empty! tagRaw=${String(tagRaw, 0, tagRawLength)}")
     }
 
     var tagNameMaybe: CharArray? = null
@@ -145,32 +325,43 @@ class HtmlParser {
         continue
       }
 
-      val attributeSplitList = splitIntoPartsBySeparator(tagPart, '=')
+      val attributeSplitList = splitIntoPartsBySeparator(tagPart, tagPart.size, '=')
       val attrName = attributeSplitList.getOrNull(0) ?: CharArray(0)
-      var attrValue = attributeSplitList?.getOrNull(1) ?: CharArray(0)
+      val attrValueRaw = attributeSplitList.getOrNull(1) ?: CharArray(0)
 
-      if (attrName.isEmpty() || attrValue.isEmpty()) {
+      if (attrName.isEmpty() || attrValueRaw.isEmpty()) {
         continue
       }
 
-      val firstCh = attrValue.getOrNull(0)
-        ?: continue
-      val secondCh = attrValue.getOrNull(1)
+      var valueStart = 0
+      var valueEnd = attrValueRaw.size
+
+      val firstCh = attrValueRaw[0]
+      val secondCh = attrValueRaw.getOrNull(1)
 
       if (firstCh == '\\' && secondCh == '\"') {
-        attrValue = attrValue.copyOfRange(2, attrValue.size)
+        valueStart += 2
       } else if (firstCh == '\"') {
-        attrValue = attrValue.copyOfRange(1, attrValue.size)
+        valueStart += 1
+      }
+
+      if (valueStart >= valueEnd) {
+        continue
       }
 
-      val lastCh = attrValue.getOrNull(attrValue.lastIndex)
-        ?: continue
-      val secondToLastCh = attrValue.getOrNull(attrValue.lastIndex - 1)
+      val lastCh = attrValueRaw[valueEnd - 1]
+      val secondToLastCh = if (valueEnd - 2 >= valueStart) attrValueRaw[valueEnd - 2] else null
 
       if (secondToLastCh == '\\' && lastCh == '\"') {
-        attrValue = attrValue.copyOfRange(0, attrValue.size - 2)
+        valueEnd -= 2
       } else if (lastCh == '\"') {
-        attrValue = attrValue.copyOfRange(0, attrValue.size - 1)
+        valueEnd -= 1
+      }
+
+      val attrValue = if (valueStart == 0 && valueEnd == attrValueRaw.size) {
+        attrValueRaw
+      } else {
+        attrValueRaw.copyOfRange(valueStart, valueEnd)
       }
 
       attributes.add(HtmlAttribute(attrName, attrValue))
@@ -195,16 +386,17 @@ class HtmlParser {
     )
   }
 
-  private fun splitIntoPartsBySeparator(tagRaw: CharArray, separator: Char): List<CharArray> {
+  private fun splitIntoPartsBySeparator(tagRaw: CharArray, tagRawLength: Int, separator: Char): List<CharArray> {
     var isInsideString = false
     var offset = 0
     val tagParts = mutableListWithCap<CharArray>(4)
-    val currentTagPart = mutableListWithCap<Char>(32)
 
-    while (offset < tagRaw.size) {
-      val prevCh = tagRaw.getOrNull(offset - 1)
+    partLength = 0
+
+    while (offset < tagRawLength) {
+      val prevCh = if (offset > 0) tagRaw[offset - 1] else NO_CHAR
       val currentCh = tagRaw[offset]
-      val nextCh = tagRaw.getOrNull(offset + 1)
+      val nextCh = if (offset + 1 < tagRawLength) tagRaw[offset + 1] else NO_CHAR
 
       if (currentCh == '\"' && prevCh != '\\') {
         isInsideString = isInsideString.not()
@@ -213,8 +405,8 @@ class HtmlParser {
       }
 
       if (currentCh == separator && !isInsideString && nextCh != '/') {
-        tagParts.add(currentTagPart.toCharArray())
-        currentTagPart.clear()
+        tagParts.add(partBuffer.copyOf(partLength))
+        partLength = 0
 
         ++offset
         continue
@@ -225,18 +417,46 @@ class HtmlParser {
         continue
       }
 
-      currentTagPart.add(currentCh)
+      appendPart(currentCh)
       ++offset
     }
 
-    if (currentTagPart.size > 0) {
-      tagParts.add(currentTagPart.toCharArray())
-      currentTagPart.clear()
+    if (partLength > 0) {
+      tagParts.add(partBuffer.copyOf(partLength))
+      partLength = 0
     }
 
     return tagParts
   }
 
+  private fun appendPart(ch: Char) {
+    if (partLength == partBuffer.size) {
+      partBuffer = partBuffer.copyOf(partBuffer.size * 2)
+    }
+
+    partBuffer[partLength++] = ch
+  }
+
+  /**
+   * Do not keep huge buffers around after parsing some abnormally big comment.
+   * */
+  private fun trimBuffers() {
+    textLength = 0
+    partLength = 0
+
+    if (textBuffer.size > MAX_RETAINED_BUFFER_SIZE) {
+      textBuffer = CharArray(DEFAULT_BUFFER_SIZE)
+    }
+
+    if (tagBuffer.size > MAX_RETAINED_BUFFER_SIZE) {
+      tagBuffer = CharArray(DEFAULT_BUFFER_SIZE)
+    }
+
+    if (partBuffer.size > MAX_RETAINED_BUFFER_SIZE) {
+      partBuffer = CharArray(DEFAULT_BUFFER_SIZE)
+    }
+  }
+
   private fun skipTagEnd(html: String, start: Int): Int {
     var localOffset = start
 
@@ -312,6 +532,21 @@ class HtmlParser {
   companion object {
     private const val TAG = "HtmlParser"
 
+    private const val DEFAULT_BUFFER_SIZE = 256
+    private const val MAX_RETAINED_BUFFER_SIZE = 64 * 1024
+
+    private const val NO_CHAR = '\u0000'
+    private const val REPLACEMENT_CHAR = '\uFFFD'
+
+    // Numeric references in the 0x80..0x9F range are treated as Windows-1252 characters (same as jsoup does)
+    private const val WIN1252_EXTENSIONS_START = 0x80
+    private val WIN1252_EXTENSIONS = intArrayOf(
+      0x20AC, 0x0081, 0x201A, 0x0192, 0x201E, 0x2026, 0x2020, 0x2021,
+      0x02C6, 0x2030, 0x0160, 0x2039, 0x0152, 0x008D, 0x017D, 0x008F,
+      0x0090, 0x2018, 0x2019, 0x201C, 0x201D, 0x2022, 0x2013, 0x2014,
+      0x02DC, 0x2122, 0x0161, 0x203A, 0x0153, 0x009D, 0x017E, 0x0178,
+    )
+
     private val VOID_TAGS = mutableSetOf(
       "area",
       "base",
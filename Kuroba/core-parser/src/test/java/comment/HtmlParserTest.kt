@@ -413,4 +413,27 @@ Remember to do some research before asking a question. No one wants to answer a
     }
   }
 
+  @Test
+  fun html_parser_decodes_entities_inline() {
+    val html = "&gt;&gt;123 &amp;&amp &quot;q&quot; &#039;&#x41;&#65 &hellip; &foo; &# &copy;<br>&#150;&lt;b&gt;"
+
+    val htmlParser = HtmlParser()
+    val nodes = htmlParser.parse(html).nodes
+
+    val expected = """
+>>123 && "q" 'AA … &foo; &# ©
+<br>
+–<b>
+
+    """.trimIndent().lines()
+
+    val actual = htmlParser.debugConcatIntoString(nodes).lines()
+    assertEquals(expected.size, actual.size)
+
+    actual.forEachIndexed { index, actualLine ->
+      val expectedLine = expected[index]
+      assertEquals(expectedLine, actualLine)
+    }
+  }
+
 }
\ No newline at end of file